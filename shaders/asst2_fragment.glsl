@@ -1,8 +1,16 @@
+// Compiled three ways: by default to shade forward, with GBUFFER defined to
+// write each surface into the G-buffer instead, and with DEFERRED defined
+// to light every pixel of the G-buffer in one pass over the screen
+
 uniform vec4 input_color;
 uniform mat4 view_matrix;
 
-// Global light properties
-uniform vec3 ambientIntensity;
+// Sun colour, ambient light and sky tint through the day and night, one
+// row each, sampled at the time of day
+uniform sampler2D daylight;
+uniform float timeOfDay;
+#define SUN_ROW     (0.5 / 3.0)
+#define AMBIENT_ROW (1.5 / 3.0)
 
 struct DirLight {
     vec3 intensity;
@@ -12,10 +20,6 @@ struct DirLight {
 struct Sunlight {
     vec3 intensity;
     vec3 direction;
-
-    float time;
-    float daytime;
-    float nighttime;
 };
 uniform Sunlight sunlight;
 
@@ -36,16 +40,28 @@ struct Spotlight {
 };
 uniform Spotlight spot;
 
-struct Pointlight {
-    vec3 intensity;
-    vec3 position;
-
-    // attenuation coefficients
-    float constant;
-    float linear;
-    float quadratic;
-};
-//uniform Pointlight point;
+// Visible point lights, 3 texels each: view space position and radius,
+// intensity, and the attenuation coefficients
+uniform samplerBuffer pointLights;
+
+// Offset and count of each cluster's lights in lightIndices, by slice, then
+// row, then column of screen tiles
+uniform isamplerBuffer lightGrid;
+uniform isamplerBuffer lightIndices;
+
+// Tiles across, up and slices deep, pixels and log distance to clusters,
+// and where the first slice starts
+uniform vec3 clusterCounts;
+uniform vec3 clusterScale;
+uniform float clusterNear;
+
+// The sun's shadow maps, one layer a cascade, with matrices from view space
+// to shadow map coordinates, and the size of each cascade's texels in view
+// space. No cascades when the sun is down.
+uniform sampler2DArrayShadow shadowMap;
+uniform mat4 shadowMatrices[4];
+uniform float shadowTexelSizes[4];
+uniform int shadowCascades;
 
 // Material properties
 uniform vec3 ambientCoeff;
@@ -56,39 +72,145 @@ uniform float phongExp;
 uniform sampler2D tex;
 uniform bool useTexture;
 
+// Layer of the world's texture array to sample instead of tex, or -1
+uniform sampler2DArray layers;
+uniform int layer;
+
+#ifdef DEFERRED
+// The G-buffer, with the surface's colours, its normal and shininess, and
+// depth, and the inverse projection to find each pixel's position
+uniform sampler2D gDiffuse;
+uniform sampler2D gAmbient;
+uniform sampler2D gSpecular;
+uniform sampler2D gNormal;
+uniform sampler2D gDepth;
+uniform mat4 inverse_proj;
+#else
 in vec4 viewPosition;
 in vec2 texCoordFrag;
 in vec3 m; // Interpolated normal
-
+#endif
+
+#ifdef GBUFFER
+out vec4 outDiffuse;
+out vec4 outAmbient;
+out vec4 outSpecular;
+out vec4 outNormal;
+#else
 out vec4 outputColor;
+#endif
+
+// What the lights shine on: the view space position, and the surface's
+// colours under ambient, diffuse and specular light
+vec3 position;
+vec3 surfaceAmbient;
+vec3 surfaceDiffuse;
+vec3 surfaceSpecular;
+float shininess;
 
 #define M_PI 3.1415926535897932384626433832795
 void calcSunlight(inout vec3 diffuse, inout vec3 specular, vec3 n, vec3 v);
 void calcSpotlight(inout vec3 diffuse, inout vec3 specular, vec3 n, vec3 v);
+void calcPointlight(int light, inout vec3 diffuse, inout vec3 specular, vec3 n, vec3 v);
+float calcShadow(vec3 n);
+vec2 encodeNormal(vec3 n);
+vec3 decodeNormal(vec2 e);
 
 void main()
 {
+    vec3 n;
+    float alpha = 1;
+
+#ifdef DEFERRED
+    // Nothing was drawn where the sky will be
+    ivec2 pixel = ivec2(gl_FragCoord.xy);
+    float depth = texelFetch(gDepth, pixel, 0).r;
+    if (depth == 1.0) discard;
+    gl_FragDepth = depth;
+
+    vec2 ndc = gl_FragCoord.xy / vec2(textureSize(gDepth, 0)) * 2.0 - 1.0;
+    vec4 p = inverse_proj * vec4(ndc, depth * 2.0 - 1.0, 1);
+    position = p.xyz / p.w;
+
+    vec4 normalShininess = texelFetch(gNormal, pixel, 0);
+    n = decodeNormal(normalShininess.xy);
+    shininess = normalShininess.z;
+    surfaceDiffuse  = texelFetch(gDiffuse, pixel, 0).rgb;
+    surfaceAmbient  = texelFetch(gAmbient, pixel, 0).rgb;
+    surfaceSpecular = texelFetch(gSpecular, pixel, 0).rgb;
+#else
     // Interpolated normal from the vertex shader
-    vec3 n = normalize(m);
-
+    n = normalize(m);
+    position = viewPosition.xyz;
+
+    // The pen colour, times the texture if there is one, colours the
+    // ambient and diffuse light, and without a texture the specular too
+    vec4 albedo = input_color;
+    surfaceSpecular = specularCoeff * input_color.rgb;
+    if (useTexture) {
+        albedo *= layer >= 0 ? texture(layers, vec3(texCoordFrag, layer))
+                             : texture(tex, texCoordFrag);
+        surfaceSpecular = specularCoeff;
+    } else {
+        alpha = input_color.a;
+    }
+    surfaceAmbient = ambientCoeff * albedo.rgb;
+    surfaceDiffuse = diffuseCoeff * albedo.rgb;
+    shininess = phongExp;
+#endif
+
+#ifdef GBUFFER
+    // Blending stays on, so every buffer is written fully opaque
+    outDiffuse  = vec4(surfaceDiffuse, 1);
+    outAmbient  = vec4(surfaceAmbient, 1);
+    outSpecular = vec4(surfaceSpecular, 1);
+    outNormal   = vec4(encodeNormal(n), shininess, 1);
+#else
     // Vector from position to the viewer
-    vec3 v = normalize(-viewPosition.xyz);
+    vec3 v = normalize(-position);
 
     // Define the three components for total light intensity
     vec3 ambient, diffuse, specular;
 
-    ambient  = ambientIntensity * ambientCoeff;
+    ambient  = texture(daylight, vec2(timeOfDay, AMBIENT_ROW)).rgb * surfaceAmbient;
 
     // Calculate the intensity contributed by light sources
     calcSunlight(diffuse, specular, n, v);
     calcSpotlight(diffuse, specular, n, v);
 
-    if (useTexture)
-        outputColor = vec4(specular, 1) +
-                      vec4(ambient + diffuse, 1) * input_color *
-                      texture(tex, texCoordFrag);
-    else
-        outputColor = vec4(ambient + diffuse + specular, 1) * input_color;
+    // Only the lights of this fragment's cluster can reach it
+    ivec3 counts = ivec3(clusterCounts);
+    ivec3 c = ivec3(gl_FragCoord.xy * clusterScale.xy, log(-position.z / clusterNear) * clusterScale.z);
+    c = clamp(c, ivec3(0), counts - 1);
+    ivec2 lights = texelFetch(lightGrid, (c.z * counts.y + c.y) * counts.x + c.x).rg;
+    for (int i = 0; i < lights.y; i++)
+        calcPointlight(texelFetch(lightIndices, lights.x + i).r, diffuse, specular, n, v);
+
+    outputColor = vec4(ambient + diffuse + specular, alpha);
+#endif
+}
+
+
+/*
+ * A unit normal folded onto an octahedron and flattened, so two channels
+ * hold it.
+ */
+vec2 encodeNormal(vec3 n)
+{
+    n /= abs(n.x) + abs(n.y) + abs(n.z);
+    vec2 e = n.xy;
+    if (n.z < 0)
+        e = (1.0 - abs(n.yx)) * vec2(n.x >= 0 ? 1 : -1, n.y >= 0 ? 1 : -1);
+    return e;
+}
+
+
+vec3 decodeNormal(vec2 e)
+{
+    vec3 n = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+    if (n.z < 0)
+        n.xy = (1.0 - abs(n.yx)) * vec2(n.x >= 0 ? 1 : -1, n.y >= 0 ? 1 : -1);
+    return normalize(n);
 }
 
 
@@ -97,24 +219,45 @@ void calcSunlight(inout vec3 diffuse, inout vec3 specular, vec3 n, vec3 v)
     vec3 s = normalize(view_matrix * vec4(sunlight.direction,0)).xyz;
     vec3 r = normalize(reflect(-s,n));
 
-    // add a bit of night cause light coming horizontally can still light scene
-    float dusk = sunlight.daytime + (sunlight.nighttime / 3.0);
-
-    vec3 intensity = vec3(0);
-    if (sunlight.time < dusk) {
-        // adjust color of the sunlight to reflect time of day
-        float red   = sunlight.intensity.r;
-        float green = red - (red * sunlight.time / (3.0 * sunlight.daytime));
-        float blue  = red - (red * sunlight.time / (2.5 * sunlight.daytime));
-        intensity = vec3(red, green, blue);
-    }
+    // The sun's colour for the time of day, reddening towards dusk and
+    // black a third into the night
+    vec3 intensity = texture(daylight, vec2(timeOfDay, SUN_ROW)).rgb;
 
-    diffuse  = max(intensity * diffuseCoeff * dot(n,s), 0.0);
+    diffuse  = max(intensity * surfaceDiffuse * dot(n,s), 0.0);
     specular = vec3(0);
 
     // Only show specular reflections for the front face
     if (dot(n,s) > 0)
-        specular = max(sunlight.intensity * specularCoeff * pow(dot(r,v), phongExp), 0.0);
+        specular = max(sunlight.intensity * surfaceSpecular * pow(dot(r,v), shininess), 0.0);
+
+    float lit = calcShadow(n);
+    diffuse  *= lit;
+    specular *= lit;
+}
+
+
+/*
+ * How much of the sun reaches the fragment, from the nearest cascade it is
+ * in, filtered over 3x3 texels.
+ */
+float calcShadow(vec3 n)
+{
+    for (int i = 0; i < shadowCascades; i++) {
+        // Pushing the position out along the normal keeps surfaces from
+        // shadowing themselves
+        vec3 offset = position + n * shadowTexelSizes[i] * 1.5;
+        vec4 coords = shadowMatrices[i] * vec4(offset, 1);
+        if (any(lessThan(coords.xyz, vec3(0))) || any(greaterThan(coords.xyz, vec3(1))))
+            continue;
+
+        vec2 texel = 1.0 / vec2(textureSize(shadowMap, 0).xy);
+        float lit = 0;
+        for (int x = -1; x <= 1; x++)
+            for (int y = -1; y <= 1; y++)
+                lit += texture(shadowMap, vec4(coords.xy + vec2(x, y) * texel, i, coords.z));
+        return lit / 9.0;
+    }
+    return 1.0;
 }
 
 
@@ -126,17 +269,17 @@ void calcSpotlight(inout vec3 diffuse, inout vec3 specular, vec3 n, vec3 v)
     if (length(spot.direction) == 0) return;
 
     // Get the position of the spotlight in view coordinates
-    vec4 lightPos = view_matrix * vec4(spot.position,1);
+    vec3 lightPos = (view_matrix * vec4(spot.position,1)).xyz;
 
     // Vector from fragment to light source
-    vec3 s = normalize(lightPos - viewPosition).xyz;
+    vec3 s = normalize(lightPos - position);
 
     // Angle between vector s and where the light is pointing
     vec3 lightDir = normalize(view_matrix * vec4(spot.direction,0)).xyz;
     float theta   = dot(s, -lightDir);
 
     // distance attenuation
-    float distance    = length(lightPos - viewPosition);
+    float distance    = length(lightPos - position);
     float attenuation = 1.0 / (spot.constant + spot.linear * distance +
                     spot.quadratic * (distance * distance));
 
@@ -145,9 +288,33 @@ void calcSpotlight(inout vec3 diffuse, inout vec3 specular, vec3 n, vec3 v)
     vec3 intensity = clamp((theta - spot.gamma) / epsilon, 0.0, 1.0) * spot.intensity;
 
     // If fragment outside of light cone, intensity will be negative, so 0
-    diffuse += max(intensity * attenuation * diffuseCoeff * dot(n,s), 0.0);
+    diffuse += max(intensity * attenuation * surfaceDiffuse * dot(n,s), 0.0);
+    if (dot(n,s) > 0) {
+        vec3 r = normalize(reflect(-s,n));
+        specular += max(intensity * attenuation * surfaceSpecular * pow(dot(r,v), shininess), 0.0);
+    }
+}
+
+
+void calcPointlight(int light, inout vec3 diffuse, inout vec3 specular, vec3 n, vec3 v)
+{
+    vec4 positionRadius = texelFetch(pointLights, light * 3);
+    vec3 lightPos = positionRadius.xyz;
+
+    float distance = length(lightPos - position);
+    float radius   = positionRadius.w;
+    if (distance >= radius) return;
+
+    // Fade to nothing at the radius rather than stopping abruptly
+    vec3 coeffs = texelFetch(pointLights, light * 3 + 2).xyz;
+    float fade = 1.0 - pow(distance / radius, 4.0);
+    float attenuation = fade * fade / (coeffs.x + coeffs.y * distance + coeffs.z * distance * distance);
+
+    vec3 intensity = texelFetch(pointLights, light * 3 + 1).rgb * attenuation;
+    vec3 s = normalize(lightPos - position);
+    diffuse += max(intensity * surfaceDiffuse * dot(n,s), 0.0);
     if (dot(n,s) > 0) {
         vec3 r = normalize(reflect(-s,n));
-        specular += max(intensity * attenuation * specularCoeff * pow(dot(r,v), phongExp), 0.0);
+        specular += max(intensity * surfaceSpecular * pow(max(dot(r,v), 0.0), shininess), 0.0);
     }
 }
@@ -0,0 +1,8 @@
+// Corner of a triangle covering the screen, in normalised device
+// coordinates
+in vec3 position;
+
+void main(void)
+{
+    gl_Position = vec4(position.xy, 0, 1);
+}
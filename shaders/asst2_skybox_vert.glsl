@@ -1,26 +1,20 @@
-// Incoming vertex position
+// Corner of a triangle covering the screen, in normalised device
+// coordinates at the far plane
 in vec3 position;
 
-// Incoming normal
-//in vec3 normal;
-
-// Incoming texture coordinate
-//in vec2 texCoord;
-
-//uniform mat4 model_matrix;
-uniform mat4 view_matrix;
-uniform mat4 proj_matrix;
+// From the far plane back to directions from the camera
+uniform mat4 inverse_view_proj;
 
 out vec3 texCoordFrag;
 
 void main(void)
 {
-    // The position in camera coordinates
-    vec4 viewPosition = view_matrix * vec4(position, 1);
-
-    // The position in CVV coordinates
-    gl_Position = proj_matrix * viewPosition;
+    // At the far plane, so only pixels nothing else covered pass the
+    // depth test
+    gl_Position = vec4(position.xy, 1, 1);
 
-    // Use 3d vector to get cube map coordinates
-    texCoordFrag = position;
-}
\ No newline at end of file
+    // The direction seen through this corner, which varies linearly
+    // across the far plane
+    vec4 direction = inverse_view_proj * vec4(position.xy, 1, 1);
+    texCoordFrag = direction.xyz / direction.w;
+}
@@ -0,0 +1,4 @@
+// Nothing but depth is written into a shadow map
+void main()
+{
+}
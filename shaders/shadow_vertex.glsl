@@ -0,0 +1,11 @@
+// Incoming vertex position
+in vec3 position;
+
+uniform mat4 model_matrix;
+uniform mat4 view_matrix;
+uniform mat4 proj_matrix;
+
+void main() {
+    // Only depth is drawn, seen from the sun
+    gl_Position = proj_matrix * view_matrix * model_matrix * vec4(position, 1);
+}
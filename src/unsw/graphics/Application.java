@@ -4,6 +4,7 @@
 package unsw.graphics;
 
 import java.awt.Color;
+import java.awt.image.BufferedImage;
 
 import com.jogamp.nativewindow.NativeSurface;
 import com.jogamp.newt.event.WindowAdapter;
@@ -14,9 +15,14 @@ import com.jogamp.opengl.GL3;
 import com.jogamp.opengl.GLAutoDrawable;
 import com.jogamp.opengl.GLCapabilities;
 import com.jogamp.opengl.GLContext;
+import com.jogamp.opengl.GLDrawableFactory;
 import com.jogamp.opengl.GLEventListener;
+import com.jogamp.opengl.GLOffscreenAutoDrawable;
 import com.jogamp.opengl.GLProfile;
+import com.jogamp.opengl.util.Animator;
+import com.jogamp.opengl.util.AnimatorBase;
 import com.jogamp.opengl.util.FPSAnimator;
+import com.jogamp.opengl.util.awt.AWTGLReadBufferUtil;
 
 /**
  * The basis for all UNSWgraph applications.
@@ -39,6 +45,17 @@ public abstract class Application implements GLEventListener {
 
     private int height;
 
+    private FramePacing pacing = FramePacing.FIXED;
+
+    private int fps = 60;
+
+    // Only used when running headless, see startHeadless()
+    private boolean headless = false;
+    private long[] frameTimes;
+    private int frameCount;
+    private AWTGLReadBufferUtil reader;
+    private BufferedImage lastFrame;
+
     /**
      * Construct an Application. The window for the application will have the
      * given title, width, and height.
@@ -58,11 +75,31 @@ public abstract class Application implements GLEventListener {
         this.background = new Color(1f, 1f, 1f);
     }
 
+    /**
+     * Choose how frames are paced. Must be called before start().
+     * 
+     * @param pacing
+     * @param fps The frame rate for {@link FramePacing#FIXED}, ignored otherwise
+     */
+    public void setFramePacing(FramePacing pacing, int fps) {
+        this.pacing = pacing;
+        this.fps = fps;
+    }
+
+    /**
+     * Get how frames are paced.
+     * 
+     * @return
+     */
+    public FramePacing getFramePacing() {
+        return pacing;
+    }
+
     /**
      * Start the application.
      * 
      * This displays the window and starts an animation timer that causes the
-     * window to refresh at 60 frames a second.
+     * window to refresh, by default 60 times a second.
      * 
      */
     public void start() {
@@ -90,8 +127,11 @@ public abstract class Application implements GLEventListener {
         window.addGLEventListener(this);
 
         // Create an animator. The animator will tell the window to redraw
-        // itself 60 times a second.
-        FPSAnimator animator = new FPSAnimator(window, 60);
+        // itself, either at a fixed rate or as often as it can.
+        AnimatorBase animator = pacing == FramePacing.FIXED
+                ? new FPSAnimator(window, fps)
+                : new Animator(window);
+        animator.setUpdateFPSFrames(fps, null);
 
         // THis is just to make sure everything shuts down properly when the
         // window is closed.
@@ -107,10 +147,84 @@ public abstract class Application implements GLEventListener {
         animator.start();
     }
 
+    /**
+     * Run the application without a window, drawing the given number of
+     * frames into an offscreen framebuffer as fast as possible and then
+     * destroying it. Needs no display or GPU, only an OpenGL 3 driver such as
+     * Mesa's llvmpipe.
+     * 
+     * Each frame is timed until the GPU has finished drawing it, which makes
+     * the times comparable between runs but slower than when frames overlap.
+     * The last frame is read back, see {@link #getLastFrame()}.
+     * 
+     * @param frames
+     * @return How long each frame took in nanoseconds
+     */
+    public long[] startHeadless(int frames) {
+        GLProfile glProfile = GLProfile.get(GLProfile.GL3);
+
+        GLCapabilities glCapabilities = new GLCapabilities(glProfile);
+        glCapabilities.setOnscreen(false);
+        glCapabilities.setFBO(true);
+
+        // Without an X server the desktop factory can't make a context, EGL
+        // can
+        GLDrawableFactory factory = GLDrawableFactory.getFactory(glProfile);
+        if (!factory.canCreateFBO(null, glProfile))
+            factory = GLDrawableFactory.getEGLFactory();
+
+        GLOffscreenAutoDrawable drawable = factory.createOffscreenAutoDrawable(
+                null, glCapabilities, null, width, height);
+        drawable.addGLEventListener(this);
+
+        headless = true;
+        frameTimes = new long[frames];
+        frameCount = 0;
+        reader = new AWTGLReadBufferUtil(glProfile, false);
+
+        // The first display also initialises and reshapes
+        try {
+            while (frameCount < frames) drawable.display();
+        } finally {
+            drawable.destroy();
+        }
+        return frameTimes;
+    }
+
+    /**
+     * Whether the application is running without a window.
+     * 
+     * @return
+     */
+    public boolean isHeadless() {
+        return headless;
+    }
+
+    /**
+     * Get the last frame drawn by {@link #startHeadless(int)}, the right way
+     * up.
+     * 
+     * @return
+     */
+    public BufferedImage getLastFrame() {
+        return lastFrame;
+    }
+
     @Override
     public void display(GLAutoDrawable drawable) {
         GL3 gl = drawable.getGL().getGL3();
+        if (!headless) {
+            display(gl);
+            return;
+        }
+
+        long start = System.nanoTime();
         display(gl);
+        gl.glFinish();
+        frameTimes[frameCount++] = System.nanoTime() - start;
+
+        if (frameCount == frameTimes.length)
+            lastFrame = reader.readPixelsToBufferedImage(gl, true);
     }
 
     /**
@@ -137,6 +251,14 @@ public abstract class Application implements GLEventListener {
     @Override
     public void init(GLAutoDrawable drawable) {
         GL3 gl = drawable.getGL().getGL3();
+
+        // Without vsync the animator is the only thing limiting the frame rate
+        if (pacing == FramePacing.UNCAPPED) {
+            gl.setSwapInterval(0);
+        } else if (pacing == FramePacing.ADAPTIVE) {
+            GLContext context = drawable.getContext();
+            if (!context.setSwapInterval(-1)) context.setSwapInterval(1);
+        }
         
         gl.glEnable(GL.GL_BLEND);
         gl.glBlendFunc(GL.GL_SRC_ALPHA, GL.GL_ONE_MINUS_SRC_ALPHA);
@@ -187,7 +309,28 @@ public abstract class Application implements GLEventListener {
     }
 
     /**
-     * Get the GLWindow that corresponds to this application.
+     * Get the width of the window, or of the offscreen framebuffer when
+     * headless.
+     * 
+     * @return
+     */
+    public int getWidth() {
+        return window != null ? window.getWidth() : width;
+    }
+
+    /**
+     * Get the height of the window, or of the offscreen framebuffer when
+     * headless.
+     * 
+     * @return
+     */
+    public int getHeight() {
+        return window != null ? window.getHeight() : height;
+    }
+
+    /**
+     * Get the GLWindow that corresponds to this application, null when
+     * headless.
      * 
      * @return
      */
@@ -60,7 +60,7 @@ public abstract class Application3D extends Application {
         
         // Reshape is called here just to make sure that if the shader is changed,
         // then the projection matrix property is set.
-        reshape(gl, getWindow().getWidth(), getWindow().getHeight());
+        reshape(gl, getWidth(), getHeight());
         
         Shader.setPenColor(gl, Color.BLACK);
     }
@@ -0,0 +1,252 @@
+package unsw.graphics;
+
+import java.nio.ByteBuffer;
+
+import com.jogamp.opengl.GL;
+
+/**
+ * Compresses images to BC1 (DXT1), or BC3 (DXT5) if they have any
+ * transparency, generating mipmaps by averaging each 2x2 square of the
+ * level above.
+ *
+ * Each block's colour endpoints are the extremes of its colours along
+ * their principal axis, pulled in slightly as the ends of the palette are
+ * rarely hit exactly, and each pixel takes the nearest palette entry.
+ */
+public class BlockCompressor {
+
+    /**
+     * Compress an image.
+     *
+     * @param image   top row first, as KTX files are stored
+     * @param mipmaps whether to include every mipmap down to 1x1
+     * @return
+     */
+    public static KTX compress(ImageData image, boolean mipmaps) {
+        int width = image.getWidth(), height = image.getHeight();
+        byte[] rgba = toRGBA(image);
+        boolean alpha = false;
+        for (int i = 3; i < rgba.length && !alpha; i += 4) alpha = rgba[i] != (byte) 255;
+
+        int levelCount = 1;
+        if (mipmaps)
+            while ((Math.max(width, height) >> (levelCount - 1)) > 1) levelCount++;
+
+        ByteBuffer[] levels = new ByteBuffer[levelCount];
+        int w = width, h = height;
+        for (int level = 0; level < levelCount; level++) {
+            if (level > 0) {
+                rgba = halve(rgba, w, h);
+                w = Math.max(1, w / 2);
+                h = Math.max(1, h / 2);
+            }
+            levels[level] = compressLevel(rgba, w, h, alpha);
+        }
+        return new KTX(alpha ? GL.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT : GL.GL_COMPRESSED_RGB_S3TC_DXT1_EXT,
+                width, height, levels);
+    }
+
+    private static ByteBuffer compressLevel(byte[] rgba, int width, int height, boolean alpha) {
+        int blocksX = (width + 3) / 4, blocksY = (height + 3) / 4;
+        ByteBuffer out = ByteBuffer.allocateDirect(blocksX * blocksY * (alpha ? 16 : 8));
+        int[] block = new int[16 * 4];
+        byte[] encoded = new byte[8];
+        for (int by = 0; by < blocksY; by++) {
+            for (int bx = 0; bx < blocksX; bx++) {
+                // Blocks past the edge repeat the last row and column
+                for (int y = 0; y < 4; y++) {
+                    for (int x = 0; x < 4; x++) {
+                        int px = Math.min(bx * 4 + x, width - 1), py = Math.min(by * 4 + y, height - 1);
+                        for (int c = 0; c < 4; c++)
+                            block[(y * 4 + x) * 4 + c] = rgba[(py * width + px) * 4 + c] & 0xFF;
+                    }
+                }
+                if (alpha) {
+                    encodeAlpha(block, encoded);
+                    out.put(encoded);
+                }
+                encodeColour(block, encoded);
+                out.put(encoded);
+            }
+        }
+        out.rewind();
+        return out;
+    }
+
+    /**
+     * Encode a block's colours as 2 RGB565 endpoints and 2 bit indices.
+     */
+    static void encodeColour(int[] block, byte[] out) {
+        // Principal axis of the colours by power iteration on their covariance
+        float mr = 0, mg = 0, mb = 0;
+        for (int i = 0; i < 16; i++) {
+            mr += block[i * 4];
+            mg += block[i * 4 + 1];
+            mb += block[i * 4 + 2];
+        }
+        mr /= 16;
+        mg /= 16;
+        mb /= 16;
+        float rr = 0, rg = 0, rb = 0, gg = 0, gb = 0, bb = 0;
+        for (int i = 0; i < 16; i++) {
+            float r = block[i * 4] - mr, g = block[i * 4 + 1] - mg, b = block[i * 4 + 2] - mb;
+            rr += r * r;
+            rg += r * g;
+            rb += r * b;
+            gg += g * g;
+            gb += g * b;
+            bb += b * b;
+        }
+        float ar = 1, ag = 1, ab = 1;
+        for (int iter = 0; iter < 4; iter++) {
+            float r = rr * ar + rg * ag + rb * ab;
+            float g = rg * ar + gg * ag + gb * ab;
+            float b = rb * ar + gb * ag + bb * ab;
+            float len = Math.max(Math.abs(r), Math.max(Math.abs(g), Math.abs(b)));
+            if (len == 0) break;
+            ar = r / len;
+            ag = g / len;
+            ab = b / len;
+        }
+
+        int min = 0, max = 0;
+        float minDot = Float.MAX_VALUE, maxDot = -Float.MAX_VALUE;
+        for (int i = 0; i < 16; i++) {
+            float dot = block[i * 4] * ar + block[i * 4 + 1] * ag + block[i * 4 + 2] * ab;
+            if (dot < minDot) {
+                minDot = dot;
+                min = i;
+            }
+            if (dot > maxDot) {
+                maxDot = dot;
+                max = i;
+            }
+        }
+
+        int[] hi = new int[3], lo = new int[3];
+        for (int c = 0; c < 3; c++) {
+            int inset = (block[max * 4 + c] - block[min * 4 + c]) / 16;
+            hi[c] = block[max * 4 + c] - inset;
+            lo[c] = block[min * 4 + c] + inset;
+        }
+        int c0 = to565(hi), c1 = to565(lo);
+        if (c0 < c1) {
+            int t = c0;
+            c0 = c1;
+            c1 = t;
+        }
+
+        int indices = 0;
+        if (c0 != c1) {
+            // Four colour mode, since c0 > c1
+            int[][] palette = new int[4][];
+            palette[0] = from565(c0);
+            palette[1] = from565(c1);
+            palette[2] = new int[3];
+            palette[3] = new int[3];
+            for (int c = 0; c < 3; c++) {
+                palette[2][c] = (2 * palette[0][c] + palette[1][c]) / 3;
+                palette[3][c] = (palette[0][c] + 2 * palette[1][c]) / 3;
+            }
+            for (int i = 0; i < 16; i++) {
+                int best = 0, bestError = Integer.MAX_VALUE;
+                for (int p = 0; p < 4; p++) {
+                    int dr = block[i * 4] - palette[p][0];
+                    int dg = block[i * 4 + 1] - palette[p][1];
+                    int db = block[i * 4 + 2] - palette[p][2];
+                    int error = dr * dr + dg * dg + db * db;
+                    if (error < bestError) {
+                        bestError = error;
+                        best = p;
+                    }
+                }
+                indices |= best << (2 * i);
+            }
+        }
+
+        out[0] = (byte) c0;
+        out[1] = (byte) (c0 >> 8);
+        out[2] = (byte) c1;
+        out[3] = (byte) (c1 >> 8);
+        for (int b = 0; b < 4; b++) out[4 + b] = (byte) (indices >>> (8 * b));
+    }
+
+    /**
+     * Encode a block's alpha as 2 endpoints and 3 bit indices.
+     */
+    static void encodeAlpha(int[] block, byte[] out) {
+        int a0 = 0, a1 = 255;
+        for (int i = 0; i < 16; i++) {
+            a0 = Math.max(a0, block[i * 4 + 3]);
+            a1 = Math.min(a1, block[i * 4 + 3]);
+        }
+
+        long indices = 0;
+        if (a0 != a1) {
+            // Eight alpha mode, since a0 > a1: a0, a1, then 6 between
+            int[] palette = new int[8];
+            palette[0] = a0;
+            palette[1] = a1;
+            for (int p = 1; p < 7; p++) palette[p + 1] = ((7 - p) * a0 + p * a1) / 7;
+            for (int i = 0; i < 16; i++) {
+                int best = 0, bestError = Integer.MAX_VALUE;
+                for (int p = 0; p < 8; p++) {
+                    int error = Math.abs(block[i * 4 + 3] - palette[p]);
+                    if (error < bestError) {
+                        bestError = error;
+                        best = p;
+                    }
+                }
+                indices |= (long) best << (3 * i);
+            }
+        }
+
+        out[0] = (byte) a0;
+        out[1] = (byte) a1;
+        for (int b = 0; b < 6; b++) out[2 + b] = (byte) (indices >>> (8 * b));
+    }
+
+    private static int to565(int[] rgb) {
+        int r = Math.min(31, Math.max(0, (rgb[0] * 31 + 127) / 255));
+        int g = Math.min(63, Math.max(0, (rgb[1] * 63 + 127) / 255));
+        int b = Math.min(31, Math.max(0, (rgb[2] * 31 + 127) / 255));
+        return r << 11 | g << 5 | b;
+    }
+
+    private static int[] from565(int c) {
+        int r = c >> 11 & 31, g = c >> 5 & 63, b = c & 31;
+        return new int[] { r << 3 | r >> 2, g << 2 | g >> 4, b << 3 | b >> 2 };
+    }
+
+    static byte[] toRGBA(ImageData image) {
+        ByteBuffer pixels = image.getPixels();
+        int n = image.getWidth() * image.getHeight();
+        int bpp = image.getBytesPerPixel();
+        byte[] rgba = new byte[n * 4];
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < 3; c++) rgba[i * 4 + c] = pixels.get(i * bpp + c);
+            rgba[i * 4 + 3] = bpp == 4 ? pixels.get(i * bpp + 3) : (byte) 255;
+        }
+        return rgba;
+    }
+
+    /**
+     * Average each 2x2 square, or pair along a side already 1 pixel long.
+     */
+    static byte[] halve(byte[] rgba, int width, int height) {
+        int w = Math.max(1, width / 2), h = Math.max(1, height / 2);
+        byte[] out = new byte[w * h * 4];
+        for (int y = 0; y < h; y++) {
+            int y0 = Math.min(y * 2, height - 1), y1 = Math.min(y * 2 + 1, height - 1);
+            for (int x = 0; x < w; x++) {
+                int x0 = Math.min(x * 2, width - 1), x1 = Math.min(x * 2 + 1, width - 1);
+                for (int c = 0; c < 4; c++) {
+                    int sum = (rgba[(y0 * width + x0) * 4 + c] & 0xFF) + (rgba[(y0 * width + x1) * 4 + c] & 0xFF)
+                            + (rgba[(y1 * width + x0) * 4 + c] & 0xFF) + (rgba[(y1 * width + x1) * 4 + c] & 0xFF);
+                    out[(y * w + x) * 4 + c] = (byte) ((sum + 2) / 4);
+                }
+            }
+        }
+        return out;
+    }
+}
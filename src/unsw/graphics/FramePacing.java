@@ -0,0 +1,28 @@
+package unsw.graphics;
+
+/**
+ * How an application paces the frames it draws.
+ *
+ * @see Application#setFramePacing(FramePacing, int)
+ */
+public enum FramePacing {
+
+    /**
+     * Draw at a fixed number of frames a second, with vsync left at the
+     * driver's default.
+     */
+    FIXED,
+
+    /**
+     * Draw as fast as possible with vsync off, to measure how quickly frames
+     * can really be drawn.
+     */
+    UNCAPPED,
+
+    /**
+     * Draw as fast as the display refreshes using adaptive vsync, which
+     * swaps late frames straight away instead of waiting for the next
+     * refresh. Falls back to normal vsync where the driver lacks it.
+     */
+    ADAPTIVE
+}
@@ -0,0 +1,58 @@
+package unsw.graphics;
+
+import java.nio.ByteBuffer;
+
+import com.jogamp.opengl.GL;
+
+/**
+ * Decoded pixels ready to upload with glTexImage2D, tightly packed 8 bit
+ * RGB or RGBA in a direct buffer.
+ */
+public class ImageData {
+
+    private final int width;
+    private final int height;
+    private final int format;
+    private final ByteBuffer pixels;
+
+    /**
+     * @param width
+     * @param height
+     * @param format GL_RGB or GL_RGBA
+     * @param pixels width * height pixels, rewound
+     */
+    public ImageData(int width, int height, int format, ByteBuffer pixels) {
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.pixels = pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * GL_RGB or GL_RGBA, usable as both the internal and pixel format.
+     * @return
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    public boolean hasAlpha() {
+        return format == GL.GL_RGBA;
+    }
+
+    public int getBytesPerPixel() {
+        return hasAlpha() ? 4 : 3;
+    }
+
+    public ByteBuffer getPixels() {
+        return pixels;
+    }
+}
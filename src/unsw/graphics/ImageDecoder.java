@@ -0,0 +1,363 @@
+package unsw.graphics;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+
+import com.jogamp.opengl.GL;
+
+/**
+ * Decodes image files straight into a direct buffer in the row order GL
+ * expects, without going through a BufferedImage. Uncompressed BMPs and
+ * non-interlaced PNGs are decoded here, flipping as the rows are written.
+ * Anything else, such as JPEGs, is read with ImageIO and copied out a row
+ * at a time.
+ *
+ * Rows are written top first, or bottom first when flipped, which is what
+ * glTexImage2D expects for a texture with t going up the image.
+ */
+public class ImageDecoder {
+
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+    private static final int BI_RGB = 0;
+    private static final int BI_BITFIELDS = 3;
+
+    /**
+     * Decode an image file.
+     *
+     * @param file
+     * @param flip write the bottom row first
+     * @return
+     * @throws IOException if the file can't be read or isn't an image
+     */
+    public static ImageData decode(File file, boolean flip) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+
+        ImageData image = null;
+        if (data.length > 2 && data[0] == 'B' && data[1] == 'M') image = decodeBMP(data, flip);
+        else if (startsWith(data, PNG_SIGNATURE)) image = decodePNG(data, flip);
+
+        if (image == null) {
+            BufferedImage img = ImageIO.read(new ByteArrayInputStream(data));
+            if (img == null) throw new IOException("Unsupported image format: " + file);
+            image = copy(img, flip);
+        }
+        return image;
+    }
+
+    /**
+     * Copy a BufferedImage's pixels into a direct buffer.
+     *
+     * @param img
+     * @param flip write the bottom row first
+     * @return
+     */
+    public static ImageData copy(BufferedImage img, boolean flip) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        boolean alpha = img.getColorModel().hasAlpha();
+        int bpp = alpha ? 4 : 3;
+
+        ByteBuffer pixels = ByteBuffer.allocateDirect(width * height * bpp);
+        byte[] row = new byte[width * bpp];
+
+        // The usual types store bytes whose bands are already in GL's order
+        int type = img.getType();
+        if (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR) {
+            for (int y = 0; y < height; y++)
+                pixels.put((byte[]) img.getRaster().getDataElements(0, flip ? height - 1 - y : y, width, 1, row));
+            pixels.rewind();
+            return new ImageData(width, height, alpha ? GL.GL_RGBA : GL.GL_RGB, pixels);
+        }
+
+        int[] argb = new int[width];
+        for (int y = 0; y < height; y++) {
+            img.getRGB(0, flip ? height - 1 - y : y, width, 1, argb, 0, width);
+            for (int x = 0, i = 0; x < width; x++) {
+                int p = argb[x];
+                row[i++] = (byte) (p >> 16);
+                row[i++] = (byte) (p >> 8);
+                row[i++] = (byte) p;
+                if (alpha) row[i++] = (byte) (p >>> 24);
+            }
+            pixels.put(row);
+        }
+        pixels.rewind();
+        return new ImageData(width, height, alpha ? GL.GL_RGBA : GL.GL_RGB, pixels);
+    }
+
+    /**
+     * Decode an uncompressed 8, 24 or 32 bit BMP.
+     *
+     * @return null if the BMP is some other kind
+     * @throws IOException if it is truncated
+     */
+    static ImageData decodeBMP(byte[] d, boolean flip) throws IOException {
+        int offset = int32LE(d, 10);
+        int headerSize = int32LE(d, 14);
+        if (headerSize < 40) return null;
+
+        int width = int32LE(d, 18);
+        int height = int32LE(d, 22);
+        boolean topDown = height < 0;
+        height = Math.abs(height);
+        int bitsPerPixel = int16LE(d, 28);
+        int compression = int32LE(d, 30);
+
+        int[] palette = null;
+        int redShift = 16, greenShift = 8, blueShift = 0, alphaShift = -1;
+        if (bitsPerPixel == 8 && compression == BI_RGB) {
+            int colours = int32LE(d, 46);
+            if (colours == 0) colours = 256;
+            palette = new int[256];
+            for (int i = 0, p = 14 + headerSize; i < colours && p + 3 <= d.length; i++, p += 4)
+                palette[i] = int32LE(d, p);
+        } else if (bitsPerPixel == 32 && compression == BI_BITFIELDS) {
+            // Only masks of whole bytes, as every writer uses
+            redShift = byteShift(int32LE(d, 54));
+            greenShift = byteShift(int32LE(d, 58));
+            blueShift = byteShift(int32LE(d, 62));
+            if (headerSize >= 56 && int32LE(d, 66) != 0) alphaShift = byteShift(int32LE(d, 66));
+            if (redShift < 0 || greenShift < 0 || blueShift < 0 || alphaShift < -1) return null;
+        } else if (!(compression == BI_RGB && (bitsPerPixel == 24 || bitsPerPixel == 32))) {
+            return null;
+        }
+
+        int stride = (width * bitsPerPixel + 31) / 32 * 4;
+        if (offset + (long) stride * height > d.length) throw new IOException("Truncated BMP");
+
+        boolean alpha = alphaShift >= 0;
+        int bpp = alpha ? 4 : 3;
+        ByteBuffer pixels = ByteBuffer.allocateDirect(width * height * bpp);
+        byte[] row = new byte[width * bpp];
+        for (int y = 0; y < height; y++) {
+            // Rows are stored bottom first unless the height is negative
+            int fromTop = flip ? height - 1 - y : y;
+            int p = offset + (topDown ? fromTop : height - 1 - fromTop) * stride;
+            int i = 0;
+            if (bitsPerPixel == 24) {
+                for (int x = 0; x < width; x++, p += 3) {
+                    row[i++] = d[p + 2];
+                    row[i++] = d[p + 1];
+                    row[i++] = d[p];
+                }
+            } else if (bitsPerPixel == 32) {
+                for (int x = 0; x < width; x++, p += 4) {
+                    int v = int32LE(d, p);
+                    row[i++] = (byte) (v >>> redShift);
+                    row[i++] = (byte) (v >>> greenShift);
+                    row[i++] = (byte) (v >>> blueShift);
+                    if (alpha) row[i++] = (byte) (v >>> alphaShift);
+                }
+            } else {
+                for (int x = 0; x < width; x++) {
+                    int c = palette[d[p + x] & 0xFF];
+                    row[i++] = (byte) (c >> 16);
+                    row[i++] = (byte) (c >> 8);
+                    row[i++] = (byte) c;
+                }
+            }
+            pixels.put(row);
+        }
+        pixels.rewind();
+        return new ImageData(width, height, alpha ? GL.GL_RGBA : GL.GL_RGB, pixels);
+    }
+
+    /**
+     * Decode a non-interlaced PNG of any colour type.
+     *
+     * @return null if the PNG is interlaced or has a transparent colour
+     *         other than in a palette
+     * @throws IOException if it is corrupt
+     */
+    static ImageData decodePNG(byte[] d, boolean flip) throws IOException {
+        int width = 0, height = 0, depth = 0, colourType = 0;
+        byte[] palette = null, paletteAlpha = null;
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+        int pos = PNG_SIGNATURE.length;
+        while (pos + 8 <= d.length) {
+            int length = int32BE(d, pos);
+            String type = new String(d, pos + 4, 4, "US-ASCII");
+            int start = pos + 8;
+            if (length < 0 || start + length > d.length) throw new IOException("Truncated PNG");
+
+            if (type.equals("IHDR")) {
+                width = int32BE(d, start);
+                height = int32BE(d, start + 4);
+                depth = d[start + 8];
+                colourType = d[start + 9];
+                if (d[start + 12] != 0) return null;
+            } else if (type.equals("PLTE")) {
+                palette = new byte[length];
+                System.arraycopy(d, start, palette, 0, length);
+            } else if (type.equals("tRNS")) {
+                if (colourType != 3) return null;
+                paletteAlpha = new byte[length];
+                System.arraycopy(d, start, paletteAlpha, 0, length);
+            } else if (type.equals("IDAT")) {
+                compressed.write(d, start, length);
+            } else if (type.equals("IEND")) {
+                break;
+            }
+            pos = start + length + 4;
+        }
+
+        int channels;
+        switch (colourType) {
+        case 0: channels = 1; break;
+        case 2: channels = 3; break;
+        case 3: channels = 1; break;
+        case 4: channels = 2; break;
+        case 6: channels = 4; break;
+        default: throw new IOException("Bad PNG colour type " + colourType);
+        }
+        if (colourType == 3 && palette == null) throw new IOException("PNG has no palette");
+
+        boolean alpha = colourType == 4 || colourType == 6 || paletteAlpha != null;
+        int bpp = alpha ? 4 : 3;
+        int bitsPerPixel = channels * depth;
+        int rowBytes = (width * bitsPerPixel + 7) / 8;
+        int filterBpp = Math.max(1, bitsPerPixel / 8);
+
+        ByteBuffer pixels = ByteBuffer.allocateDirect(width * height * bpp);
+        byte[] prev = new byte[rowBytes];
+        byte[] cur = new byte[rowBytes];
+        byte[] filter = new byte[1];
+        byte[] row = new byte[width * bpp];
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed.toByteArray());
+        try {
+            for (int y = 0; y < height; y++) {
+                inflate(inflater, filter);
+                inflate(inflater, cur);
+                unfilter(filter[0], cur, prev, filterBpp);
+
+                for (int x = 0, i = 0; x < width; x++) {
+                    int s = x * channels;
+                    if (colourType == 3) {
+                        int index = sample(cur, s, depth) * 3;
+                        int entry = index / 3;
+                        row[i++] = palette[index];
+                        row[i++] = palette[index + 1];
+                        row[i++] = palette[index + 2];
+                        if (alpha) row[i++] = entry < paletteAlpha.length ? paletteAlpha[entry] : (byte) 255;
+                    } else if (channels < 3) {
+                        // Grey, scaled up from fewer bits
+                        byte grey = (byte) (sample(cur, s, depth) * 255 / ((1 << Math.min(depth, 8)) - 1));
+                        row[i++] = grey;
+                        row[i++] = grey;
+                        row[i++] = grey;
+                        if (alpha) row[i++] = (byte) sample(cur, s + 1, depth);
+                    } else {
+                        row[i++] = (byte) sample(cur, s, depth);
+                        row[i++] = (byte) sample(cur, s + 1, depth);
+                        row[i++] = (byte) sample(cur, s + 2, depth);
+                        if (alpha) row[i++] = (byte) sample(cur, s + 3, depth);
+                    }
+                }
+
+                pixels.position((flip ? height - 1 - y : y) * row.length);
+                pixels.put(row);
+
+                byte[] swap = prev;
+                prev = cur;
+                cur = swap;
+            }
+        } catch (DataFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt PNG", e);
+        } finally {
+            inflater.end();
+        }
+        pixels.rewind();
+        return new ImageData(width, height, alpha ? GL.GL_RGBA : GL.GL_RGB, pixels);
+    }
+
+    private static void inflate(Inflater inflater, byte[] into) throws IOException, DataFormatException {
+        for (int n = 0; n < into.length; ) {
+            int read = inflater.inflate(into, n, into.length - n);
+            if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                throw new IOException("Truncated PNG");
+            n += read;
+        }
+    }
+
+    private static void unfilter(int type, byte[] cur, byte[] prev, int bpp) throws IOException {
+        switch (type) {
+        case 0:
+            break;
+        case 1:
+            for (int i = bpp; i < cur.length; i++) cur[i] += cur[i - bpp];
+            break;
+        case 2:
+            for (int i = 0; i < cur.length; i++) cur[i] += prev[i];
+            break;
+        case 3:
+            for (int i = 0; i < cur.length; i++) {
+                int left = i >= bpp ? cur[i - bpp] & 0xFF : 0;
+                cur[i] += (left + (prev[i] & 0xFF)) >> 1;
+            }
+            break;
+        case 4:
+            for (int i = 0; i < cur.length; i++) {
+                int a = i >= bpp ? cur[i - bpp] & 0xFF : 0;
+                int b = prev[i] & 0xFF;
+                int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+                int p = a + b - c;
+                int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+                cur[i] += pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+            }
+            break;
+        default:
+            throw new IOException("Bad PNG filter " + type);
+        }
+    }
+
+    /**
+     * The nth sample in a row, 16 bit samples cut to their high byte.
+     */
+    private static int sample(byte[] row, int n, int depth) {
+        switch (depth) {
+        case 8: return row[n] & 0xFF;
+        case 16: return row[2 * n] & 0xFF;
+        default:
+            int bit = n * depth;
+            return (row[bit >> 3] >> (8 - depth - (bit & 7))) & ((1 << depth) - 1);
+        }
+    }
+
+    private static int byteShift(int mask) {
+        for (int shift = 0; shift < 32; shift += 8)
+            if (mask == 0xFF << shift) return shift;
+        return -2;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (data[i] != prefix[i]) return false;
+        return true;
+    }
+
+    private static int int16LE(byte[] d, int p) {
+        return (d[p] & 0xFF) | (d[p + 1] & 0xFF) << 8;
+    }
+
+    private static int int32LE(byte[] d, int p) {
+        return (d[p] & 0xFF) | (d[p + 1] & 0xFF) << 8 | (d[p + 2] & 0xFF) << 16 | (d[p + 3] & 0xFF) << 24;
+    }
+
+    private static int int32BE(byte[] d, int p) {
+        return (d[p] & 0xFF) << 24 | (d[p + 1] & 0xFF) << 16 | (d[p + 2] & 0xFF) << 8 | (d[p + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,109 @@
+package unsw.graphics;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Compares two images pixel by pixel, e.g. a frame rendered headless against
+ * a golden image saved from an earlier run.
+ *
+ * Drivers round colours slightly differently, so channels within a tolerance
+ * of each other count as equal and a small fraction of differing pixels can
+ * be allowed for.
+ */
+public class ImageDiff {
+
+    private final int pixels;
+    private final int differing;
+    private final int maxDifference;
+    private final BufferedImage diff;
+
+    private ImageDiff(int pixels, int differing, int maxDifference, BufferedImage diff) {
+        this.pixels = pixels;
+        this.differing = differing;
+        this.maxDifference = maxDifference;
+        this.diff = diff;
+    }
+
+    /**
+     * Compare two images of the same size, ignoring alpha.
+     *
+     * @param expected
+     * @param actual
+     * @param tolerance largest difference in any channel, 0 to 255, for
+     *                  pixels to count as equal
+     * @return
+     */
+    public static ImageDiff compare(BufferedImage expected, BufferedImage actual, int tolerance) {
+        int width = expected.getWidth(), height = expected.getHeight();
+        if (actual.getWidth() != width || actual.getHeight() != height)
+            throw new IllegalArgumentException("Images are different sizes: " + width + "x" + height
+                    + " and " + actual.getWidth() + "x" + actual.getHeight());
+
+        BufferedImage diff = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int differing = 0, maxDifference = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int a = expected.getRGB(x, y), b = actual.getRGB(x, y);
+                int difference = Math.max(channel(a, b, 16), Math.max(channel(a, b, 8), channel(a, b, 0)));
+                maxDifference = Math.max(maxDifference, difference);
+
+                // Differing pixels in red over a faded grey copy of the
+                // expected image
+                if (difference > tolerance) {
+                    differing++;
+                    diff.setRGB(x, y, 0xff0000);
+                } else {
+                    int grey = 128 + (((a >> 16 & 0xff) + (a >> 8 & 0xff) + (a & 0xff)) / 3) / 2;
+                    diff.setRGB(x, y, grey << 16 | grey << 8 | grey);
+                }
+            }
+        }
+        return new ImageDiff(width * height, differing, maxDifference, diff);
+    }
+
+    private static int channel(int a, int b, int shift) {
+        return Math.abs((a >> shift & 0xff) - (b >> shift & 0xff));
+    }
+
+    /**
+     * Whether no more than the given fraction of pixels differ.
+     *
+     * @param maxFraction
+     * @return
+     */
+    public boolean matches(double maxFraction) {
+        return getDifferingFraction() <= maxFraction;
+    }
+
+    /**
+     * Number of pixels differing by more than the tolerance.
+     * @return
+     */
+    public int getDifferingPixels() {
+        return differing;
+    }
+
+    /**
+     * Fraction of pixels differing by more than the tolerance, from 0 to 1.
+     * @return
+     */
+    public double getDifferingFraction() {
+        return differing / (double) pixels;
+    }
+
+    /**
+     * Largest difference in any channel of any pixel, from 0 to 255.
+     * @return
+     */
+    public int getMaxDifference() {
+        return maxDifference;
+    }
+
+    /**
+     * An image of the differing pixels in red over the expected image.
+     * @return
+     */
+    public BufferedImage getDiffImage() {
+        return diff;
+    }
+}
@@ -0,0 +1,234 @@
+package unsw.graphics;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import com.jogamp.opengl.GL;
+
+/**
+ * A block compressed 2D image with its mipmaps, as stored in a KTX 1.1
+ * file. Only BC1 (DXT1) and BC3 (DXT5) images are supported, the formats
+ * desktop GL3 drivers expose through S3TC.
+ *
+ * Images are stored top row first as the KTX default, flip them with
+ * {@link #flipped()} before uploading a texture with t going up.
+ */
+public class KTX {
+
+    private static final byte[] IDENTIFIER = { (byte) 0xAB, 'K', 'T', 'X', ' ', '1', '1', (byte) 0xBB,
+            '\r', '\n', 0x1A, '\n' };
+    private static final int ENDIANNESS = 0x04030201;
+    private static final int HEADER_SIZE = 64;
+
+    private final int internalFormat;
+    private final int width;
+    private final int height;
+    private final ByteBuffer[] levels;
+
+    /**
+     * @param internalFormat GL_COMPRESSED_RGB_S3TC_DXT1_EXT or
+     *                       GL_COMPRESSED_RGBA_S3TC_DXT5_EXT
+     * @param width          of the largest level
+     * @param height
+     * @param levels         the compressed blocks of each mipmap, largest
+     *                       first
+     */
+    public KTX(int internalFormat, int width, int height, ByteBuffer[] levels) {
+        if (internalFormat != GL.GL_COMPRESSED_RGB_S3TC_DXT1_EXT
+                && internalFormat != GL.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT)
+            throw new IllegalArgumentException("Unsupported format 0x" + Integer.toHexString(internalFormat));
+        this.internalFormat = internalFormat;
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+    }
+
+    /**
+     * Read a KTX file.
+     *
+     * @param file
+     * @return
+     * @throws IOException if it isn't a 2D BC1 or BC3 KTX file
+     */
+    public static KTX read(File file) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        for (byte b : IDENTIFIER)
+            if (!in.hasRemaining() || in.get() != b) throw new IOException(file + " is not a KTX 1.1 file");
+
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        if (in.getInt() != ENDIANNESS) in.order(ByteOrder.BIG_ENDIAN);
+
+        in.getInt(); // glType
+        in.getInt(); // glTypeSize
+        in.getInt(); // glFormat
+        int internalFormat = in.getInt();
+        in.getInt(); // glBaseInternalFormat
+        int width = in.getInt();
+        int height = in.getInt();
+        int depth = in.getInt();
+        int arrayElements = in.getInt();
+        int faces = in.getInt();
+        int levelCount = Math.max(1, in.getInt());
+        int keyValueBytes = in.getInt();
+        if (depth > 1 || arrayElements > 0 || faces != 1)
+            throw new IOException(file + " is not a single 2D image");
+        in.position(HEADER_SIZE + keyValueBytes);
+
+        ByteBuffer[] levels = new ByteBuffer[levelCount];
+        for (int i = 0; i < levelCount; i++) {
+            int size = in.getInt();
+            if (size < 0 || size > in.remaining()) throw new IOException(file + " is truncated");
+            levels[i] = ByteBuffer.allocateDirect(size);
+            ByteBuffer slice = in.slice();
+            slice.limit(size);
+            levels[i].put(slice).rewind();
+            in.position(in.position() + (size + 3 & ~3));
+        }
+
+        try {
+            return new KTX(internalFormat, width, height, levels);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the image as a little endian KTX file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.write(IDENTIFIER);
+            int[] header = { ENDIANNESS, 0, 1, 0, internalFormat, hasAlpha() ? GL.GL_RGBA : GL.GL_RGB,
+                    width, height, 0, 0, 1, levels.length, 0 };
+            for (int value : header) out.writeInt(Integer.reverseBytes(value));
+
+            for (ByteBuffer level : levels) {
+                int size = level.remaining();
+                out.writeInt(Integer.reverseBytes(size));
+                for (int i = level.position(); i < level.limit(); i++) out.write(level.get(i));
+                for (int i = size; i % 4 != 0; i++) out.write(0);
+            }
+        }
+    }
+
+    /**
+     * The image upside down, by reordering the blocks and the rows in each.
+     * That only works for levels a whole number of blocks high, or under a
+     * block high, so any smaller levels after one that isn't are dropped.
+     *
+     * @return null if the largest level can't be flipped
+     */
+    public KTX flipped() {
+        int blockBytes = getBlockBytes();
+        ByteBuffer[] flipped = new ByteBuffer[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            int w = getLevelWidth(i), h = getLevelHeight(i);
+            if (h > 4 && h % 4 != 0) {
+                if (i == 0) return null;
+                flipped = Arrays.copyOf(flipped, i);
+                break;
+            }
+
+            int blocksX = (w + 3) / 4, blocksY = (h + 3) / 4;
+            int rows = Math.min(h, 4);
+            byte[] block = new byte[blockBytes];
+            flipped[i] = ByteBuffer.allocateDirect(levels[i].remaining());
+            for (int by = blocksY - 1; by >= 0; by--) {
+                for (int bx = 0; bx < blocksX; bx++) {
+                    int from = levels[i].position() + (by * blocksX + bx) * blockBytes;
+                    for (int b = 0; b < blockBytes; b++) block[b] = levels[i].get(from + b);
+                    flipBlock(block, rows);
+                    flipped[i].put(block);
+                }
+            }
+            flipped[i].rewind();
+        }
+        return new KTX(internalFormat, width, height, flipped);
+    }
+
+    /**
+     * Flip the first rows of pixels in a block.
+     */
+    private void flipBlock(byte[] block, int rows) {
+        int colour = hasAlpha() ? 8 : 0;
+
+        // Colour indices are a byte a row
+        for (int r = 0; r < rows / 2; r++) {
+            byte t = block[colour + 4 + r];
+            block[colour + 4 + r] = block[colour + 4 + rows - 1 - r];
+            block[colour + 4 + rows - 1 - r] = t;
+        }
+
+        // Alpha indices are 12 bits a row, little endian
+        if (hasAlpha()) {
+            long bits = 0;
+            for (int b = 0; b < 6; b++) bits |= (block[2 + b] & 0xFFL) << (8 * b);
+            long out = bits;
+            for (int r = 0; r < rows; r++) {
+                long row = bits >>> (12 * (rows - 1 - r)) & 0xFFF;
+                out = out & ~(0xFFFL << (12 * r)) | row << (12 * r);
+            }
+            for (int b = 0; b < 6; b++) block[2 + b] = (byte) (out >>> (8 * b));
+        }
+    }
+
+    public int getInternalFormat() {
+        return internalFormat;
+    }
+
+    public boolean hasAlpha() {
+        return internalFormat == GL.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+    }
+
+    /**
+     * 8 bytes for each 4x4 block of BC1, 16 for BC3.
+     * @return
+     */
+    public int getBlockBytes() {
+        return hasAlpha() ? 16 : 8;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public int getLevelWidth(int level) {
+        return Math.max(1, width >> level);
+    }
+
+    public int getLevelHeight(int level) {
+        return Math.max(1, height >> level);
+    }
+
+    public ByteBuffer getLevel(int level) {
+        return levels[level];
+    }
+
+    /**
+     * Bytes of every level together.
+     * @return
+     */
+    public int getSize() {
+        int size = 0;
+        for (ByteBuffer level : levels) size += level.remaining();
+        return size;
+    }
+}
@@ -0,0 +1,135 @@
+package unsw.graphics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+/**
+ * Every mipmap of an image down to 1x1, either the block compressed levels
+ * of its KTX file or RGBA8 levels made by averaging, so that any range of
+ * them can be uploaded without glGenerateMipmap.
+ */
+public class MipChain {
+
+    private final int internalFormat;
+    private final boolean compressed;
+    private final int width;
+    private final int height;
+    private final ByteBuffer[] levels;
+
+    private MipChain(int internalFormat, boolean compressed, int width, int height, ByteBuffer[] levels) {
+        this.internalFormat = internalFormat;
+        this.compressed = compressed;
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+    }
+
+    /**
+     * Load an image's levels, from its KTX file if there is one and
+     * compression is supported. Safe to call off the GL thread.
+     *
+     * @param fileName
+     * @param flip
+     * @param compression whether the driver supports S3TC
+     * @return
+     * @throws IOException
+     */
+    public static MipChain load(String fileName, boolean flip, boolean compression) throws IOException {
+        File file = Texture.compressedFile(fileName);
+        if (compression && file.exists()) {
+            KTX ktx = KTX.read(file);
+            if (flip) ktx = ktx.flipped();
+            if (ktx != null && ktx.getLevelCount() == levelCount(ktx.getWidth(), ktx.getHeight())) {
+                ByteBuffer[] levels = new ByteBuffer[ktx.getLevelCount()];
+                for (int i = 0; i < levels.length; i++) levels[i] = ktx.getLevel(i);
+                return new MipChain(ktx.getInternalFormat(), true, ktx.getWidth(), ktx.getHeight(), levels);
+            }
+            System.err.println(file + " doesn't have every level, loading the image instead");
+        }
+
+        ImageData image = ImageDecoder.decode(new File(fileName), flip);
+        int w = image.getWidth(), h = image.getHeight();
+        ByteBuffer[] levels = new ByteBuffer[levelCount(w, h)];
+        byte[] rgba = BlockCompressor.toRGBA(image);
+        for (int i = 0; i < levels.length; i++) {
+            if (i > 0) {
+                rgba = BlockCompressor.halve(rgba, w, h);
+                w = Math.max(1, w / 2);
+                h = Math.max(1, h / 2);
+            }
+            levels[i] = ByteBuffer.allocateDirect(rgba.length);
+            levels[i].put(rgba).rewind();
+        }
+        return new MipChain(GL.GL_RGBA8, false, image.getWidth(), image.getHeight(), levels);
+    }
+
+    private static int levelCount(int width, int height) {
+        int count = 1;
+        while ((Math.max(width, height) >> (count - 1)) > 1) count++;
+        return count;
+    }
+
+    /**
+     * The levels from one on, which keeps only them in memory.
+     *
+     * @param from
+     * @return
+     */
+    public MipChain from(int from) {
+        return new MipChain(internalFormat, compressed, getLevelWidth(from), getLevelHeight(from),
+                Arrays.copyOfRange(levels, from, levels.length));
+    }
+
+    /**
+     * Replace the bound texture's levels with these, from level one on, as
+     * levels 0, 1, ... and clamp GL_TEXTURE_MAX_LEVEL to the last.
+     *
+     * @param gl
+     * @param target e.g. GL_TEXTURE_2D
+     * @param from
+     */
+    public void upload(GL3 gl, int target, int from) {
+        for (int level = from; level < levels.length; level++) {
+            ByteBuffer pixels = levels[level];
+            int w = getLevelWidth(level), h = getLevelHeight(level);
+            if (compressed)
+                gl.glCompressedTexImage2D(target, level - from, internalFormat, w, h, 0, pixels.remaining(), pixels);
+            else
+                gl.glTexImage2D(target, level - from, internalFormat, w, h, 0, GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, pixels);
+        }
+        gl.glTexParameteri(target, GL3.GL_TEXTURE_MAX_LEVEL, levels.length - 1 - from);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public int getLevelWidth(int level) {
+        return Math.max(1, width >> level);
+    }
+
+    public int getLevelHeight(int level) {
+        return Math.max(1, height >> level);
+    }
+
+    public int getLevelBytes(int level) {
+        return levels[level].remaining();
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+}
@@ -35,6 +35,18 @@ public class Point2DBuffer {
         floatBuffer = GLBuffers.newDirectFloatBuffer(capacity * 2);
     }
 
+    /**
+     * Construct a new buffer holding a copy of the given coordinates, 2
+     * floats per point.
+     * 
+     * @param values
+     */
+    public Point2DBuffer(float[] values) {
+        this(values.length / 2);
+        floatBuffer.put(values);
+        floatBuffer.rewind();
+    }
+
     public Point2DBuffer(List<Point2D> points) {
         this(points.size());
         for (int i = 0; i < capacity; i++) {
@@ -35,6 +35,18 @@ public class Point3DBuffer {
         floatBuffer = GLBuffers.newDirectFloatBuffer(capacity * 3);
     }
 
+    /**
+     * Construct a new buffer holding a copy of the given coordinates, 3
+     * floats per point.
+     * 
+     * @param values
+     */
+    public Point3DBuffer(float[] values) {
+        this(values.length / 3);
+        floatBuffer.put(values);
+        floatBuffer.rewind();
+    }
+
     public Point3DBuffer(List<Point3D> points) {
         this(points.size());
         for (int i = 0; i < capacity; i++) {
@@ -63,6 +63,21 @@ public class Shader {
      * @param fragment The file containing the fragment shader code.
      */
     public Shader(GL3 gl, String vertex, String fragment) {
+        this(gl, vertex, fragment, new String[0], new String[0]);
+    }
+
+    /**
+     * Construct a variant of a shader, with names defined at the top of the
+     * fragment shader for it to test with #ifdef, and its outputs bound to
+     * draw buffers in order.
+     *
+     * @param gl
+     * @param vertex The file containing the vertex shader code.
+     * @param fragment The file containing the fragment shader code.
+     * @param defines e.g. "DEFERRED"
+     * @param outputs fragment shader outputs, for draw buffers 0, 1 and so on
+     */
+    public Shader(GL3 gl, String vertex, String fragment, String[] defines, String[] outputs) {
 
         ShaderCode vertShader = ShaderCode.create(gl, GL3.GL_VERTEX_SHADER, 1,
                 this.getClass(), new String[] { vertex }, true);
@@ -72,7 +87,9 @@ public class Shader {
         // We unfortunately have to do this for this library to be compatible
         // with the older lab machines and the newer Macs
         vertShader.addGLSLVersion(gl);
-        fragShader.addGLSLVersion(gl);
+        int position = fragShader.addGLSLVersion(gl);
+        for (String define : defines)
+            position = fragShader.insertShaderSource(0, position, "#define " + define + "\n");
 
         ShaderProgram shaderProgram = new ShaderProgram();
         shaderProgram.add(vertShader);
@@ -87,6 +104,8 @@ public class Shader {
         gl.glBindAttribLocation(id, NORMAL, "normal");
         gl.glBindAttribLocation(id, TEX_COORD, "texCoord");
         gl.glBindAttribLocation(id, COLOR, "color");
+        for (int i = 0; i < outputs.length; i++)
+            gl.glBindFragDataLocation(id, i, outputs[i]);
         
         shaderProgram.link(gl, System.err);
         
@@ -250,6 +269,20 @@ public class Shader {
                 color.getBlue() / 255f, color.getAlpha() / 255f);
     }
     
+    /**
+     * Set an arbitrary uniform variable of type 'mat4' with the given
+     * matrix
+     * @param gl
+     * @param var
+     * @param mat
+     */
+    public static void setMatrix4(GL3 gl, String var, Matrix4 mat) {
+        int ids[] = new int[1];
+        gl.glGetIntegerv(GL3.GL_CURRENT_PROGRAM, ids, 0);
+        int loc = gl.glGetUniformLocation(ids[0], var);
+        gl.glUniformMatrix4fv(loc, 1, false, mat.getValues(), 0);
+    }
+
     /**
      * Set an arbitrary uniform variable of type 'float' with the given
      * float.
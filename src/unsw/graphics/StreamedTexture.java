@@ -0,0 +1,154 @@
+package unsw.graphics;
+
+import java.io.IOException;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+/**
+ * A mipmapped texture whose larger levels are only resident while needed.
+ * The mip tail, every level no larger than the tail size, is always
+ * resident, and a copy of it is kept so eviction doesn't touch the disk.
+ *
+ * Changing the resident levels respecifies the same texture name, with the
+ * largest resident level as level 0, so its id never changes. Loading and
+ * eviction are driven by {@link unsw.graphics.world.render.TextureStreamer}.
+ */
+public class StreamedTexture {
+
+    // Levels no larger than this are never evicted
+    public static final int DEFAULT_TAIL_SIZE = 64;
+
+    private final String fileName;
+    private final boolean compression;
+    private final int id;
+    private final int width;
+    private final int height;
+    private final int tailLevel;
+    private final long[] levelBytes;
+    private final MipChain tail;
+    private int residentLevel;
+
+    /**
+     * Load the image once to find its size and keep its tail, then upload
+     * only the tail.
+     *
+     * @param gl
+     * @param fileName  an image, flipped as Texture flips it, or its KTX file
+     *                  when the driver supports S3TC
+     * @param tailSize  largest side of the levels that are always resident
+     * @throws IOException
+     */
+    public StreamedTexture(GL3 gl, String fileName, int tailSize) throws IOException {
+        this.fileName = fileName;
+        compression = gl.isExtensionAvailable(Texture.S3TC_EXTENSION);
+        MipChain chain = MipChain.load(fileName, true, compression);
+        width = chain.getWidth();
+        height = chain.getHeight();
+
+        int level = 0;
+        while (Math.max(chain.getLevelWidth(level), chain.getLevelHeight(level)) > tailSize
+                && level < chain.getLevelCount() - 1)
+            level++;
+        tailLevel = level;
+
+        levelBytes = new long[chain.getLevelCount()];
+        for (int i = 0; i < levelBytes.length; i++) levelBytes[i] = chain.getLevelBytes(i);
+        tail = chain.from(tailLevel);
+
+        int[] ids = new int[1];
+        gl.glGenTextures(1, ids, 0);
+        id = ids[0];
+        evict(gl);
+    }
+
+    /**
+     * Load every level from disk. Safe to call off the GL thread.
+     *
+     * @return
+     * @throws IOException
+     */
+    public MipChain load() throws IOException {
+        return MipChain.load(fileName, true, compression);
+    }
+
+    /**
+     * Make the levels from one on resident.
+     *
+     * @param gl
+     * @param chain as returned by {@link #load()}
+     * @param level
+     */
+    public void upload(GL3 gl, MipChain chain, int level) {
+        gl.glBindTexture(GL.GL_TEXTURE_2D, id);
+        chain.upload(gl, GL.GL_TEXTURE_2D, level);
+        residentLevel = level;
+    }
+
+    /**
+     * Drop every level above the tail.
+     *
+     * @param gl
+     */
+    public void evict(GL3 gl) {
+        gl.glBindTexture(GL.GL_TEXTURE_2D, id);
+        tail.upload(gl, GL.GL_TEXTURE_2D, 0);
+        residentLevel = tailLevel;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLevelCount() {
+        return levelBytes.length;
+    }
+
+    /**
+     * The largest level that is always resident.
+     * @return
+     */
+    public int getTailLevel() {
+        return tailLevel;
+    }
+
+    /**
+     * The largest level that is resident now.
+     * @return
+     */
+    public int getResidentLevel() {
+        return residentLevel;
+    }
+
+    /**
+     * Bytes the levels from one on take in video memory.
+     *
+     * @param level
+     * @return
+     */
+    public long getBytes(int level) {
+        long bytes = 0;
+        for (int i = level; i < levelBytes.length; i++) bytes += levelBytes[i];
+        return bytes;
+    }
+
+    public long getResidentBytes() {
+        return getBytes(residentLevel);
+    }
+
+    public void destroy(GL3 gl) {
+        gl.glDeleteTextures(1, new int[] {id}, 0);
+    }
+}
@@ -1,27 +1,34 @@
 package unsw.graphics;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-
-import javax.imageio.ImageIO;
+import java.util.Objects;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
-import com.jogamp.opengl.util.awt.ImageUtil;
-import com.jogamp.opengl.util.texture.TextureData;
-import com.jogamp.opengl.util.texture.awt.AWTTextureIO;
 
 public class Texture {
 
+    static final String S3TC_EXTENSION = "GL_EXT_texture_compression_s3tc";
+
+    // The driver's limit, queried with the first mipmapped texture
+    private static float maxAnisotropy = 0;
+
     private boolean mipMapEnabled;
 
+    // Whether loaded from a KTX file, which has its own mipmaps
+    private boolean compressed;
+
     private int id;
 
     /**
      * Create a texture from a file. The file must have dimensions that are a 
-     * power of 2.
+     * power of 2. If there is a KTX file of the same name beside it, made by
+     * {@link TextureCompressor}, and the driver supports S3TC, that is loaded
+     * instead.
      * @param gl
      * @param fileName
      * @param extension
@@ -29,20 +36,9 @@ public class Texture {
      */
     public Texture(GL3 gl, String fileName, String extension, boolean mipmaps) {
         mipMapEnabled = mipmaps;
-        TextureData data = null;
-        try {
-            File file = new File(fileName);
-            BufferedImage img = ImageIO.read(file); // read file into
-                                                    // BufferedImage
-            ImageUtil.flipImageVertically(img);
-
-            data = AWTTextureIO.newTextureData(gl.getGLProfile(), img, false);
-
-        } catch (IOException exc) {
-            System.err.println(fileName);
-            exc.printStackTrace();
-            System.exit(1);
-        }
+        KTX ktx = loadCompressed(gl, fileName, true);
+        ImageData data = ktx == null ? load(fileName, true) : null;
+        compressed = ktx != null;
 
         int[] ids = new int[1];
 
@@ -53,9 +49,8 @@ public class Texture {
         gl.glBindTexture(GL.GL_TEXTURE_2D, id);
 
         // Build texture initialised with image data.
-        gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, data.getInternalFormat(),
-                data.getWidth(), data.getHeight(), 0, data.getPixelFormat(),
-                data.getPixelType(), data.getBuffer());
+        if (compressed) upload(gl, GL.GL_TEXTURE_2D, GL.GL_TEXTURE_2D, ktx, mipmaps);
+        else upload(gl, GL.GL_TEXTURE_2D, data);
 
         setFilters(gl);
 
@@ -66,15 +61,13 @@ public class Texture {
         if (mipMapEnabled) {
             // TODO Set texture parameters to enable automatic mipmap generation
             // and bilinear/trilinear filtering
-        	gl.glGenerateMipmap(GL.GL_TEXTURE_2D);
+            if (!compressed) gl.glGenerateMipmap(GL.GL_TEXTURE_2D);
             gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER,
                     GL.GL_LINEAR);
             gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER,
                     GL.GL_LINEAR_MIPMAP_LINEAR);
             
-            float fLargest[] = new float[1]; 
-            gl.glGetFloatv(GL.GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT, fLargest,0);
-            gl.glTexParameterf(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAX_ANISOTROPY_EXT, fLargest[0]);
+            gl.glTexParameterf(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAX_ANISOTROPY_EXT, getMaxAnisotropy(gl));
         } else {
             // Set texture parameters to enable bilinear filtering.
             gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER,
@@ -85,6 +78,15 @@ public class Texture {
 
     }
 
+    private static float getMaxAnisotropy(GL3 gl) {
+        if (maxAnisotropy == 0) {
+            float largest[] = new float[1];
+            gl.glGetFloatv(GL.GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT, largest, 0);
+            maxAnisotropy = largest[0];
+        }
+        return maxAnisotropy;
+    }
+
     /**
      * Create a texture from the given ByteBuffer. Buffer is assumed to be RGBA
      * format.
@@ -152,28 +154,7 @@ public class Texture {
                 GL.GL_TEXTURE_CUBE_MAP_POSITIVE_Z,
                 GL.GL_TEXTURE_CUBE_MAP_NEGATIVE_Z
         };
-        TextureData[] data = new TextureData[6];
-        for (int i = 0; i < 6; i++) {
-            try {
-                File file = new File(filenames[i]);
-                BufferedImage img = ImageIO.read(file); // read file into
-                                                        // BufferedImage
-                ImageUtil.flipImageVertically(img);
-    
-                data[i] = AWTTextureIO.newTextureData(gl.getGLProfile(), img,
-                        false);
-    
-            } catch (IOException exc) {
-                System.err.println(filenames[i]);
-                exc.printStackTrace();
-                System.exit(1);
-            }
-            
-            gl.glTexImage2D(faces[i], 0, data[i].getInternalFormat(),
-                    data[i].getWidth(), data[i].getHeight(), 0, 
-                    data[i].getPixelFormat(), data[i].getPixelType(), 
-                    data[i].getBuffer());
-        }
+        uploadFaces(gl, faces, filenames, true);
         
         gl.glTexParameteri(GL.GL_TEXTURE_CUBE_MAP, GL.GL_TEXTURE_MAG_FILTER,
                 GL.GL_LINEAR);
@@ -211,28 +192,7 @@ public class Texture {
                 GL.GL_TEXTURE_CUBE_MAP_POSITIVE_Z,
                 GL.GL_TEXTURE_CUBE_MAP_NEGATIVE_Z
         };
-        TextureData[] data = new TextureData[6];
-        for (int i = 0; i < 6; i++) {
-            try {
-                File file = new File(filenames[i]);
-                BufferedImage img = ImageIO.read(file); // read file into BufferedImage
-
-                if (flip) ImageUtil.flipImageVertically(img);
-
-                data[i] = AWTTextureIO.newTextureData(gl.getGLProfile(), img,
-                        false);
-
-            } catch (IOException exc) {
-                System.err.println(filenames[i]);
-                exc.printStackTrace();
-                System.exit(1);
-            }
-
-            gl.glTexImage2D(faces[i], 0, data[i].getInternalFormat(),
-                    data[i].getWidth(), data[i].getHeight(), 0,
-                    data[i].getPixelFormat(), data[i].getPixelType(),
-                    data[i].getBuffer());
-        }
+        uploadFaces(gl, faces, filenames, flip);
 
         gl.glTexParameteri(GL.GL_TEXTURE_CUBE_MAP, GL.GL_TEXTURE_MAG_FILTER,
                 GL.GL_LINEAR);
@@ -240,6 +200,134 @@ public class Texture {
                 GL.GL_LINEAR);
     }
 
+    /**
+     * Decode an image, exiting if it can't be read.
+     * @param fileName
+     * @param flip
+     * @return
+     */
+    private static ImageData load(String fileName, boolean flip) {
+        try {
+            return ImageDecoder.decode(new File(fileName), flip);
+        } catch (IOException exc) {
+            System.err.println(fileName);
+            exc.printStackTrace();
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**
+     * Decode several images in parallel, e.g. the faces of a cube map.
+     * @param fileNames
+     * @param flip
+     * @return
+     */
+    static ImageData[] loadAll(String[] fileNames, boolean flip) {
+        return IntStream.range(0, fileNames.length).parallel()
+                .mapToObj(i -> load(fileNames[i], flip))
+                .toArray(ImageData[]::new);
+    }
+
+    /**
+     * The KTX file that is loaded instead of an image, if it exists.
+     * @param fileName of the image
+     * @return
+     */
+    public static File compressedFile(String fileName) {
+        return new File(fileName.replaceFirst("\\.[^./\\\\]*$", "") + ".ktx");
+    }
+
+    /**
+     * Read the KTX file for an image if there is one and the driver can use
+     * it, otherwise null.
+     */
+    private static KTX loadCompressed(GL3 gl, String fileName, boolean flip) {
+        File file = compressedFile(fileName);
+        if (!file.exists() || !gl.isExtensionAvailable(S3TC_EXTENSION)) return null;
+        return readCompressed(file, flip);
+    }
+
+    private static KTX readCompressed(File file, boolean flip) {
+        try {
+            KTX ktx = KTX.read(file);
+            if (flip) ktx = ktx.flipped();
+            if (ktx == null) System.err.println(file + " can't be flipped, loading the image instead");
+            return ktx;
+        } catch (IOException exc) {
+            System.err.println(file + ": " + exc.getMessage() + ", loading the image instead");
+            return null;
+        }
+    }
+
+    /**
+     * Read the KTX files for several images in parallel if every one has
+     * one and the driver can use them, otherwise null.
+     */
+    static KTX[] loadAllCompressed(GL3 gl, String[] fileNames, boolean flip) {
+        if (!gl.isExtensionAvailable(S3TC_EXTENSION)
+                || !Stream.of(fileNames).allMatch(name -> compressedFile(name).exists()))
+            return null;
+        KTX[] ktx = IntStream.range(0, fileNames.length).parallel()
+                .mapToObj(i -> readCompressed(compressedFile(fileNames[i]), flip))
+                .toArray(KTX[]::new);
+        return Stream.of(ktx).anyMatch(Objects::isNull) ? null : ktx;
+    }
+
+    /**
+     * Upload the faces of a cube map, compressed only if all six are.
+     */
+    private void uploadFaces(GL3 gl, int[] faces, String[] fileNames, boolean flip) {
+        KTX[] ktx = loadAllCompressed(gl, fileNames, flip);
+        compressed = ktx != null;
+        if (compressed) {
+            for (int i = 0; i < 6; i++)
+                upload(gl, faces[i], GL.GL_TEXTURE_CUBE_MAP, ktx[i], false);
+        } else {
+            ImageData[] data = loadAll(fileNames, flip);
+            for (int i = 0; i < 6; i++)
+                upload(gl, faces[i], data[i]);
+        }
+    }
+
+    /**
+     * Upload a compressed image, with its mipmaps if asked for.
+     * @param gl
+     * @param target  for the image, e.g. a cube map face
+     * @param texture the texture's target, e.g. GL_TEXTURE_CUBE_MAP
+     * @param ktx
+     * @param mipmaps
+     */
+    private static void upload(GL3 gl, int target, int texture, KTX ktx, boolean mipmaps) {
+        int levels = mipmaps ? ktx.getLevelCount() : 1;
+        for (int level = 0; level < levels; level++) {
+            ByteBuffer blocks = ktx.getLevel(level);
+            gl.glCompressedTexImage2D(target, level, ktx.getInternalFormat(),
+                    ktx.getLevelWidth(level), ktx.getLevelHeight(level), 0,
+                    blocks.remaining(), blocks);
+        }
+
+        // Only the levels there are, as they can't be generated
+        gl.glTexParameteri(texture, GL3.GL_TEXTURE_MAX_LEVEL, levels - 1);
+    }
+
+    private static void upload(GL3 gl, int target, ImageData data) {
+        // Rows of RGB images aren't always a multiple of 4 bytes long
+        gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
+        gl.glTexImage2D(target, 0, data.getFormat(), data.getWidth(),
+                data.getHeight(), 0, data.getFormat(), GL.GL_UNSIGNED_BYTE,
+                data.getPixels());
+        gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 4);
+    }
+
+    /**
+     * Whether the texture was loaded from a block compressed KTX file.
+     * @return
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
     public int getId() {
         return id;
     }
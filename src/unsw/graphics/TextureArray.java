@@ -0,0 +1,161 @@
+package unsw.graphics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+/**
+ * Several textures of the same size as the layers of one
+ * GL_TEXTURE_2D_ARRAY, so that everything drawn with any of them can share
+ * a single bind and pick its layer with a uniform.
+ *
+ * Layers are compressed if every one has a KTX file of the same format, as
+ * for {@link Texture}.
+ */
+public class TextureArray {
+
+    /**
+     * Collects the files for the layers before building the array.
+     */
+    public static class Builder {
+        private final List<String> fileNames = new ArrayList<>();
+
+        /**
+         * Add a layer, or find the one the file was already added as.
+         *
+         * @param fileName an image, flipped as Texture flips it
+         * @return the layer's index
+         */
+        public int add(String fileName) {
+            int layer = fileNames.indexOf(fileName);
+            if (layer >= 0) return layer;
+            fileNames.add(fileName);
+            return fileNames.size() - 1;
+        }
+
+        public int size() {
+            return fileNames.size();
+        }
+
+        /**
+         * Load every layer, in parallel, and create the array.
+         *
+         * @param gl
+         * @param mipmaps
+         * @return
+         * @throws IllegalArgumentException if the images aren't all the same
+         *                                  size
+         */
+        public TextureArray build(GL3 gl, boolean mipmaps) {
+            if (fileNames.isEmpty()) throw new IllegalStateException("No layers added");
+            return new TextureArray(gl, fileNames.toArray(new String[0]), mipmaps);
+        }
+    }
+
+    private int id;
+    private int width;
+    private int height;
+    private final int layers;
+    private boolean compressed;
+
+    private TextureArray(GL3 gl, String[] fileNames, boolean mipmaps) {
+        layers = fileNames.length;
+
+        KTX[] ktx = Texture.loadAllCompressed(gl, fileNames, true);
+        ImageData[] data = null;
+        if (ktx != null) {
+            compressed = true;
+            for (KTX layer : ktx) {
+                if (layer.getInternalFormat() != ktx[0].getInternalFormat()
+                        || layer.getWidth() != ktx[0].getWidth() || layer.getHeight() != ktx[0].getHeight()) {
+                    System.err.println("Compressed layers differ, loading the images instead");
+                    compressed = false;
+                    break;
+                }
+            }
+        }
+        if (compressed) {
+            width = ktx[0].getWidth();
+            height = ktx[0].getHeight();
+        } else {
+            data = Texture.loadAll(fileNames, true);
+            width = data[0].getWidth();
+            height = data[0].getHeight();
+            for (int i = 1; i < layers; i++) {
+                if (data[i].getWidth() != width || data[i].getHeight() != height)
+                    throw new IllegalArgumentException(fileNames[i] + " is " + data[i].getWidth() + "x"
+                            + data[i].getHeight() + " but " + fileNames[0] + " is " + width + "x" + height);
+            }
+        }
+
+        int[] ids = new int[1];
+        gl.glGenTextures(1, ids, 0);
+        id = ids[0];
+        gl.glBindTexture(GL3.GL_TEXTURE_2D_ARRAY, id);
+
+        if (compressed) {
+            int levels = 1;
+            if (mipmaps) {
+                levels = Integer.MAX_VALUE;
+                for (KTX layer : ktx) levels = Math.min(levels, layer.getLevelCount());
+            }
+            for (int level = 0; level < levels; level++) {
+                int size = ktx[0].getLevel(level).remaining();
+                ByteBuffer blocks = ByteBuffer.allocateDirect(size * layers);
+                for (KTX layer : ktx) blocks.put(layer.getLevel(level).duplicate());
+                blocks.rewind();
+                gl.glCompressedTexImage3D(GL3.GL_TEXTURE_2D_ARRAY, level, ktx[0].getInternalFormat(),
+                        ktx[0].getLevelWidth(level), ktx[0].getLevelHeight(level), layers, 0,
+                        blocks.remaining(), blocks);
+            }
+            gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_MAX_LEVEL, levels - 1);
+        } else {
+            gl.glTexImage3D(GL3.GL_TEXTURE_2D_ARRAY, 0, GL.GL_RGBA8, width, height, layers, 0,
+                    GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, null);
+
+            // Rows of RGB images aren't always a multiple of 4 bytes long
+            gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 1);
+            for (int i = 0; i < layers; i++)
+                gl.glTexSubImage3D(GL3.GL_TEXTURE_2D_ARRAY, 0, 0, 0, i, width, height, 1,
+                        data[i].getFormat(), GL.GL_UNSIGNED_BYTE, data[i].getPixels());
+            gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 4);
+
+            if (mipmaps) gl.glGenerateMipmap(GL3.GL_TEXTURE_2D_ARRAY);
+        }
+
+        gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL.GL_TEXTURE_MAG_FILTER, GL.GL_LINEAR);
+        gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL.GL_TEXTURE_MIN_FILTER,
+                mipmaps ? GL.GL_LINEAR_MIPMAP_LINEAR : GL.GL_LINEAR);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getLayerCount() {
+        return layers;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Whether the layers were loaded from block compressed KTX files.
+     * @return
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public void destroy(GL3 gl) {
+        gl.glDeleteTextures(1, new int[] {id}, 0);
+    }
+}
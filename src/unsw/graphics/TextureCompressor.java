@@ -0,0 +1,56 @@
+package unsw.graphics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compresses every image under a directory into a KTX file beside it, e.g.
+ * grass.bmp to grass.ktx, which {@link Texture} loads instead of the image
+ * when the driver supports S3TC. Images whose KTX file is newer are skipped.
+ *
+ * Usage: TextureCompressor [directory] [--no-mipmaps] [--force]
+ */
+public class TextureCompressor {
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get("res/textures");
+        boolean mipmaps = true, force = false;
+        for (String arg : args) {
+            if (arg.equals("--no-mipmaps")) mipmaps = false;
+            else if (arg.equals("--force")) force = true;
+            else dir = Paths.get(arg);
+        }
+
+        List<File> images;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            images = paths.filter(p -> p.toString().toLowerCase().matches(".*\\.(bmp|png|jpe?g)$"))
+                    .sorted().map(Path::toFile).collect(Collectors.toList());
+        }
+
+        long before = 0, after = 0;
+        for (File image : images) {
+            File ktx = Texture.compressedFile(image.getPath());
+            if (!force && ktx.lastModified() > image.lastModified()) continue;
+
+            ImageData data = ImageDecoder.decode(image, false);
+            KTX compressed = BlockCompressor.compress(data, mipmaps);
+            compressed.write(ktx);
+
+            // Compared against what the image took uncompressed, with mipmaps
+            long raw = (long) data.getWidth() * data.getHeight() * data.getBytesPerPixel();
+            if (mipmaps) raw = raw * 4 / 3;
+            before += raw;
+            after += compressed.getSize();
+            System.out.printf("%-50s %s, %d levels, %6d KB -> %5d KB%n", ktx, compressed.hasAlpha() ? "BC3" : "BC1",
+                    compressed.getLevelCount(), raw / 1024, compressed.getSize() / 1024);
+        }
+        if (after > 0)
+            System.out.printf("%d KB -> %d KB, %.1fx smaller%n", before / 1024, after / 1024, (double) before / after);
+    }
+}
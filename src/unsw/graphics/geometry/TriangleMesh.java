@@ -4,6 +4,7 @@
 package unsw.graphics.geometry;
 
 import java.io.IOException;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.List;
 
@@ -181,6 +182,25 @@ public class TriangleMesh {
         this.texCoords = new Point2DBuffer(texCoords);
     }
 
+    /**
+     * Create a triangle mesh from primitive arrays. Vertices and normals have
+     * 3 floats per vertex, texture coordinates 2. Normals and texture
+     * coordinates may be null.
+     * @param vertices
+     * @param normals
+     * @param indices
+     * @param texCoords
+     */
+    public TriangleMesh(float[] vertices, float[] normals, int[] indices,
+            float[] texCoords) {
+        this.vertices = new Point3DBuffer(vertices);
+        this.indices = GLBuffers.newDirectIntBuffer(indices);
+        if (normals != null)
+            this.normals = new Point3DBuffer(normals);
+        if (texCoords != null)
+            this.texCoords = new Point2DBuffer(texCoords);
+    }
+
     /**
      * Construct a triangle with the given PLY file.
      * 
@@ -367,6 +387,55 @@ public class TriangleMesh {
         }
     }
 
+    /**
+     * Change the position of a vertex. The change is only seen by OpenGL
+     * once {@link #updateBuffers(GL3, int, int)} is called for its range.
+     * @param index
+     * @param x
+     * @param y
+     * @param z
+     */
+    protected void setVertex(int index, float x, float y, float z) {
+        vertices.put(index, x, y, z);
+    }
+
+    /**
+     * Change the normal of a vertex. The change is only seen by OpenGL once
+     * {@link #updateBuffers(GL3, int, int)} is called for its range.
+     * @param index
+     * @param x
+     * @param y
+     * @param z
+     */
+    protected void setNormal(int index, float x, float y, float z) {
+        normals.put(index, x, y, z);
+    }
+
+    /**
+     * Copy the positions and normals of the given range of vertices to
+     * graphics memory, leaving the rest of the buffers untouched.
+     * @param gl
+     * @param first
+     * @param count
+     */
+    protected void updateBuffers(GL3 gl, int first, int count) {
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, verticesName);
+        gl.glBufferSubData(GL.GL_ARRAY_BUFFER, first * 3L * Float.BYTES,
+                count * 3L * Float.BYTES, range(vertices, first));
+
+        if (normals != null) {
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, normalsName);
+            gl.glBufferSubData(GL.GL_ARRAY_BUFFER, first * 3L * Float.BYTES,
+                    count * 3L * Float.BYTES, range(normals, first));
+        }
+    }
+
+    private static FloatBuffer range(Point3DBuffer buffer, int first) {
+        FloatBuffer range = ((FloatBuffer) buffer.getBuffer()).duplicate();
+        range.position(first * 3);
+        return range;
+    }
+
     public void draw(GL3 gl, CoordFrame3D frame) {
         gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indicesName);
 
@@ -0,0 +1,105 @@
+package unsw.graphics.scene.tests;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import unsw.graphics.world.ArrayHeightField;
+import unsw.graphics.world.HeightField;
+import unsw.graphics.world.HeightQuadtree;
+
+/**
+ * The quadtree finds the same first hit as testing a ray against every
+ * triangle of a small field.
+ */
+public class HeightQuadtreeTest extends TestCase {
+
+    private static final float EPSILON = 0.001f;
+
+    private static HeightField field(int width, int depth, long seed) {
+        Random random = new Random(seed);
+        ArrayHeightField heights = new ArrayHeightField(width, depth);
+        for (int z = 0; z < depth; z++)
+            for (int x = 0; x < width; x++)
+                heights.set(x, z, random.nextFloat() * 4);
+        return heights;
+    }
+
+    /**
+     * t of the closest hit against every triangle, split like the terrain's
+     * mesh, or MISS.
+     */
+    private static float bruteForce(HeightField h, float[] o, float[] d, float maxT) {
+        float best = HeightQuadtree.MISS;
+        for (int t = 0; t < h.getDepth() - 1; t++) {
+            for (int l = 0; l < h.getWidth() - 1; l++) {
+                int r = l + 1, b = t + 1;
+                float[] lt = { l, h.get(l, t), t }, lb = { l, h.get(l, b), b };
+                float[] rt = { r, h.get(r, t), t }, rb = { r, h.get(r, b), b };
+                best = Math.min(best, triangle(o, d, lt, lb, rt));
+                best = Math.min(best, triangle(o, d, rb, rt, lb));
+            }
+        }
+        return best <= maxT ? best : HeightQuadtree.MISS;
+    }
+
+    /**
+     * Moller-Trumbore, in doubles so it is the more accurate of the two.
+     */
+    private static float triangle(float[] o, float[] d, float[] a, float[] b, float[] c) {
+        double[] e1 = { b[0] - a[0], b[1] - a[1], b[2] - a[2] };
+        double[] e2 = { c[0] - a[0], c[1] - a[1], c[2] - a[2] };
+        double[] p = cross(d[0], d[1], d[2], e2);
+        double det = e1[0] * p[0] + e1[1] * p[1] + e1[2] * p[2];
+        if (Math.abs(det) < 1e-12) return HeightQuadtree.MISS;
+
+        double[] s = { o[0] - a[0], o[1] - a[1], o[2] - a[2] };
+        double u = (s[0] * p[0] + s[1] * p[1] + s[2] * p[2]) / det;
+        if (u < 0 || u > 1) return HeightQuadtree.MISS;
+        double[] q = cross(s[0], s[1], s[2], e1);
+        double v = (d[0] * q[0] + d[1] * q[1] + d[2] * q[2]) / det;
+        if (v < 0 || u + v > 1) return HeightQuadtree.MISS;
+        double t = (e2[0] * q[0] + e2[1] * q[1] + e2[2] * q[2]) / det;
+        return t < 0 ? HeightQuadtree.MISS : (float) t;
+    }
+
+    private static double[] cross(double x, double y, double z, double[] v) {
+        return new double[] { y * v[2] - z * v[1], z * v[0] - x * v[2], x * v[1] - y * v[0] };
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+        HeightField heights = field(13, 9, 42);
+        HeightQuadtree tree = new HeightQuadtree(heights);
+        Random random = new Random(7);
+
+        int hits = 0;
+        for (int i = 0; i < 2000; i++) {
+            float[] o = { random.nextFloat() * 16 - 2, 5 + random.nextFloat() * 3, random.nextFloat() * 12 - 2 };
+            float[] d = { random.nextFloat() * 2 - 1, -random.nextFloat(), random.nextFloat() * 2 - 1 };
+            float maxT = 30;
+
+            float expected = bruteForce(heights, o, d, maxT);
+            float actual = tree.intersect(o[0], o[1], o[2], d[0], d[1], d[2], maxT);
+            if (expected == HeightQuadtree.MISS) {
+                assertEquals("ray " + i, HeightQuadtree.MISS, actual, 0);
+            } else {
+                assertEquals("ray " + i, expected, actual, EPSILON);
+                hits++;
+            }
+        }
+        // Enough of the rays hit for the test to mean something
+        assertTrue(hits > 500);
+    }
+
+    @Test
+    public void testMaxDistance() {
+        HeightField heights = field(9, 9, 3);
+        HeightQuadtree tree = new HeightQuadtree(heights);
+
+        float t = tree.intersect(4.3f, 10, 4.6f, 0, -1, 0, 20);
+        assertTrue(t != HeightQuadtree.MISS);
+        assertEquals(HeightQuadtree.MISS, tree.intersect(4.3f, 10, 4.6f, 0, -1, 0, t - 0.01f), 0);
+    }
+}
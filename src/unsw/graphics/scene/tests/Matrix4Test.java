@@ -0,0 +1,53 @@
+package unsw.graphics.scene.tests;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import unsw.graphics.Matrix4;
+
+/**
+ * A matrix times its inverse is the identity.
+ */
+public class Matrix4Test extends TestCase {
+
+    private static final float EPSILON = 0.0001f;
+
+    private static void assertIdentity(Matrix4 m) {
+        float[] values = m.getValues();
+        for (int i = 0; i < 16; i++)
+            assertEquals("element " + i, i % 5 == 0 ? 1 : 0, values[i], EPSILON);
+    }
+
+    @Test
+    public void testInverseOfIdentity() {
+        assertIdentity(Matrix4.identity().inverse());
+    }
+
+    @Test
+    public void testInverseOfModelMatrix() {
+        Matrix4 m = Matrix4.translation(3, -2, 7)
+                .multiply(Matrix4.rotationY(30))
+                .multiply(Matrix4.rotationX(-65))
+                .multiply(Matrix4.scale(2, 0.5f, 3));
+        assertIdentity(m.multiply(m.inverse()));
+        assertIdentity(m.inverse().multiply(m));
+    }
+
+    @Test
+    public void testInverseOfViewProjection() {
+        Matrix4 m = Matrix4.perspective(60, 16 / 9f, 0.1f, 200)
+                .multiply(Matrix4.rotationX(20))
+                .multiply(Matrix4.translation(-10, -5, -30));
+        assertIdentity(m.multiply(m.inverse()));
+    }
+
+    @Test
+    public void testSingular() {
+        try {
+            Matrix4.scale(1, 0, 1).inverse();
+            fail("A flattening matrix has no inverse");
+        } catch (ArithmeticException e) {
+            // expected
+        }
+    }
+}
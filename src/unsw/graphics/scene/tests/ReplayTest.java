@@ -0,0 +1,125 @@
+package unsw.graphics.scene.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jogamp.newt.event.KeyEvent;
+import com.jogamp.newt.event.MouseEvent;
+import com.jogamp.newt.event.NEWTEvent;
+
+import junit.framework.TestCase;
+import unsw.graphics.world.replay.Replay;
+import unsw.graphics.world.replay.ReplayRecorder;
+
+/**
+ * Replays written by {@link ReplayRecorder} read back the same.
+ */
+public class ReplayTest extends TestCase {
+
+    private static final long SEED = 0x1234_5678_9ABCL;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("replay", ".rpl");
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    private List<NEWTEvent> events() {
+        KeyEvent pressed = KeyEvent.create(KeyEvent.EVENT_KEY_PRESSED, this, 0, KeyEvent.SHIFT_MASK,
+                KeyEvent.VK_W, KeyEvent.VK_W, 'W');
+        KeyEvent released = KeyEvent.create(KeyEvent.EVENT_KEY_RELEASED, this, 0, 0,
+                KeyEvent.VK_SPACE, KeyEvent.VK_SPACE, ' ');
+        MouseEvent wheel = new MouseEvent(MouseEvent.EVENT_MOUSE_WHEEL_MOVED, this, 0, 0, 320, 240,
+                (short) 0, (short) 0, new float[] { 0, -1.5f, 0 }, 2);
+        MouseEvent entered = new MouseEvent(MouseEvent.EVENT_MOUSE_ENTERED, this, 0, 0, 1, 2,
+                (short) 0, (short) 0, new float[3], 1);
+        return Arrays.asList(pressed, entered, released, wheel);
+    }
+
+    private void record(int[] steps) throws IOException {
+        try (ReplayRecorder recorder = new ReplayRecorder(file, SEED)) {
+            recorder.frame(steps[0], events());
+            for (int i = 1; i < steps.length; i++)
+                recorder.frame(steps[i], Collections.<NEWTEvent>emptyList());
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        record(new int[] { 1, 0, 3 });
+        Replay replay = Replay.load(file);
+
+        assertEquals(SEED, replay.getSeed());
+        assertEquals(3, replay.getFrameCount());
+        assertEquals(1, replay.getSteps(0));
+        assertEquals(0, replay.getSteps(1));
+        assertEquals(3, replay.getSteps(2));
+        assertEquals(4, replay.getTicks());
+        assertTrue(replay.getEvents(1).isEmpty());
+        assertTrue(replay.getEvents(2).isEmpty());
+    }
+
+    @Test
+    public void testEvents() throws IOException {
+        record(new int[] { 1 });
+        List<NEWTEvent> events = Replay.load(file).getEvents(0);
+
+        // Entering the window isn't recorded
+        assertEquals(3, events.size());
+
+        KeyEvent pressed = (KeyEvent) events.get(0);
+        assertEquals(KeyEvent.EVENT_KEY_PRESSED, pressed.getEventType());
+        assertEquals(KeyEvent.SHIFT_MASK, pressed.getModifiers());
+        assertEquals(KeyEvent.VK_W, pressed.getKeyCode());
+        assertEquals(KeyEvent.VK_W, pressed.getKeySymbol());
+        assertEquals('W', pressed.getKeyChar());
+
+        KeyEvent released = (KeyEvent) events.get(1);
+        assertEquals(KeyEvent.EVENT_KEY_RELEASED, released.getEventType());
+        assertEquals(KeyEvent.VK_SPACE, released.getKeyCode());
+        assertEquals(' ', released.getKeyChar());
+
+        MouseEvent wheel = (MouseEvent) events.get(2);
+        assertEquals(MouseEvent.EVENT_MOUSE_WHEEL_MOVED, wheel.getEventType());
+        assertEquals(320, wheel.getX());
+        assertEquals(240, wheel.getY());
+        assertEquals(-1.5f, wheel.getRotation()[1], 0);
+        assertEquals(2, wheel.getRotationScale(), 0);
+    }
+
+    @Test
+    public void testTruncatedFinalFrame() throws IOException {
+        record(new int[] { 2, 1, 1 });
+        // Cut the last frame short, an idle frame is three bytes
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        Replay replay = Replay.load(file);
+        assertEquals(SEED, replay.getSeed());
+        assertEquals(2, replay.getFrameCount());
+        assertEquals(3, replay.getTicks());
+    }
+
+    @Test
+    public void testTruncatedEvents() throws IOException {
+        record(new int[] { 1 });
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        assertEquals(0, Replay.load(file).getFrameCount());
+    }
+}
@@ -0,0 +1,84 @@
+package unsw.graphics.scene.tests;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+import unsw.graphics.Vector3;
+import unsw.graphics.geometry.Point3D;
+import unsw.graphics.world.ArrayHeightField;
+import unsw.graphics.world.RoadGeometry;
+import unsw.graphics.world.Terrain;
+
+/**
+ * Roads clipped against the terrain keep their shape and lie on it.
+ */
+public class RoadGeometryTest extends TestCase {
+
+    private static final float EPSILON = 0.001f;
+
+    private static Terrain terrain() {
+        ArrayHeightField heights = new ArrayHeightField(10, 10);
+        for (int z = 0; z < 10; z++)
+            for (int x = 0; x < 10; x++)
+                heights.set(x, z, (float) (Math.sin(x * 0.7) + Math.cos(z * 1.3)) + 0.1f * x * z);
+        return new Terrain(heights, new Vector3(0, 1, 0));
+    }
+
+    /**
+     * A straight road from one point to another, its control points evenly
+     * spaced along it.
+     */
+    private static List<Point3D> straight(float x0, float z0, float x1, float z1) {
+        Point3D[] spine = new Point3D[4];
+        for (int i = 0; i < 4; i++)
+            spine[i] = new Point3D(x0 + (x1 - x0) * i / 3, 0, z0 + (z1 - z0) * i / 3);
+        return Arrays.asList(spine);
+    }
+
+    /**
+     * Area of the road's triangles seen from above.
+     */
+    private static float planArea(RoadGeometry road) {
+        float[] p = road.getPositions();
+        int[] indices = road.getIndices();
+        float area = 0;
+        for (int i = 0; i < road.getTriangleCount() * 3; i += 3) {
+            int a = indices[i] * 3, b = indices[i + 1] * 3, c = indices[i + 2] * 3;
+            float cross = (p[b] - p[a]) * (p[c + 2] - p[a + 2]) - (p[c] - p[a]) * (p[b + 2] - p[a + 2]);
+            area += Math.abs(cross) / 2;
+        }
+        return area;
+    }
+
+    @Test
+    public void testClippedAreaIsRoadArea() {
+        float width = 1.5f;
+        RoadGeometry road = RoadGeometry.tessellate(straight(1.3f, 2.2f, 7.7f, 5.4f), width, terrain());
+
+        float length = (float) Math.hypot(7.7f - 1.3f, 5.4f - 2.2f);
+        assertEquals(width * length, planArea(road), EPSILON);
+    }
+
+    @Test
+    public void testClippedAreaAlongGridLine() {
+        // Edges running exactly along grid lines mustn't lose or double pieces
+        RoadGeometry road = RoadGeometry.tessellate(straight(1, 3, 8, 3), 2, terrain());
+        assertEquals(2 * 7, planArea(road), EPSILON);
+    }
+
+    @Test
+    public void testLiesOnTerrain() {
+        Terrain terrain = terrain();
+        RoadGeometry road = RoadGeometry.tessellate(straight(1.3f, 2.2f, 7.7f, 5.4f), 1.5f, terrain);
+
+        float[] p = road.getPositions();
+        int[] indices = road.getIndices();
+        for (int i = 0; i < road.getTriangleCount() * 3; i++) {
+            int v = indices[i] * 3;
+            assertEquals(terrain.getAltitude(p[v], p[v + 2]), p[v + 1], EPSILON);
+        }
+    }
+}
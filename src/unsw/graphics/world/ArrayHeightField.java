@@ -0,0 +1,58 @@
+package unsw.graphics.world;
+
+/**
+ * A height field held in a row-major float array on the heap.
+ */
+public class ArrayHeightField implements HeightField {
+
+    private final int width;
+    private final int depth;
+    private final float[] altitudes;
+
+    /**
+     * Create a flat height field
+     *
+     * @param width
+     * @param depth
+     */
+    public ArrayHeightField(int width, int depth) {
+        this(width, depth, new float[width * depth]);
+    }
+
+    /**
+     * Create a height field backed by the given array. Row z starts at index
+     * z * width.
+     *
+     * @param width
+     * @param depth
+     * @param altitudes
+     */
+    public ArrayHeightField(int width, int depth, float[] altitudes) {
+        if (altitudes.length != width * depth)
+            throw new IllegalArgumentException("Expected " + width * depth
+                    + " altitudes, got " + altitudes.length);
+        this.width = width;
+        this.depth = depth;
+        this.altitudes = altitudes;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getDepth() {
+        return depth;
+    }
+
+    @Override
+    public float get(int x, int z) {
+        return altitudes[z * width + x];
+    }
+
+    @Override
+    public void set(int x, int z, float altitude) {
+        altitudes[z * width + x] = altitude;
+    }
+}
@@ -1,18 +1,23 @@
 package unsw.graphics.world;
 
+import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 
 import unsw.graphics.CoordFrame3D;
 import unsw.graphics.Shader;
+import unsw.graphics.Vector3;
 import unsw.graphics.geometry.Point3D;
 import unsw.graphics.geometry.TriangleMesh;
-import unsw.graphics.world.camera.Camera;
 import unsw.graphics.world.particles.Emitter;
 import unsw.graphics.world.particles.ExplosionParticle;
 import unsw.graphics.world.particles.Particle;
+import unsw.graphics.world.lighting.Pointlight;
+import unsw.graphics.world.render.Material;
+import unsw.graphics.world.render.RenderQueue;
 
 import java.awt.*;
 import java.io.IOException;
+import java.util.Random;
 
 public class Bomb {
 
@@ -20,28 +25,56 @@ public class Bomb {
     private static final float DECAY = 0.02f;
     private static final float GRAVITY = -0.0008f;
 
+    // Distance the grenade falls each simulation step
+    private static final float FALL_SPEED = -80 * GRAVITY;
+    private static final Vector3 DOWN = new Vector3(0, -1, 0);
+
+    // Size of the crater left in the terrain
+    private static final float CRATER_RADIUS = 1.2f;
+    private static final float CRATER_DEPTH = 0.3f;
+
+    // The explosion's flash, which fades over this many simulation steps
+    private static final Color FLASH_COLOR = new Color(1f, 0.6f, 0.2f);
+    private static final float FLASH_RANGE = 7;
+    private static final int FLASH_STEPS = 40;
+
+    private static final Material MATERIAL = new Material(new Color(0.2f, 0.2f, 0.2f),
+            new Color(0.8f, 0.8f, 0.8f), new Color(0.3f, 0.3f, 0.3f), 16f, Color.DARK_GRAY, false);
+
     private TriangleMesh mesh;
     private Emitter explosion;
     private Terrain terrain;
+    private Random random;
 
     private float transX = 0;
     private float transY = 0;
     private float transZ = 0;
 
-    private CoordFrame3D localFrame;
-
-    private float ground = 1;
-
     private boolean dropped = false;
     private boolean exploded = false;
 
+    private Pointlight flash;
+    private int flashStep = 0;
+
     /**
      * Creates a grenade
      *
      * @param terrain needed for collision check
+     * @param random where the explosion's randomness comes from
      */
-    public Bomb(Terrain terrain) {
+    public Bomb(Terrain terrain, Random random) {
         this.terrain = terrain;
+        this.random = random;
+        this.flash = new Pointlight(new Point3D(0, 0, 0), FLASH_COLOR, FLASH_RANGE);
+        this.flash.setLightOn(false);
+    }
+
+    /**
+     * The light of the explosion, only on while it is fading.
+     * @return
+     */
+    public Pointlight getLight() {
+        return flash;
     }
 
     public boolean hasExploded() {
@@ -59,8 +92,6 @@ public class Bomb {
         transZ = pos.getZ();
 
         dropped = true;
-        // For collision check
-        ground = terrain.getAltitude(transX, transZ);
         // So particles are drawn when ground hit
         explosion.emit();
     }
@@ -71,6 +102,7 @@ public class Bomb {
     public void reload() {
         dropped = false;
         exploded = false;
+        flash.setLightOn(false);
         // reset the explosion particles
         explosion.stop();
         explosion.reset();
@@ -94,51 +126,71 @@ public class Bomb {
 
         // initialize particles and emitter
         Particle[] particles = new Particle[MAX_PARTICLES];
-        for (int i = 0; i < MAX_PARTICLES; i++) particles[i] = new ExplosionParticle();
+        for (int i = 0; i < MAX_PARTICLES; i++) particles[i] = new ExplosionParticle(random);
         explosion = new Emitter(particles, DECAY, GRAVITY);
         explosion.init(gl);
     }
 
     /**
-     * Draw the bombs
-     * @param gl
-     * @param frame
+     * Move the grenade on by one simulation step, exploding it when it
+     * reaches the ground
      */
-    public void draw(GL3 gl, CoordFrame3D frame) {
-        // Only display the grenade once it's been 'dropped'
+    public void tick() {
         if (!dropped) return;
+        if (exploded) {
+            explosion.tick(1);
+            updateFlash();
+            return;
+        }
 
-        localFrame = frame.translate(transX, transY, transZ);
-
-        // Show explosion particles when grenade hits the ground
-        if (transY <= ground) {
+        // Check if this step's fall reaches the ground, the terrain may have
+        // changed since the grenade was dropped
+        Point3D position = new Point3D(transX, transY, transZ);
+        Point3D hit = terrain.raycast(position, DOWN, FALL_SPEED);
+        if (hit != null || transY <= terrain.getAltitude(transX, transZ)) {
+            if (hit != null) transY = hit.getY();
+            terrain.lower(transX, transZ, CRATER_RADIUS, CRATER_DEPTH);
             exploded = true;
+            flashStep = 0;
+            flash.setPosition(new Point3D(transX, transY + CRATER_RADIUS / 2, transZ));
+            updateFlash();
             return;
         }
+        transY -= FALL_SPEED;
+    }
 
-        // Set the material properties
-        Shader.setColor(gl, "ambientCoeff", new Color(0.2f, 0.2f, 0.2f));
-        Shader.setColor(gl, "diffuseCoeff", new Color(0.8f, 0.8f, 0.8f));
-        Shader.setColor(gl, "specularCoeff", new Color(0.3f, 0.3f, 0.3f));
-        Shader.setFloat(gl, "phongExp", 16f);
-
-        // Draw textures only for the chopper's body
-        Shader.setPenColor(gl, Color.DARK_GRAY);
-        Shader.setBoolean(gl, "useTexture", false);
+    private void updateFlash() {
+        float fade = 1 - flashStep++ / (float) FLASH_STEPS;
+        flash.setLightOn(fade > 0);
+        if (fade <= 0) return;
+        float[] rgb = FLASH_COLOR.getRGBColorComponents(null);
+        flash.setIntensity(new Color(rgb[0] * fade, rgb[1] * fade, rgb[2] * fade));
+    }
 
-        localFrame = localFrame.scale(0.1f, 0.1f, 0.1f);
-        mesh.draw(gl, localFrame);
-        transY += 80 * GRAVITY;
+    /**
+     * Submit the grenade to be drawn
+     * @param queue
+     * @param shader the world's default shader
+     * @param frame
+     */
+    public void submit(RenderQueue queue, Shader shader, CoordFrame3D frame) {
+        // Only display the grenade once it's been 'dropped', and until it
+        // has hit the ground
+        if (!dropped || exploded) return;
+
+        CoordFrame3D localFrame = frame.translate(transX, transY, transZ).scale(0.1f, 0.1f, 0.1f);
+        queue.submit(RenderQueue.OPAQUE, shader, GL.GL_TEXTURE_2D, 0, null, MATERIAL,
+                queue.distance(new Point3D(transX, transY, transZ)), gl -> mesh.draw(gl, localFrame));
     }
 
     /**
-     * Draw the explosion
-     * @param gl
-     * @param camera
+     * Submit the explosion particles to be drawn, once the grenade has hit
+     * the ground
+     * @param queue
+     * @param frame
      */
-    public void drawParticles(GL3 gl, Camera camera) {
-        if (!dropped || !exploded) return;
-        explosion.draw(gl, camera, localFrame);
+    public void submitParticles(RenderQueue queue, CoordFrame3D frame) {
+        if (dropped && exploded) explosion.submit(queue, frame.translate(transX, transY, transZ));
     }
 
     public void destroy(GL3 gl) {
@@ -0,0 +1,38 @@
+package unsw.graphics.world;
+
+/**
+ * A grid of terrain altitudes, indexed by the vertex position in the x and z
+ * directions.
+ */
+public interface HeightField {
+
+    /**
+     * The number of vertices in the x-direction
+     * @return
+     */
+    int getWidth();
+
+    /**
+     * The number of vertices in the z-direction
+     * @return
+     */
+    int getDepth();
+
+    /**
+     * Get the altitude at grid index x and z.
+     *
+     * @param x
+     * @param z
+     * @return
+     */
+    float get(int x, int z);
+
+    /**
+     * Set the altitude at grid index x and z.
+     *
+     * @param x
+     * @param z
+     * @param altitude
+     */
+    void set(int x, int z, float altitude);
+}
@@ -0,0 +1,328 @@
+package unsw.graphics.world;
+
+/**
+ * A min/max quadtree over a height field for fast ray intersection.
+ *
+ * Level 0 holds the lowest and highest altitude of each grid cell, and each
+ * level above holds the bounds of 2x2 nodes of the level below, so it is a
+ * minimum and maximum mipmap of the terrain. A ray only descends into nodes
+ * whose height range it passes through, visiting children nearest first, so
+ * the first triangle it hits is the closest one.
+ *
+ * Cells are split into the same two triangles as the terrain mesh and
+ * {@link Terrain#getAltitude(float, float)}, so hits lie exactly on the
+ * rendered surface.
+ */
+public class HeightQuadtree {
+
+    public static final float MISS = Float.POSITIVE_INFINITY;
+
+    private final HeightField heights;
+
+    // Copy of the altitudes, row-major, so leaf tests avoid going through
+    // the height field
+    private final int width;
+    private final int depth;
+    private final float[] altitudes;
+
+    // Number of cells in each direction at each level
+    private final int[] cellsX;
+    private final int[] cellsZ;
+
+    private final float[][] min;
+    private final float[][] max;
+
+    /**
+     * Build the tree for the given height field.
+     *
+     * @param heights
+     */
+    public HeightQuadtree(HeightField heights) {
+        this.heights = heights;
+        this.width = heights.getWidth();
+        this.depth = heights.getDepth();
+        this.altitudes = new float[width * depth];
+
+        int levels = 1;
+        int cx = Math.max(heights.getWidth() - 1, 1);
+        int cz = Math.max(heights.getDepth() - 1, 1);
+        while (cx > 1 || cz > 1) {
+            cx = (cx + 1) / 2;
+            cz = (cz + 1) / 2;
+            levels++;
+        }
+
+        cellsX = new int[levels];
+        cellsZ = new int[levels];
+        min = new float[levels][];
+        max = new float[levels][];
+
+        cx = Math.max(heights.getWidth() - 1, 1);
+        cz = Math.max(heights.getDepth() - 1, 1);
+        for (int level = 0; level < levels; level++) {
+            cellsX[level] = cx;
+            cellsZ[level] = cz;
+            min[level] = new float[cx * cz];
+            max[level] = new float[cx * cz];
+            cx = (cx + 1) / 2;
+            cz = (cz + 1) / 2;
+        }
+
+        update(0, 0, heights.getWidth() - 1, heights.getDepth() - 1);
+    }
+
+    /**
+     * Refresh the bounds after the altitudes of the vertices in the given
+     * inclusive range have changed.
+     *
+     * @param x0
+     * @param z0
+     * @param x1
+     * @param z1
+     */
+    public void update(int x0, int z0, int x1, int z1) {
+        for (int z = z0; z <= z1; z++)
+            for (int x = x0; x <= x1; x++)
+                altitudes[z * width + x] = heights.get(x, z);
+
+        // Cells touching the changed vertices
+        int cx0 = Math.max(x0 - 1, 0), cx1 = Math.min(x1, cellsX[0] - 1);
+        int cz0 = Math.max(z0 - 1, 0), cz1 = Math.min(z1, cellsZ[0] - 1);
+
+        for (int z = cz0; z <= cz1; z++) {
+            for (int x = cx0; x <= cx1; x++) {
+                float a = height(x, z), b = height(x + 1, z);
+                float c = height(x, z + 1), d = height(x + 1, z + 1);
+                min[0][z * cellsX[0] + x] = Math.min(Math.min(a, b), Math.min(c, d));
+                max[0][z * cellsX[0] + x] = Math.max(Math.max(a, b), Math.max(c, d));
+            }
+        }
+
+        for (int level = 1; level < min.length; level++) {
+            cx0 /= 2; cx1 /= 2;
+            cz0 /= 2; cz1 /= 2;
+            int below = cellsX[level - 1];
+            for (int z = cz0; z <= cz1; z++) {
+                for (int x = cx0; x <= cx1; x++) {
+                    float lo = Float.POSITIVE_INFINITY, hi = Float.NEGATIVE_INFINITY;
+                    for (int dz = 0; dz < 2; dz++) {
+                        for (int dx = 0; dx < 2; dx++) {
+                            int bx = 2 * x + dx, bz = 2 * z + dz;
+                            if (bx >= below || bz >= cellsZ[level - 1]) continue;
+                            lo = Math.min(lo, min[level - 1][bz * below + bx]);
+                            hi = Math.max(hi, max[level - 1][bz * below + bx]);
+                        }
+                    }
+                    min[level][z * cellsX[level] + x] = lo;
+                    max[level][z * cellsX[level] + x] = hi;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find where a ray first hits the terrain.
+     *
+     * @param ox ray origin
+     * @param oy
+     * @param oz
+     * @param dx ray direction, need not be normalised
+     * @param dy
+     * @param dz
+     * @param maxT only hits with origin + t * direction for t in [0, maxT] count
+     * @return t of the closest hit, or MISS
+     */
+    public float intersect(float ox, float oy, float oz, float dx, float dy, float dz, float maxT) {
+        Scratch scratch = SCRATCH.get();
+        float[] range = scratch.range;
+        range[0] = 0;
+        range[1] = maxT;
+
+        // Clip the ray to the terrain's bounds
+        int top = min.length - 1;
+        if (!clip(ox, dx, 0, Math.max(width - 1, 1), range)
+                || !clip(oz, dz, 0, Math.max(depth - 1, 1), range)
+                || !clip(oy, dy, min[top][0], max[top][0], range))
+            return MISS;
+
+        // Each entry is a node's level, x, z and the ray's t range inside it
+        int capacity = 3 * min.length + 4;
+        if (scratch.nodes.length < capacity * 3) {
+            scratch.nodes = new int[capacity * 3];
+            scratch.spans = new float[capacity * 2];
+        }
+        int[] nodes = scratch.nodes;
+        float[] spans = scratch.spans;
+        int size;
+
+        nodes[0] = top;
+        nodes[1] = 0;
+        nodes[2] = 0;
+        spans[0] = range[0];
+        spans[1] = range[1];
+        size = 1;
+
+        float invDx = 1 / dx, invDz = 1 / dz;
+        int[] childX = scratch.childX, childZ = scratch.childZ;
+        float[] childIn = scratch.childIn, childOut = scratch.childOut;
+
+        while (size > 0) {
+            size--;
+            int level = nodes[size * 3];
+            int nx = nodes[size * 3 + 1];
+            int nz = nodes[size * 3 + 2];
+            float t0 = spans[size * 2];
+            float t1 = spans[size * 2 + 1];
+
+            // Skip the node if the ray passes over or under its height range
+            float y0 = oy + dy * t0, y1 = oy + dy * t1;
+            int i = nz * cellsX[level] + nx;
+            if (Math.min(y0, y1) > max[level][i] || Math.max(y0, y1) < min[level][i])
+                continue;
+
+            if (level == 0) {
+                float t = intersectCell(nx, nz, ox, oy, oz, dx, dy, dz, t0, t1);
+                if (t != MISS) return t;
+                continue;
+            }
+
+            // Clip the ray to each child, then push them far to near
+            int children = 0;
+            int size2 = 1 << (level - 1);
+            for (int cz = 2 * nz; cz <= 2 * nz + 1 && cz < cellsZ[level - 1]; cz++) {
+                float za = (cz * size2 - oz) * invDz;
+                float zb = (Math.min((cz + 1) * size2, cellsZ[0]) - oz) * invDz;
+                float zIn = Math.max(t0, Math.min(za, zb));
+                float zOut = Math.min(t1, Math.max(za, zb));
+                if (dz == 0 && (oz < cz * size2 || oz > (cz + 1) * size2)) continue;
+                if (dz == 0) { zIn = t0; zOut = t1; }
+                if (zIn > zOut) continue;
+
+                for (int cx = 2 * nx; cx <= 2 * nx + 1 && cx < cellsX[level - 1]; cx++) {
+                    float xa = (cx * size2 - ox) * invDx;
+                    float xb = (Math.min((cx + 1) * size2, cellsX[0]) - ox) * invDx;
+                    float in = Math.max(zIn, Math.min(xa, xb));
+                    float out = Math.min(zOut, Math.max(xa, xb));
+                    if (dx == 0) {
+                        if (ox < cx * size2 || ox > (cx + 1) * size2) continue;
+                        in = zIn;
+                        out = zOut;
+                    }
+                    if (in > out) continue;
+
+                    // Insertion sort by entry, latest first
+                    int j = children++;
+                    while (j > 0 && childIn[j - 1] < in) {
+                        childX[j] = childX[j - 1];
+                        childZ[j] = childZ[j - 1];
+                        childIn[j] = childIn[j - 1];
+                        childOut[j] = childOut[j - 1];
+                        j--;
+                    }
+                    childX[j] = cx;
+                    childZ[j] = cz;
+                    childIn[j] = in;
+                    childOut[j] = out;
+                }
+            }
+
+            for (int c = 0; c < children; c++) {
+                nodes[size * 3] = level - 1;
+                nodes[size * 3 + 1] = childX[c];
+                nodes[size * 3 + 2] = childZ[c];
+                spans[size * 2] = childIn[c];
+                spans[size * 2 + 1] = childOut[c];
+                size++;
+            }
+        }
+        return MISS;
+    }
+
+    /**
+     * Per-thread working space, so casting rays allocates nothing
+     */
+    private static class Scratch {
+        final float[] range = new float[2];
+        int[] nodes = new int[0];
+        float[] spans = new float[0];
+        final int[] childX = new int[4], childZ = new int[4];
+        final float[] childIn = new float[4], childOut = new float[4];
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * Narrow range to the values of t where o + t * d lies in [lo, hi].
+     *
+     * @return false if the range becomes empty
+     */
+    private static boolean clip(float o, float d, float lo, float hi, float[] range) {
+        if (d == 0) return o >= lo && o <= hi;
+        float a = (lo - o) / d;
+        float b = (hi - o) / d;
+        if (a > b) {
+            float tmp = a;
+            a = b;
+            b = tmp;
+        }
+        range[0] = Math.max(range[0], a);
+        range[1] = Math.min(range[1], b);
+        return range[0] <= range[1];
+    }
+
+    /**
+     * Intersect the ray with the two triangles of a cell.
+     */
+    private float intersectCell(int l, int t, float ox, float oy, float oz,
+                                float dx, float dy, float dz, float t0, float t1) {
+        int r = l + 1, b = t + 1;
+        float htl = height(l, t), htr = height(r, t);
+        float hbl = height(l, b), hbr = height(r, b);
+
+        // Top left triangle (l,t) (l,b) (r,t), bottom right (r,t) (l,b) (r,b)
+        float first  = triangle(l, htl, t, l, hbl, b, r, htr, t, ox, oy, oz, dx, dy, dz);
+        float second = triangle(r, htr, t, l, hbl, b, r, hbr, b, ox, oy, oz, dx, dy, dz);
+
+        // Allow a little slack so rays along cell borders don't slip through
+        float eps = 1e-5f * Math.max(1, t1);
+        float hit = MISS;
+        if (first >= t0 - eps && first <= t1 + eps) hit = first;
+        if (second >= t0 - eps && second <= t1 + eps) hit = Math.min(hit, second);
+        return hit;
+    }
+
+    /**
+     * Moller-Trumbore ray triangle intersection.
+     *
+     * @return t of the hit, or MISS
+     */
+    private static float triangle(float ax, float ay, float az, float bx, float by, float bz,
+                                  float cx, float cy, float cz, float ox, float oy, float oz,
+                                  float dx, float dy, float dz) {
+        float e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+        float e2x = cx - ax, e2y = cy - ay, e2z = cz - az;
+
+        float px = dy * e2z - dz * e2y;
+        float py = dz * e2x - dx * e2z;
+        float pz = dx * e2y - dy * e2x;
+        float det = e1x * px + e1y * py + e1z * pz;
+        if (Math.abs(det) < 1e-12f) return MISS;
+        float inv = 1 / det;
+
+        float sx = ox - ax, sy = oy - ay, sz = oz - az;
+        float u = (sx * px + sy * py + sz * pz) * inv;
+        if (u < -1e-6f || u > 1 + 1e-6f) return MISS;
+
+        float qx = sy * e1z - sz * e1y;
+        float qy = sz * e1x - sx * e1z;
+        float qz = sx * e1y - sy * e1x;
+        float v = (dx * qx + dy * qy + dz * qz) * inv;
+        if (v < -1e-6f || u + v > 1 + 1e-6f) return MISS;
+
+        return (e2x * qx + e2y * qy + e2z * qz) * inv;
+    }
+
+    private float height(int x, int z) {
+        return altitudes[Math.min(z, depth - 1) * width + Math.min(x, width - 1)];
+    }
+}
@@ -0,0 +1,30 @@
+package unsw.graphics.world;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts JSON levels to the binary level format read by
+ * {@link LevelIO#load(File, boolean)}.
+ *
+ * Usage: LevelConverter [--uint16] input.json output.lvl
+ */
+public class LevelConverter {
+
+    public static void main(String[] args) throws IOException {
+        boolean quantise = args.length == 3 && args[0].equals("--uint16");
+        if (args.length != (quantise ? 3 : 2)) {
+            System.err.println("Usage: LevelConverter [--uint16] input.json output.lvl");
+            System.exit(1);
+        }
+
+        File in  = new File(args[args.length - 2]);
+        File out = new File(args[args.length - 1]);
+
+        Terrain terrain = LevelIO.load(in);
+        LevelIO.save(terrain, out, quantise);
+
+        System.out.println("Wrote " + out + " (" + out.length() + " bytes, "
+                + (quantise ? "uint16" : "float32") + " heights)");
+    }
+}
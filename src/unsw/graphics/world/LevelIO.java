@@ -3,16 +3,23 @@ package unsw.graphics.world;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
 import unsw.graphics.Vector3;
-import unsw.graphics.geometry.Point2D;
 import unsw.graphics.geometry.Point3D;
 
 /**
@@ -22,14 +29,261 @@ import unsw.graphics.geometry.Point3D;
  */
 public class LevelIO {
 
+    /*
+     * Binary level format, all values little-endian:
+     *
+     *   offset  size  field
+     *        0     4  magic "ULVL"
+     *        4     2  version
+     *        6     1  height format, 0 = float32, 1 = uint16
+     *        7     1  reserved
+     *        8     4  width
+     *       12     4  depth
+     *       16    12  sunlight direction (x, y, z)
+     *       28     4  height scale  (uint16 only)
+     *       32     4  height offset (uint16 only)
+     *       36     4  tree count
+     *       40     4  road count
+     *       44     4  reserved
+     *       48     -  width * depth height samples, row-major, padded to 4 bytes
+     *
+     * followed by the tree section, (x, z) per tree, and the road section,
+     * per road its width, the number of spine points and the (x, z) of each.
+     */
+    private static final int MAGIC = 0x4C564C55; // "ULVL" read little-endian
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+
+    // Quantised heights are stored over their range widened by the range
+    // again, and at least this much, above and below, so the terrain can
+    // still be raised and lowered after loading
+    private static final float HEADROOM = 32;
+
+    /**
+     * Load a terrain object from a level file. Binary levels have their
+     * heightmap memory-mapped, anything else is read as JSON.
+     *
+     * @param mapFile
+     * @return
+     * @throws FileNotFoundException
+     */
+    public static Terrain load(File mapFile) throws FileNotFoundException {
+        if (isBinary(mapFile)) {
+            try {
+                return load(mapFile, true);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new RuntimeException("Could not read level " + mapFile, e);
+            }
+        }
+        return loadJSON(mapFile);
+    }
+
+    /**
+     * Load a terrain object from a binary level file.
+     *
+     * If mapHeights is true the heightmap is memory-mapped rather than read,
+     * so only the pages that are used get loaded by the OS. The mapping is
+     * private, editing the terrain never writes back to the file. A file
+     * that can't be opened for writing is read instead, as a read-only
+     * mapping can't be edited.
+     *
+     * @param levelFile
+     * @param mapHeights
+     * @return
+     * @throws IOException
+     */
+    public static Terrain load(File levelFile, boolean mapHeights) throws IOException {
+        if (!levelFile.exists()) throw new FileNotFoundException(levelFile.getPath());
+
+        MappedByteBuffer file = map(levelFile);
+        file.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (file.limit() < HEADER_SIZE || file.getInt(0) != MAGIC)
+            throw new IOException(levelFile + " is not a binary level");
+        if (file.getShort(4) != VERSION)
+            throw new IOException("Unsupported level version " + file.getShort(4));
+
+        int format  = file.get(6);
+        int width   = file.getInt(8);
+        int depth   = file.getInt(12);
+        Vector3 sun = new Vector3(file.getFloat(16), file.getFloat(20), file.getFloat(24));
+        float scale  = file.getFloat(28);
+        float offset = file.getFloat(32);
+        int treeCount = file.getInt(36);
+        int roadCount = file.getInt(40);
+
+        int heightBytes = align(width * depth * MappedHeightField.bytesPerSample(format));
+
+        file.position(HEADER_SIZE);
+        HeightField heights = new MappedHeightField(file, width, depth, format, scale, offset);
+        // A quantised level with no range, saved before there was headroom,
+        // can't store any other altitude
+        boolean flat = format == MappedHeightField.UINT16 && scale == 0;
+        if (!mapHeights || file.isReadOnly() || flat) heights = copy(heights);
+
+        Terrain terrain = new Terrain(heights, sun);
+
+        file.position(HEADER_SIZE + heightBytes);
+        for (int i = 0; i < treeCount; i++) {
+            float x = file.getFloat();
+            float z = file.getFloat();
+            terrain.addTree(x, z);
+        }
+
+        for (int i = 0; i < roadCount; i++) {
+            float w = file.getFloat();
+            int points = file.getInt();
+            List<Point3D> spine = new ArrayList<>();
+            for (int j = 0; j < points; j++) {
+                float x = file.getFloat();
+                float z = file.getFloat();
+                spine.add(new Point3D(x, 0, z));
+            }
+            terrain.addRoad(w, spine);
+        }
+
+        return terrain;
+    }
+
+    /**
+     * Generate a terrain from seeded noise, with trees scattered over it. The
+     * same seed always gives the same terrain.
+     *
+     * @param width
+     * @param depth
+     * @param seed
+     * @return
+     */
+    public static Terrain generate(int width, int depth, long seed) {
+        // The terrain's mesh reads every chunk anyway, so fill them in
+        // parallel first
+        ProceduralHeightField heights = new ProceduralHeightField(width, depth, seed);
+        heights.evaluateAll(ForkJoinPool.commonPool());
+        Terrain terrain = new Terrain(heights, new Vector3(-1, 1, -1));
+        new TreeScatter(seed, 4, 0.3f).scatter(terrain);
+        return terrain;
+    }
+
+    /**
+     * Write a terrain to a binary level file.
+     *
+     * @param terrain
+     * @param levelFile
+     * @param quantise store the heights as uint16 rather than float32, over
+     *                 their range with headroom for editing
+     * @throws IOException
+     */
+    public static void save(Terrain terrain, File levelFile, boolean quantise) throws IOException {
+        HeightField heights = terrain.getHeightField();
+        int width = heights.getWidth();
+        int depth = heights.getDepth();
+        int format = quantise ? MappedHeightField.UINT16 : MappedHeightField.FLOAT32;
+
+        // Quantise over the actual range of altitudes and some headroom
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for (int z = 0; z < depth; z++) {
+            for (int x = 0; x < width; x++) {
+                min = Math.min(min, heights.get(x, z));
+                max = Math.max(max, heights.get(x, z));
+            }
+        }
+        float headroom = Math.max(max - min, HEADROOM);
+        float offset = quantise ? min - headroom : 0;
+        float scale  = quantise ? (max - min + 2 * headroom) / 0xFFFF : 0;
+
+        int size = HEADER_SIZE + align(width * depth * MappedHeightField.bytesPerSample(format));
+        size += terrain.getTrees().size() * 2 * Float.BYTES;
+        for (Road road : terrain.getRoads())
+            size += 2 * Integer.BYTES + road.getSpine().size() * 2 * Float.BYTES;
+
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        Vector3 sun = terrain.getSunlight().getDirection();
+        out.putInt(MAGIC).putShort(VERSION).put((byte) format).put((byte) 0);
+        out.putInt(width).putInt(depth);
+        out.putFloat(sun.getX()).putFloat(sun.getY()).putFloat(sun.getZ());
+        out.putFloat(scale).putFloat(offset);
+        out.putInt(terrain.getTrees().size()).putInt(terrain.getRoads().size());
+        out.putInt(0);
+
+        // Write the samples through a height field over the output buffer
+        HeightField samples = new MappedHeightField(out, width, depth, format, scale, offset);
+        for (int z = 0; z < depth; z++)
+            for (int x = 0; x < width; x++)
+                samples.set(x, z, heights.get(x, z));
+        out.position(HEADER_SIZE + align(width * depth * MappedHeightField.bytesPerSample(format)));
+
+        for (Tree tree : terrain.getTrees())
+            out.putFloat(tree.getPosition().getX()).putFloat(tree.getPosition().getZ());
+
+        for (Road road : terrain.getRoads()) {
+            out.putFloat(road.getWidth()).putInt(road.getSpine().size());
+            for (Point3D p : road.getSpine()) out.putFloat(p.getX()).putFloat(p.getZ());
+        }
+
+        out.flip();
+        try (FileChannel channel = FileChannel.open(levelFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) channel.write(out);
+        }
+    }
+
     /**
-     * Load a terrain object from a JSON file
+     * Check whether the file starts with the binary level magic number.
+     *
+     * @param file
+     * @return
+     */
+    public static boolean isBinary(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining() && channel.read(magic) >= 0);
+            return magic.position() == 4 && magic.getInt(0) == MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Map the whole file copy-on-write. A private mapping needs a channel
+     * open for writing, so if the file or its file system is read-only fall
+     * back to a read-only mapping, whose heights the caller has to copy
+     * before they can be edited.
+     */
+    private static MappedByteBuffer map(File levelFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(levelFile.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
+        } catch (FileSystemException e) {
+            try (FileChannel channel = FileChannel.open(levelFile.toPath(), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 3) & ~3;
+    }
+
+    private static HeightField copy(HeightField heights) {
+        ArrayHeightField copy = new ArrayHeightField(heights.getWidth(), heights.getDepth());
+        for (int z = 0; z < heights.getDepth(); z++)
+            for (int x = 0; x < heights.getWidth(); x++)
+                copy.set(x, z, heights.get(x, z));
+        return copy;
+    }
+
+    /**
+     * Load a terrain object from a JSON file. Instead of an altitude array the
+     * file may have a "procedural" object with a seed and optional noise
+     * settings and "forest" to scatter trees.
      * 
      * @param mapFile
      * @return
      * @throws FileNotFoundException 
      */
-    public static Terrain load(File mapFile) throws FileNotFoundException {
+    private static Terrain loadJSON(File mapFile) throws FileNotFoundException {
 
         Reader in = new FileReader(mapFile);
         JSONTokener jtk = new JSONTokener(in);
@@ -43,22 +297,33 @@ public class LevelIO {
         int width = jsonTerrain.getInt("width");
         int depth = jsonTerrain.getInt("depth");
 
-        List<Point3D> vertices  = new ArrayList<>();
-        List<Point2D> texCoords = new ArrayList<>();
+        // Either the altitudes are listed, or they are generated from noise
+        HeightField heights;
+        JSONObject jsonProcedural = jsonTerrain.optJSONObject("procedural");
+        if (jsonProcedural != null) {
+            heights = new ProceduralHeightField(width, depth,
+                    jsonProcedural.getLong("seed"),
+                    jsonProcedural.optInt("octaves", 6),
+                    (float) jsonProcedural.optDouble("frequency", 0.01),
+                    (float) jsonProcedural.optDouble("amplitude", 8),
+                    jsonProcedural.optBoolean("ridged", false));
+        } else {
+            JSONArray jsonAltitude = jsonTerrain.getJSONArray("altitude");
+            float[] altitudes = new float[width * depth];
+            for (int i = 0; i < altitudes.length; i++)
+                altitudes[i] = (float) jsonAltitude.getDouble(i);
+            heights = new ArrayHeightField(width, depth, altitudes);
+        }
 
-        JSONArray jsonAltitude = jsonTerrain.getJSONArray("altitude");
-        for (int i = 0; i < jsonAltitude.length(); i++) {
-            float x = i % width;
-            float z = i / width;
-            float y = (float) jsonAltitude.getDouble(i);
+        Terrain terrain = new Terrain(heights, new Vector3(dx, dy, dz));
 
-            vertices.add(new Point3D(x, y, z));
-            texCoords.add(new Point2D(x, z));
+        if (jsonProcedural != null && jsonProcedural.has("forest")) {
+            JSONObject jsonForest = jsonProcedural.getJSONObject("forest");
+            new TreeScatter(jsonProcedural.getLong("seed"),
+                    (float) jsonForest.optDouble("spacing", 4),
+                    (float) jsonForest.optDouble("coverage", 0.3)).scatter(terrain);
         }
 
-        List<Integer> indices = getIndices(width, depth);
-        Terrain terrain = new Terrain(width, depth, new Vector3(dx, dy, dz), vertices, indices, texCoords);
-
         if (jsonTerrain.has("trees")) {
             JSONArray jsonTrees = jsonTerrain.getJSONArray("trees");
             for (int i = 0; i < jsonTrees.length(); i++) {
@@ -88,27 +353,6 @@ public class LevelIO {
         return terrain;
     }
 
-    private static List<Integer> getIndices(int width, int depth) {
-        List<Integer> indices   = new ArrayList<>();
-
-        for (int i = 0; i < width*(depth-1); i++) {
-            // Ignore rightmost vertices
-            if (i % width == (width-1)) continue;
-
-            // Top left triangle
-            indices.add(i);
-            indices.add(i + width);
-            indices.add(i + 1);
-
-            // Bottom right triangle
-            indices.add(i + 1);
-            indices.add(i + width);
-            indices.add(i + width + 1);
-        }
-
-        return indices;
-    }
-
     private List<Point3D> getFaceNormalVertices(List<Point3D> vertices, int width, int depth) {
         List<Point3D> faceVertices = new ArrayList<>();
 
@@ -0,0 +1,100 @@
+package unsw.graphics.world;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A height field read straight out of a (usually memory-mapped) buffer in the
+ * binary level format. Nothing is copied, so pages of the heightmap are only
+ * read from disk once they are touched.
+ *
+ * Heights are either stored as raw float32 values, or quantised to uint16
+ * where altitude = offset + sample * scale.
+ */
+public class MappedHeightField implements HeightField {
+
+    public static final int FLOAT32 = 0;
+    public static final int UINT16  = 1;
+
+    private final int width;
+    private final int depth;
+    private final int format;
+    private final float scale;
+    private final float offset;
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Create a height field over the given buffer. The buffer's position
+     * must be at the first sample.
+     *
+     * @param buffer
+     * @param width
+     * @param depth
+     * @param format FLOAT32 or UINT16
+     * @param scale  only used for UINT16
+     * @param offset only used for UINT16
+     */
+    public MappedHeightField(ByteBuffer buffer, int width, int depth,
+                             int format, float scale, float offset) {
+        if (format != FLOAT32 && format != UINT16)
+            throw new IllegalArgumentException("Unknown height format " + format);
+
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.width  = width;
+        this.depth  = depth;
+        this.format = format;
+        this.scale  = scale;
+        this.offset = offset;
+
+        if (this.buffer.capacity() < width * depth * bytesPerSample(format))
+            throw new IllegalArgumentException("Heightmap is truncated");
+    }
+
+    /**
+     * Number of bytes each sample takes for the given format
+     * @param format
+     * @return
+     */
+    public static int bytesPerSample(int format) {
+        return format == UINT16 ? 2 : 4;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getDepth() {
+        return depth;
+    }
+
+    @Override
+    public float get(int x, int z) {
+        int i = z * width + x;
+        if (format == FLOAT32) return buffer.getFloat(i * 4);
+        return offset + (buffer.getShort(i * 2) & 0xFFFF) * scale;
+    }
+
+    /**
+     * Changes a sample in the buffer. For UINT16 height fields the altitude is
+     * clamped to the range the quantisation can represent, which
+     * {@link LevelIO#save} leaves headroom in for editing.
+     */
+    @Override
+    public void set(int x, int z, float altitude) {
+        int i = z * width + x;
+        if (format == FLOAT32) {
+            buffer.putFloat(i * 4, altitude);
+            return;
+        }
+        float q = scale == 0 ? 0 : (altitude - offset) / scale;
+        int sample = Math.round(Utility.clamp(q, 0, 0xFFFF));
+        buffer.putShort(i * 2, (short) sample);
+    }
+}
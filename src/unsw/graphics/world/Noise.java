@@ -0,0 +1,131 @@
+package unsw.graphics.world;
+
+import java.util.Random;
+
+/**
+ * Seeded 2D gradient noise, along with fractal sums of it.
+ *
+ * Ref: https://mrl.cs.nyu.edu/~perlin/noise/
+ */
+public class Noise {
+
+    // Gradients to the edges and corners of a square
+    private static final float[] GRAD_X = { 1, -1,  1, -1, 1, -1, 0,  0 };
+    private static final float[] GRAD_Z = { 1,  1, -1, -1, 0,  0, 1, -1 };
+
+    private final int[] perm = new int[512];
+
+    /**
+     * Create a noise function. The same seed always gives the same noise.
+     *
+     * @param seed
+     */
+    public Noise(long seed) {
+        Random random = new Random(seed);
+        int[] p = new int[256];
+        for (int i = 0; i < 256; i++) p[i] = i;
+
+        // Shuffle the permutation table
+        for (int i = 255; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = p[i];
+            p[i] = p[j];
+            p[j] = tmp;
+        }
+
+        for (int i = 0; i < 512; i++) perm[i] = p[i & 255];
+    }
+
+    /**
+     * Gradient noise at a point, roughly in the range [-1, 1]. Integer points
+     * are always 0.
+     *
+     * @param x
+     * @param z
+     * @return
+     */
+    public float noise(float x, float z) {
+        int fx = (int) Math.floor(x);
+        int fz = (int) Math.floor(z);
+        int xi = fx & 255;
+        int zi = fz & 255;
+        x -= fx;
+        z -= fz;
+
+        float u = fade(x);
+        float v = fade(z);
+
+        int aa = perm[perm[xi] + zi];
+        int ab = perm[perm[xi] + zi + 1];
+        int ba = perm[perm[xi + 1] + zi];
+        int bb = perm[perm[xi + 1] + zi + 1];
+
+        float top    = lerp(u, grad(aa, x, z),     grad(ba, x - 1, z));
+        float bottom = lerp(u, grad(ab, x, z - 1), grad(bb, x - 1, z - 1));
+        return lerp(v, top, bottom);
+    }
+
+    /**
+     * Fractal Brownian motion: octaves of noise with increasing frequency and
+     * decreasing amplitude. Normalised to roughly [-1, 1].
+     *
+     * @param x
+     * @param z
+     * @param octaves
+     * @param lacunarity frequency multiplier between octaves
+     * @param gain amplitude multiplier between octaves
+     * @return
+     */
+    public float fbm(float x, float z, int octaves, float lacunarity, float gain) {
+        float sum = 0, amplitude = 1, total = 0;
+        for (int i = 0; i < octaves; i++) {
+            sum += amplitude * noise(x, z);
+            total += amplitude;
+            x *= lacunarity;
+            z *= lacunarity;
+            amplitude *= gain;
+        }
+        return sum / total;
+    }
+
+    /**
+     * Ridged multifractal noise: octaves of inverted absolute noise, each
+     * weighted by the previous octave so detail gathers along the ridges.
+     * Normalised to roughly [-1, 1].
+     *
+     * @param x
+     * @param z
+     * @param octaves
+     * @param lacunarity frequency multiplier between octaves
+     * @param gain amplitude multiplier between octaves
+     * @return
+     */
+    public float ridged(float x, float z, int octaves, float lacunarity, float gain) {
+        float sum = 0, amplitude = 1, total = 0, weight = 1;
+        for (int i = 0; i < octaves; i++) {
+            float signal = 1 - Math.abs(noise(x, z));
+            signal *= signal * weight;
+            weight = Utility.clamp(signal * 2, 0, 1);
+
+            sum += amplitude * signal;
+            total += amplitude;
+            x *= lacunarity;
+            z *= lacunarity;
+            amplitude *= gain;
+        }
+        return 2 * sum / total - 1;
+    }
+
+    private float grad(int hash, float x, float z) {
+        int h = hash & 7;
+        return GRAD_X[h] * x + GRAD_Z[h] * z;
+    }
+
+    private static float fade(float t) {
+        return t * t * t * (t * (t * 6 - 15) + 10);
+    }
+
+    private static float lerp(float t, float a, float b) {
+        return a + t * (b - a);
+    }
+}
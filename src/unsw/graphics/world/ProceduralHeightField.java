@@ -0,0 +1,160 @@
+package unsw.graphics.world;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+/**
+ * A height field generated from seeded noise.
+ *
+ * The grid is split into square chunks which are only evaluated the first
+ * time one of their samples is read. Chunks are independent of each other
+ * and of the order they are evaluated in, so they can be filled from any
+ * number of threads and always give the same heights for the same seed.
+ *
+ * Building a {@link Terrain} over the field reads every sample for the
+ * mesh, and scattering trees reads more, so a terrain evaluates every chunk
+ * up front and the laziness saves nothing there. Use
+ * {@link #evaluateAll(ForkJoinPool)} first to do that in parallel. Only
+ * code that samples the field without a terrain, such as the raycast
+ * benchmark, evaluates just the chunks it reads.
+ */
+public class ProceduralHeightField implements HeightField {
+
+    public static final int CHUNK_SIZE = 64;
+
+    private static final float LACUNARITY = 2f;
+    private static final float GAIN = 0.5f;
+
+    private final int width;
+    private final int depth;
+
+    private final Noise noise;
+    private final int octaves;
+    private final float frequency;
+    private final float amplitude;
+    private final boolean ridged;
+
+    private final int chunksX;
+    private final int chunksZ;
+    private final AtomicReferenceArray<float[]> chunks;
+
+    /**
+     * Create rolling fBm hills with the default settings.
+     *
+     * @param width
+     * @param depth
+     * @param seed
+     */
+    public ProceduralHeightField(int width, int depth, long seed) {
+        this(width, depth, seed, 6, 0.01f, 8, false);
+    }
+
+    /**
+     * Create a procedural height field.
+     *
+     * @param width
+     * @param depth
+     * @param seed
+     * @param octaves   number of noise octaves to sum
+     * @param frequency frequency of the first octave, in cycles per grid cell
+     * @param amplitude maximum altitude above or below 0
+     * @param ridged    use ridged noise for mountain ranges instead of fBm
+     */
+    public ProceduralHeightField(int width, int depth, long seed, int octaves,
+                                 float frequency, float amplitude, boolean ridged) {
+        this.width = width;
+        this.depth = depth;
+        this.noise = new Noise(seed);
+        this.octaves = octaves;
+        this.frequency = frequency;
+        this.amplitude = amplitude;
+        this.ridged = ridged;
+
+        this.chunksX = (width + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        this.chunksZ = (depth + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        this.chunks = new AtomicReferenceArray<>(chunksX * chunksZ);
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getDepth() {
+        return depth;
+    }
+
+    @Override
+    public float get(int x, int z) {
+        float[] chunk = chunk(x / CHUNK_SIZE, z / CHUNK_SIZE);
+        return chunk[(z % CHUNK_SIZE) * CHUNK_SIZE + x % CHUNK_SIZE];
+    }
+
+    @Override
+    public void set(int x, int z, float altitude) {
+        float[] chunk = chunk(x / CHUNK_SIZE, z / CHUNK_SIZE);
+        chunk[(z % CHUNK_SIZE) * CHUNK_SIZE + x % CHUNK_SIZE] = altitude;
+    }
+
+    /**
+     * Evaluate the noise at an arbitrary point, ignoring any edits.
+     *
+     * @param x
+     * @param z
+     * @return
+     */
+    public float sample(float x, float z) {
+        float n = ridged
+                ? noise.ridged(x * frequency, z * frequency, octaves, LACUNARITY, GAIN)
+                : noise.fbm(x * frequency, z * frequency, octaves, LACUNARITY, GAIN);
+        return n * amplitude;
+    }
+
+    /**
+     * Number of chunks evaluated so far.
+     * @return
+     */
+    public int getEvaluatedChunks() {
+        int count = 0;
+        for (int i = 0; i < chunks.length(); i++)
+            if (chunks.get(i) != null) count++;
+        return count;
+    }
+
+    /**
+     * Evaluate every chunk on the given pool.
+     *
+     * @param pool
+     */
+    public void evaluateAll(ForkJoinPool pool) {
+        pool.submit(() -> IntStream.range(0, chunksX * chunksZ).parallel()
+                .forEach(i -> chunk(i % chunksX, i / chunksX))).join();
+    }
+
+    private float[] chunk(int cx, int cz) {
+        int i = cz * chunksX + cx;
+        float[] chunk = chunks.get(i);
+        if (chunk != null) return chunk;
+
+        // Two threads may race to evaluate the same chunk, they get the same
+        // values so whichever lands first is kept
+        chunk = evaluate(cx, cz);
+        if (chunks.compareAndSet(i, null, chunk)) return chunk;
+        return chunks.get(i);
+    }
+
+    private float[] evaluate(int cx, int cz) {
+        float[] chunk = new float[CHUNK_SIZE * CHUNK_SIZE];
+        int x0 = cx * CHUNK_SIZE;
+        int z0 = cz * CHUNK_SIZE;
+        int x1 = Math.min(x0 + CHUNK_SIZE, width);
+        int z1 = Math.min(z0 + CHUNK_SIZE, depth);
+
+        for (int z = z0; z < z1; z++)
+            for (int x = x0; x < x1; x++)
+                chunk[(z - z0) * CHUNK_SIZE + (x - x0)] = sample(x, z);
+        return chunk;
+    }
+}
@@ -1,18 +1,11 @@
 package unsw.graphics.world;
 
-import com.jogamp.opengl.GL;
-import com.jogamp.opengl.GL3;
-import unsw.graphics.CoordFrame3D;
-import unsw.graphics.Shader;
-import unsw.graphics.Texture;
-import unsw.graphics.Vector3;
-import unsw.graphics.geometry.Point2D;
 import unsw.graphics.geometry.Point3D;
-import unsw.graphics.geometry.TriangleMesh;
 
-import java.awt.*;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * A road on the terrain.
@@ -21,19 +14,15 @@ import java.util.List;
  */
 public class Road {
 
-    private static final int SEGMENTS = 16;
-
-    private static final String TEXTURE_FILE = "res/textures/soil.bmp";
-    private static final String TEXTURE_EXT = "bmp";
-
-    private TriangleMesh mesh;
-    private Texture texture;
-
     private Terrain terrain;
 
     private List<Point3D> points;
     private float width;
 
+    // Built when first needed, dropped when the terrain under the road changes
+    private RoadGeometry geometry;
+    private Future<RoadGeometry> pending;
+
     /**
      * Create a new road with the specified spine
      *
@@ -47,181 +36,90 @@ public class Road {
         this.terrain = terrain;
     }
 
-    public void init(GL3 gl) {
-        mesh = createMesh();
-        mesh.init(gl);
-        texture = new Texture(gl, TEXTURE_FILE, TEXTURE_EXT, true);
-    }
-
-    public void draw(GL3 gl, CoordFrame3D frame) {
-        Shader.setInt(gl, "tex", 0);
-        gl.glActiveTexture(GL.GL_TEXTURE0);
-        gl.glBindTexture(GL.GL_TEXTURE_2D, texture.getId());
-
-        // Set wrap mode for texture in S and T directions
-        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_MIRRORED_REPEAT);
-        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_MIRRORED_REPEAT);
-
-        Shader.setBoolean(gl, "useTexture", true);
-
-        // Set the material properties
-        Shader.setColor(gl, "ambientCoeff", new Color(0.4f, 0.4f, 0.4f));
-        Shader.setColor(gl, "diffuseCoeff", new Color(0.6f, 0.6f, 0.6f));
-        Shader.setColor(gl, "specularCoeff", new Color(0.0f, 0.0f, 0.0f));
-        Shader.setFloat(gl, "phongExp", 1f);
-
-        // enable polygon offset for filled polygons
-        gl.glEnable(GL3.GL_POLYGON_OFFSET_FILL);
-        // push this polygon to the front a little
-        gl.glPolygonOffset(-1, -1);
-
-        Shader.setPenColor(gl, Color.WHITE);
-        mesh.draw(gl, frame);
-
-        // If you do not turn this off again it will not work!
-        gl.glDisable(GL3.GL_POLYGON_OFFSET_FILL);
+    /**
+     * Gets the width of the road
+     * @return
+     */
+    public float getWidth() {
+        return width;
     }
 
-    public void destroy(GL3 gl) {
-        texture.destroy(gl);
-        mesh.destroy(gl);
+    /**
+     * Gets the Bezier control points of the road's spine
+     * @return
+     */
+    public List<Point3D> getSpine() {
+        return points;
     }
 
-    private TriangleMesh createMesh() {
-
-        List<Point3D> vertices  = new ArrayList<>();
-        List<Vector3> normals   = new ArrayList<>();
-        List<Point2D> texCoords = new ArrayList<>();
-
-        float t = 0;
-        float x = width / 2;
-        float interval = 1.0f / SEGMENTS;
-        Vector3 previous = new Vector3(0, 0, 1);
-
-        // Get the altitude of the start of the road
-        float y = terrain.getAltitude(point(0).getX(), point(0).getZ());
-
-        while (t <= points.size() / 3) {
-            Point3D phi = point(t);
-            Vector3 tangent = tangent(t);
-            if (tangent.isZeroVector()) tangent = previous;
-
-            // Construct the Frenet frame, ensure that tangent is always valid
-            CoordFrame3D frame = CoordFrame3D.frenet(phi, tangent);
-
-            // Extrude the points of the road's cross section using the Frenet frame
-            Point3D left = frame.transform(new Point3D(-x, y, 0));
-            Point3D right = frame.transform(new Point3D(x, y, 0));
-
-            // Store the extruded points
-            vertices.add(left);
-            vertices.add(right);
-
-            // Store the respective texture coordinates
-            texCoords.add(new Point2D(left.getX(), left.getZ()));
-            texCoords.add(new Point2D(right.getX(), right.getZ()));
-
-            // Normal of the road should just be pointing up
-            normals.add(new Vector3(0, 1, 0));
-            normals.add(new Vector3(0, 1, 0));
-
-            previous = tangent;
-            t += interval;
+    /**
+     * Check whether the road may pass within the radius of a point. This is
+     * conservative, the curve always lies inside its control points' bounds.
+     *
+     * @param x
+     * @param z
+     * @param radius
+     * @return
+     */
+    public boolean overlaps(float x, float z, float radius) {
+        float minX = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY;
+        float minZ = Float.POSITIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+        for (Point3D p : points) {
+            minX = Math.min(minX, p.getX());
+            maxX = Math.max(maxX, p.getX());
+            minZ = Math.min(minZ, p.getZ());
+            maxZ = Math.max(maxZ, p.getZ());
         }
-
-        return new TriangleMesh(vertices, normals, indices(), texCoords);
+        float reach = radius + width / 2;
+        return x + reach >= minX && x - reach <= maxX
+                && z + reach >= minZ && z - reach <= maxZ;
     }
 
-    private List<Integer> indices() {
-        List<Integer> indices = new ArrayList<>();
-
-        int quads = points.size() / 3 * (SEGMENTS - 1);
-        for (int i = 0; i <= quads; i++) {
-            int index = i * 2;
-
-            indices.add(index);
-            indices.add(index + 1);
-            indices.add(index + 2);
-
-            indices.add(index + 3);
-            indices.add(index + 2);
-            indices.add(index + 1);
-        }
-
-        return indices;
+    /**
+     * Drop the road's tessellation so it is rebuilt to follow the terrain
+     * again the next time it is needed.
+     */
+    public void invalidate() {
+        geometry = null;
+        pending = null;
     }
 
     /**
-     * Get a point on the spine. The parameter t may vary from 0 to size().
-     * Points on the kth segment take have parameters in the range (k, k+1).
+     * Start tessellating the road on the given executor, so it is ready by
+     * the time it is first needed.
      *
-     * @param t
-     * @return
+     * @param executor
      */
-    private Point3D point(float t) {
-        int i = (int) t;
-
-        // Check if t is the ending point of the spine as
-        // i can't be bigger that the spine size
-        if (i >= points.size() / 3) {
-            t = 1;
-            i--;
-        } else {
-            t = t - i;
-        }
-        i *= 3;
-
-        Point3D p0 = points.get(i++);
-        Point3D p1 = points.get(i++);
-        Point3D p2 = points.get(i++);
-        Point3D p3 = points.get(i);
-
-        float x = (1 - t) * (1 - t) * (1 - t) * p0.getX()
-                + 3 * (1 - t) * (1 - t) * t * p1.getX()
-                + 3 * (1 - t) * t * t * p2.getX()
-                + t * t * t * p3.getX();
-
-        float z = (1 - t) * (1 - t) * (1 - t) * p0.getZ()
-                + 3 * (1 - t) * (1 - t) * t * p1.getZ()
-                + 3 * (1 - t) * t * t * p2.getZ()
-                + t * t * t * p3.getZ();
-
-        return new Point3D(x, 0, z);
+    public void prepare(ExecutorService executor) {
+        if (geometry == null && pending == null)
+            pending = executor.submit(() -> RoadGeometry.tessellate(points, width, terrain));
     }
 
     /**
-     * Gets tangent of a point on the spine.
-     *
-     * @param t
+     * Gets the road's tessellation, waiting for it if it is being built on
+     * another thread, or building it here if not.
      * @return
      */
-    private Vector3 tangent(float t) {
-        int i = (int) t;
-        if (i != points.size() / 3) {
-            t = t - i;
-        } else {
-            t = 1;
-            i--;
+    public RoadGeometry getGeometry() {
+        if (geometry != null) return geometry;
+
+        if (pending != null) {
+            try {
+                geometry = pending.get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+            pending = null;
         }
-        i *= 3;
-
-        Point3D p0 = points.get(i++);
-        Point3D p1 = points.get(i++);
-        Point3D p2 = points.get(i++);
-        Point3D p3 = points.get(i);
-
-        Vector3 v0 = p1.minus(p0);
-        Vector3 v1 = p2.minus(p1);
-        Vector3 v2 = p3.minus(p2);
-
-        float x = (1 - t) * (1 - t) * v0.getX()
-                + 2 * (1 - t) * t * v1.getX()
-                + t * t * v2.getX();
-
-        float z = (1 - t) * (1 - t) * v0.getZ()
-                + 2 * (1 - t) * t * v1.getZ()
-                + t * t * v2.getZ();
+        if (geometry == null) geometry = RoadGeometry.tessellate(points, width, terrain);
+        return geometry;
+    }
 
-        return new Vector3(3 * x, 0, 3 * z);
+    /**
+     * Number of triangles in the road's tessellation
+     * @return
+     */
+    public int getTriangleCount() {
+        return getGeometry().getTriangleCount();
     }
 }
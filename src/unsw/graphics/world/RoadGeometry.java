@@ -0,0 +1,495 @@
+package unsw.graphics.world;
+
+import unsw.graphics.geometry.Point3D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The vertex data for a road, tessellated adaptively from its Bezier spine
+ * into primitive arrays.
+ *
+ * Each segment of the spine is split in half until the road's edges at the
+ * middle of a piece lie within a tolerance of the straight line between its
+ * ends, so straight roads need only a few quads and tight bends get as many
+ * as they need.
+ *
+ * The resulting strip is then cut along the terrain's grid lines and cell
+ * diagonals, and every piece is laid on the plane of the terrain triangle
+ * under it, so the road follows the ground exactly instead of cutting
+ * through hills and floating over hollows. It is drawn with a polygon
+ * offset to win the depth test against those triangles.
+ *
+ * Texture coordinates run from 0 to 1 across the road and along it by arc
+ * length in road widths, so the texture is evenly spaced however the samples
+ * fall.
+ */
+public class RoadGeometry {
+
+    // Maximum distance in world units between the road and its tessellation
+    public static final float DEFAULT_TOLERANCE = 0.02f;
+
+    // Every segment is split at least this many times so an S bend whose
+    // middle sits on its chord is not taken for a straight line
+    private static final int MIN_DEPTH = 2;
+    private static final int MAX_DEPTH = 10;
+
+    // Floats per sample: centre x, y, z, then left and right x, z
+    private static final int STRIDE = 7;
+
+    // Floats per polygon vertex while clipping: x, z, s, t
+    private static final int VERTEX = 4;
+
+    // Lines the terrain's triangles are bounded by: x = k, z = k and the
+    // diagonals x + z = k
+    private static final int LINE_X = 0, LINE_Z = 1, LINE_DIAGONAL = 2;
+
+    private final float[] control;
+    private final int segments;
+    private final float halfWidth;
+    private final Terrain terrain;
+    private final float tolerance;
+
+    // Samples along the spine, STRIDE floats each
+    private float[] samples = new float[STRIDE * 64];
+    private int count = 0;
+
+    // Working space for evaluating the curve
+    private final float[] eval = new float[4];
+
+    private float[] positions;
+    private float[] normals;
+    private float[] texCoords;
+    private int[] indices;
+
+    private RoadGeometry(List<Point3D> spine, float width, Terrain terrain, float tolerance) {
+        this.segments = spine.size() / 3;
+        this.control = new float[spine.size() * 2];
+        for (int i = 0; i < spine.size(); i++) {
+            control[i * 2] = spine.get(i).getX();
+            control[i * 2 + 1] = spine.get(i).getZ();
+        }
+        this.halfWidth = width / 2;
+        this.terrain = terrain;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Tessellate a road with the default tolerance.
+     *
+     * @param spine   the Bezier control points, 3n + 1 of them
+     * @param width
+     * @param terrain the terrain the road follows
+     * @return
+     */
+    public static RoadGeometry tessellate(List<Point3D> spine, float width, Terrain terrain) {
+        return tessellate(spine, width, terrain, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * Tessellate a road.
+     *
+     * @param spine     the Bezier control points, 3n + 1 of them
+     * @param width
+     * @param terrain   the terrain the road follows
+     * @param tolerance maximum distance between the road and its tessellation
+     * @return
+     */
+    public static RoadGeometry tessellate(List<Point3D> spine, float width, Terrain terrain,
+                                          float tolerance) {
+        RoadGeometry geometry = new RoadGeometry(spine, width, terrain, tolerance);
+        geometry.sampleSpine();
+        geometry.fill();
+        return geometry;
+    }
+
+    /**
+     * x, y, z per vertex
+     * @return
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * Normalised x, y, z per vertex
+     * @return
+     */
+    public float[] getNormals() {
+        return normals;
+    }
+
+    /**
+     * s across the road, t along it in road widths
+     * @return
+     */
+    public float[] getTexCoords() {
+        return texCoords;
+    }
+
+    /**
+     * A fan of triangles per clipped piece
+     * @return
+     */
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public int getTriangleCount() {
+        return indices.length / 3;
+    }
+
+    private void sampleSpine() {
+        if (segments == 0) return;
+
+        float[] start = new float[STRIDE];
+        float[] end = new float[STRIDE];
+        sample(0, 0, start);
+        add(start);
+        for (int k = 0; k < segments; k++) {
+            sample(k, 1, end);
+            subdivide(k, 0, 1, start, end, 0);
+            add(end);
+
+            float[] tmp = start;
+            start = end;
+            end = tmp;
+        }
+    }
+
+    /**
+     * Add the samples strictly between t0 and t1 on segment k.
+     */
+    private void subdivide(int k, float t0, float t1, float[] a, float[] b, int depth) {
+        if (depth >= MAX_DEPTH) return;
+
+        float tm = (t0 + t1) / 2;
+        float[] m = new float[STRIDE];
+        sample(k, tm, m);
+
+        if (depth >= MIN_DEPTH && flat(a, m, b)) return;
+
+        subdivide(k, t0, tm, a, m, depth + 1);
+        add(m);
+        subdivide(k, tm, t1, m, b, depth + 1);
+    }
+
+    /**
+     * Whether both edges of m lie close enough to halfway between a and b.
+     * Height is left out, clipping against the terrain takes care of it.
+     */
+    private boolean flat(float[] a, float[] m, float[] b) {
+        float limit = tolerance * tolerance;
+        for (int p = 3; p < STRIDE; p += 2) {
+            float dx = m[p] - (a[p] + b[p]) / 2;
+            float dz = m[p + 1] - (a[p + 1] + b[p + 1]) / 2;
+            if (dx * dx + dz * dz > limit) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Evaluate the centre and edges of the road at t on segment k.
+     */
+    private void sample(int k, float t, float[] out) {
+        evaluate(k, t);
+        float x = eval[0], z = eval[1];
+        float tx = eval[2], tz = eval[3];
+
+        // Fall back to the chord where the tangent vanishes at a doubled
+        // control point
+        float length = (float) Math.sqrt(tx * tx + tz * tz);
+        if (length < 1e-6f) {
+            int i = k * 6;
+            tx = control[i + 6] - control[i];
+            tz = control[i + 7] - control[i + 1];
+            length = Math.max((float) Math.sqrt(tx * tx + tz * tz), 1e-6f);
+        }
+
+        // The left of the road is to the left looking along the tangent
+        float sx = tz / length * halfWidth, sz = -tx / length * halfWidth;
+
+        out[0] = x;
+        out[1] = terrain.getAltitude(x, z);
+        out[2] = z;
+        out[3] = x + sx;
+        out[4] = z + sz;
+        out[5] = x - sx;
+        out[6] = z - sz;
+    }
+
+    /**
+     * Evaluate the point and tangent at t on segment k together into eval,
+     * sharing the Bernstein terms.
+     */
+    private void evaluate(int k, float t) {
+        int i = k * 6;
+        float x0 = control[i],     z0 = control[i + 1];
+        float x1 = control[i + 2], z1 = control[i + 3];
+        float x2 = control[i + 4], z2 = control[i + 5];
+        float x3 = control[i + 6], z3 = control[i + 7];
+
+        float s = 1 - t;
+        float ss = s * s, tt = t * t;
+        float b0 = ss * s, b1 = 3 * ss * t, b2 = 3 * s * tt, b3 = tt * t;
+        eval[0] = b0 * x0 + b1 * x1 + b2 * x2 + b3 * x3;
+        eval[1] = b0 * z0 + b1 * z1 + b2 * z2 + b3 * z3;
+
+        float d0 = 3 * ss, d1 = 6 * s * t, d2 = 3 * tt;
+        eval[2] = d0 * (x1 - x0) + d1 * (x2 - x1) + d2 * (x3 - x2);
+        eval[3] = d0 * (z1 - z0) + d1 * (z2 - z1) + d2 * (z3 - z2);
+    }
+
+    private void add(float[] sample) {
+        if ((count + 1) * STRIDE > samples.length)
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        System.arraycopy(sample, 0, samples, count * STRIDE, STRIDE);
+        count++;
+    }
+
+    private void fill() {
+        Builder builder = new Builder(count * 12);
+        float[] left0 = new float[4], right0 = new float[4];
+        float[] left1 = new float[4], right1 = new float[4];
+
+        float distance = 0;
+        edge(0, 0, 0, left0);
+        edge(0, 1, 0, right0);
+        for (int s = 1; s < count; s++) {
+            int p = s * STRIDE;
+            float dx = samples[p] - samples[p - STRIDE];
+            float dy = samples[p + 1] - samples[p - STRIDE + 1];
+            float dz = samples[p + 2] - samples[p - STRIDE + 2];
+            distance += (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            float v = distance / (2 * halfWidth);
+
+            edge(s, 0, v, left1);
+            edge(s, 1, v, right1);
+
+            // The quad's two triangles, wound as before clipping
+            builder.clip(triangle(left0, right0, left1));
+            builder.clip(triangle(right1, left1, right0));
+
+            float[] tmp = left0;
+            left0 = left1;
+            left1 = tmp;
+            tmp = right0;
+            right0 = right1;
+            right1 = tmp;
+        }
+
+        positions = builder.positions();
+        normals   = builder.normals();
+        texCoords = builder.texCoords();
+        indices   = builder.indices();
+    }
+
+    /**
+     * x, z, s, t of the left (e = 0) or right (e = 1) edge of a sample
+     */
+    private void edge(int sample, int e, float v, float[] out) {
+        int p = sample * STRIDE + 3 + e * 2;
+        out[0] = samples[p];
+        out[1] = samples[p + 1];
+        out[2] = e;
+        out[3] = v;
+    }
+
+    private static float[] triangle(float[] a, float[] b, float[] c) {
+        float[] polygon = new float[VERTEX * 3];
+        System.arraycopy(a, 0, polygon, 0, VERTEX);
+        System.arraycopy(b, 0, polygon, VERTEX, VERTEX);
+        System.arraycopy(c, 0, polygon, VERTEX * 2, VERTEX);
+        return polygon;
+    }
+
+    /**
+     * Cuts road triangles along the terrain's grid lines and diagonals, so
+     * every piece lies inside one terrain triangle, then lays the pieces on
+     * that triangle's plane.
+     */
+    private class Builder {
+        private final HeightField heights = terrain.getHeightField();
+        private final int width = heights.getWidth(), depth = heights.getDepth();
+
+        private float[] positions, normals, texCoords;
+        private int[] indices;
+        private int vertices = 0, indexCount = 0;
+
+        private final float[] corner = new float[9];
+
+        Builder(int capacity) {
+            positions = new float[capacity * 3];
+            normals   = new float[capacity * 3];
+            texCoords = new float[capacity * 2];
+            indices   = new int[capacity * 3];
+        }
+
+        void clip(float[] triangle) {
+            List<float[]> pieces = new ArrayList<>();
+            pieces.add(triangle);
+            for (int line = LINE_X; line <= LINE_DIAGONAL; line++) {
+                List<float[]> next = new ArrayList<>();
+                for (float[] piece : pieces) split(piece, line, next);
+                pieces = next;
+            }
+            for (float[] piece : pieces) emit(piece);
+        }
+
+        /**
+         * Cut a polygon at every integer line of the given kind crossing it.
+         */
+        private void split(float[] polygon, int line, List<float[]> out) {
+            float lo = Float.POSITIVE_INFINITY, hi = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < polygon.length; i += VERTEX) {
+                float f = value(polygon, i, line);
+                lo = Math.min(lo, f);
+                hi = Math.max(hi, f);
+            }
+
+            float[] rest = polygon;
+            for (int k = (int) Math.floor(lo) + 1; k < hi; k++) {
+                float[] below = cut(rest, line, k, true);
+                rest = cut(rest, line, k, false);
+                if (below != null) out.add(below);
+                if (rest == null) return;
+            }
+            out.add(rest);
+        }
+
+        /**
+         * The part of a polygon below or above the line value = k, or null
+         * if it is empty or degenerate.
+         */
+        private float[] cut(float[] polygon, int line, float k, boolean below) {
+            int n = polygon.length / VERTEX;
+            float[] result = new float[(n + 2) * VERTEX];
+            int size = 0;
+            for (int i = 0; i < n; i++) {
+                int a = i * VERTEX, b = ((i + 1) % n) * VERTEX;
+                float da = value(polygon, a, line) - k;
+                float db = value(polygon, b, line) - k;
+                boolean inA = below ? da <= 0 : da >= 0;
+                boolean inB = below ? db <= 0 : db >= 0;
+
+                if (inA) {
+                    System.arraycopy(polygon, a, result, size, VERTEX);
+                    size += VERTEX;
+                }
+                if (inA != inB && da != 0 && db != 0) {
+                    float t = da / (da - db);
+                    for (int j = 0; j < VERTEX; j++)
+                        result[size + j] = polygon[a + j] + (polygon[b + j] - polygon[a + j]) * t;
+                    size += VERTEX;
+                }
+            }
+            if (size < VERTEX * 3 || area(result, size) < 1e-7f) return null;
+            return Arrays.copyOf(result, size);
+        }
+
+        private float value(float[] polygon, int i, int line) {
+            switch (line) {
+                case LINE_X: return polygon[i];
+                case LINE_Z: return polygon[i + 1];
+                default:     return polygon[i] + polygon[i + 1];
+            }
+        }
+
+        private float area(float[] polygon, int size) {
+            float sum = 0;
+            for (int i = 0; i < size; i += VERTEX) {
+                int j = (i + VERTEX) % size;
+                sum += polygon[i] * polygon[j + 1] - polygon[j] * polygon[i + 1];
+            }
+            return Math.abs(sum) / 2;
+        }
+
+        /**
+         * Lay a piece on the plane of the terrain triangle holding it and
+         * add it as a fan.
+         */
+        private void emit(float[] polygon) {
+            int n = polygon.length / VERTEX;
+            float cx = 0, cz = 0;
+            for (int i = 0; i < n; i++) {
+                cx += polygon[i * VERTEX];
+                cz += polygon[i * VERTEX + 1];
+            }
+            cx /= n;
+            cz /= n;
+
+            int l = Math.min(Math.max((int) Math.floor(cx), 0), Math.max(width - 2, 0));
+            int t = Math.min(Math.max((int) Math.floor(cz), 0), Math.max(depth - 2, 0));
+            int r = Math.min(l + 1, width - 1), b = Math.min(t + 1, depth - 1);
+            boolean topLeft = (cx - l) + (cz - t) <= 1;
+
+            // The triangle's corners, the one opposite the diagonal first
+            int ox = topLeft ? l : r, oz = topLeft ? t : b;
+            float ho = heights.get(ox, oz), hb = heights.get(l, b), hr = heights.get(r, t);
+            TerrainGeometry.normal(heights, ox, oz, corner, 0);
+            TerrainGeometry.normal(heights, l, b, corner, 3);
+            TerrainGeometry.normal(heights, r, t, corner, 6);
+
+            grow(n, (n - 2) * 3);
+            int first = vertices;
+            for (int i = 0; i < n; i++) {
+                float x = polygon[i * VERTEX], z = polygon[i * VERTEX + 1];
+
+                // Weights of the (l, b) and (r, t) corners
+                float wb = topLeft ? z - t : r - x;
+                float wr = topLeft ? x - l : b - z;
+                float wo = 1 - wb - wr;
+
+                int v = vertices++;
+                positions[v * 3]     = x;
+                positions[v * 3 + 1] = wo * ho + wb * hb + wr * hr;
+                positions[v * 3 + 2] = z;
+
+                float nx = wo * corner[0] + wb * corner[3] + wr * corner[6];
+                float ny = wo * corner[1] + wb * corner[4] + wr * corner[7];
+                float nz = wo * corner[2] + wb * corner[5] + wr * corner[8];
+                float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                normals[v * 3]     = nx / length;
+                normals[v * 3 + 1] = ny / length;
+                normals[v * 3 + 2] = nz / length;
+
+                texCoords[v * 2]     = polygon[i * VERTEX + 2];
+                texCoords[v * 2 + 1] = polygon[i * VERTEX + 3];
+            }
+
+            for (int i = 1; i < n - 1; i++) {
+                indices[indexCount++] = first;
+                indices[indexCount++] = first + i;
+                indices[indexCount++] = first + i + 1;
+            }
+        }
+
+        private void grow(int moreVertices, int moreIndices) {
+            if ((vertices + moreVertices) * 3 > positions.length) {
+                int capacity = Math.max(vertices + moreVertices, positions.length / 3 * 2);
+                positions = Arrays.copyOf(positions, capacity * 3);
+                normals   = Arrays.copyOf(normals, capacity * 3);
+                texCoords = Arrays.copyOf(texCoords, capacity * 2);
+            }
+            if (indexCount + moreIndices > indices.length)
+                indices = Arrays.copyOf(indices, Math.max(indexCount + moreIndices, indices.length * 2));
+        }
+
+        float[] positions() {
+            return Arrays.copyOf(positions, vertices * 3);
+        }
+
+        float[] normals() {
+            return Arrays.copyOf(normals, vertices * 3);
+        }
+
+        float[] texCoords() {
+            return Arrays.copyOf(texCoords, vertices * 2);
+        }
+
+        int[] indices() {
+            return Arrays.copyOf(indices, indexCount);
+        }
+    }
+}
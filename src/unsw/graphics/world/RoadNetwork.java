@@ -0,0 +1,313 @@
+package unsw.graphics.world;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+import unsw.graphics.CoordFrame3D;
+import unsw.graphics.Shader;
+import unsw.graphics.TextureArray;
+import unsw.graphics.world.render.GLState;
+import unsw.graphics.world.render.Material;
+import unsw.graphics.world.render.RenderQueue;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * All the roads on a terrain, merged into one mesh so they are drawn with a
+ * single call and their texture and material are set once.
+ *
+ * Each road owns a contiguous range of the vertex and index buffers. Roads
+ * added after init are appended to the end of the buffers, and roads whose
+ * terrain changed are re-tessellated in place when their vertex and index
+ * counts are unchanged, which is the usual case as the clipping only depends
+ * on where the road runs. Anything else rebuilds the whole network.
+ *
+ * Roads are tessellated on a worker thread as they are added, so the
+ * clipping against the terrain overlaps with the rest of loading and init
+ * only waits for whatever is left.
+ */
+public class RoadNetwork {
+
+    private static final String TEXTURE_FILE = "res/textures/soil.bmp";
+
+    private static final Material MATERIAL = new Material(new Color(0.4f, 0.4f, 0.4f),
+            new Color(0.6f, 0.6f, 0.6f), new Color(0.0f, 0.0f, 0.0f), 1f, Color.WHITE, true);
+
+    // Pulls the roads towards the camera by more on slopes, where the
+    // depths of the road and the terrain under it differ most, so they win
+    // the depth test at any distance
+    private static final float OFFSET_FACTOR = -1;
+    private static final float OFFSET_UNITS = -2;
+
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Road tessellation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<Road> roads = new ArrayList<>();
+    private final List<Range> ranges = new ArrayList<>();
+
+    // Roads added or invalidated since the buffers were last updated
+    private final List<Road> added = new ArrayList<>();
+    private final Set<Road> invalid = new LinkedHashSet<>();
+
+    // Merged vertex data, the arrays may be longer than what is used
+    private float[] positions = new float[0];
+    private float[] normals = new float[0];
+    private float[] texCoords = new float[0];
+    private int[] indices = new int[0];
+    private int vertexCount = 0;
+    private int indexCount = 0;
+
+    private Material material = MATERIAL;
+    private int positionsName;
+    private int normalsName;
+    private int texCoordsName;
+    private int indicesName;
+
+    // Size of the buffers in graphics memory, in vertices and indices
+    private int vertexCapacity = 0;
+    private int indexCapacity = 0;
+
+    private boolean initialised = false;
+
+    /**
+     * The range of the merged buffers holding one road
+     */
+    private static class Range {
+        int firstVertex, vertices;
+        int firstIndex, indices;
+    }
+
+    /**
+     * Gets the roads in the network.
+     * @return
+     */
+    public List<Road> getRoads() {
+        return roads;
+    }
+
+    /**
+     * Add a road. If the network has been initialised it is uploaded the
+     * next time the network is drawn.
+     *
+     * @param road
+     */
+    public void add(Road road) {
+        roads.add(road);
+        added.add(road);
+        road.prepare(WORKER);
+    }
+
+    /**
+     * Re-tessellate a road the next time the network is drawn, e.g. because
+     * the terrain under it changed.
+     *
+     * @param road
+     */
+    public void invalidate(Road road) {
+        road.invalidate();
+        if (!added.contains(road)) invalid.add(road);
+    }
+
+    /**
+     * Number of triangles drawn for all the roads
+     * @return
+     */
+    public int getTriangleCount() {
+        return indexCount / 3;
+    }
+
+    /**
+     * Add the roads' texture to the world's texture array.
+     *
+     * @param layers
+     */
+    public void addTextures(TextureArray.Builder layers) {
+        material = MATERIAL.inLayer(layers.add(TEXTURE_FILE));
+    }
+
+    public void init(GL3 gl) {
+        int[] names = new int[4];
+        gl.glGenBuffers(4, names, 0);
+        positionsName = names[0];
+        normalsName = names[1];
+        texCoordsName = names[2];
+        indicesName = names[3];
+
+        initialised = true;
+        update(gl);
+    }
+
+    /**
+     * Submit the roads to be drawn as one item, offset to lie in front of
+     * the terrain unless a pass has already set its own polygon offset,
+     * e.g. for shadow maps.
+     *
+     * @param queue
+     * @param shader the world's default shader
+     * @param frame
+     */
+    public void submit(RenderQueue queue, Shader shader, CoordFrame3D frame) {
+        GLState state = queue.getState();
+        queue.submit(RenderQueue.OPAQUE, shader, GL.GL_TEXTURE_2D, 0, null, material, 0, gl -> {
+            if (state.isEnabled(GL.GL_POLYGON_OFFSET_FILL)) {
+                draw(gl, frame);
+                return;
+            }
+            state.enable(gl, GL.GL_POLYGON_OFFSET_FILL);
+            state.polygonOffset(gl, OFFSET_FACTOR, OFFSET_UNITS);
+            draw(gl, frame);
+            state.disable(gl, GL.GL_POLYGON_OFFSET_FILL);
+        });
+    }
+
+    /**
+     * Draw the roads, with the texture and material already set.
+     *
+     * @param gl
+     * @param frame
+     */
+    public void draw(GL3 gl, CoordFrame3D frame) {
+        update(gl);
+        if (indexCount == 0) return;
+
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indicesName);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, positionsName);
+        gl.glVertexAttribPointer(Shader.POSITION, 3, GL.GL_FLOAT, false, 0, 0);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, normalsName);
+        gl.glVertexAttribPointer(Shader.NORMAL, 3, GL.GL_FLOAT, false, 0, 0);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, texCoordsName);
+        gl.glVertexAttribPointer(Shader.TEX_COORD, 2, GL.GL_FLOAT, false, 0, 0);
+        Shader.setModelMatrix(gl, frame.getMatrix());
+        gl.glDrawElements(GL3.GL_TRIANGLES, indexCount, GL.GL_UNSIGNED_INT, 0);
+    }
+
+    public void destroy(GL3 gl) {
+        gl.glDeleteBuffers(4, new int[] { positionsName, normalsName, texCoordsName, indicesName }, 0);
+        initialised = false;
+        vertexCapacity = indexCapacity = 0;
+    }
+
+    /**
+     * Bring the buffers up to date with the added and invalidated roads.
+     */
+    private void update(GL3 gl) {
+        if (!initialised) return;
+
+        // A road whose size changed shifts every road after it
+        for (Road road : invalid) {
+            Range range = ranges.get(roads.indexOf(road));
+            RoadGeometry geometry = road.getGeometry();
+            if (geometry.getPositions().length / 3 != range.vertices
+                    || geometry.getIndices().length != range.indices) {
+                rebuild();
+                break;
+            }
+        }
+
+        for (Road road : invalid) {
+            Range range = ranges.get(roads.indexOf(road));
+            copy(road.getGeometry(), range);
+            upload(gl, range.firstVertex, range.vertices, range.firstIndex, range.indices);
+        }
+        invalid.clear();
+
+        int firstVertex = vertexCount, firstIndex = indexCount;
+        for (Road road : added) append(road.getGeometry());
+        added.clear();
+        upload(gl, firstVertex, vertexCount - firstVertex, firstIndex, indexCount - firstIndex);
+    }
+
+    /**
+     * Lay out every road again from the start of the buffers.
+     */
+    private void rebuild() {
+        ranges.clear();
+        vertexCount = indexCount = 0;
+        added.clear();
+        added.addAll(roads);
+        invalid.clear();
+    }
+
+    private void append(RoadGeometry geometry) {
+        Range range = new Range();
+        range.firstVertex = vertexCount;
+        range.vertices = geometry.getPositions().length / 3;
+        range.firstIndex = indexCount;
+        range.indices = geometry.getIndices().length;
+        ranges.add(range);
+
+        vertexCount += range.vertices;
+        indexCount += range.indices;
+        if (vertexCount * 3 > positions.length) {
+            int capacity = Math.max(vertexCount, positions.length / 3 * 2);
+            positions = Arrays.copyOf(positions, capacity * 3);
+            normals = Arrays.copyOf(normals, capacity * 3);
+            texCoords = Arrays.copyOf(texCoords, capacity * 2);
+        }
+        if (indexCount > indices.length)
+            indices = Arrays.copyOf(indices, Math.max(indexCount, indices.length * 2));
+
+        copy(geometry, range);
+    }
+
+    private void copy(RoadGeometry geometry, Range range) {
+        System.arraycopy(geometry.getPositions(), 0, positions, range.firstVertex * 3, range.vertices * 3);
+        System.arraycopy(geometry.getNormals(), 0, normals, range.firstVertex * 3, range.vertices * 3);
+        System.arraycopy(geometry.getTexCoords(), 0, texCoords, range.firstVertex * 2, range.vertices * 2);
+
+        int[] source = geometry.getIndices();
+        for (int i = 0; i < range.indices; i++)
+            indices[range.firstIndex + i] = source[i] + range.firstVertex;
+    }
+
+    /**
+     * Copy the given vertex and index ranges to graphics memory, growing the
+     * buffers if they no longer fit.
+     */
+    private void upload(GL3 gl, int firstVertex, int vertices, int firstIndex, int count) {
+        if (vertexCount > vertexCapacity || indexCount > indexCapacity) {
+            vertexCapacity = positions.length / 3;
+            indexCapacity = indices.length;
+            allocate(gl, positionsName, GL.GL_ARRAY_BUFFER, positions);
+            allocate(gl, normalsName, GL.GL_ARRAY_BUFFER, normals);
+            allocate(gl, texCoordsName, GL.GL_ARRAY_BUFFER, texCoords);
+            gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indicesName);
+            gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, indices.length * (long) Integer.BYTES,
+                    Buffers.newDirectIntBuffer(indices), GL.GL_DYNAMIC_DRAW);
+            return;
+        }
+
+        if (vertices > 0) {
+            subData(gl, positionsName, positions, firstVertex * 3, vertices * 3);
+            subData(gl, normalsName, normals, firstVertex * 3, vertices * 3);
+            subData(gl, texCoordsName, texCoords, firstVertex * 2, vertices * 2);
+        }
+        if (count > 0) {
+            gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indicesName);
+            gl.glBufferSubData(GL.GL_ELEMENT_ARRAY_BUFFER, firstIndex * (long) Integer.BYTES,
+                    count * (long) Integer.BYTES, Buffers.newDirectIntBuffer(indices, firstIndex, count));
+        }
+    }
+
+    private static void allocate(GL3 gl, int name, int target, float[] data) {
+        gl.glBindBuffer(target, name);
+        gl.glBufferData(target, data.length * (long) Float.BYTES,
+                Buffers.newDirectFloatBuffer(data), GL.GL_DYNAMIC_DRAW);
+    }
+
+    private static void subData(GL3 gl, int name, float[] data, int first, int count) {
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, name);
+        gl.glBufferSubData(GL.GL_ARRAY_BUFFER, first * (long) Float.BYTES, count * (long) Float.BYTES,
+                Buffers.newDirectFloatBuffer(data, first, count));
+    }
+}
@@ -0,0 +1,79 @@
+package unsw.graphics.world;
+
+/**
+ * Advances the simulation in fixed steps, however fast frames are drawn.
+ *
+ * Each frame asks the clock how many steps have fallen due since the last
+ * one and runs that many. At 30 frames a second that is two steps a frame,
+ * uncapped at 500 it is usually none, so movement speeds stay the same.
+ * Time left over carries to the next frame. If the frames fall too far
+ * behind, the extra steps are dropped and the simulation slows down rather
+ * than spending ever longer catching up.
+ *
+ * Nothing is interpolated between steps, so frames drawn between two steps
+ * show the same state and drawing faster than the step rate doesn't make
+ * movement smoother. That keeps a replay's frames the same as the run's.
+ */
+public class SimulationClock {
+
+    public static final int DEFAULT_RATE = 60;
+
+    // Most steps run for a single frame
+    private static final int MAX_STEPS = 8;
+
+    private final long step;
+    private long last = -1;
+    private long accumulated = 0;
+    private boolean lockstep = false;
+
+    /**
+     * Create a clock stepping at the default rate.
+     */
+    public SimulationClock() {
+        this(DEFAULT_RATE);
+    }
+
+    /**
+     * @param rate steps per second
+     */
+    public SimulationClock(int rate) {
+        this.step = 1_000_000_000L / rate;
+    }
+
+    /**
+     * Take exactly one step per frame whatever the time, so that runs which
+     * draw the same frames are the same, e.g. when rendering headless.
+     *
+     * @param lockstep
+     */
+    public void setLockstep(boolean lockstep) {
+        this.lockstep = lockstep;
+    }
+
+    /**
+     * Number of steps due since the last call, going by the system clock.
+     * The first call always gives one step, as does every call in lockstep.
+     *
+     * @return
+     */
+    public int advance() {
+        if (lockstep) return advance(step);
+        long now = System.nanoTime();
+        long elapsed = last < 0 ? step : now - last;
+        last = now;
+        return advance(elapsed);
+    }
+
+    /**
+     * Number of steps due after the given time has passed.
+     *
+     * @param elapsedNanos
+     * @return
+     */
+    public int advance(long elapsedNanos) {
+        accumulated += elapsedNanos;
+        int steps = (int) Math.min(accumulated / step, MAX_STEPS);
+        accumulated = Math.min(accumulated - steps * step, step);
+        return steps;
+    }
+}
@@ -6,23 +6,36 @@ import unsw.graphics.Shader;
 import unsw.graphics.Texture;
 import unsw.graphics.geometry.Point3D;
 import unsw.graphics.geometry.TriangleMesh;
-import unsw.graphics.world.camera.Camera;
 import unsw.graphics.world.lighting.Sunlight;
+import unsw.graphics.world.render.RenderQueue;
+import unsw.graphics.world.render.Sampler;
 
-import java.awt.*;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Manages a skybox.
  *
+ * The sky is one triangle covering the screen at the far plane, drawn after
+ * everything opaque, so the depth test rejects every pixel already covered
+ * before it is shaded. Each pixel looks up the cube map in the direction it
+ * sees, from the inverse of the camera's projection and rotation.
+ *
  * Ref: https://learnopengl.com/Advanced-OpenGL/Cubemaps
  *
  * @author Zahid, z5121750
  */
 public class Skybox {
 
-    private static final float SIZE = 100f;
+    // The cube map is bound to this unit for the whole frame
+    public static final int SKY_UNIT = 7;
+
+    // Corners of a triangle covering the screen, at the far plane
+    private static final float[] VERTICES = {
+            -1, -1, 1,
+             3, -1, 1,
+            -1,  3, 1
+    };
 
     private Shader  shader;
     private Texture cubemap;
@@ -36,10 +49,13 @@ public class Skybox {
     }
 
     /**
-     * Initialize the skybox.
+     * Initialize the skybox, having the queue keep its cube map bound and
+     * set its uniforms.
      * @param gl
+     * @param queue
+     * @param sunlight tints the sky through the day
      */
-    public void init(GL3 gl) {
+    public void init(GL3 gl, RenderQueue queue, Sunlight sunlight) {
         mesh.init(gl);
 
         shader = new Shader(gl, "shaders/asst2_skybox_vert.glsl",
@@ -53,31 +69,28 @@ public class Skybox {
                 "res/textures/skybox/Daylight Box_Front.bmp",
                 "res/textures/skybox/Daylight Box_Back.bmp",
                 false, false);
+        queue.bindForFrame(SKY_UNIT, GL.GL_TEXTURE_CUBE_MAP, cubemap.getId(), Sampler.LINEAR_CLAMP);
+
+        queue.setProgramSetup(shader, g -> {
+            queue.getCamera().setSkyboxMatrices(g);
+            sunlight.setUniforms(g);
+            Shader.setInt(g, "tex", SKY_UNIT);
+        });
     }
 
     /**
-     * Draw the skybox.
-     * @param gl
-     * @param camera
-     * @param sunlight
+     * Submit the skybox to be drawn behind everything opaque.
+     * @param queue
      */
-    public void draw(GL3 gl, Camera camera, Sunlight sunlight) {
-        shader.use(gl);
-        camera.setSkyboxMatrices(gl);
-        sunlight.setUniforms(gl);
-
-        Shader.setPenColor(gl, Color.WHITE);
-
-        Shader.setInt(gl, "tex", 0);
-        gl.glActiveTexture(GL.GL_TEXTURE0);
-        gl.glBindTexture(GL.GL_TEXTURE_CUBE_MAP, cubemap.getId());
-
-        gl.glTexParameteri(GL3.GL_TEXTURE_CUBE_MAP, GL3.GL_TEXTURE_MAG_FILTER, GL3.GL_LINEAR);
-        gl.glTexParameteri(GL3.GL_TEXTURE_CUBE_MAP, GL3.GL_TEXTURE_MIN_FILTER, GL3.GL_LINEAR);
-        gl.glTexParameteri(GL3.GL_TEXTURE_CUBE_MAP, GL3.GL_TEXTURE_WRAP_S, GL3.GL_CLAMP_TO_EDGE);
-        gl.glTexParameteri(GL3.GL_TEXTURE_CUBE_MAP, GL3.GL_TEXTURE_WRAP_T, GL3.GL_CLAMP_TO_EDGE);
-        gl.glTexParameteri(GL3.GL_TEXTURE_CUBE_MAP, GL3.GL_TEXTURE_WRAP_R, GL3.GL_CLAMP_TO_EDGE);
+    public void submit(RenderQueue queue) {
+        queue.submit(RenderQueue.SKY, shader, 0, 0, null, null, 0, this::draw);
+    }
 
+    /**
+     * Draw the skybox, with its shader already in use.
+     * @param gl
+     */
+    public void draw(GL3 gl) {
         mesh.draw(gl);
     }
 
@@ -102,48 +115,4 @@ public class Skybox {
 
         return vertices;
     }
-
-    private static final float[] VERTICES = {
-            -SIZE,  SIZE, -SIZE,
-            -SIZE, -SIZE, -SIZE,
-             SIZE, -SIZE, -SIZE,
-             SIZE, -SIZE, -SIZE,
-             SIZE,  SIZE, -SIZE,
-            -SIZE,  SIZE, -SIZE,
-
-            -SIZE, -SIZE,  SIZE,
-            -SIZE, -SIZE, -SIZE,
-            -SIZE,  SIZE, -SIZE,
-            -SIZE,  SIZE, -SIZE,
-            -SIZE,  SIZE,  SIZE,
-            -SIZE, -SIZE,  SIZE,
-
-             SIZE, -SIZE, -SIZE,
-             SIZE, -SIZE,  SIZE,
-             SIZE,  SIZE,  SIZE,
-             SIZE,  SIZE,  SIZE,
-             SIZE,  SIZE, -SIZE,
-             SIZE, -SIZE, -SIZE,
-
-            -SIZE, -SIZE,  SIZE,
-            -SIZE,  SIZE,  SIZE,
-             SIZE,  SIZE,  SIZE,
-             SIZE,  SIZE,  SIZE,
-             SIZE, -SIZE,  SIZE,
-            -SIZE, -SIZE,  SIZE,
-
-            -SIZE,  SIZE, -SIZE,
-             SIZE,  SIZE, -SIZE,
-             SIZE,  SIZE,  SIZE,
-             SIZE,  SIZE,  SIZE,
-            -SIZE,  SIZE,  SIZE,
-            -SIZE,  SIZE, -SIZE,
-
-            -SIZE, -SIZE, -SIZE,
-            -SIZE, -SIZE,  SIZE,
-             SIZE, -SIZE, -SIZE,
-             SIZE, -SIZE, -SIZE,
-            -SIZE, -SIZE,  SIZE,
-             SIZE, -SIZE,  SIZE
-    };
 }
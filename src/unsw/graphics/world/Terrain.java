@@ -8,12 +8,16 @@ import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 import unsw.graphics.CoordFrame3D;
 import unsw.graphics.Shader;
-import unsw.graphics.Texture;
+import unsw.graphics.TextureArray;
 import unsw.graphics.Vector3;
 import unsw.graphics.geometry.Point2D;
 import unsw.graphics.geometry.Point3D;
 import unsw.graphics.geometry.TriangleMesh;
+import unsw.graphics.world.lighting.LightManager;
+import unsw.graphics.world.lighting.Pointlight;
 import unsw.graphics.world.lighting.Sunlight;
+import unsw.graphics.world.render.Material;
+import unsw.graphics.world.render.RenderQueue;
 
 
 /**
@@ -24,15 +28,32 @@ import unsw.graphics.world.lighting.Sunlight;
  */
 public class Terrain extends TriangleMesh{
 
+    private static final Material MATERIAL = new Material(new Color(0.2f, 0.2f, 0.2f),
+            new Color(0.7f, 0.8f, 0.7f), new Color(0.0f, 0.0f, 0.0f), 1f, Color.WHITE, true);
+
     private int width;
     private int depth;
-    private float[][] altitudes;
+    private HeightField altitudes;
 
     private Sunlight sunlight;
     private List<Tree> trees;
-    private List<Road> roads;
+    private RoadNetwork roads;
+
+    private static final String TEXTURE_FILE = "res/textures/grass.bmp";
+
+    // Lamps over the ends of each road segment
+    private static final Color LAMP_COLOR = new Color(0.9f, 0.75f, 0.45f);
+    private static final float LAMP_HEIGHT = 1;
+    private static final float LAMP_RANGE = 4;
+
+    private Material material = MATERIAL;
 
-    private Texture texture;
+    // Built the first time the terrain is ray cast
+    private HeightQuadtree quadtree;
+
+    // Vertices changed since the buffers were last updated, x0 > x1 if none
+    private int dirtyX0 = Integer.MAX_VALUE, dirtyX1 = -1;
+    private int dirtyZ0 = Integer.MAX_VALUE, dirtyZ1 = -1;
 
     /**
      * Create a new terrain
@@ -49,11 +70,36 @@ public class Terrain extends TriangleMesh{
         this.sunlight = new Sunlight(sunlight);
 
         this.trees = new ArrayList<>();
-        this.roads = new ArrayList<>();
+        this.roads = new RoadNetwork();
 
-        this.altitudes = new float[depth][width];
+        this.altitudes = new ArrayHeightField(width, depth);
         for (Point3D v : vertices)
-            this.altitudes[(int) v.getZ()][(int) v.getX()]= v.getY();
+            this.altitudes.set((int) v.getX(), (int) v.getZ(), v.getY());
+    }
+
+    /**
+     * Create a new terrain over the given height field. The height field is
+     * kept, not copied, so a memory-mapped height field stays mapped.
+     *
+     * @param altitudes
+     * @param sunlight
+     */
+    public Terrain(HeightField altitudes, Vector3 sunlight) {
+        this(altitudes, sunlight, TerrainGeometry.generate(altitudes));
+    }
+
+    private Terrain(HeightField altitudes, Vector3 sunlight, TerrainGeometry geometry) {
+        super(geometry.getPositions(), geometry.getNormals(), geometry.getIndices(),
+                geometry.getTexCoords());
+
+        this.width = altitudes.getWidth();
+        this.depth = altitudes.getDepth();
+        this.sunlight = new Sunlight(sunlight);
+
+        this.trees = new ArrayList<>();
+        this.roads = new RoadNetwork();
+
+        this.altitudes = altitudes;
     }
 
     public int getWidth() {
@@ -64,6 +110,30 @@ public class Terrain extends TriangleMesh{
         return depth;
     }
 
+    /**
+     * Gets the height field the terrain is built from.
+     * @return
+     */
+    public HeightField getHeightField() {
+        return altitudes;
+    }
+
+    /**
+     * Gets the trees on the terrain.
+     * @return
+     */
+    public List<Tree> getTrees() {
+        return trees;
+    }
+
+    /**
+     * Gets the roads on the terrain.
+     * @return
+     */
+    public List<Road> getRoads() {
+        return roads.getRoads();
+    }
+
     /**
      * Set the sunlight direction. 
      * 
@@ -93,7 +163,7 @@ public class Terrain extends TriangleMesh{
      * @return
      */
     public float getAltitude(int x, int z) {
-        return this.altitudes[z][x];
+        return this.altitudes.get(x, z);
     }
 
     /**
@@ -129,13 +199,13 @@ public class Terrain extends TriangleMesh{
 
         // Edge cases for the whole terrain
         // Altitude of last, bottom rightmost vertex
-        if (r == width && b == depth) return this.altitudes[t][l];
+        if (r == width && b == depth) return this.altitudes.get(l, t);
         // Altitude along right border
         if (r == width)
-            return this.altitudes[b][l]*(z-t) + this.altitudes[t][l]*(b-z);
+            return this.altitudes.get(l, b)*(z-t) + this.altitudes.get(l, t)*(b-z);
         // Altitude along bottom border
         if (b == depth)
-            return this.altitudes[t][l]*(r-x) + this.altitudes[t][r]*(x-l);
+            return this.altitudes.get(l, t)*(r-x) + this.altitudes.get(r, t)*(x-l);
 
         float dt = z - t; // The point's distance from top
         float db = b - z; // Distance from the bottom
@@ -149,11 +219,11 @@ public class Terrain extends TriangleMesh{
             // If area of dl*dt is smaller that the opposite, the point
             // is inside the top left triangle, use linear interpolation
             // to get altitude at intercept at line tl-bl, vertical line
-            ml = this.altitudes[b][l]*dt + this.altitudes[t][l]*db;
+            ml = this.altitudes.get(l, b)*dt + this.altitudes.get(l, t)*db;
 
             // Get altitude at intercept of tr-bl, diagonal line
             // Calculate using relative distance from top and bottom
-            mr = this.altitudes[b][l]*dt + this.altitudes[t][r]*db;
+            mr = this.altitudes.get(l, b)*dt + this.altitudes.get(r, t)*db;
 
             // From db = dl + horizontal distance from point to diagonal
             // For any point on the diagonal, db = dl, drawing it out helps
@@ -164,12 +234,50 @@ public class Terrain extends TriangleMesh{
 
         // Inside bottom right triangle, get intercept at lines, tr-bl and tr-br
         // Does the same as above, but changing the appropriate values
-        mr = this.altitudes[b][r]*dt + this.altitudes[t][r]*db;
-        ml = this.altitudes[b][l]*dt + this.altitudes[t][r]*db;
+        mr = this.altitudes.get(r, b)*dt + this.altitudes.get(r, t)*db;
+        ml = this.altitudes.get(l, b)*dt + this.altitudes.get(r, t)*db;
         dfd = dt - dr;
         return (ml * dr + mr * dfd) / (dr + dfd);
     }
 
+    /**
+     * Find the first point where a ray hits the terrain.
+     *
+     * @param origin
+     * @param direction
+     * @param maxDistance how far along the ray to look
+     * @return the hit, or null if the ray misses within maxDistance
+     */
+    public Point3D raycast(Point3D origin, Vector3 direction, float maxDistance) {
+        Vector3 d = direction.normalize();
+        float t = getQuadtree().intersect(origin.getX(), origin.getY(), origin.getZ(),
+                d.getX(), d.getY(), d.getZ(), maxDistance);
+        if (t == HeightQuadtree.MISS) return null;
+        return origin.translate(d.scale(t));
+    }
+
+    /**
+     * Check whether the terrain blocks the line between two points.
+     *
+     * @param from
+     * @param to
+     * @return true if nothing is in the way
+     */
+    public boolean lineOfSight(Point3D from, Point3D to) {
+        Vector3 d = to.minus(from);
+        return getQuadtree().intersect(from.getX(), from.getY(), from.getZ(),
+                d.getX(), d.getY(), d.getZ(), 1) == HeightQuadtree.MISS;
+    }
+
+    /**
+     * Gets the min/max quadtree used for ray casts, building it if needed.
+     * @return
+     */
+    public synchronized HeightQuadtree getQuadtree() {
+        if (quadtree == null) quadtree = new HeightQuadtree(altitudes);
+        return quadtree;
+    }
+
     /**
      * Add a tree at the specified (x,z) point. 
      * The tree's y coordinate is calculated from the getAltitude of the terrain at that point.
@@ -188,52 +296,197 @@ public class Terrain extends TriangleMesh{
     }
 
     /**
-     * Add a road. 
+     * Add a road. Roads added after init are drawn from the next frame.
      *
      */
     public void addRoad(float width, List<Point3D> spine) {
         Road road = new Road(width, spine, this);
-        roads.add(road);        
+        roads.add(road);
+    }
+
+    /**
+     * Raise the terrain around a point. The change falls off smoothly to
+     * nothing at the edge of the radius.
+     *
+     * @param x
+     * @param z
+     * @param radius
+     * @param amount height added at the centre
+     */
+    public void raise(float x, float z, float radius, float amount) {
+        edit(x, z, radius, (h, weight) -> h + amount * weight);
+    }
+
+    /**
+     * Lower the terrain around a point, e.g. to make a crater.
+     *
+     * @param x
+     * @param z
+     * @param radius
+     * @param amount height removed at the centre
+     */
+    public void lower(float x, float z, float radius, float amount) {
+        raise(x, z, radius, -amount);
+    }
+
+    /**
+     * Pull the terrain around a point towards the given altitude, blending
+     * back into the surrounding terrain at the edge of the radius.
+     *
+     * @param x
+     * @param z
+     * @param radius
+     * @param altitude
+     */
+    public void flatten(float x, float z, float radius, float altitude) {
+        edit(x, z, radius, (h, weight) -> h + (altitude - h) * weight);
+    }
+
+    private interface Brush {
+        float apply(float altitude, float weight);
+    }
+
+    /**
+     * Apply a brush to every vertex within the radius, then fix up the
+     * normals, trees and roads affected by the change.
+     */
+    private void edit(float cx, float cz, float radius, Brush brush) {
+        int x0 = Math.max((int) Math.ceil(cx - radius), 0);
+        int x1 = Math.min((int) Math.floor(cx + radius), width - 1);
+        int z0 = Math.max((int) Math.ceil(cz - radius), 0);
+        int z1 = Math.min((int) Math.floor(cz + radius), depth - 1);
+        if (x0 > x1 || z0 > z1) return;
+
+        for (int z = z0; z <= z1; z++) {
+            for (int x = x0; x <= x1; x++) {
+                float d = (float) Math.hypot(x - cx, z - cz) / radius;
+                if (d >= 1) continue;
+
+                // Cosine falloff, 1 at the centre and 0 at the edge
+                float weight = 0.5f + 0.5f * (float) Math.cos(Math.PI * d);
+                float altitude = brush.apply(altitudes.get(x, z), weight);
+                altitudes.set(x, z, altitude);
+                // Quantised fields clamp and round what they store
+                altitude = altitudes.get(x, z);
+                setVertex(z * width + x, x, altitude, z);
+            }
+        }
+
+        // Normals depend on the neighbouring heights, so grow the region by one
+        x0 = Math.max(x0 - 1, 0);
+        x1 = Math.min(x1 + 1, width - 1);
+        z0 = Math.max(z0 - 1, 0);
+        z1 = Math.min(z1 + 1, depth - 1);
+
+        float[] n = new float[3];
+        for (int z = z0; z <= z1; z++) {
+            for (int x = x0; x <= x1; x++) {
+                TerrainGeometry.normal(altitudes, x, z, n, 0);
+                setNormal(z * width + x, n[0], n[1], n[2]);
+            }
+        }
+
+        if (quadtree != null) quadtree.update(x0, z0, x1, z1);
+
+        dirtyX0 = Math.min(dirtyX0, x0);
+        dirtyX1 = Math.max(dirtyX1, x1);
+        dirtyZ0 = Math.min(dirtyZ0, z0);
+        dirtyZ1 = Math.max(dirtyZ1, z1);
+
+        // Keep everything standing on the terrain
+        for (Tree t : trees) {
+            Point3D p = t.getPosition();
+            if (Math.hypot(p.getX() - cx, p.getZ() - cz) <= radius + 1)
+                t.setAltitude(getAltitude(p.getX(), p.getZ()));
+        }
+        for (Road r : roads.getRoads()) {
+            if (r.overlaps(cx, cz, radius + 1)) roads.invalidate(r);
+        }
+    }
+
+    /**
+     * Copy the vertices changed by edits to graphics memory. Narrow regions
+     * are sent a row at a time, wide ones as one range.
+     */
+    private void updateBuffers(GL3 gl) {
+        if (dirtyX0 > dirtyX1) return;
+
+        int columns = dirtyX1 - dirtyX0 + 1;
+        if (columns > width / 2) {
+            int first = dirtyZ0 * width + dirtyX0;
+            int last  = dirtyZ1 * width + dirtyX1;
+            updateBuffers(gl, first, last - first + 1);
+        } else {
+            for (int z = dirtyZ0; z <= dirtyZ1; z++)
+                updateBuffers(gl, z * width + dirtyX0, columns);
+        }
+
+        dirtyX0 = dirtyZ0 = Integer.MAX_VALUE;
+        dirtyX1 = dirtyZ1 = -1;
+    }
+
+    /**
+     * Add the terrain's and the roads' textures to the world's texture array.
+     *
+     * @param layers
+     */
+    public void addTextures(TextureArray.Builder layers) {
+        material = MATERIAL.inLayer(layers.add(TEXTURE_FILE));
+        roads.addTextures(layers);
+    }
+
+    /**
+     * Add a lamp over each end of every road segment to the world's lights.
+     *
+     * @param lights
+     */
+    public void addLights(LightManager lights) {
+        for (Road road : roads.getRoads()) {
+            List<Point3D> spine = road.getSpine();
+            for (int i = 0; i < spine.size(); i += 3) {
+                float x = spine.get(i).getX(), z = spine.get(i).getZ();
+                Point3D position = new Point3D(x, getAltitude(x, z) + LAMP_HEIGHT, z);
+                lights.add(new Pointlight(position, LAMP_COLOR, LAMP_RANGE));
+            }
+        }
     }
 
     @Override
     public void init(GL3 gl) {
         super.init(gl);
 
-        texture = new Texture(gl, "res/textures/grass.bmp", "bmp", true);
-        // Set wrap mode for texture in S and T directions
-        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_MIRRORED_REPEAT);
-        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_MIRRORED_REPEAT);
-
         for (Tree t : this.trees) t.init(gl);
-        for (Road r : this.roads) r.init(gl);
+        roads.init(gl);
     }
 
+    /**
+     * Submit the terrain, its trees and its roads to be drawn.
+     *
+     * @param queue
+     * @param shader the world's default shader
+     * @param frame
+     */
+    public void submit(RenderQueue queue, Shader shader, CoordFrame3D frame) {
+        queue.submit(RenderQueue.OPAQUE, shader, GL.GL_TEXTURE_2D, 0, null, material, 0,
+                gl -> draw(gl, frame));
+
+        for (Tree t : this.trees) t.submit(queue, shader, frame);
+        roads.submit(queue, shader, frame);
+    }
+
+    /**
+     * Draw the terrain's mesh, with the texture and material already set.
+     */
     @Override
     public void draw(GL3 gl, CoordFrame3D frame) {
-        Shader.setBoolean(gl, "useTexture", true);
-        Shader.setInt(gl, "tex", 0);
-        gl.glActiveTexture(GL.GL_TEXTURE0);
-        gl.glBindTexture(GL.GL_TEXTURE_2D, texture.getId());
-
-        // Set the material properties
-        Shader.setColor(gl, "ambientCoeff", new Color(0.2f, 0.2f, 0.2f));
-        Shader.setColor(gl, "diffuseCoeff", new Color(0.7f, 0.8f, 0.7f));
-        Shader.setColor(gl, "specularCoeff", new Color(0.0f, 0.0f, 0.0f));
-        Shader.setFloat(gl, "phongExp", 1f);
-
-        Shader.setPenColor(gl, Color.WHITE);
+        updateBuffers(gl);
         super.draw(gl, frame);
-
-        for (Tree t : this.trees) t.draw(gl, frame);
-        for (Road r : this.roads) r.draw(gl, frame);
     }
 
     @Override
     public void destroy(GL3 gl) {
         for (Tree t : this.trees) t.destroy(gl);
-        for (Road r : this.roads) r.destroy(gl);
-        texture.destroy(gl);
+        roads.destroy(gl);
         super.destroy(gl);
     }
 }
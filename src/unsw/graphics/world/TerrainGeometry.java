@@ -0,0 +1,183 @@
+package unsw.graphics.world;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The vertex data for a terrain, generated straight from its height field into
+ * primitive arrays.
+ *
+ * The grid is split into bands of rows which are filled in parallel on a
+ * fork-join pool. Every band writes to its own slice of each array, so no
+ * synchronisation is needed.
+ *
+ * Vertex normals are taken from the central differences of the height field
+ * rather than by summing the face normals of the surrounding triangles.
+ */
+public class TerrainGeometry {
+
+    // Rows below this are filled on the current thread instead of being split
+    private static final int BAND_ROWS = 32;
+
+    private final HeightField heights;
+    private final int width;
+    private final int depth;
+
+    private final float[] positions;
+    private final float[] normals;
+    private final float[] texCoords;
+    private final int[] indices;
+
+    private TerrainGeometry(HeightField heights) {
+        this.heights = heights;
+        this.width = heights.getWidth();
+        this.depth = heights.getDepth();
+
+        int vertexCount = width * depth;
+        positions = new float[vertexCount * 3];
+        normals   = new float[vertexCount * 3];
+        texCoords = new float[vertexCount * 2];
+        indices   = new int[Math.max(width - 1, 0) * Math.max(depth - 1, 0) * 6];
+    }
+
+    /**
+     * Generate the geometry for the given height field on the common pool.
+     *
+     * @param heights
+     * @return
+     */
+    public static TerrainGeometry generate(HeightField heights) {
+        return generate(heights, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Generate the geometry for the given height field on the given pool.
+     *
+     * @param heights
+     * @param pool
+     * @return
+     */
+    public static TerrainGeometry generate(HeightField heights, ForkJoinPool pool) {
+        TerrainGeometry geometry = new TerrainGeometry(heights);
+        pool.invoke(geometry.new Band(0, geometry.depth));
+        return geometry;
+    }
+
+    /**
+     * x, y, z per vertex, vertex (x, z) is at index z * width + x
+     * @return
+     */
+    public float[] getPositions() {
+        return positions;
+    }
+
+    /**
+     * Normalised x, y, z per vertex
+     * @return
+     */
+    public float[] getNormals() {
+        return normals;
+    }
+
+    /**
+     * s, t per vertex
+     * @return
+     */
+    public float[] getTexCoords() {
+        return texCoords;
+    }
+
+    /**
+     * Two triangles per grid cell, 3 indices each
+     * @return
+     */
+    public int[] getIndices() {
+        return indices;
+    }
+
+    /**
+     * Compute the normal of vertex (x, z) into the given array from the slope
+     * of the height field. One-sided differences are used along the borders.
+     *
+     * @param heights
+     * @param x
+     * @param z
+     * @param out
+     * @param offset index of the normal's x component in out
+     */
+    public static void normal(HeightField heights, int x, int z, float[] out, int offset) {
+        int width = heights.getWidth();
+        int depth = heights.getDepth();
+
+        int l = Math.max(x - 1, 0), r = Math.min(x + 1, width - 1);
+        int t = Math.max(z - 1, 0), b = Math.min(z + 1, depth - 1);
+
+        float dx = r > l ? (heights.get(r, z) - heights.get(l, z)) / (r - l) : 0;
+        float dz = b > t ? (heights.get(x, b) - heights.get(x, t)) / (b - t) : 0;
+
+        // The normal of the surface y = h(x, z) is (-dh/dx, 1, -dh/dz)
+        float length = (float) Math.sqrt(dx * dx + 1 + dz * dz);
+        out[offset]     = -dx / length;
+        out[offset + 1] = 1 / length;
+        out[offset + 2] = -dz / length;
+    }
+
+    private void fillRows(int z0, int z1) {
+        for (int z = z0; z < z1; z++) {
+            for (int x = 0; x < width; x++) {
+                int v = z * width + x;
+
+                positions[v * 3]     = x;
+                positions[v * 3 + 1] = heights.get(x, z);
+                positions[v * 3 + 2] = z;
+
+                normal(heights, x, z, normals, v * 3);
+
+                texCoords[v * 2]     = x;
+                texCoords[v * 2 + 1] = z;
+            }
+
+            // The last row of vertices has no cells below it
+            if (z == depth - 1) continue;
+
+            int i = z * (width - 1) * 6;
+            for (int x = 0; x < width - 1; x++) {
+                int v = z * width + x;
+
+                // Top left triangle
+                indices[i++] = v;
+                indices[i++] = v + width;
+                indices[i++] = v + 1;
+
+                // Bottom right triangle
+                indices[i++] = v + 1;
+                indices[i++] = v + width;
+                indices[i++] = v + width + 1;
+            }
+        }
+    }
+
+    /**
+     * Fills the rows [z0, z1), splitting in half until the band is small.
+     */
+    private class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int z0, z1;
+
+        Band(int z0, int z1) {
+            this.z0 = z0;
+            this.z1 = z1;
+        }
+
+        @Override
+        protected void compute() {
+            if (z1 - z0 <= BAND_ROWS) {
+                fillRows(z0, z1);
+                return;
+            }
+            int mid = (z0 + z1) >>> 1;
+            invokeAll(new Band(z0, mid), new Band(mid, z1));
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package unsw.graphics.world;
 
+import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 import unsw.graphics.CoordFrame3D;
 import unsw.graphics.Shader;
 import unsw.graphics.geometry.Point3D;
 import unsw.graphics.geometry.TriangleMesh;
+import unsw.graphics.world.render.Material;
+import unsw.graphics.world.render.RenderQueue;
 
 import java.awt.*;
 import java.io.IOException;
@@ -18,22 +21,41 @@ import java.util.Random;
  */
 public class Tree {
 
+    private static final Material MATERIAL = new Material(new Color(0.1f, 0.1f, 0.1f),
+            new Color(0.8f, 0.8f, 0.8f), new Color(0.1f, 0.1f, 0.1f), 16f, new Color(70, 40, 11), false);
+
     private static TriangleMesh mesh;
     private static int instances = 0;
-    private static Random rand = new Random();
 
     private Point3D position;
     private float rotateY;
     
+    /**
+     * Create a tree turned to a random angle, seeded by its position so the
+     * same level always has the same trees.
+     *
+     * @param x
+     * @param y
+     * @param z
+     */
     public Tree(float x, float y, float z) {
         position = new Point3D(x, y, z);
-        rotateY = rand.nextInt(360);
+        long seed = Float.floatToIntBits(x) * 0x9E3779B97F4A7C15L + Float.floatToIntBits(z);
+        rotateY = new Random(seed).nextInt(360);
     }
     
     public Point3D getPosition() {
         return position;
     }
 
+    /**
+     * Move the tree up or down, e.g. when the terrain under it changes.
+     * @param y
+     */
+    public void setAltitude(float y) {
+        position = new Point3D(position.getX(), y, position.getZ());
+    }
+
     public void init(GL3 gl) {
         if (Tree.mesh != null) {
             Tree.instances++;
@@ -49,22 +71,27 @@ public class Tree {
         Tree.instances++;
     }
 
-    public void draw(GL3 gl, CoordFrame3D frame) {
-
-        // Set the material properties
-        Shader.setColor(gl, "ambientCoeff", new Color(0.1f, 0.1f, 0.1f));
-        Shader.setColor(gl, "diffuseCoeff", new Color(0.8f, 0.8f, 0.8f));
-        Shader.setColor(gl, "specularCoeff", new Color(0.1f, 0.1f, 0.1f));
-        Shader.setFloat(gl, "phongExp", 16f);
-
-        Shader.setBoolean(gl, "useTexture", false);
+    /**
+     * Submit the tree to be drawn.
+     * @param queue
+     * @param shader the world's default shader
+     * @param frame
+     */
+    public void submit(RenderQueue queue, Shader shader, CoordFrame3D frame) {
+        queue.submit(RenderQueue.OPAQUE, shader, GL.GL_TEXTURE_2D, 0, null, MATERIAL,
+                queue.distance(position), gl -> draw(gl, frame));
+    }
 
+    /**
+     * Draw the tree's mesh, with the material already set.
+     * @param gl
+     * @param frame
+     */
+    public void draw(GL3 gl, CoordFrame3D frame) {
         CoordFrame3D modelframe = frame.translate(position)
                 .rotateY(rotateY)
                 .scale(0.1f, 0.1f, 0.1f)
                 .translate(0, 4.5f, 0.55f);
-
-        Shader.setPenColor(gl, new Color(70, 40, 11));
         Tree.mesh.draw(gl, modelframe);
     }
 
@@ -0,0 +1,95 @@
+package unsw.graphics.world;
+
+/**
+ * Scatters trees over a terrain according to a density map.
+ *
+ * The terrain is divided into square cells and each cell gets at most one
+ * tree at a jittered position. Whether the tree is planted depends on the
+ * density at that point: a low frequency noise field makes forests and
+ * clearings, and steep slopes are kept bare. Each cell's random numbers come
+ * from hashing its coordinates with the seed, so the result does not depend
+ * on the order cells are visited in.
+ */
+public class TreeScatter {
+
+    // Frequency of the forest noise in cycles per grid cell
+    private static final float FOREST_FREQUENCY = 0.02f;
+
+    // Slope (rise over run) at which no trees grow
+    private static final float MAX_SLOPE = 1.5f;
+
+    private final long seed;
+    private final float spacing;
+    private final float coverage;
+    private final Noise forest;
+
+    /**
+     * @param seed
+     * @param spacing  size of the cells, the closest trees can be is about this
+     * @param coverage fraction of flat ground covered, between 0 and 1
+     */
+    public TreeScatter(long seed, float spacing, float coverage) {
+        this.seed = seed;
+        this.spacing = spacing;
+        this.coverage = coverage;
+        this.forest = new Noise(seed * 31 + 17);
+    }
+
+    /**
+     * The chance of a tree growing at the point, between 0 and 1.
+     *
+     * @param heights
+     * @param x
+     * @param z
+     * @return
+     */
+    public float density(HeightField heights, float x, float z) {
+        float clumps = forest.fbm(x * FOREST_FREQUENCY, z * FOREST_FREQUENCY, 3, 2, 0.5f);
+        float density = Utility.clamp(coverage + clumps, 0, 1);
+
+        float[] n = new float[3];
+        TerrainGeometry.normal(heights, (int) x, (int) z, n, 0);
+        float slope = (float) Math.sqrt(n[0] * n[0] + n[2] * n[2]) / n[1];
+
+        return density * Utility.clamp(1 - slope / MAX_SLOPE, 0, 1);
+    }
+
+    /**
+     * Plant the trees on the terrain.
+     *
+     * @param terrain
+     * @return the number of trees planted
+     */
+    public int scatter(Terrain terrain) {
+        HeightField heights = terrain.getHeightField();
+        int cellsX = (int) ((heights.getWidth() - 1) / spacing);
+        int cellsZ = (int) ((heights.getDepth() - 1) / spacing);
+
+        int planted = 0;
+        for (int cz = 0; cz < cellsZ; cz++) {
+            for (int cx = 0; cx < cellsX; cx++) {
+                long hash = mix(seed ^ mix(cx * 0x9E3779B97F4A7C15L + cz));
+                float jitterX = (hash & 0xFFFF) / 65536f;
+                float jitterZ = ((hash >>> 16) & 0xFFFF) / 65536f;
+                float chance  = ((hash >>> 32) & 0xFFFF) / 65536f;
+
+                float x = (cx + jitterX) * spacing;
+                float z = (cz + jitterZ) * spacing;
+                if (chance < density(heights, x, z)) {
+                    terrain.addTree(x, z);
+                    planted++;
+                }
+            }
+        }
+        return planted;
+    }
+
+    /**
+     * SplitMix64 finaliser
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -3,20 +3,38 @@ package unsw.graphics.world;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import com.jogamp.newt.event.InputEvent;
 import com.jogamp.newt.event.KeyEvent;
 import com.jogamp.newt.event.KeyListener;
+import com.jogamp.newt.event.MouseEvent;
+import com.jogamp.newt.event.NEWTEvent;
 import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 
 import unsw.graphics.Application3D;
 import unsw.graphics.CoordFrame3D;
+import unsw.graphics.FramePacing;
 import unsw.graphics.Shader;
+import unsw.graphics.TextureArray;
+import unsw.graphics.geometry.Point3D;
 import unsw.graphics.world.camera.*;
 import unsw.graphics.world.avatar.*;
 import unsw.graphics.world.lighting.*;
 import unsw.graphics.world.particles.RainCloud;
+import unsw.graphics.world.profiler.Profiler;
+import unsw.graphics.world.profiler.ProfilerOverlay;
+import unsw.graphics.world.render.GBuffer;
+import unsw.graphics.world.render.GLState;
+import unsw.graphics.world.render.RenderQueue;
+import unsw.graphics.world.render.Sampler;
+import unsw.graphics.world.replay.InputQueue;
+import unsw.graphics.world.replay.Replay;
+import unsw.graphics.world.replay.ReplayRecorder;
 
 
 /**
@@ -73,21 +91,52 @@ public class World extends Application3D implements KeyListener {
      *      T     - toggle day night cycle
      *      Y     - toggle between day and night time
      *      G     - toggle rain
+     *      L     - switch between forward and deferred shading
+     *      P     - toggle the frame time overlay
+     *      O     - export recent frame times to a CSV file
+     *      RMB   - print the terrain point under the mouse
      */
 
     private static final String VERTEX_SHADER   = "shaders/asst2_vertex.glsl";
     private static final String FRAGMENT_SHADER = "shaders/asst2_fragment.glsl";
+    private static final String FULLSCREEN_SHADER = "shaders/asst2_fullscreen_vert.glsl";
+
+    // The texture array is bound to this unit for the whole frame, the
+    // light manager's buffers to the next ones
+    private static final int LAYERS_UNIT = 1;
 
     private static final int MAX_BOMBS = 10;
 
+    // Seed for random numbers, the same every run unless replaying
+    private static final long DEFAULT_SEED = 3421;
+
+    private static final String TITLE = "Assignment 2";
+
+    // Frames between updates of the timings in the window title
+    private static final int TITLE_INTERVAL = 30;
+
+    // How far away the terrain can be picked with the right mouse button
+    private static final float PICK_DISTANCE = 500;
+
     private Shader defaultShader;
 
+    // Variants of the default shader for deferred shading, drawing the
+    // opaque pass into the G-buffer and lighting it
+    private Shader gbufferShader;
+    private Shader lightingShader;
+    private GBuffer gbuffer;
+    private boolean deferred = false;
+
     private Terrain terrain;
     private Skybox  skybox;
     private Avatar  avatar;
 
     private Sunlight  sunlight;
     private Spotlight spotlight;
+    private LightManager lights = new LightManager();
+    private CascadedShadows shadows;
+    private int shadowCascades = CascadedShadows.DEFAULT_CASCADES;
+    private int[] shadowIntervals;
 
     private Camera camera;
     private FirstPersonCamera fpc;
@@ -97,13 +146,31 @@ public class World extends Application3D implements KeyListener {
     private Bomb[] bombs;
     private RainCloud rain;
 
+    private SimulationClock clock = new SimulationClock();
+    private long seed = DEFAULT_SEED;
+
+    // Input is handled at the start of each frame, from the window or a replay
+    private InputQueue input = new InputQueue();
+    private List<NEWTEvent> events = new ArrayList<>();
+    private ReplayRecorder recorder;
+    private Replay replay;
+    private int replayFrame = 0;
+
+    private Profiler profiler = new Profiler();
+    private ProfilerOverlay overlay = new ProfilerOverlay();
+
+    private RenderQueue queue = new RenderQueue(new GLState());
+
+    // Textures of the terrain and roads
+    private TextureArray layers;
+
     /**
      * Create the world
      * @param terrain the world's terrain
      * @throws IOException
      */
     public World(Terrain terrain) throws IOException {
-        super("Assignment 2", 1200, 800);
+        super(TITLE, 1200, 800);
         this.terrain = terrain;
         this.avatar = new Chopper(terrain);
         this.skybox  = new Skybox(terrain);
@@ -112,94 +179,353 @@ public class World extends Application3D implements KeyListener {
     /**
      * Load a level file and display it.
      *
-     * @param args - The first argument is a level file in JSON format
+     * @param args - A level file, either JSON or binary, and optionally how
+     *             to pace frames: --fps=N (the default, 60), --uncapped or
+     *             --adaptive. --record=file saves the input to replay with
+     *             --replay=file. --check-gl checks the mirrored GL state
+     *             against the driver's on every change. --texture-budget=MB
+     *             limits the video memory of streamed textures.
+     *             --shadow-cascades=N splits the sun's shadows into 1 to 4
+     *             cascades, --shadow-update=a,b,c redraws them every a, b
+     *             and c frames, nearest first. --deferred starts with
+     *             deferred rather than forward shading.
      * @throws FileNotFoundException
      */
     public static void main(String[] args) throws IOException {
         String level = "res/worlds/demo.json";
+        FramePacing pacing = FramePacing.FIXED;
+        int fps = 60;
+        File record = null, replay = null;
+        boolean checkGL = false;
+        long textureBudget = -1;
+        int shadowCascades = CascadedShadows.DEFAULT_CASCADES;
+        int[] shadowIntervals = null;
+        boolean deferred = false;
+        for (String arg : args) {
+            if (arg.equals("--uncapped")) pacing = FramePacing.UNCAPPED;
+            else if (arg.equals("--adaptive")) pacing = FramePacing.ADAPTIVE;
+            else if (arg.startsWith("--fps=")) fps = Integer.parseInt(arg.substring(6));
+            else if (arg.startsWith("--record=")) record = new File(arg.substring(9));
+            else if (arg.startsWith("--replay=")) replay = new File(arg.substring(9));
+            else if (arg.equals("--check-gl")) checkGL = true;
+            else if (arg.startsWith("--texture-budget="))
+                textureBudget = Long.parseLong(arg.substring(17)) << 20;
+            else if (arg.startsWith("--shadow-cascades="))
+                shadowCascades = Integer.parseInt(arg.substring(18));
+            else if (arg.equals("--deferred")) deferred = true;
+            else if (arg.startsWith("--shadow-update="))
+                shadowIntervals = Arrays.stream(arg.substring(16).split(",")).mapToInt(Integer::parseInt).toArray();
+            else level = arg;
+        }
         Terrain terrain = LevelIO.load(new File(level));
 
-        //Terrain terrain = LevelIO.load(new File(args[0]));
         World world = new World(terrain);
+        world.setFramePacing(pacing, fps);
+        world.getRenderQueue().getState().setDebug(checkGL);
+        if (textureBudget >= 0) world.getRenderQueue().getStreamer().setBudget(textureBudget);
+        world.setShadows(shadowCascades, shadowIntervals);
+        world.setDeferred(deferred);
+        if (replay != null) world.replay(Replay.load(replay));
+        if (record != null) world.record(record);
         world.start();
     }
 
+    /**
+     * Set how many cascades the sun's shadows are split into, and how many
+     * frames pass between redrawing each. Must be called before start().
+     *
+     * @param cascades
+     * @param intervals nearest first, or null for the default
+     */
+    public void setShadows(int cascades, int[] intervals) {
+        this.shadowCascades = cascades;
+        this.shadowIntervals = intervals;
+    }
+
+    /**
+     * Play back a recorded run instead of taking input from the window,
+     * until the replay runs out. Must be called before start().
+     *
+     * @param replay
+     */
+    public void replay(Replay replay) {
+        this.replay = replay;
+        this.seed = replay.getSeed();
+        this.replayFrame = 0;
+    }
+
+    /**
+     * Record the input and simulation steps of each frame to a file. Must be
+     * called before start(), after any call to replay().
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void record(File file) throws IOException {
+        recorder = new ReplayRecorder(file, seed);
+    }
+
+    /**
+     * Whether a replay has been given and all its frames drawn.
+     * @return
+     */
+    public boolean isReplayFinished() {
+        return replay != null && replayFrame >= replay.getFrameCount();
+    }
+
     @Override
     public void init(GL3 gl) {
         super.init(gl);
 
+        // The sky is drawn at the far plane, which the cleared depth buffer
+        // is also at, so an equal depth must still pass
+        queue.getState().depthFunc(gl, GL3.GL_LEQUAL);
+
         // Initialize shader here
         defaultShader = new Shader(gl, VERTEX_SHADER, FRAGMENT_SHADER);
+        gbufferShader = new Shader(gl, VERTEX_SHADER, FRAGMENT_SHADER, new String[] { "GBUFFER" },
+                GBuffer.OUTPUTS);
+        lightingShader = new Shader(gl, FULLSCREEN_SHADER, FRAGMENT_SHADER, new String[] { "DEFERRED" },
+                new String[0]);
+        gbuffer = new GBuffer(lightingShader);
+        gbuffer.init(gl);
+        queue.setGBuffer(deferred ? gbuffer : null);
 
         // Set up lighting for the world here
         sunlight  = terrain.getSunlight();
+        sunlight.init(gl, queue);
         spotlight = ((Chopper) avatar).getSpotlight();
         spotlight.toggle();
 
+        // The lighting is set whenever the queue starts using the default
+        // shader or lights the G-buffer, the camera's matrices are set by
+        // the queue itself
+        queue.setProgramSetup(defaultShader, g -> {
+            setLightUniforms(g);
+            Shader.setInt(g, "tex", 0);
+            Shader.setInt(g, "layers", LAYERS_UNIT);
+        });
+        queue.setProgramSetup(gbufferShader, g -> {
+            Shader.setInt(g, "tex", 0);
+            Shader.setInt(g, "layers", LAYERS_UNIT);
+        });
+        queue.setProgramSetup(lightingShader, g -> {
+            setLightUniforms(g);
+            gbuffer.setUniforms(g, camera);
+        });
+
+        // Everything sharing the texture array can be drawn without binds
+        TextureArray.Builder layerFiles = new TextureArray.Builder();
+        terrain.addTextures(layerFiles);
+        layers = layerFiles.build(gl, true);
+        queue.bindForFrame(LAYERS_UNIT, GL3.GL_TEXTURE_2D_ARRAY, layers.getId(), Sampler.MIPMAP_MIRRORED);
+
         // Initialise all world objects here
         terrain.init(gl);
         avatar.init(gl);
-        skybox.init(gl);
+        skybox.init(gl, queue, sunlight);
 
         // Set up cameras here
-        fpc = new FirstPersonCamera(getWindow(), avatar);
-        tpc = new ThirdPersonCamera(getWindow(), avatar);
+        fpc = new FirstPersonCamera(this, avatar);
+        tpc = new ThirdPersonCamera(this, avatar);
         camera = fpc;
 
-        // Provide event listeners here
-        getWindow().addKeyListener(this);
-        getWindow().addKeyListener(avatar);
-        getWindow().addMouseListener(camera);
+        // Window input is queued and handled by handleInput()
+        if (!isHeadless()) {
+            getWindow().addKeyListener(input);
+            getWindow().addMouseListener(input);
+        }
+
+        // Headless runs are compared frame by frame, so mustn't depend on
+        // how long the frames took
+        clock.setLockstep(isHeadless());
 
+        Random random = new Random(seed);
         bombs = new Bomb[MAX_BOMBS];
         for (int i = 0; i < MAX_BOMBS; i++) {
-            bombs[i] = new Bomb(terrain);
+            bombs[i] = new Bomb(terrain, random);
             bombs[i].init(gl);
         }
         ((Chopper) avatar).arm(bombs); // attach bombs to da chopper
 
-        rain = new RainCloud(terrain);
+        // Point lights from the explosions and along the roads
+        lights.init(gl, queue);
+        for (Bomb bomb : bombs) lights.add(bomb.getLight());
+        terrain.addLights(lights);
+
+        // The sun's shadows are drawn from the queue's opaque items before
+        // anything else
+        shadows = new CascadedShadows(sunlight, queue, shadowCascades);
+        if (shadowIntervals != null) shadows.setUpdateIntervals(shadowIntervals);
+        shadows.init(gl);
+
+        rain = new RainCloud(terrain, random);
         rain.init(gl);
+
+        profiler.init(gl);
+        overlay.init(gl);
+    }
+
+    /**
+     * Set every light's uniforms for the shader in use.
+     */
+    private void setLightUniforms(GL3 gl) {
+        sunlight.setUniforms(gl);
+        spotlight.setUniforms(gl);
+        lights.setUniforms(gl, camera);
+        shadows.setUniforms(gl);
     }
 
     @Override
     public void display(GL3 gl) {
-        /*
-         * All lighting has to be updated here
-         * Don't change order of drawing, some objects
-         * have their own shaders, cbb to save shader states
-         * Drawing everything using the default shader first
-         * then group those with the same shaders
-         */
+        profiler.beginFrame(gl);
+
+        profiler.begin(gl, "simulation");
+        events.clear();
+        input.drain(events);
+        int steps;
+        if (replay != null && !isReplayFinished()) {
+            // Live input is dropped while replaying
+            events.clear();
+            events.addAll(replay.getEvents(replayFrame));
+            steps = replay.getSteps(replayFrame++);
+            if (isReplayFinished()) System.out.println("Replay finished");
+        } else {
+            steps = clock.advance();
+        }
+        record(steps);
+        for (NEWTEvent event : events) handleInput(event);
+        for (int i = 0; i < steps; i++) tick();
+        profiler.end(gl);
 
         CoordFrame3D frame = CoordFrame3D.identity();
-        defaultShader.use(gl);
-
-        // Clear the screen and set the transformation matrices
         clearScreen(gl);
-        camera.setViewMatrix(gl);
-        camera.setProjMatrix(gl);
 
-        // Set up the lighting
-        sunlight.update();
-        sunlight.setUniforms(gl);
-        spotlight.setUniforms(gl);
+        // Opaque things are drawn into the G-buffer when shading deferred
+        Shader shader = deferred ? gbufferShader : defaultShader;
+
+        // Everything is submitted to the queue, which sorts it by pass,
+        // shader, texture and material before drawing. Each kind of object
+        // is timed as it is submitted here, and as it is drawn in the queue
+        profiler.begin(gl, "submit");
+        queue.begin(camera);
+        lights.begin();
 
         // Only draw the avatar when in third person mode
-        if (firstPerson) avatar.update(gl, frame);
-        else avatar.draw(gl, frame);
+        beginCategory(gl, "avatar");
+        if (!firstPerson) avatar.submit(queue, shader, frame);
+        endCategory(gl);
+
+        beginCategory(gl, "terrain");
+        terrain.submit(queue, shader, frame);
+        endCategory(gl);
+
+        beginCategory(gl, "bombs");
+        for (int i = 0; i < MAX_BOMBS; i++) bombs[i].submit(queue, shader, frame);
+        endCategory(gl);
+
+        beginCategory(gl, "particles");
+        for (int i = 0; i < MAX_BOMBS; i++) bombs[i].submitParticles(queue, frame);
+        endCategory(gl);
 
-        terrain.draw(gl, frame);
+        beginCategory(gl, "skybox");
+        skybox.submit(queue);
+        endCategory(gl);
 
-        for (int i = 0; i < MAX_BOMBS; i++) bombs[i].draw(gl, frame);
+        beginCategory(gl, "rain");
+        rain.submit(queue, frame);
+        endCategory(gl);
+        profiler.end(gl);
 
-        // Uses different shader for the particles
-        for (int i = 0; i < MAX_BOMBS; i++) bombs[i].drawParticles(gl, camera);
+        queue.flush(gl, profiler);
 
-        // Uses skybox shader
-        skybox.draw(gl, camera, sunlight);
+        profiler.endFrame(gl);
 
-        rain.draw(gl, camera, frame);
+        overlay.draw(gl, queue.getState(), profiler, getWidth(), getHeight());
+        if (overlay.isVisible() && !isHeadless() && profiler.getFrame() % TITLE_INTERVAL == 0)
+            getWindow().setTitle(String.format("%s - %.0f fps, %s, %s, %s, %s, %s, %s", TITLE,
+                    getWindow().getAnimator().getLastFPS(), deferred ? "deferred" : "forward",
+                    profiler.summary(), queue.summary(),
+                    queue.getStreamer().summary(), lights.summary(), shadows.summary()));
+    }
+
+    /**
+     * Time the submissions that follow under the given name, and have the
+     * queue time drawing them under it too.
+     */
+    private void beginCategory(GL3 gl, String name) {
+        profiler.begin(gl, name);
+        queue.setCategory(name);
+    }
+
+    private void endCategory(GL3 gl) {
+        queue.setCategory(null);
+        profiler.end(gl);
+    }
+
+    /**
+     * Pass an input event to whatever handles it, as the window would have.
+     */
+    private void handleInput(NEWTEvent event) {
+        if (event instanceof KeyEvent) {
+            KeyEvent e = (KeyEvent) event;
+            if (e.getEventType() == KeyEvent.EVENT_KEY_PRESSED) {
+                keyPressed(e);
+                avatar.keyPressed(e);
+            } else {
+                keyReleased(e);
+                avatar.keyReleased(e);
+            }
+            return;
+        }
+
+        MouseEvent e = (MouseEvent) event;
+        switch (e.getEventType()) {
+            case MouseEvent.EVENT_MOUSE_CLICKED:
+                camera.mouseClicked(e);
+                break;
+            case MouseEvent.EVENT_MOUSE_PRESSED:
+                camera.mousePressed(e);
+                if (e.getButton() == MouseEvent.BUTTON3) pick(e.getX(), e.getY());
+                break;
+            case MouseEvent.EVENT_MOUSE_RELEASED:
+                camera.mouseReleased(e);
+                break;
+            case MouseEvent.EVENT_MOUSE_MOVED:
+                camera.mouseMoved(e);
+                break;
+            case MouseEvent.EVENT_MOUSE_DRAGGED:
+                camera.mouseDragged(e);
+                break;
+            case MouseEvent.EVENT_MOUSE_WHEEL_MOVED:
+                camera.mouseWheelMoved(e);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Save this frame's input and steps if recording.
+     */
+    private void record(int steps) {
+        if (recorder == null) return;
+        try {
+            recorder.frame(steps, events);
+        } catch (IOException e) {
+            e.printStackTrace();
+            recorder = null;
+        }
+    }
+
+    /**
+     * Move everything in the world on by one simulation step.
+     */
+    private void tick() {
+        sunlight.update();
+        avatar.tick();
+        for (int i = 0; i < MAX_BOMBS; i++) bombs[i].tick();
+        rain.tick();
     }
 
     @Override
@@ -214,18 +540,81 @@ public class World extends Application3D implements KeyListener {
         terrain.destroy(gl);
         skybox.destroy(gl);
         rain.destroy(gl);
+        profiler.destroy(gl);
+        overlay.destroy(gl);
+        layers.destroy(gl);
+        lights.destroy(gl);
+        shadows.destroy(gl);
+        gbuffer.destroy(gl);
+        gbufferShader.destroy(gl);
+        lightingShader.destroy(gl);
+        sunlight.destroy(gl);
+        queue.destroy(gl);
+
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
         for (int i = 0; i < MAX_BOMBS; i++) bombs[i].destroy(gl);
     }
 
+    /**
+     * Get the point lights in the world.
+     * @return
+     */
+    public LightManager getLights() {
+        return lights;
+    }
+
+    /**
+     * Shade the opaque pass deferred through a G-buffer rather than forward.
+     * May be called before or after start().
+     *
+     * @param deferred
+     */
+    public void setDeferred(boolean deferred) {
+        this.deferred = deferred;
+        if (gbuffer != null) queue.setGBuffer(deferred ? gbuffer : null);
+    }
+
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Get the sun's shadows.
+     * @return
+     */
+    public CascadedShadows getShadows() {
+        return shadows;
+    }
+
+    /**
+     * Get the queue everything in the world is drawn through.
+     * @return
+     */
+    public RenderQueue getRenderQueue() {
+        return queue;
+    }
+
+    /**
+     * Get the profiler timing each frame.
+     * @return
+     */
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
     /**
      * Switch between first and third person veis.
      */
     public void switchCamera() {
-        getWindow().removeMouseListener(camera);
         firstPerson = !firstPerson;
         camera = firstPerson ? fpc : tpc;
-        getWindow().addMouseListener(camera);
 
         // Change the default direction spotlight is facing
         if (firstPerson)
@@ -234,6 +623,29 @@ public class World extends Application3D implements KeyListener {
             spotlight.setDirection(0, -2, -1.7f);
     }
 
+    /**
+     * Find the point on the terrain under the given window position.
+     */
+    private void pick(int x, int y) {
+        Point3D hit = terrain.raycast(camera.getPosition(), camera.getPickDirection(x, y), PICK_DISTANCE);
+        if (hit == null) System.out.println("Nothing picked");
+        else System.out.printf("Picked terrain at (%.2f, %.2f, %.2f)%n", hit.getX(), hit.getY(), hit.getZ());
+    }
+
+    /**
+     * Write the profiler's recent timings to a CSV file in the working
+     * directory.
+     */
+    private void exportProfile() {
+        File file = new File("profile-" + System.currentTimeMillis() + ".csv");
+        try {
+            profiler.exportCSV(file);
+            System.out.println("Wrote profile to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     // taken form super.display()
     private void clearScreen(GL3 gl) {
         // Set the clear color.
@@ -262,6 +674,17 @@ public class World extends Application3D implements KeyListener {
             case KeyEvent.VK_G:
                 rain.toggle();
                 break;
+            case KeyEvent.VK_L:
+                setDeferred(!deferred);
+                System.out.println((deferred ? "Deferred" : "Forward") + " shading");
+                break;
+            case KeyEvent.VK_P:
+                overlay.toggle();
+                if (!overlay.isVisible() && !isHeadless()) getWindow().setTitle(TITLE);
+                break;
+            case KeyEvent.VK_O:
+                exportProfile();
+                break;
             default:
                 break;
         }
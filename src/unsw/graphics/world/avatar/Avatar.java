@@ -5,9 +5,11 @@ import com.jogamp.newt.event.KeyEvent;
 import com.jogamp.newt.event.KeyListener;
 import com.jogamp.opengl.GL3;
 import unsw.graphics.CoordFrame3D;
+import unsw.graphics.Shader;
 import unsw.graphics.geometry.Point3D;
 import unsw.graphics.world.Terrain;
 import unsw.graphics.world.Utility;
+import unsw.graphics.world.render.RenderQueue;
 
 import java.util.Arrays;
 
@@ -80,6 +82,14 @@ public class Avatar implements KeyListener {
                 .scale(scale, scale, scale);
     }
 
+    /**
+     * Gets the terrain the avatar moves over.
+     * @return
+     */
+    public Terrain getTerrain() {
+        return terrain;
+    }
+
     public float getPosX() {
         return transX;
     }
@@ -167,8 +177,14 @@ public class Avatar implements KeyListener {
 
     }
 
-    public void draw(GL3 gl, CoordFrame3D frame) {
-        update(gl, frame);
+    /**
+     * Submit the avatar to be drawn.
+     * @param queue
+     * @param shader the world's default shader
+     * @param frame
+     */
+    public void submit(RenderQueue queue, Shader shader, CoordFrame3D frame) {
+
     }
 
     public void destroy(GL3 gl) {
@@ -183,9 +199,10 @@ public class Avatar implements KeyListener {
     }
 
     /**
-     * Moves this avatar according to the key pressed.
+     * Moves this avatar according to the key pressed. Called once per
+     * simulation step.
      */
-    public void update(GL3 gl, CoordFrame3D frame) {
+    public void tick() {
         // First update where the avatar is facing
         if (keyMap[8]) rotateY += ROTATION_SCALE;
         if (keyMap[9]) rotateY -= ROTATION_SCALE;
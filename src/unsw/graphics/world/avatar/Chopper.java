@@ -11,6 +11,9 @@ import unsw.graphics.world.Bomb;
 import unsw.graphics.world.Terrain;
 import unsw.graphics.world.Utility;
 import unsw.graphics.world.lighting.Spotlight;
+import unsw.graphics.world.render.Material;
+import unsw.graphics.world.render.RenderQueue;
+import unsw.graphics.world.render.Sampler;
 
 import java.awt.*;
 import java.io.IOException;
@@ -22,7 +25,7 @@ import java.io.IOException;
  */
 public class Chopper extends Avatar {
 
-    // rotor angle increment in degrees
+    // rotor angle increment per simulation step in degrees
     private static final float ROTOR_SPEED = 27;
 
     // position of chopper components relative to the body
@@ -30,6 +33,15 @@ public class Chopper extends Avatar {
     private static final Point3D TAIL_OFFSET = new Point3D(-0.15f, 0.58f, 3.25f);
     private static final Point3D LIGHT_OFFSET = new Point3D(0.000f, 0.00f, -0.1f);
 
+    // Rough length of the body in world units, for its texture's footprint
+    private static final float BODY_SIZE = 1;
+
+    // Textures only for the chopper's body
+    private static final Material BODY = new Material(new Color(0.2f, 0.2f, 0.2f),
+            new Color(0.8f, 0.8f, 0.8f), new Color(0.3f, 0.3f, 0.3f), 16f, Color.WHITE, true);
+    private static final Material PARTS = new Material(new Color(0.2f, 0.2f, 0.2f),
+            new Color(0.8f, 0.8f, 0.8f), new Color(0.3f, 0.3f, 0.3f), 16f, Color.GRAY, false);
+
     private Spotlight spotlight;
 
     private Bomb[] bombs;
@@ -40,7 +52,7 @@ public class Chopper extends Avatar {
     private TriangleMesh wing;
     private TriangleMesh tail;
 
-    private Texture bodyTex;
+    private StreamedTexture bodyTex;
     private Texture wingTex;
     private Texture tailTex;
 
@@ -99,50 +111,43 @@ public class Chopper extends Avatar {
         tail.init(gl);
 
         // Load the chopper's textures
-        bodyTex = new Texture(gl, "res/textures/chopper/body.bmp", "bmp", false);
+        try {
+            bodyTex = new StreamedTexture(gl, "res/textures/chopper/body.bmp", StreamedTexture.DEFAULT_TAIL_SIZE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
         //wingTex = new Texture(gl, "res/textures/chopper/wing.bmp", "bmp", false);
         //tailTex = new Texture(gl, "res/textures/chopper/tail.bmp", "bmp", false);
     }
 
     @Override
-    public void update(GL3 gl, CoordFrame3D frame) {
-        super.update(gl, frame);
+    public void tick() {
+        super.tick();
 
         // Change the spotlight position and direction to match the chopper
-        CoordFrame3D local = getLocalFrame(frame);
+        CoordFrame3D local = getLocalFrame(CoordFrame3D.identity());
         spotlight.transform(local);
+
+        rotorAngle = Utility.normaliseAngle(rotorAngle + ROTOR_SPEED);
     }
 
     @Override
-    public void draw(GL3 gl, CoordFrame3D frame) {
-        // super will call update
-        super.draw(gl, frame);
-
-        // Set the material properties
-        Shader.setColor(gl, "ambientCoeff", new Color(0.2f, 0.2f, 0.2f));
-        Shader.setColor(gl, "diffuseCoeff", new Color(0.8f, 0.8f, 0.8f));
-        Shader.setColor(gl, "specularCoeff", new Color(0.3f, 0.3f, 0.3f));
-        Shader.setFloat(gl, "phongExp", 16f);
-
-        // Draw textures only for the chopper's body
-        Shader.setPenColor(gl, Color.WHITE);
-        Shader.setBoolean(gl, "useTexture", true);
-        Shader.setInt(gl, "tex", 0);
-        gl.glActiveTexture(GL.GL_TEXTURE0);
-
-        gl.glBindTexture(GL.GL_TEXTURE_2D, bodyTex.getId());
-        CoordFrame3D bodyFrame = getLocalFrame(frame);
-        body.draw(gl, bodyFrame);
+    public void submit(RenderQueue queue, Shader shader, CoordFrame3D frame) {
+        super.submit(queue, shader, frame);
 
-        Shader.setBoolean(gl, "useTexture", false);
-        Shader.setPenColor(gl, Color.GRAY);
+        float distance = queue.distance(getPosition());
+        CoordFrame3D bodyFrame = getLocalFrame(frame);
+        queue.getStreamer().request(bodyTex, queue.footprint(distance, BODY_SIZE));
+        queue.submit(RenderQueue.OPAQUE, shader, GL.GL_TEXTURE_2D, bodyTex.getId(), Sampler.MIPMAP, BODY, distance,
+                gl -> body.draw(gl, bodyFrame));
 
         CoordFrame3D wingFrame = bodyFrame.translate(WING_OFFSET).rotateY(rotorAngle);
-        wing.draw(gl, wingFrame);
+        queue.submit(RenderQueue.OPAQUE, shader, GL.GL_TEXTURE_2D, 0, null, PARTS, distance,
+                gl -> wing.draw(gl, wingFrame));
         CoordFrame3D tailFrame = bodyFrame.translate(TAIL_OFFSET).rotateX(rotorAngle);
-        tail.draw(gl, tailFrame);
-
-        rotorAngle = Utility.normaliseAngle(rotorAngle + ROTOR_SPEED);
+        queue.submit(RenderQueue.OPAQUE, shader, GL.GL_TEXTURE_2D, 0, null, PARTS, distance,
+                gl -> tail.draw(gl, tailFrame));
     }
 
     @Override
@@ -0,0 +1,137 @@
+package unsw.graphics.world.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import unsw.graphics.ImageDiff;
+import unsw.graphics.world.LevelIO;
+import unsw.graphics.world.Terrain;
+import unsw.graphics.world.World;
+import unsw.graphics.world.replay.Replay;
+
+/**
+ * Draws a level without a window for a number of frames and prints how long
+ * they took, for build agents with no display or GPU. The simulation takes
+ * one step per frame, so the same frames are drawn every run and the last
+ * one can be compared against a golden image. With --replay the frames,
+ * steps and input of a recording from World --record are played back
+ * instead, by default all of them, so the camera follows the same path in
+ * every build.
+ *
+ * The first frames are left out of the timings while shaders compile and
+ * the JIT warms up.
+ *
+ * Usage: HeadlessBenchmark [level] [--replay=file] [--frames=N] [--warmup=N] [--csv=file]
+ *        [--capture=file.png] [--golden=file.png] [--tolerance=N]
+ *        [--max-diff=fraction] [--check-gl] [--deferred]
+ *
+ * --deferred shades the opaque pass through a G-buffer, to compare against
+ * forward shading on the same replay.
+ *
+ * --check-gl checks the mirrored GL state against the driver's on every
+ * change, which stalls, so don't take the timings from it.
+ *
+ * With --golden the last frame is compared and the exit status is 1 if more
+ * than max-diff of its pixels differ by more than tolerance, with an image
+ * of the differences written beside the golden image. If the golden image
+ * doesn't exist yet, the frame is saved as it.
+ */
+public class HeadlessBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        String level = "res/worlds/demo.json";
+        int frames = -1;
+        int warmup = 30;
+        File csv = null, capture = null, golden = null, replayFile = null;
+        int tolerance = 2;
+        double maxDiff = 0.001;
+        boolean checkGL = false;
+        boolean deferred = false;
+        for (String arg : args) {
+            if (arg.startsWith("--frames=")) frames = Math.max(0, Integer.parseInt(value(arg)));
+            else if (arg.startsWith("--replay=")) replayFile = new File(value(arg));
+            else if (arg.startsWith("--warmup=")) warmup = Integer.parseInt(value(arg));
+            else if (arg.startsWith("--csv=")) csv = new File(value(arg));
+            else if (arg.startsWith("--capture=")) capture = new File(value(arg));
+            else if (arg.startsWith("--golden=")) golden = new File(value(arg));
+            else if (arg.startsWith("--tolerance=")) tolerance = Integer.parseInt(value(arg));
+            else if (arg.startsWith("--max-diff=")) maxDiff = Double.parseDouble(value(arg));
+            else if (arg.equals("--check-gl")) checkGL = true;
+            else if (arg.equals("--deferred")) deferred = true;
+            else level = arg;
+        }
+
+        Terrain terrain = LevelIO.load(new File(level));
+        World world = new World(terrain);
+        world.getRenderQueue().getState().setDebug(checkGL);
+        world.setDeferred(deferred);
+        if (replayFile != null) {
+            Replay replay = Replay.load(replayFile);
+            world.replay(replay);
+            if (frames < 0) frames = replay.getFrameCount();
+            System.out.printf("Replaying %d frames, %d steps%n", replay.getFrameCount(), replay.getTicks());
+        }
+        if (frames < 0) frames = 300;
+        if (frames == 0) throw new IllegalArgumentException("No frames to draw");
+        // Time at least the last frame
+        warmup = Math.max(0, Math.min(warmup, frames - 1));
+
+        long[] times = world.startHeadless(frames);
+
+        System.out.println(deferred ? "Deferred shading" : "Forward shading");
+        printTimes(Arrays.copyOfRange(times, warmup, frames));
+        System.out.println(world.getProfiler().summary());
+        System.out.println(world.getRenderQueue().summary());
+        System.out.println(world.getRenderQueue().getStreamer().summary());
+        System.out.println(world.getLights().summary());
+        System.out.println(world.getShadows().summary());
+        if (csv != null) world.getProfiler().exportCSV(csv);
+
+        BufferedImage frame = world.getLastFrame();
+        if (capture != null) ImageIO.write(frame, "png", capture);
+
+        int status = 0;
+        if (golden != null) {
+            if (!golden.exists()) {
+                ImageIO.write(frame, "png", golden);
+                System.out.println("Saved new golden image " + golden);
+            } else {
+                ImageDiff diff = ImageDiff.compare(ImageIO.read(golden), frame, tolerance);
+                boolean matches = diff.matches(maxDiff);
+                System.out.printf("%s golden image: %d pixels (%.3f%%) differ, max difference %d%n",
+                        matches ? "Matches" : "Doesn't match", diff.getDifferingPixels(),
+                        diff.getDifferingFraction() * 100, diff.getMaxDifference());
+                if (!matches) {
+                    File out = new File(golden.getPath().replaceFirst("(\\.png)?$", "-diff.png"));
+                    ImageIO.write(diff.getDiffImage(), "png", out);
+                    System.out.println("Wrote differences to " + out);
+                    status = 1;
+                }
+            }
+        }
+
+        // JOGL's threads would otherwise keep running
+        System.exit(status);
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    private static void printTimes(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0) / 1e6;
+        System.out.printf("%d frames: mean %.2f ms (%.1f fps), median %.2f ms, 95%% %.2f ms, 99%% %.2f ms, max %.2f ms%n",
+                sorted.length, mean, 1000 / mean, percentile(sorted, 0.5),
+                percentile(sorted, 0.95), percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.round(p * (sorted.length - 1)))] / 1e6;
+    }
+}
@@ -0,0 +1,101 @@
+package unsw.graphics.world.bench;
+
+import java.util.Random;
+
+import unsw.graphics.world.lighting.LightClusters;
+
+/**
+ * Measures assigning 10, 100 and 1000 point lights to clusters, on one
+ * thread and with the depth slices in parallel, and how many lights a
+ * fragment then loops over compared to all of them. Before timing, points
+ * through the frustum are checked against brute force: every light
+ * reaching a point must be in the point's cluster.
+ *
+ * Usage: LightClusterBenchmark [iterations]
+ */
+public class LightClusterBenchmark {
+
+    private static final int[] LIGHT_COUNTS = { 10, 100, 1000 };
+    private static final int CHECKED_POINTS = 200_000;
+
+    // As the world's camera and light manager
+    private static final float FOV = 60, ASPECT = 1.5f, NEAR = 0.1f, FAR = 200;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        for (int count : LIGHT_COUNTS) {
+            LightClusters clusters = new LightClusters(16, 9, 24);
+            clusters.setProjection(FOV, ASPECT, NEAR, FAR);
+            float[] lights = lights(count, 42);
+            clusters.assign(lights, count, false);
+            int misses = check(clusters, lights, count, CHECKED_POINTS);
+
+            // Warm up, then time each way
+            for (int i = 0; i < iterations; i++) clusters.assign(lights, count, i % 2 == 0);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) clusters.assign(lights, count, false);
+            double serial = (System.nanoTime() - start) / 1e6 / iterations;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) clusters.assign(lights, count, true);
+            double parallel = (System.nanoTime() - start) / 1e6 / iterations;
+
+            int[] grid = clusters.getGrid();
+            int used = 0;
+            for (int c = 1; c < grid.length; c += 2) if (grid[c] > 0) used++;
+            System.out.printf("%4d lights: %.3f ms serial, %.3f ms parallel, %d indices, "
+                            + "%.1f lights per lit cluster, at most %d, %d misses in %d points%n",
+                    count, serial, parallel, clusters.getIndexCount(),
+                    used == 0 ? 0 : clusters.getIndexCount() / (double) used, clusters.getMaxCount(),
+                    misses, CHECKED_POINTS);
+        }
+    }
+
+    /**
+     * Lights spread through the first 60 units of the frustum in view
+     * space, with radii like the world's lamps and explosions.
+     */
+    private static float[] lights(int count, long seed) {
+        Random random = new Random(seed);
+        float tanY = (float) Math.tan(Math.toRadians(FOV) / 2), tanX = tanY * ASPECT;
+        float[] lights = new float[count * 4];
+        for (int i = 0; i < count; i++) {
+            float depth = 1 + random.nextFloat() * 59;
+            lights[i * 4] = (random.nextFloat() * 2 - 1) * depth * tanX;
+            lights[i * 4 + 1] = (random.nextFloat() * 2 - 1) * depth * tanY;
+            lights[i * 4 + 2] = -depth;
+            lights[i * 4 + 3] = 2 + random.nextFloat() * 10;
+        }
+        return lights;
+    }
+
+    /**
+     * Count lights reaching random points in the frustum that their
+     * clusters don't list.
+     */
+    private static int check(LightClusters clusters, float[] lights, int count, int points) {
+        Random random = new Random(7);
+        float tanY = (float) Math.tan(Math.toRadians(FOV) / 2), tanX = tanY * ASPECT;
+        int[] grid = clusters.getGrid(), indices = clusters.getIndices();
+        int misses = 0;
+        for (int p = 0; p < points; p++) {
+            float depth = NEAR + random.nextFloat() * 80;
+            float x = (random.nextFloat() * 2 - 1) * depth * tanX;
+            float y = (random.nextFloat() * 2 - 1) * depth * tanY;
+            float z = -depth;
+            int cluster = clusters.getCluster(x, y, z);
+            if (cluster < 0) continue;
+
+            for (int l = 0; l < count; l++) {
+                float dx = x - lights[l * 4], dy = y - lights[l * 4 + 1], dz = z - lights[l * 4 + 2];
+                float r = lights[l * 4 + 3];
+                if (dx * dx + dy * dy + dz * dz >= r * r) continue;
+                boolean listed = false;
+                for (int i = grid[cluster * 2]; i < grid[cluster * 2] + grid[cluster * 2 + 1] && !listed; i++)
+                    listed = indices[i] == l;
+                if (!listed) misses++;
+            }
+        }
+        return misses;
+    }
+}
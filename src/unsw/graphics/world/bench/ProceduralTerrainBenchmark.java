@@ -0,0 +1,61 @@
+package unsw.graphics.world.bench;
+
+import java.util.concurrent.ForkJoinPool;
+
+import unsw.graphics.world.LevelIO;
+import unsw.graphics.world.ProceduralHeightField;
+import unsw.graphics.world.Terrain;
+
+/**
+ * Times noise evaluation of procedural height fields on one thread and on
+ * the common pool, checks both give identical heights, then times
+ * generating a whole terrain with trees.
+ *
+ * Usage: ProceduralTerrainBenchmark [size] [seed]
+ */
+public class ProceduralTerrainBenchmark {
+
+    public static void main(String[] args) {
+        int size  = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 3421;
+
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool common = ForkJoinPool.commonPool();
+
+        for (boolean ridged : new boolean[] { false, true }) {
+            ProceduralHeightField serial = field(size, seed, ridged);
+            long start = System.nanoTime();
+            serial.evaluateAll(single);
+            double serialMs = (System.nanoTime() - start) / 1e6;
+
+            ProceduralHeightField parallel = field(size, seed, ridged);
+            start = System.nanoTime();
+            parallel.evaluateAll(common);
+            double parallelMs = (System.nanoTime() - start) / 1e6;
+
+            System.out.printf("%s %dx%d: 1 thread %.1f ms, %d threads %.1f ms, %s%n",
+                    ridged ? "ridged" : "fbm   ", size, size, serialMs,
+                    common.getParallelism(), parallelMs,
+                    identical(serial, parallel) ? "identical" : "MISMATCH");
+        }
+
+        long start = System.nanoTime();
+        Terrain terrain = LevelIO.generate(size, size, seed);
+        System.out.printf("terrain %dx%d with %d trees: %.1f ms%n", size, size,
+                terrain.getTrees().size(), (System.nanoTime() - start) / 1e6);
+
+        single.shutdown();
+    }
+
+    private static ProceduralHeightField field(int size, long seed, boolean ridged) {
+        return new ProceduralHeightField(size, size, seed, 6, 0.01f, 8, ridged);
+    }
+
+    private static boolean identical(ProceduralHeightField a, ProceduralHeightField b) {
+        for (int z = 0; z < a.getDepth(); z++)
+            for (int x = 0; x < a.getWidth(); x++)
+                if (Float.floatToIntBits(a.get(x, z)) != Float.floatToIntBits(b.get(x, z)))
+                    return false;
+        return true;
+    }
+}
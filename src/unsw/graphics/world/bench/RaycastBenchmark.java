@@ -0,0 +1,115 @@
+package unsw.graphics.world.bench;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import unsw.graphics.world.HeightField;
+import unsw.graphics.world.HeightQuadtree;
+import unsw.graphics.world.ProceduralHeightField;
+
+/**
+ * Measures ray-terrain intersections per second against the min/max
+ * quadtree, single threaded and across all cores. Before timing, a sample of
+ * rays is checked against brute force intersection with every cell.
+ *
+ * Usage: RaycastBenchmark [size] [rays]
+ */
+public class RaycastBenchmark {
+
+    private static final int CHECKED_RAYS = 2000;
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int rays = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+
+        HeightField heights = new ProceduralHeightField(size, size, 3421, 6, 0.01f, 8, true);
+        long start = System.nanoTime();
+        HeightQuadtree tree = new HeightQuadtree(heights);
+        System.out.printf("build %dx%d: %.1f ms%n", size, size, (System.nanoTime() - start) / 1e6);
+
+        float[] data = rays(size, rays, 42);
+        check(heights, tree, data, CHECKED_RAYS);
+
+        for (int run = 0; run < 3; run++) {
+            start = System.nanoTime();
+            int hits = 0;
+            for (int i = 0; i < rays; i++)
+                if (cast(tree, data, i) != HeightQuadtree.MISS) hits++;
+            double serial = rays / ((System.nanoTime() - start) / 1e9);
+
+            start = System.nanoTime();
+            long parallelHits = IntStream.range(0, rays).parallel()
+                    .filter(i -> cast(tree, data, i) != HeightQuadtree.MISS).count();
+            double parallel = rays / ((System.nanoTime() - start) / 1e9);
+
+            System.out.printf("run %d: %.2f Mrays/s serial, %.2f Mrays/s parallel (%d/%d hits)%n",
+                    run, serial / 1e6, parallel / 1e6, hits, parallelHits);
+        }
+    }
+
+    /**
+     * Rays from above the terrain, looking down at angles between the
+     * horizon and straight down, up to the terrain's size long.
+     */
+    private static float[] rays(int size, int count, long seed) {
+        Random random = new Random(seed);
+        float[] data = new float[count * 7];
+        for (int i = 0; i < count; i++) {
+            double yaw = random.nextDouble() * 2 * Math.PI;
+            double pitch = random.nextDouble() * Math.PI / 2;
+            data[i * 7]     = random.nextFloat() * (size - 1);
+            data[i * 7 + 1] = 10 + random.nextFloat() * 20;
+            data[i * 7 + 2] = random.nextFloat() * (size - 1);
+            data[i * 7 + 3] = (float) (Math.cos(yaw) * Math.cos(pitch));
+            data[i * 7 + 4] = (float) -Math.sin(pitch);
+            data[i * 7 + 5] = (float) (Math.sin(yaw) * Math.cos(pitch));
+            data[i * 7 + 6] = size;
+        }
+        return data;
+    }
+
+    private static float cast(HeightQuadtree tree, float[] d, int i) {
+        int j = i * 7;
+        return tree.intersect(d[j], d[j + 1], d[j + 2], d[j + 3], d[j + 4], d[j + 5], d[j + 6]);
+    }
+
+    /**
+     * Compare against a quadtree of a single level per cell, i.e. testing
+     * every cell the ray could touch, by marching the ray in small steps.
+     */
+    private static void check(HeightField heights, HeightQuadtree tree, float[] d, int count) {
+        int mismatches = 0;
+        for (int i = 0; i < count; i++) {
+            float t = cast(tree, d, i);
+            float march = march(heights, d, i);
+            boolean bothMiss = t == HeightQuadtree.MISS && march == HeightQuadtree.MISS;
+            if (!bothMiss && Math.abs(t - march) > 0.05f) mismatches++;
+        }
+        System.out.printf("checked %d rays against ray marching: %d mismatches%n", count, mismatches);
+    }
+
+    private static float march(HeightField heights, float[] d, int i) {
+        int j = i * 7;
+        float step = 0.01f;
+        for (float t = 0; t <= d[j + 6]; t += step) {
+            float x = d[j] + d[j + 3] * t, y = d[j + 1] + d[j + 4] * t, z = d[j + 2] + d[j + 5] * t;
+            if (x < 0 || z < 0 || x > heights.getWidth() - 1 || z > heights.getDepth() - 1)
+                return HeightQuadtree.MISS;
+            if (y <= altitude(heights, x, z)) return t;
+        }
+        return HeightQuadtree.MISS;
+    }
+
+    /**
+     * Altitude on the terrain's triangles, split along the top right to
+     * bottom left diagonal.
+     */
+    private static float altitude(HeightField h, float x, float z) {
+        int l = Math.min((int) x, h.getWidth() - 2), t = Math.min((int) z, h.getDepth() - 2);
+        float u = x - l, v = z - t;
+        if (u + v <= 1)
+            return h.get(l, t) + (h.get(l + 1, t) - h.get(l, t)) * u + (h.get(l, t + 1) - h.get(l, t)) * v;
+        return h.get(l + 1, t + 1) + (h.get(l, t + 1) - h.get(l + 1, t + 1)) * (1 - u)
+                + (h.get(l + 1, t) - h.get(l + 1, t + 1)) * (1 - v);
+    }
+}
@@ -0,0 +1,102 @@
+package unsw.graphics.world.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import unsw.graphics.geometry.Point2D;
+import unsw.graphics.geometry.Point3D;
+import unsw.graphics.geometry.TriangleMesh;
+import unsw.graphics.world.ArrayHeightField;
+import unsw.graphics.world.HeightField;
+import unsw.graphics.world.TerrainGeometry;
+
+/**
+ * Times terrain mesh generation for square grids, comparing the fork-join
+ * generator on one thread and on the common pool with the old approach of
+ * boxed lists and computed vertex normals.
+ *
+ * Usage: TerrainMeshBenchmark [size ...]
+ */
+public class TerrainMeshBenchmark {
+
+    private static final int WARMUP = 2;
+    private static final int RUNS = 5;
+
+    // Boxing 4M+ points takes too long to be worth timing
+    private static final int MAX_LEGACY_SIZE = 1024;
+
+    public static void main(String[] args) {
+        int[] sizes = { 256, 512, 1024, 2048 };
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool common = ForkJoinPool.commonPool();
+
+        System.out.printf("%-6s %14s %14s %14s%n", "size", "lists (ms)",
+                "1 thread (ms)", common.getParallelism() + " threads (ms)");
+
+        for (int size : sizes) {
+            HeightField heights = hills(size);
+
+            double legacy = size <= MAX_LEGACY_SIZE ? time(() -> legacy(heights)) : Double.NaN;
+            double serial = time(() -> TerrainGeometry.generate(heights, single));
+            double parallel = time(() -> TerrainGeometry.generate(heights, common));
+
+            System.out.printf("%-6d %14.1f %14.1f %14.1f%n", size, legacy, serial, parallel);
+        }
+
+        single.shutdown();
+    }
+
+    private static HeightField hills(int size) {
+        ArrayHeightField heights = new ArrayHeightField(size, size);
+        for (int z = 0; z < size; z++)
+            for (int x = 0; x < size; x++)
+                heights.set(x, z, (float) (Math.sin(x * 0.05) * Math.cos(z * 0.07) * 4));
+        return heights;
+    }
+
+    /**
+     * Mean wall time in milliseconds after warming up.
+     */
+    private static double time(Runnable task) {
+        for (int i = 0; i < WARMUP; i++) task.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) task.run();
+        return (System.nanoTime() - start) / 1e6 / RUNS;
+    }
+
+    /**
+     * Mesh generation as LevelIO and Terrain used to do it.
+     */
+    private static TriangleMesh legacy(HeightField heights) {
+        int width = heights.getWidth();
+        int depth = heights.getDepth();
+
+        List<Point3D> vertices  = new ArrayList<>();
+        List<Point2D> texCoords = new ArrayList<>();
+        for (int i = 0; i < width * depth; i++) {
+            float x = i % width;
+            float z = i / width;
+            vertices.add(new Point3D(x, heights.get((int) x, (int) z), z));
+            texCoords.add(new Point2D(x, z));
+        }
+
+        List<Integer> indices = new ArrayList<>();
+        for (int i = 0; i < width*(depth-1); i++) {
+            if (i % width == (width-1)) continue;
+            indices.add(i);
+            indices.add(i + width);
+            indices.add(i + 1);
+            indices.add(i + 1);
+            indices.add(i + width);
+            indices.add(i + width + 1);
+        }
+
+        return new TriangleMesh(vertices, indices, true, texCoords);
+    }
+}
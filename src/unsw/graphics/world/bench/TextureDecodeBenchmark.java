@@ -0,0 +1,147 @@
+package unsw.graphics.world.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.imageio.ImageIO;
+
+import com.jogamp.opengl.GLException;
+import com.jogamp.opengl.GLProfile;
+import com.jogamp.opengl.util.awt.ImageUtil;
+import com.jogamp.opengl.util.texture.awt.AWTTextureIO;
+
+import unsw.graphics.ImageDecoder;
+
+/**
+ * Times decoding every image under a directory, comparing the old path of
+ * ImageIO, flipping the BufferedImage and converting it with AWTTextureIO
+ * with ImageDecoder. Then compares the peak heap and direct memory of
+ * loading them all at once, and decoding each directory of six cube map
+ * faces one at a time and in parallel.
+ *
+ * Without a GL profile, e.g. with no GL libraries installed, the old path
+ * stops before AWTTextureIO.
+ *
+ * Usage: TextureDecodeBenchmark [directory]
+ */
+public class TextureDecodeBenchmark {
+
+    private static final int WARMUP = 3;
+    private static final int RUNS = 10;
+
+    private interface Decode {
+        Object decode(File file) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "res/textures");
+        List<File> files;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            files = paths.filter(p -> p.toString().toLowerCase().matches(".*\\.(bmp|png|jpe?g)$"))
+                    .sorted().map(Path::toFile).collect(Collectors.toList());
+        }
+
+        GLProfile profile = null;
+        try {
+            profile = GLProfile.get(GLProfile.GL3);
+        } catch (GLException | LinkageError e) {
+            System.out.println("No GL profile, so not converting with AWTTextureIO: " + e.getMessage());
+        }
+        GLProfile glp = profile;
+        Decode legacy = file -> legacy(file, glp);
+        Decode direct = file -> ImageDecoder.decode(file, true);
+
+        System.out.printf("%-44s %10s %12s %12s%n", "file", "size", "ImageIO (ms)", "direct (ms)");
+        double legacyTotal = 0, directTotal = 0;
+        for (File file : files) {
+            double l = time(legacy, file);
+            double d = time(direct, file);
+            legacyTotal += l;
+            directTotal += d;
+            BufferedImage img = ImageIO.read(file);
+            System.out.printf("%-44s %10s %12.2f %12.2f%n", dir.relativize(file.toPath()),
+                    img.getWidth() + "x" + img.getHeight(), l, d);
+        }
+        System.out.printf("%-44s %10s %12.2f %12.2f%n%n", "total", "", legacyTotal, directTotal);
+
+        System.out.println("Loading everything at once:");
+        printMemory("ImageIO", legacy, files);
+        printMemory("direct", direct, files);
+        System.out.println();
+
+        // Cube maps are the directories of exactly six images
+        Map<File, List<File>> byDir = new TreeMap<>();
+        for (File file : files) byDir.computeIfAbsent(file.getParentFile(), k -> new ArrayList<>()).add(file);
+        for (Map.Entry<File, List<File>> faces : byDir.entrySet()) {
+            if (faces.getValue().size() != 6) continue;
+            List<File> six = faces.getValue();
+            double serial = time(f -> {
+                for (File face : six) ImageDecoder.decode(face, false);
+                return null;
+            }, null);
+            double parallel = time(f -> six.parallelStream().map(face -> {
+                try {
+                    return ImageDecoder.decode(face, false);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }).toArray(), null);
+            System.out.printf("Cube map %s: %.2f ms one at a time, %.2f ms in parallel%n",
+                    dir.relativize(faces.getKey().toPath()), serial, parallel);
+        }
+    }
+
+    private static Object legacy(File file, GLProfile profile) throws IOException {
+        BufferedImage img = ImageIO.read(file);
+        ImageUtil.flipImageVertically(img);
+        return profile == null ? img : AWTTextureIO.newTextureData(profile, img, false);
+    }
+
+    /**
+     * Mean wall time in milliseconds after warming up.
+     */
+    private static double time(Decode task, File file) throws IOException {
+        for (int i = 0; i < WARMUP; i++) task.decode(file);
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) task.decode(file);
+        return (System.nanoTime() - start) / 1e6 / RUNS;
+    }
+
+    /**
+     * Decode every file, keeping them all, and print the peak heap used
+     * over what was used before and the direct memory held afterwards.
+     */
+    private static void printMemory(String name, Decode task, List<File> files) throws IOException {
+        List<MemoryPoolMXBean> heap = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP).collect(Collectors.toList());
+        BufferPoolMXBean directPool = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("direct")).findFirst().orElse(null);
+
+        System.gc();
+        long heapBefore = heap.stream().mapToLong(pool -> pool.getUsage().getUsed()).sum();
+        long directBefore = directPool == null ? 0 : directPool.getMemoryUsed();
+        heap.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+        List<Object> kept = new ArrayList<>();
+        for (File file : files) kept.add(task.decode(file));
+
+        long heapPeak = heap.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+        long directHeld = directPool == null ? 0 : directPool.getMemoryUsed() - directBefore;
+        System.out.printf("  %-8s peak heap %7.1f MB, direct %7.1f MB (%d images)%n", name,
+                (heapPeak - heapBefore) / 1048576.0, directHeld / 1048576.0, kept.size());
+    }
+}
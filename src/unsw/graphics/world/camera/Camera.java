@@ -4,10 +4,13 @@ import com.jogamp.newt.event.MouseEvent;
 import com.jogamp.newt.event.MouseListener;
 import com.jogamp.newt.opengl.GLWindow;
 import com.jogamp.opengl.GL3;
+import unsw.graphics.Application;
 import unsw.graphics.CoordFrame3D;
 import unsw.graphics.Matrix4;
 import unsw.graphics.Shader;
+import unsw.graphics.Vector3;
 import unsw.graphics.geometry.Point2D;
+import unsw.graphics.geometry.Point3D;
 
 import java.awt.*;
 
@@ -24,6 +27,7 @@ public class Camera implements MouseListener {
     private float fov = 60;
 
     private Robot robot;
+    private Application application;
     private GLWindow window;
     private boolean hasFocus = false;
 
@@ -45,16 +49,19 @@ public class Camera implements MouseListener {
     /**
      * Camera constructor
      *
-     * @param window the application window
-     */
-    public Camera(GLWindow window) {
-        this.window = window;
-        this.centerX = window.getWidth() / 2;
-        this.centerY = window.getHeight() / 2;
-        try {
-            robot = new Robot();
-        } catch (AWTException e) {
-            e.printStackTrace();
+     * @param application the application, which has no window when headless
+     */
+    public Camera(Application application) {
+        this.application = application;
+        this.window = application.getWindow();
+        this.centerX = application.getWidth() / 2;
+        this.centerY = application.getHeight() / 2;
+        if (window != null) {
+            try {
+                robot = new Robot();
+            } catch (AWTException e) {
+                e.printStackTrace();
+            }
         }
         this.mousePos = new Point2D(0, 0);
     }
@@ -79,7 +86,7 @@ public class Camera implements MouseListener {
      * Move mouse to the center of the window.
      */
     public void resetMousePosition() {
-        robot.mouseMove(window.getX() + centerX, window.getY() + centerY);
+        if (robot != null) robot.mouseMove(window.getX() + centerX, window.getY() + centerY);
     }
 
     /**
@@ -100,6 +107,77 @@ public class Camera implements MouseListener {
         fov = angle;
     }
 
+    /**
+     * How many pixels high something 1 unit high appears at distance 1,
+     * dividing by the distance gives its size on screen further away.
+     *
+     * @return
+     */
+    public float getPixelScale() {
+        return application.getHeight() / (2 * (float) Math.tan(Math.toRadians(fov) / 2));
+    }
+
+    /**
+     * The vertical field of view in degrees.
+     * @return
+     */
+    public float getFOV() {
+        return fov;
+    }
+
+    public float getNear() {
+        return NEAR;
+    }
+
+    public float getFar() {
+        return FAR;
+    }
+
+    /**
+     * Width of the window the camera draws to, in pixels.
+     * @return
+     */
+    public int getViewportWidth() {
+        return application.getWidth();
+    }
+
+    public int getViewportHeight() {
+        return application.getHeight();
+    }
+
+    /**
+     * Gets the camera's position in the world.
+     * @return
+     */
+    public Point3D getPosition() {
+        return new Point3D(transX, transY, transZ);
+    }
+
+    /**
+     * Gets the direction in the world that passes through the given window
+     * position, e.g. for picking what is under the mouse.
+     *
+     * @param x window x coordinate
+     * @param y window y coordinate, from the top
+     * @return
+     */
+    public Vector3 getPickDirection(int x, int y) {
+        float aspect = application.getWidth() / (float) application.getHeight();
+        float tan = (float) Math.tan(Math.toRadians(fov) / 2);
+
+        // From window coordinates to a direction in camera coordinates
+        float ndcX = 2f * x / application.getWidth() - 1;
+        float ndcY = 1 - 2f * y / application.getHeight();
+        Vector3 direction = new Vector3(ndcX * aspect * tan, ndcY * tan, -1);
+
+        // Undo the view rotation
+        return CoordFrame3D.identity()
+                .rotateZ(rotateZ)
+                .rotateY(rotateY)
+                .rotateX(rotateX)
+                .transform(direction);
+    }
+
     /**
      * Sets the camera transform position
      *
@@ -143,11 +221,39 @@ public class Camera implements MouseListener {
      * @param gl
      */
     public void setViewMatrix(GL3 gl) {
+        Shader.setViewMatrix(gl, getViewMatrix());
+    }
+
+    /**
+     * The view matrix as last set, or as it would be set for where the
+     * camera is now.
+     *
+     * @return
+     */
+    public Matrix4 getViewMatrix() {
         CoordFrame3D viewFrame = CoordFrame3D.identity()
                 .scale(1/scale, 1/scale, 1/scale)
                 .rotate(-rotateX, -rotateY, -rotateZ)
                 .translate(-transX, -transY, -transZ);
-        Shader.setViewMatrix(gl, viewFrame.getMatrix());
+        return viewFrame.getMatrix();
+    }
+
+    /**
+     * The projection matrix for the application's window.
+     *
+     * @return
+     */
+    public Matrix4 getProjMatrix() {
+        return Matrix4.perspective(fov, application.getWidth() / (float) application.getHeight(), NEAR, FAR);
+    }
+
+    /**
+     * What the camera sees with its view matrix as last set.
+     *
+     * @return
+     */
+    public Frustum getFrustum() {
+        return new Frustum(getProjMatrix().multiply(getViewMatrix()));
     }
 
     /**
@@ -156,12 +262,13 @@ public class Camera implements MouseListener {
      * @param gl
      */
     public void setProjMatrix(GL3 gl) {
-        reshape(gl, window.getWidth(), window.getHeight());
+        reshape(gl, application.getWidth(), application.getHeight());
     }
 
     /**
-     * Sets the view matrix for the skybox shader, discarding the camera's
-     * rotation transformations, along with the projection matrix.
+     * Sets the skybox shader's matrix from the far plane in normalised
+     * device coordinates back to directions from the camera, the inverse of
+     * the projection times the view without its translation.
      *
      * @param gl
      */
@@ -169,14 +276,13 @@ public class Camera implements MouseListener {
         CoordFrame3D viewFrame = CoordFrame3D.identity()
                 .scale(1/scale, 1/scale, 1/scale)
                 .rotate(-rotateX, -rotateY, -rotateZ);
-        Shader.setViewMatrix(gl, viewFrame.getMatrix());
-        reshape(gl, window.getWidth(), window.getHeight());
+        Shader.setMatrix4(gl, "inverse_view_proj", getProjMatrix().multiply(viewFrame.getMatrix()).inverse());
     }
 
     @Override
     public void mouseClicked(MouseEvent e) {
         hasFocus = !hasFocus;
-        window.setPointerVisible(!hasFocus);
+        if (window != null) window.setPointerVisible(!hasFocus);
         if (hasFocus) resetMousePosition();
     }
 
@@ -1,8 +1,8 @@
 package unsw.graphics.world.camera;
 
 import com.jogamp.newt.event.*;
-import com.jogamp.newt.opengl.GLWindow;
 import com.jogamp.opengl.GL3;
+import unsw.graphics.Application;
 import unsw.graphics.geometry.Point2D;
 import unsw.graphics.world.avatar.Avatar;
 
@@ -21,8 +21,8 @@ public class FirstPersonCamera extends Camera {
 
     private float zoom = 0;
 
-    public FirstPersonCamera(GLWindow window, Avatar avatar) {
-        super(window);
+    public FirstPersonCamera(Application application, Avatar avatar) {
+        super(application);
         this.avatar = avatar;
     }
 
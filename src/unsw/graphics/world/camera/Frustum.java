@@ -0,0 +1,53 @@
+package unsw.graphics.world.camera;
+
+import unsw.graphics.Matrix4;
+import unsw.graphics.geometry.Point3D;
+
+/**
+ * The six planes bounding what a camera sees, taken from the rows of its
+ * projection times view matrix, for culling things that can't be seen.
+ */
+public class Frustum {
+
+    // a, b, c, d of each plane with ax + by + cz + d >= 0 inside, normalised
+    private final float[][] planes = new float[6][4];
+
+    /**
+     * @param viewProjection the projection matrix times the view matrix
+     */
+    public Frustum(Matrix4 viewProjection) {
+        float[] m = viewProjection.getValues();
+        for (int i = 0; i < 6; i++) {
+            // Left, right, bottom, top, near, far: row 3 plus or minus row 0, 1, 2
+            int row = i / 2;
+            float sign = i % 2 == 0 ? 1 : -1;
+            float length = 0;
+            for (int c = 0; c < 4; c++) {
+                planes[i][c] = m[c * 4 + 3] + sign * m[c * 4 + row];
+                if (c < 3) length += planes[i][c] * planes[i][c];
+            }
+            length = (float) Math.sqrt(length);
+            for (int c = 0; c < 4; c++) planes[i][c] /= length;
+        }
+    }
+
+    /**
+     * Whether any of a sphere may be inside. Spheres near the corners
+     * outside can pass, which is safe for culling.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param radius
+     * @return
+     */
+    public boolean intersectsSphere(float x, float y, float z, float radius) {
+        for (float[] p : planes)
+            if (p[0] * x + p[1] * y + p[2] * z + p[3] < -radius) return false;
+        return true;
+    }
+
+    public boolean intersectsSphere(Point3D centre, float radius) {
+        return intersectsSphere(centre.getX(), centre.getY(), centre.getZ(), radius);
+    }
+}
@@ -1,9 +1,11 @@
 package unsw.graphics.world.camera;
 
 import com.jogamp.newt.event.MouseEvent;
-import com.jogamp.newt.opengl.GLWindow;
 import com.jogamp.opengl.GL3;
+import unsw.graphics.Application;
+import unsw.graphics.Vector3;
 import unsw.graphics.geometry.Point2D;
+import unsw.graphics.geometry.Point3D;
 import unsw.graphics.world.Utility;
 import unsw.graphics.world.avatar.Avatar;
 
@@ -20,6 +22,9 @@ public class ThirdPersonCamera extends Camera {
     // negative so that the camera follows the mouse, not inverted
     private static final float ROTATION_SCALE = -0.2f;
 
+    // How far the camera is kept from the terrain
+    private static final float COLLISION_MARGIN = 0.2f;
+
     private Avatar avatar;
 
     private float mouseDx = 0;
@@ -36,11 +41,11 @@ public class ThirdPersonCamera extends Camera {
     /**
      * Constructor for a camera that follows an avatar in the world
      *
-     * @param window application window
+     * @param application the application
      * @param avatar the avatar this camera is attached to
      */
-    public ThirdPersonCamera(GLWindow window, Avatar avatar) {
-        super(window);
+    public ThirdPersonCamera(Application application, Avatar avatar) {
+        super(application);
         this.avatar = avatar;
     }
 
@@ -68,10 +73,20 @@ public class ThirdPersonCamera extends Camera {
         float horizontal = distance * (float) Math.cos(Math.toRadians(totalAngleX));
 
         // Calculate the camera's position based on its offset from the avatar
-        float x = avatar.getPosX() + (float) Math.sin(Math.toRadians(totalAngleY)) * horizontal;
-        float y = avatar.getPosY() + vertical;
-        float z = avatar.getPosZ() + (float) Math.cos(Math.toRadians(totalAngleY)) * horizontal;
-        setPosition(x, y, z);
+        Vector3 offset = new Vector3(
+                (float) Math.sin(Math.toRadians(totalAngleY)) * horizontal,
+                vertical,
+                (float) Math.cos(Math.toRadians(totalAngleY)) * horizontal);
+
+        // Pull the camera in front of any hill between it and the avatar
+        Point3D target = avatar.getPosition();
+        Point3D hit = avatar.getTerrain().raycast(target, offset, distance + COLLISION_MARGIN);
+        if (hit != null) {
+            float clear = Math.max(hit.minus(target).length() - COLLISION_MARGIN, 0);
+            offset = offset.normalize().scale(clear);
+        }
+        setPosition(target.getX() + offset.getX(), target.getY() + offset.getY(),
+                target.getZ() + offset.getZ());
 
         // total pitch is negative since we want the camera to rotate down to the avatar
         // total angle about the Y-axis is set so the camera always faces the avatar
@@ -0,0 +1,362 @@
+package unsw.graphics.world.lighting;
+
+import java.util.Arrays;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import unsw.graphics.Matrix4;
+import unsw.graphics.Shader;
+import unsw.graphics.Vector3;
+import unsw.graphics.world.camera.Camera;
+import unsw.graphics.world.render.GLState;
+import unsw.graphics.world.render.RenderQueue;
+import unsw.graphics.world.render.Sampler;
+
+/**
+ * Shadows of the sun, drawn into a depth texture array with one layer for
+ * each cascade, a slice of the camera's view further away than the last.
+ *
+ * Each cascade is fitted with a bounding sphere of its slice of the view,
+ * so its size doesn't change as the camera turns, and its centre is
+ * snapped to whole shadow map texels, so shadow edges don't shimmer as the
+ * camera moves. Nearer cascades cover less and so have sharper shadows.
+ *
+ * The shadow maps are drawn by a {@link RenderQueue} pre-pass, drawing the
+ * queue's opaque items again with a depth only program. Further cascades
+ * can be redrawn less often, the shader keeps using the matrix each was
+ * last drawn with.
+ */
+public class CascadedShadows {
+
+    // Texture unit the shadow maps are bound to for the whole frame
+    public static final int SHADOW_UNIT = 5;
+
+    public static final int DEFAULT_CASCADES = 3;
+    public static final int MAX_CASCADES = 4;
+
+    private static final String VERTEX_SHADER = "shaders/shadow_vertex.glsl";
+    private static final String FRAGMENT_SHADER = "shaders/shadow_fragment.glsl";
+
+    private static final int DEFAULT_SIZE = 2048;
+
+    // How far from the camera shadows are drawn
+    private static final float DEFAULT_DISTANCE = 60;
+
+    // Mix of logarithmic and even splits, more logarithmic nearer 1
+    private static final float SPLIT_LAMBDA = 0.75f;
+
+    // How far towards the sun beyond a cascade things still cast shadows
+    // into it
+    private static final float CASTER_DISTANCE = 100;
+
+    // Slope scaled and constant depth offset against shadow acne
+    private static final float OFFSET_FACTOR = 2;
+    private static final float OFFSET_UNITS = 4;
+
+    private static final Matrix4 BIAS = Matrix4.translation(0.5f, 0.5f, 0.5f).multiply(Matrix4.scale(0.5f, 0.5f, 0.5f));
+
+    private final Sunlight sun;
+    private final RenderQueue queue;
+    private final int cascades;
+    private final int size;
+    private float distance = DEFAULT_DISTANCE;
+
+    // Frames between redrawing each cascade
+    private int[] intervals;
+
+    private Shader depthShader;
+    private int texture, framebuffer;
+
+    // Light space view and projection each cascade was last drawn with
+    private final Matrix4[] lightMatrices;
+    private final float[] texelSizes;
+    private final boolean[] drawn;
+    private Vector3 lastDirection;
+    private boolean sunUp = false;
+    private long frame = 0;
+    private int lastDrawn = 0;
+
+    /**
+     * @param sun      casts the shadows
+     * @param queue    draws the casters
+     * @param cascades 1 to MAX_CASCADES
+     */
+    public CascadedShadows(Sunlight sun, RenderQueue queue, int cascades) {
+        if (cascades < 1 || cascades > MAX_CASCADES)
+            throw new IllegalArgumentException("Cascades must be 1 to " + MAX_CASCADES + ": " + cascades);
+        this.sun = sun;
+        this.queue = queue;
+        this.cascades = cascades;
+        this.size = DEFAULT_SIZE;
+        this.lightMatrices = new Matrix4[cascades];
+        this.texelSizes = new float[cascades];
+        this.drawn = new boolean[cascades];
+
+        // Nearest every frame, each further one half as often
+        intervals = new int[cascades];
+        for (int i = 0; i < cascades; i++) intervals[i] = 1 << i;
+    }
+
+    /**
+     * Set how many frames pass between redrawing each cascade, nearest
+     * first. Cascades not given are redrawn as often as the last given.
+     *
+     * @param intervals at least 1
+     */
+    public void setUpdateIntervals(int... intervals) {
+        if (intervals.length == 0) throw new IllegalArgumentException("No intervals");
+        for (int i = 0; i < cascades; i++) {
+            int interval = intervals[Math.min(i, intervals.length - 1)];
+            if (interval < 1) throw new IllegalArgumentException("Interval must be at least 1: " + interval);
+            this.intervals[i] = interval;
+        }
+    }
+
+    /**
+     * Set how far from the camera shadows are drawn.
+     *
+     * @param distance
+     */
+    public void setDistance(float distance) {
+        this.distance = distance;
+        Arrays.fill(drawn, false);
+    }
+
+    /**
+     * Create the shadow maps and the depth only program, and have the queue
+     * keep the maps bound and draw them before each frame.
+     *
+     * @param gl
+     */
+    public void init(GL3 gl) {
+        depthShader = new Shader(gl, VERTEX_SHADER, FRAGMENT_SHADER);
+
+        int[] names = new int[1];
+        gl.glGenTextures(1, names, 0);
+        texture = names[0];
+        gl.glBindTexture(GL3.GL_TEXTURE_2D_ARRAY, texture);
+        gl.glTexImage3D(GL3.GL_TEXTURE_2D_ARRAY, 0, GL.GL_DEPTH_COMPONENT24, size, size, cascades, 0,
+                GL3.GL_DEPTH_COMPONENT, GL.GL_FLOAT, null);
+        gl.glTexParameteri(GL3.GL_TEXTURE_2D_ARRAY, GL3.GL_TEXTURE_MAX_LEVEL, 0);
+        gl.glBindTexture(GL3.GL_TEXTURE_2D_ARRAY, 0);
+
+        int[] previous = new int[1];
+        gl.glGetIntegerv(GL.GL_FRAMEBUFFER_BINDING, previous, 0);
+        gl.glGenFramebuffers(1, names, 0);
+        framebuffer = names[0];
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebuffer);
+        gl.glFramebufferTextureLayer(GL.GL_FRAMEBUFFER, GL.GL_DEPTH_ATTACHMENT, texture, 0, 0);
+        gl.glDrawBuffer(GL.GL_NONE);
+        gl.glReadBuffer(GL.GL_NONE);
+        int status = gl.glCheckFramebufferStatus(GL.GL_FRAMEBUFFER);
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, previous[0]);
+        if (status != GL.GL_FRAMEBUFFER_COMPLETE)
+            throw new IllegalStateException("Shadow framebuffer incomplete: 0x" + Integer.toHexString(status));
+
+        queue.bindForFrame(SHADOW_UNIT, GL3.GL_TEXTURE_2D_ARRAY, texture, Sampler.SHADOW);
+        queue.addPrePass("shadows", this::render);
+    }
+
+    /**
+     * Draw whichever cascades are due this frame. The queue must already
+     * be sorted, as it is in a pre-pass.
+     *
+     * @param gl
+     */
+    public void render(GL3 gl) {
+        frame++;
+        lastDrawn = 0;
+        Vector3 direction = sun.getDirection();
+        sunUp = direction.getY() > 0;
+        if (!sunUp) return;
+
+        // The sun moving leaves every cascade out of date
+        if (lastDirection == null || !sameDirection(direction, lastDirection)) {
+            Arrays.fill(drawn, false);
+            lastDirection = direction;
+        }
+
+        Camera camera = queue.getCamera();
+        GLState state = queue.getState();
+        int[] previous = new int[5];
+        gl.glGetIntegerv(GL.GL_FRAMEBUFFER_BINDING, previous, 0);
+        gl.glGetIntegerv(GL.GL_VIEWPORT, previous, 1);
+
+        // Cameras following the avatar only move when their view is set
+        camera.setViewMatrix(gl);
+        Matrix4 inverseView = inverseAffine(camera.getViewMatrix());
+        Matrix4 lightView = lightView(direction);
+
+        float near = camera.getNear(), far = Math.min(camera.getFar(), distance);
+        float tanY = (float) Math.tan(Math.toRadians(camera.getFOV()) / 2);
+        float tanX = tanY * camera.getViewportWidth() / camera.getViewportHeight();
+        float k2 = tanX * tanX + tanY * tanY;
+
+        boolean bound = false;
+        for (int i = 0; i < cascades; i++) {
+            if (drawn[i] && (frame + i) % intervals[i] != 0) continue;
+            if (!bound) {
+                gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebuffer);
+                gl.glViewport(0, 0, size, size);
+                state.useProgram(gl, depthShader.getId());
+                state.depthMask(gl, true);
+                state.enable(gl, GL.GL_POLYGON_OFFSET_FILL);
+                state.polygonOffset(gl, OFFSET_FACTOR, OFFSET_UNITS);
+                Shader.setViewMatrix(gl, lightView);
+                bound = true;
+            }
+
+            // Bounding sphere of the slice in view space, its centre on the
+            // view axis and moved no further than the slice's far end
+            float n = split(i, near, far), f = split(i + 1, near, far);
+            float centre = Math.min(f, (f + n) * (1 + k2) / 2);
+            float radius = (float) Math.sqrt((f - centre) * (f - centre) + f * f * k2);
+            float[] c = transform(inverseView, 0, 0, -centre);
+            float worldRadius = radius * length(inverseView, 0);
+
+            // Rounding up keeps the size, and so the texel size, steady
+            worldRadius = (float) Math.ceil(worldRadius);
+            float texel = 2 * worldRadius / size;
+            float[] lc = transform(lightView, c[0], c[1], c[2]);
+            float x = (float) Math.floor(lc[0] / texel) * texel, y = (float) Math.floor(lc[1] / texel) * texel;
+            Matrix4 proj = Matrix4.orthographic(x - worldRadius, x + worldRadius, y - worldRadius,
+                    y + worldRadius, -(lc[2] + worldRadius + CASTER_DISTANCE), -(lc[2] - worldRadius));
+
+            lightMatrices[i] = proj.multiply(lightView);
+            texelSizes[i] = texel / length(inverseView, 0);
+            drawn[i] = true;
+            lastDrawn++;
+
+            gl.glFramebufferTextureLayer(GL.GL_FRAMEBUFFER, GL.GL_DEPTH_ATTACHMENT, texture, 0, i);
+            gl.glClear(GL.GL_DEPTH_BUFFER_BIT);
+            Shader.setProjMatrix(gl, proj);
+            queue.drawOpaque(gl);
+        }
+
+        if (bound) {
+            state.disable(gl, GL.GL_POLYGON_OFFSET_FILL);
+            gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, previous[0]);
+            gl.glViewport(previous[1], previous[2], previous[3], previous[4]);
+        }
+    }
+
+    /**
+     * Set the shader's shadow matrices, which take view space positions to
+     * shadow map coordinates, and its shadow map unit. The camera's view
+     * matrix must already be set for the frame.
+     *
+     * @param gl
+     */
+    public void setUniforms(GL3 gl) {
+        Shader.setInt(gl, "shadowMap", SHADOW_UNIT);
+        if (!sunUp) {
+            Shader.setInt(gl, "shadowCascades", 0);
+            return;
+        }
+
+        Matrix4 inverseView = inverseAffine(queue.getCamera().getViewMatrix());
+        int count = 0;
+        for (int i = 0; i < cascades && drawn[i]; i++, count++) {
+            Shader.setMatrix4(gl, "shadowMatrices[" + i + "]", BIAS.multiply(lightMatrices[i]).multiply(inverseView));
+            Shader.setFloat(gl, "shadowTexelSizes[" + i + "]", texelSizes[i]);
+        }
+        Shader.setInt(gl, "shadowCascades", count);
+    }
+
+    /**
+     * Distance from the camera to the start of a cascade.
+     */
+    private float split(int i, float near, float far) {
+        if (i == 0) return near;
+        if (i == cascades) return far;
+        float t = i / (float) cascades;
+        float log = near * (float) Math.pow(far / near, t);
+        float even = near + (far - near) * t;
+        return SPLIT_LAMBDA * log + (1 - SPLIT_LAMBDA) * even;
+    }
+
+    /**
+     * A view looking down the sunlight, from the world's origin.
+     */
+    private static Matrix4 lightView(Vector3 direction) {
+        Vector3 z = normalize(direction);
+        Vector3 up = Math.abs(z.getY()) > 0.99f ? new Vector3(1, 0, 0) : new Vector3(0, 1, 0);
+        Vector3 x = normalize(up.cross(z));
+        Vector3 y = z.cross(x);
+        return new Matrix4(new float[] {
+            x.getX(), y.getX(), z.getX(), 0,
+            x.getY(), y.getY(), z.getY(), 0,
+            x.getZ(), y.getZ(), z.getZ(), 0,
+            0, 0, 0, 1
+        });
+    }
+
+    /**
+     * Invert a matrix with no projection, such as a view matrix.
+     */
+    private static Matrix4 inverseAffine(Matrix4 matrix) {
+        float[] m = matrix.getValues();
+        float a = m[0], b = m[4], c = m[8];
+        float d = m[1], e = m[5], f = m[9];
+        float g = m[2], h = m[6], k = m[10];
+        float det = a * (e * k - f * h) - b * (d * k - f * g) + c * (d * h - e * g);
+
+        // Rows of the inverse of the upper 3x3
+        float[][] r = {
+            { (e * k - f * h) / det, (c * h - b * k) / det, (b * f - c * e) / det },
+            { (f * g - d * k) / det, (a * k - c * g) / det, (c * d - a * f) / det },
+            { (d * h - e * g) / det, (b * g - a * h) / det, (a * e - b * d) / det }
+        };
+        float[] inverse = new float[16];
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) inverse[col * 4 + row] = r[row][col];
+            inverse[12 + row] = -(r[row][0] * m[12] + r[row][1] * m[13] + r[row][2] * m[14]);
+        }
+        inverse[15] = 1;
+        return new Matrix4(inverse);
+    }
+
+    private static float[] transform(Matrix4 matrix, float x, float y, float z) {
+        float[] m = matrix.getValues();
+        float[] p = new float[3];
+        for (int row = 0; row < 3; row++) p[row] = m[row] * x + m[4 + row] * y + m[8 + row] * z + m[12 + row];
+        return p;
+    }
+
+    /**
+     * Length of a column of a matrix, its scale along that axis.
+     */
+    private static float length(Matrix4 matrix, int column) {
+        float[] m = matrix.getValues();
+        int c = column * 4;
+        return (float) Math.sqrt(m[c] * m[c] + m[c + 1] * m[c + 1] + m[c + 2] * m[c + 2]);
+    }
+
+    private static Vector3 normalize(Vector3 v) {
+        float length = (float) Math.sqrt(v.dotp(v));
+        return new Vector3(v.getX() / length, v.getY() / length, v.getZ() / length);
+    }
+
+    private static boolean sameDirection(Vector3 a, Vector3 b) {
+        return a.getX() == b.getX() && a.getY() == b.getY() && a.getZ() == b.getZ();
+    }
+
+    public int getCascades() {
+        return cascades;
+    }
+
+    public int getTexture() {
+        return texture;
+    }
+
+    public String summary() {
+        return String.format("%d shadow cascades, %d drawn%s", cascades, lastDrawn, sunUp ? "" : ", sun down");
+    }
+
+    public void destroy(GL3 gl) {
+        depthShader.destroy(gl);
+        gl.glDeleteTextures(1, new int[] { texture }, 0);
+        gl.glDeleteFramebuffers(1, new int[] { framebuffer }, 0);
+    }
+}
@@ -0,0 +1,158 @@
+package unsw.graphics.world.lighting;
+
+import java.awt.Color;
+import java.nio.FloatBuffer;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import unsw.graphics.world.render.GLState;
+import unsw.graphics.world.render.RenderQueue;
+import unsw.graphics.world.render.Sampler;
+
+/**
+ * The sun's colour, the ambient light and the sky's tint at every step of
+ * a day and night, worked out once rather than by every fragment.
+ *
+ * The table is a texture one texel wide for each step, with a row for each
+ * of the three colours, so a shader samples each with the time of day as
+ * its x and the row's centre as its y.
+ */
+public class DaylightTable {
+
+    // Texture unit the table is bound to for the whole frame
+    public static final int DAYLIGHT_UNIT = 6;
+
+    public static final int SUN_ROW = 0;
+    public static final int AMBIENT_ROW = 1;
+    public static final int SKY_ROW = 2;
+    private static final int ROWS = 3;
+
+    // Darkest the sky gets in the day, red, green and blue
+    private static final float[] SKY_FLOOR = { 0.18f, 0.12f, 0.10f };
+
+    // Darkest the sky gets at night
+    private static final float NIGHT_SKY = 0.1f;
+
+    private final int day;
+    private final int night;
+    private final float[] table;
+
+    private Color sun, ambient;
+    private boolean uploaded = false;
+    private int texture;
+    private GLState state;
+
+    /**
+     * @param day   steps of daytime
+     * @param night steps of night
+     */
+    public DaylightTable(int day, int night) {
+        this.day = day;
+        this.night = night;
+        this.table = new float[(day + night) * ROWS * 4];
+    }
+
+    /**
+     * Fill the table for the given sunlight and ambient light, if they
+     * changed.
+     *
+     * @param sun
+     * @param ambient
+     */
+    public void build(Color sun, Color ambient) {
+        if (sun.equals(this.sun) && ambient.equals(this.ambient)) return;
+        this.sun = sun;
+        this.ambient = ambient;
+        uploaded = false;
+
+        float[] s = sun.getRGBColorComponents(null), a = ambient.getRGBColorComponents(null);
+        float dusk = day + night / 3f;
+        for (int time = 0; time < day + night; time++) {
+            // The sun reddens through the day and sets a third into the night
+            float red = time < dusk ? s[0] : 0;
+            set(SUN_ROW, time, red, red - red * time / (3f * day), red - red * time / (2.5f * day));
+
+            set(AMBIENT_ROW, time, a[0], a[1], a[2]);
+
+            float[] sky = new float[3];
+            for (int c = 0; c < 3; c++) {
+                if (time < day) {
+                    float period = (float) Math.sin(time / (float) day * Math.PI);
+                    sky[c] = Math.max(s[c] * period, SKY_FLOOR[c]);
+                } else {
+                    float period = (float) Math.sin((time - day) / (float) night * Math.PI);
+                    sky[c] = Math.max(SKY_FLOOR[c] - period, NIGHT_SKY);
+                }
+            }
+            set(SKY_ROW, time, sky[0], sky[1], sky[2]);
+        }
+    }
+
+    private void set(int row, int time, float r, float g, float b) {
+        int i = (row * (day + night) + time) * 4;
+        table[i] = r;
+        table[i + 1] = g;
+        table[i + 2] = b;
+        table[i + 3] = 1;
+    }
+
+    /**
+     * A colour from the table, as a shader would sample it.
+     *
+     * @param row
+     * @param time step of the day and night
+     * @return red, green and blue
+     */
+    public float[] get(int row, int time) {
+        int i = (row * (day + night) + time) * 4;
+        return new float[] { table[i], table[i + 1], table[i + 2] };
+    }
+
+    /**
+     * Where a shader samples the table for a step of the day and night,
+     * the centre of the step's texel.
+     *
+     * @param time
+     * @return
+     */
+    public float coordinate(int time) {
+        return (Math.max(0, Math.min(day + night - 1, time)) + 0.5f) / (day + night);
+    }
+
+    /**
+     * Create the texture and have the queue keep it bound.
+     *
+     * @param gl
+     * @param queue
+     */
+    public void init(GL3 gl, RenderQueue queue) {
+        int[] names = new int[1];
+        gl.glGenTextures(1, names, 0);
+        texture = names[0];
+        state = queue.getState();
+        upload(gl);
+        queue.bindForFrame(DAYLIGHT_UNIT, GL.GL_TEXTURE_2D, texture, Sampler.LINEAR_CLAMP);
+    }
+
+    /**
+     * Upload the table if it was rebuilt since last uploaded, through the
+     * queue's state so it can be done mid frame.
+     *
+     * @param gl
+     */
+    public void upload(GL3 gl) {
+        if (uploaded || texture == 0) return;
+        FloatBuffer data = Buffers.newDirectFloatBuffer(table);
+        state.activeTexture(gl, DAYLIGHT_UNIT);
+        state.bindTexture(gl, DAYLIGHT_UNIT, GL.GL_TEXTURE_2D, texture);
+        gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_RGBA16F, day + night, ROWS, 0, GL.GL_RGBA, GL.GL_FLOAT, data);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAX_LEVEL, 0);
+        uploaded = true;
+    }
+
+    public void destroy(GL3 gl) {
+        gl.glDeleteTextures(1, new int[] { texture }, 0);
+    }
+}
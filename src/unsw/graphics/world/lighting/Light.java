@@ -13,6 +13,14 @@ public abstract class Light {
         isLightOn = !isLightOn;
     }
 
+    /**
+     * Turn this light on or off
+     * @param on
+     */
+    public void setLightOn(boolean on) {
+        isLightOn = on;
+    }
+
     /**
      * Check on/off
      * @return
@@ -0,0 +1,247 @@
+package unsw.graphics.world.lighting;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Divides the view frustum into clusters, a grid of screen tiles each cut
+ * into slices of depth growing exponentially away from the camera, and
+ * lists the lights whose spheres reach into each cluster. A fragment then
+ * only has to loop over its own cluster's lights.
+ *
+ * Each depth slice is assigned on its own, so slices can be done in
+ * parallel, then the lists are packed into one array of light indices
+ * with an offset and count for every cluster.
+ *
+ * Everything is in view space, looking down -z.
+ */
+public class LightClusters {
+
+    private final int tilesX;
+    private final int tilesY;
+    private final int slices;
+
+    private float tanX, tanY, near, far;
+
+    // View space bounds of each cluster, min x, y, z then max x, y, z
+    private float[] bounds;
+
+    // Each slice's lights in each of its tiles, before packing
+    private final int[][][] lists;
+    private final int[][] counts;
+
+    // Offset and count of each cluster's lights in indices
+    private final int[] grid;
+    private int[] indices = new int[256];
+    private int indexCount = 0;
+
+    /**
+     * @param tilesX across the screen
+     * @param tilesY up the screen
+     * @param slices in depth
+     */
+    public LightClusters(int tilesX, int tilesY, int slices) {
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        this.slices = slices;
+        int tiles = tilesX * tilesY;
+        lists = new int[slices][tiles][];
+        counts = new int[slices][tiles];
+        for (int[][] slice : lists)
+            for (int t = 0; t < tiles; t++) slice[t] = new int[8];
+        grid = new int[tiles * slices * 2];
+    }
+
+    /**
+     * Set the frustum the clusters divide, recomputing their bounds if it
+     * changed.
+     *
+     * @param fovY   in degrees
+     * @param aspect width over height
+     * @param near
+     * @param far
+     */
+    public void setProjection(float fovY, float aspect, float near, float far) {
+        float tanY = (float) Math.tan(Math.toRadians(fovY) / 2);
+        float tanX = tanY * aspect;
+        if (bounds != null && tanX == this.tanX && tanY == this.tanY && near == this.near && far == this.far)
+            return;
+        this.tanX = tanX;
+        this.tanY = tanY;
+        this.near = near;
+        this.far = far;
+
+        bounds = new float[tilesX * tilesY * slices * 6];
+        for (int k = 0; k < slices; k++) {
+            float d0 = sliceDepth(k), d1 = sliceDepth(k + 1);
+            for (int j = 0; j < tilesY; j++) {
+                float y0 = 2f * j / tilesY - 1, y1 = 2f * (j + 1) / tilesY - 1;
+                for (int i = 0; i < tilesX; i++) {
+                    float x0 = 2f * i / tilesX - 1, x1 = 2f * (i + 1) / tilesX - 1;
+                    int b = cluster(i, j, k) * 6;
+                    // The tile's edges are furthest out at whichever end
+                    // of the slice is further away
+                    bounds[b] = Math.min(x0 * d0, x0 * d1) * tanX;
+                    bounds[b + 1] = Math.min(y0 * d0, y0 * d1) * tanY;
+                    bounds[b + 2] = -d1;
+                    bounds[b + 3] = Math.max(x1 * d0, x1 * d1) * tanX;
+                    bounds[b + 4] = Math.max(y1 * d0, y1 * d1) * tanY;
+                    bounds[b + 5] = -d0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Distance from the camera to the near side of a slice.
+     */
+    private float sliceDepth(int k) {
+        return near * (float) Math.pow(far / near, k / (float) slices);
+    }
+
+    /**
+     * Assign lights to the clusters they reach.
+     *
+     * @param lights   view space x, y, z and radius, 4 floats a light
+     * @param count    number of lights
+     * @param parallel whether to assign the slices in parallel
+     */
+    public void assign(float[] lights, int count, boolean parallel) {
+        if (bounds == null) throw new IllegalStateException("No projection set");
+        IntStream range = IntStream.range(0, slices);
+        if (parallel) range = range.parallel();
+        range.forEach(k -> assignSlice(k, lights, count));
+        pack();
+    }
+
+    private void assignSlice(int k, float[] lights, int count) {
+        int[][] tileLists = lists[k];
+        int[] tileCounts = counts[k];
+        Arrays.fill(tileCounts, 0);
+        float d0 = sliceDepth(k), d1 = sliceDepth(k + 1);
+
+        for (int l = 0; l < count; l++) {
+            float x = lights[l * 4], y = lights[l * 4 + 1], z = lights[l * 4 + 2], r = lights[l * 4 + 3];
+            float depth = -z;
+            if (depth + r < d0 || depth - r > d1) continue;
+
+            // Bound the tiles by where the sphere's box meets the slice
+            float dMin = Math.max(d0, depth - r), dMax = Math.min(d1, depth + r);
+            int i0 = tile(Math.min((x - r) / dMin, (x - r) / dMax) / tanX, tilesX);
+            int i1 = tile(Math.max((x + r) / dMin, (x + r) / dMax) / tanX, tilesX);
+            int j0 = tile(Math.min((y - r) / dMin, (y - r) / dMax) / tanY, tilesY);
+            int j1 = tile(Math.max((y + r) / dMin, (y + r) / dMax) / tanY, tilesY);
+
+            for (int j = j0; j <= j1; j++) {
+                for (int i = i0; i <= i1; i++) {
+                    int b = cluster(i, j, k) * 6;
+                    float dx = x - Math.max(bounds[b], Math.min(x, bounds[b + 3]));
+                    float dy = y - Math.max(bounds[b + 1], Math.min(y, bounds[b + 4]));
+                    float dz = z - Math.max(bounds[b + 2], Math.min(z, bounds[b + 5]));
+                    if (dx * dx + dy * dy + dz * dz > r * r) continue;
+
+                    int t = j * tilesX + i;
+                    if (tileCounts[t] == tileLists[t].length)
+                        tileLists[t] = Arrays.copyOf(tileLists[t], tileCounts[t] * 2);
+                    tileLists[t][tileCounts[t]++] = l;
+                }
+            }
+        }
+    }
+
+    /**
+     * The tile an x or y in normalised device coordinates falls in,
+     * clamped to the screen.
+     */
+    private static int tile(float ndc, int tiles) {
+        int t = (int) Math.floor((ndc + 1) / 2 * tiles);
+        return Math.max(0, Math.min(tiles - 1, t));
+    }
+
+    private void pack() {
+        int total = 0;
+        for (int[] slice : counts)
+            for (int c : slice) total += c;
+        if (indices.length < total) indices = new int[total * 2];
+
+        indexCount = 0;
+        int tiles = tilesX * tilesY;
+        for (int k = 0; k < slices; k++) {
+            for (int t = 0; t < tiles; t++) {
+                int c = (k * tiles + t) * 2;
+                grid[c] = indexCount;
+                grid[c + 1] = counts[k][t];
+                System.arraycopy(lists[k][t], 0, indices, indexCount, counts[k][t]);
+                indexCount += counts[k][t];
+            }
+        }
+    }
+
+    private int cluster(int i, int j, int k) {
+        return (k * tilesY + j) * tilesX + i;
+    }
+
+    /**
+     * The cluster a view space point is in, or -1 outside the frustum.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return
+     */
+    public int getCluster(float x, float y, float z) {
+        float depth = -z;
+        if (depth < near || depth > far) return -1;
+        float ndcX = x / (depth * tanX), ndcY = y / (depth * tanY);
+        if (Math.abs(ndcX) > 1 || Math.abs(ndcY) > 1) return -1;
+        int k = (int) (Math.log(depth / near) / Math.log(far / near) * slices);
+        return cluster(tile(ndcX, tilesX), tile(ndcY, tilesY), Math.min(k, slices - 1));
+    }
+
+    /**
+     * Offset and count of each cluster's lights in getIndices(), ordered by
+     * slice, then row, then column.
+     * @return
+     */
+    public int[] getGrid() {
+        return grid;
+    }
+
+    /**
+     * The lights of every cluster, as indices into the lights assigned.
+     * @return
+     */
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    public int getClusterCount() {
+        return tilesX * tilesY * slices;
+    }
+
+    public int getTilesX() {
+        return tilesX;
+    }
+
+    public int getTilesY() {
+        return tilesY;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    /**
+     * Most lights in any one cluster after the last assignment.
+     * @return
+     */
+    public int getMaxCount() {
+        int max = 0;
+        for (int c = 1; c < grid.length; c += 2) max = Math.max(max, grid[c]);
+        return max;
+    }
+}
@@ -0,0 +1,250 @@
+package unsw.graphics.world.lighting;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import unsw.graphics.Shader;
+import unsw.graphics.Vector3;
+import unsw.graphics.geometry.Point3D;
+import unsw.graphics.world.camera.Camera;
+import unsw.graphics.world.camera.Frustum;
+import unsw.graphics.world.render.RenderQueue;
+
+/**
+ * Every point light in the world, passed to the fragment shader through
+ * buffer textures.
+ *
+ * Once a frame the lights are culled against the camera's frustum, each
+ * as a sphere of its radius, and those left are assigned to
+ * {@link LightClusters}. The shader finds its fragment's cluster and only
+ * loops over that cluster's lights, so its cost depends on how many
+ * lights reach each fragment rather than on all of them. Each light's own
+ * contribution is cut off at its radius.
+ */
+public class LightManager {
+
+    // Texture units the light buffers are bound to for the whole frame
+    public static final int LIGHTS_UNIT = 2;
+    public static final int GRID_UNIT = 3;
+    public static final int INDICES_UNIT = 4;
+
+    // Screen tiles across and up, and depth slices
+    private static final int TILES_X = 16;
+    private static final int TILES_Y = 9;
+    private static final int SLICES = 24;
+
+    // Fewer visible lights than this are assigned on one thread, as
+    // handing out the slices would take longer
+    private static final int PARALLEL_LIGHTS = 64;
+
+    // RGBA32F texels for each light: view space position and radius,
+    // intensity, and the attenuation coefficients
+    private static final int TEXELS_PER_LIGHT = 3;
+
+    private final List<Pointlight> lights = new ArrayList<>();
+    private final LightClusters clusters = new LightClusters(TILES_X, TILES_Y, SLICES);
+
+    private int[] visible = new int[64];
+    private int visibleCount = 0;
+    private float[] viewLights = new float[64 * 4];
+    private boolean culled = false;
+
+    private int lightBuffer, lightTexture;
+    private int gridBuffer, gridTexture;
+    private int indexBuffer, indexTexture;
+    private FloatBuffer lightData = Buffers.newDirectFloatBuffer(64 * TEXELS_PER_LIGHT * 4);
+    private IntBuffer gridData = Buffers.newDirectIntBuffer(TILES_X * TILES_Y * SLICES * 2);
+    private IntBuffer indexData = Buffers.newDirectIntBuffer(256);
+
+    public void add(Pointlight light) {
+        lights.add(light);
+    }
+
+    public void remove(Pointlight light) {
+        lights.remove(light);
+    }
+
+    public List<Pointlight> getLights() {
+        return lights;
+    }
+
+    /**
+     * Create the buffers and have the queue keep them bound.
+     *
+     * @param gl
+     * @param queue
+     */
+    public void init(GL3 gl, RenderQueue queue) {
+        int[] names = new int[3];
+        gl.glGenBuffers(3, names, 0);
+        lightBuffer = names[0];
+        gridBuffer = names[1];
+        indexBuffer = names[2];
+        gl.glGenTextures(3, names, 0);
+        lightTexture = names[0];
+        gridTexture = names[1];
+        indexTexture = names[2];
+
+        // Buffer textures can't be empty
+        upload(gl, lightBuffer, lightData, Float.BYTES);
+        upload(gl, gridBuffer, gridData, Integer.BYTES);
+        upload(gl, indexBuffer, indexData, Integer.BYTES);
+        gl.glBindTexture(GL3.GL_TEXTURE_BUFFER, lightTexture);
+        gl.glTexBuffer(GL3.GL_TEXTURE_BUFFER, GL.GL_RGBA32F, lightBuffer);
+        gl.glBindTexture(GL3.GL_TEXTURE_BUFFER, gridTexture);
+        gl.glTexBuffer(GL3.GL_TEXTURE_BUFFER, GL3.GL_RG32I, gridBuffer);
+        gl.glBindTexture(GL3.GL_TEXTURE_BUFFER, indexTexture);
+        gl.glTexBuffer(GL3.GL_TEXTURE_BUFFER, GL3.GL_R32I, indexBuffer);
+        gl.glBindTexture(GL3.GL_TEXTURE_BUFFER, 0);
+
+        queue.bindForFrame(LIGHTS_UNIT, GL3.GL_TEXTURE_BUFFER, lightTexture, null);
+        queue.bindForFrame(GRID_UNIT, GL3.GL_TEXTURE_BUFFER, gridTexture, null);
+        queue.bindForFrame(INDICES_UNIT, GL3.GL_TEXTURE_BUFFER, indexTexture, null);
+    }
+
+    /**
+     * Start a frame, so the lights are culled again when next set.
+     */
+    public void begin() {
+        culled = false;
+    }
+
+    /**
+     * Set the shader's cluster parameters and buffer units, culling,
+     * clustering and uploading the lights the first time in a frame. The
+     * camera's matrices must already be set for the frame.
+     *
+     * @param gl
+     * @param camera
+     */
+    public void setUniforms(GL3 gl, Camera camera) {
+        int width = camera.getViewportWidth(), height = camera.getViewportHeight();
+        if (!culled) {
+            cull(camera.getFrustum());
+            toView(camera.getViewMatrix().getValues());
+            clusters.setProjection(camera.getFOV(), width / (float) height, camera.getNear(), camera.getFar());
+            clusters.assign(viewLights, visibleCount, visibleCount >= PARALLEL_LIGHTS);
+            upload(gl);
+            culled = true;
+        }
+        Shader.setInt(gl, "pointLights", LIGHTS_UNIT);
+        Shader.setInt(gl, "lightGrid", GRID_UNIT);
+        Shader.setInt(gl, "lightIndices", INDICES_UNIT);
+
+        // Pixels to tiles, and log distance to slices
+        Shader.setVector3(gl, "clusterCounts", new Vector3(TILES_X, TILES_Y, SLICES));
+        Shader.setVector3(gl, "clusterScale", new Vector3(TILES_X / (float) width, TILES_Y / (float) height,
+                SLICES / (float) Math.log(camera.getFar() / camera.getNear())));
+        Shader.setFloat(gl, "clusterNear", camera.getNear());
+    }
+
+    /**
+     * Find the lights that are on and may light something in the frustum.
+     *
+     * @param frustum
+     */
+    public void cull(Frustum frustum) {
+        visibleCount = 0;
+        for (int i = 0; i < lights.size(); i++) {
+            Pointlight light = lights.get(i);
+            if (!light.isLightOn() || light.getRadius() <= 0) continue;
+            if (!frustum.intersectsSphere(light.getPosition(), light.getRadius())) continue;
+            if (visibleCount == visible.length) visible = Arrays.copyOf(visible, visibleCount * 2);
+            visible[visibleCount++] = i;
+        }
+    }
+
+    /**
+     * Put the visible lights' positions in view space, with their radii.
+     *
+     * @param view column major
+     */
+    private void toView(float[] view) {
+        if (viewLights.length < visibleCount * 4) viewLights = new float[visibleCount * 8];
+        for (int v = 0; v < visibleCount; v++) {
+            Pointlight light = lights.get(visible[v]);
+            Point3D p = light.getPosition();
+            for (int row = 0; row < 3; row++)
+                viewLights[v * 4 + row] = view[row] * p.getX() + view[4 + row] * p.getY()
+                        + view[8 + row] * p.getZ() + view[12 + row];
+            viewLights[v * 4 + 3] = light.getRadius();
+        }
+    }
+
+    /**
+     * Write the visible lights and the clusters into their buffers.
+     */
+    private void upload(GL3 gl) {
+        int floats = Math.max(1, visibleCount) * TEXELS_PER_LIGHT * 4;
+        if (lightData.capacity() < floats) lightData = Buffers.newDirectFloatBuffer(floats * 2);
+        lightData.clear();
+        float[] rgb = new float[3];
+        for (int v = 0; v < visibleCount; v++) {
+            Pointlight light = lights.get(visible[v]);
+            light.getIntensity().getRGBColorComponents(rgb);
+            lightData.put(viewLights, v * 4, 4);
+            lightData.put(rgb[0]).put(rgb[1]).put(rgb[2]).put(0);
+            lightData.put(light.getConstant()).put(light.getLinear()).put(light.getQuadratic()).put(0);
+        }
+        if (visibleCount == 0) for (int i = 0; i < floats; i++) lightData.put(0);
+        lightData.flip();
+
+        gridData.clear();
+        gridData.put(clusters.getGrid()).flip();
+
+        int count = clusters.getIndexCount();
+        if (indexData.capacity() < Math.max(1, count)) indexData = Buffers.newDirectIntBuffer(count * 2);
+        indexData.clear();
+        indexData.put(clusters.getIndices(), 0, count);
+        if (count == 0) indexData.put(0);
+        indexData.flip();
+
+        upload(gl, lightBuffer, lightData, Float.BYTES);
+        upload(gl, gridBuffer, gridData, Integer.BYTES);
+        upload(gl, indexBuffer, indexData, Integer.BYTES);
+    }
+
+    /**
+     * Replace a buffer's store, which lets the driver keep the old one for
+     * draws still using it.
+     */
+    private static void upload(GL3 gl, int buffer, Buffer data, int size) {
+        gl.glBindBuffer(GL3.GL_TEXTURE_BUFFER, buffer);
+        gl.glBufferData(GL3.GL_TEXTURE_BUFFER, (long) data.remaining() * size, data, GL.GL_DYNAMIC_DRAW);
+        gl.glBindBuffer(GL3.GL_TEXTURE_BUFFER, 0);
+    }
+
+    public int getLightCount() {
+        return lights.size();
+    }
+
+    /**
+     * Lights that passed the last cull.
+     * @return
+     */
+    public int getVisibleCount() {
+        return visibleCount;
+    }
+
+    public LightClusters getClusters() {
+        return clusters;
+    }
+
+    public String summary() {
+        return String.format("%d of %d lights visible, at most %d a cluster", visibleCount, lights.size(),
+                clusters.getMaxCount());
+    }
+
+    public void destroy(GL3 gl) {
+        gl.glDeleteTextures(3, new int[] { lightTexture, gridTexture, indexTexture }, 0);
+        gl.glDeleteBuffers(3, new int[] { lightBuffer, gridBuffer, indexBuffer }, 0);
+    }
+}
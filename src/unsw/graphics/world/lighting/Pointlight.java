@@ -1,75 +1,104 @@
 package unsw.graphics.world.lighting;
 
 import com.jogamp.opengl.GL3;
-import unsw.graphics.CoordFrame3D;
+import unsw.graphics.geometry.Point3D;
 
-public class Pointlight {
+import java.awt.*;
 
-    private static final float MOVEMENT_SCALE = 0.04f;
-    private static final float ROTATION_SCALE = 2; // in degrees
+/**
+ * A light shining equally in every direction from a point, e.g. a lamp or
+ * an explosion. Point lights are drawn through a {@link LightManager}, which
+ * culls each one beyond the radius where it stops adding a visible amount.
+ */
+public class Pointlight extends Light {
 
-    private float altitude = 0;
+    // Attenuation below which a light adds less than a step of 8 bit colour
+    private static final float CUTOFF = 1 / 256f;
 
-    private float transX = 0;
-    private float transY = 0;
-    private float transZ = 0;
+    private Point3D position;
+    private Color intensity;
 
-    private float rotateX = 0;
-    private float rotateY = 0;
-    private float rotateZ = 0;
+    // Attenuation coefficients
+    private float constant = 1;
+    private float linear;
+    private float quadratic;
 
-    /**
-     * Constructor for a spotlight
-     */
-    public Pointlight() {
-    }
+    private float radius;
 
     /**
-     * Gets the avatar's local frame from give global frame.
-     * @param frame
-     * @return
+     * Constructor for a point light fading over about the given range, with
+     * attenuation coefficients as commonly tabulated for it.
+     *
+     * @param position
+     * @param intensity
+     * @param range in world units
      */
-    public CoordFrame3D getLocalFrame(CoordFrame3D frame) {
-        return frame.translate(transX, transY, transZ)
-                .rotate(rotateX, rotateY, rotateZ);
+    public Pointlight(Point3D position, Color intensity, float range) {
+        this.position = position;
+        this.intensity = intensity;
+        this.linear = 4.5f / range;
+        this.quadratic = 75 / (range * range);
+        updateRadius();
     }
 
-    public float getPosX() {
-        return transX;
+    public Point3D getPosition() {
+        return position;
     }
 
-    public float getPosY() {
-        return transY;
+    public void setPosition(Point3D position) {
+        this.position = position;
     }
 
-    public float getPosZ() {
-        return transZ;
+    public Color getIntensity() {
+        return intensity;
     }
 
     /**
-     * Sets the avatar rotation along the Y-axis
-     * @param angle degrees
+     * Sets the light's intensity, which changes how far it reaches.
+     * @param intensity
      */
-    public void setRotateY(float angle) {
-        rotateY = angle;
+    public void setIntensity(Color intensity) {
+        this.intensity = intensity;
+        updateRadius();
     }
 
-    /**
-     * Gets the avatar rotation along the Y-axis
-     * @return angle in degrees
-     */
-    public float getRotateY() {
-        return rotateY;
+    public float getConstant() {
+        return constant;
     }
 
-    public void init(GL3 gl) {
+    public float getLinear() {
+        return linear;
+    }
 
+    public float getQuadratic() {
+        return quadratic;
     }
 
-    public void draw(GL3 gl, CoordFrame3D frame) {
+    /**
+     * Distance beyond which the light is ignored.
+     * @return
+     */
+    public float getRadius() {
+        return radius;
+    }
 
+    /**
+     * Solve constant + linear d + quadratic d^2 = brightest / CUTOFF for d.
+     */
+    private void updateRadius() {
+        float[] rgb = intensity.getRGBColorComponents(null);
+        float brightest = Math.max(rgb[0], Math.max(rgb[1], rgb[2]));
+        float c = constant - brightest / CUTOFF;
+        if (c >= 0) radius = 0;
+        else if (quadratic == 0) radius = linear == 0 ? Float.MAX_VALUE : -c / linear;
+        else radius = (float) ((-linear + Math.sqrt(linear * linear - 4 * quadratic * c)) / (2 * quadratic));
     }
 
-    public void destroy(GL3 gl) {
+    /**
+     * Point lights have no uniforms of their own, the light manager puts
+     * them all in a buffer.
+     */
+    @Override
+    public void setUniforms(GL3 gl) {
     }
 }
@@ -4,9 +4,15 @@ import com.jogamp.opengl.GL3;
 import unsw.graphics.Quaternion;
 import unsw.graphics.Shader;
 import unsw.graphics.Vector3;
+import unsw.graphics.world.render.RenderQueue;
 
 import java.awt.*;
 
+/**
+ * The sun, moving through a day and night when the cycle is on. Its colour,
+ * the ambient light and the sky's tint at each step are looked up in a
+ * {@link DaylightTable}, so shaders only need the time.
+ */
 public class Sunlight extends DirectionalLight {
 
     private static final Color DEFAULT_INTENSITY = Color.WHITE;//new Color(0.8f, 0.8f, 0.8f);
@@ -21,6 +27,12 @@ public class Sunlight extends DirectionalLight {
     private Vector3 rotationAxis;
     private int time = 0;
 
+    // Rotation of one step of the day and of the night
+    private Quaternion dayStep;
+    private Quaternion nightStep;
+
+    private DaylightTable table = new DaylightTable(DAY, NIGHT);
+
     /**
      * Constructor for a the sunlight
      *
@@ -41,6 +53,8 @@ public class Sunlight extends DirectionalLight {
 
         // horizontal cross the direction, so the sun rotates away
         rotationAxis = new Vector3(-direction.getZ(), 0, direction.getX());
+        dayStep = Quaternion.fromAxisRotateRad(rotationAxis, Math.PI / DAY);
+        nightStep = Quaternion.fromAxisRotateRad(rotationAxis, Math.PI / NIGHT);
 
         // if sun is directly above terrain, sin of angle will be 1, which is the noon time
         double length = Math.sqrt(direction.dotp(direction));
@@ -102,20 +116,46 @@ public class Sunlight extends DirectionalLight {
     public void update() {
         if (!cycleOn) return;
         time = ++time % (DAY + NIGHT);
-        double angle = Math.PI / (isDaytime() ? DAY : NIGHT);
-        Quaternion q = Quaternion.fromAxisRotateRad(rotationAxis, angle);
-        rotate(q);
+        rotate(isDaytime() ? dayStep : nightStep);
+    }
+
+    /**
+     * Create the daylight table and have the queue keep it bound.
+     *
+     * @param gl
+     * @param queue
+     */
+    public void init(GL3 gl, RenderQueue queue) {
+        table.build(getIntensity(), ambientIntensity);
+        table.init(gl, queue);
+    }
+
+    /**
+     * Get the table of colours through the day and night.
+     * @return
+     */
+    public DaylightTable getTable() {
+        return table;
     }
 
+    /**
+     * Set the sun's direction and where it is in the daylight table,
+     * rebuilding the table if the sun's colour changed.
+     *
+     * @param gl
+     */
     @Override
     public void setUniforms(GL3 gl) {
+        table.build(getIntensity(), ambientIntensity);
+        table.upload(gl);
+
         Shader.setColor(gl, "sunlight.intensity", getIntensity());
         Shader.setVector3(gl, "sunlight.direction", getDirection());
-        Shader.setFloat(gl, "sunlight.time", time);
-
-        Shader.setFloat(gl, "sunlight.daytime", DAY);
-        Shader.setFloat(gl, "sunlight.nighttime", NIGHT);
+        Shader.setFloat(gl, "timeOfDay", table.coordinate(time));
+        Shader.setInt(gl, "daylight", DaylightTable.DAYLIGHT_UNIT);
+    }
 
-        Shader.setColor(gl, "ambientIntensity", ambientIntensity);
+    public void destroy(GL3 gl) {
+        table.destroy(gl);
     }
 }
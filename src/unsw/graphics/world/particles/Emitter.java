@@ -2,7 +2,9 @@ package unsw.graphics.world.particles;
 
 import com.jogamp.opengl.GL3;
 import unsw.graphics.*;
-import unsw.graphics.world.camera.Camera;
+import unsw.graphics.geometry.Point3D;
+import unsw.graphics.world.render.RenderQueue;
+import unsw.graphics.world.render.Sampler;
 
 import java.awt.*;
 
@@ -20,14 +22,17 @@ public class Emitter {
     private static final String VERTEX_SHADER   = "shaders/asst2_particle_vert.glsl";
     private static final String FRAGMENT_SHADER = "shaders/asst2_particle_frag.glsl";
 
-    private Shader shader;
+    // Every emitter draws with the same program and texture
+    private static Shader shader;
+    private static Texture texture;
+    private static int instances = 0;
+
     private Point3DBuffer velocities;
     private ColorBuffer colors;
     private int velocitiesName;
     private int colorsName;
 
     private Particle[] particles;
-    private Texture texture;
 
     private int particleCount;
     private int time = 0;
@@ -62,8 +67,12 @@ public class Emitter {
      * @param gl
      */
     public void init(GL3 gl) {
-        // Setup the particles shader
-        shader = new Shader(gl, VERTEX_SHADER, FRAGMENT_SHADER);
+        // Setup the particles shader and load the texture image, once for all
+        // emitters
+        if (instances++ == 0) {
+            shader = new Shader(gl, VERTEX_SHADER, FRAGMENT_SHADER);
+            texture = new Texture(gl, TEXTURE_FILENAME, TEXTURE_EXT, false);
+        }
 
         // Allocate the buffers
         velocities = new Point3DBuffer(particleCount);
@@ -74,9 +83,6 @@ public class Emitter {
         velocitiesName = names[0];
         colorsName = names[1];
 
-        // Load the texture image
-        texture = new Texture(gl, TEXTURE_FILENAME, TEXTURE_EXT, false);
-
         // Update the buffers
         for (int i = 0; i < particleCount; i++) {
             velocities.put(i, particles[i].dx, particles[i].dy, particles[i].dz);
@@ -96,37 +102,60 @@ public class Emitter {
     }
 
     /**
-     * Draws the particles on the screen
-     * @param gl
-     * @param camera
+     * Submit the particles to be drawn. They are transparent, so blended
+     * additively to hide the texture's alpha background and without
+     * writing depth so the textures don't overlap.
+     *
+     * @param queue
      * @param frame
      */
-    public void draw(GL3 gl, Camera camera, CoordFrame3D frame) {
+    public void submit(RenderQueue queue, CoordFrame3D frame) {
+        submit(queue, frame, 0);
+    }
+
+    /**
+     * Submit the particles to be drawn the given number of steps ahead of
+     * the emitter, so copies of the same particles don't move in step.
+     *
+     * @param queue
+     * @param frame
+     * @param offset steps ahead
+     */
+    public void submit(RenderQueue queue, CoordFrame3D frame, int offset) {
         // No need to draw if not emitting
         if (!emitting) return;
 
-        shader.use(gl);
-
-        // Creates an additive blend to hide the texture's alpha background
-        gl.glBlendFunc(GL3.GL_SRC_ALPHA, GL3.GL_ONE);
+        float distance = queue.distance(frame.transform(new Point3D(0, 0, 0)));
+        queue.submit(RenderQueue.TRANSPARENT, shader, GL3.GL_TEXTURE_2D, texture.getId(), Sampler.LINEAR, null,
+                distance, gl -> draw(gl, frame, offset));
+    }
 
-        // Disable depth writing so the textures don't overlap
-        gl.glDepthMask(false);
+    /**
+     * Draws the particles, with the shader and texture already bound.
+     * @param gl
+     * @param frame
+     */
+    public void draw(GL3 gl, CoordFrame3D frame) {
+        draw(gl, frame, 0);
+    }
 
+    /**
+     * Draws the particles the given number of steps ahead, with the shader
+     * and texture already bound.
+     * @param gl
+     * @param frame
+     * @param offset steps ahead
+     */
+    public void draw(GL3 gl, CoordFrame3D frame, int offset) {
         // Set the uniform value in the shader
-        camera.setProjMatrix(gl);
-        camera.setViewMatrix(gl);
         Shader.setModelMatrix(gl, frame.getMatrix());
 
         Shader.setPenColor(gl, Color.WHITE);
-        Shader.setInt(gl, "time", time);
+        Shader.setInt(gl, "time", time + offset);
         Shader.setFloat(gl, "decay", decay);
         Shader.setFloat(gl, "gravity", gravity);
 
-        // Bind the particle textures and set texture uniform
         Shader.setInt(gl, "tex", 0);
-        gl.glActiveTexture(GL3.GL_TEXTURE0);
-        gl.glBindTexture(GL3.GL_TEXTURE_2D, texture.getId());
 
         // Bind velocities and colors, set color uniform, set velocity as position uniform
         gl.glBindBuffer(GL3.GL_ARRAY_BUFFER, velocitiesName);
@@ -135,11 +164,6 @@ public class Emitter {
         gl.glVertexAttribPointer(Shader.COLOR, 4, GL3.GL_FLOAT, false, 0, 0);
 
         gl.glDrawArrays(GL3.GL_POINTS, 0, particles.length);
-        time++;
-
-        // Reset the changed settings
-        gl.glDepthMask(true);
-        gl.glBlendFunc(GL3.GL_SRC_ALPHA, GL3.GL_ONE_MINUS_SRC_ALPHA);
     }
 
     /**
@@ -148,7 +172,18 @@ public class Emitter {
      */
     public void destroy(GL3 gl) {
         gl.glDeleteBuffers(2, new int[] { velocitiesName, colorsName }, 0);
-        texture.destroy(gl);
+        if (--instances == 0) {
+            texture.destroy(gl);
+            shader.destroy(gl);
+        }
+    }
+
+    /**
+     * Move the particles on by the given number of simulation steps
+     * @param steps
+     */
+    public void tick(int steps) {
+        if (emitting) time += steps;
     }
 
     /**
@@ -6,19 +6,20 @@ import java.util.Random;
 public class ExplosionParticle extends Particle {
 
     private static final Color[] COLORS = { Color.RED, Color.ORANGE, Color.YELLOW };
-    private static final Random RANDOM = new Random();
 
     /**
      * Initialize velocity, color and life of particles
+     * @param random where the particle's randomness comes from, seeded to
+     *               make runs repeatable
      */
-    public ExplosionParticle() {
+    public ExplosionParticle(Random random) {
         float maxSpeed = 0.05f;
-        float speed = (RANDOM.nextFloat() - 0.5f) * maxSpeed;
-        float angle = (float) Math.toRadians(RANDOM.nextInt(360));
+        float speed = (random.nextFloat() - 0.5f) * maxSpeed;
+        float angle = (float) Math.toRadians(random.nextInt(360));
 
         // Initial speed for all the particles
         dx = speed * (float) Math.cos(angle);
-        dy = (RANDOM.nextFloat() - 0.5f) * maxSpeed;
+        dy = (random.nextFloat() - 0.5f) * maxSpeed;
         dz = speed * (float) Math.sin(angle);
 
         int index = (int) ((speed + maxSpeed) / (maxSpeed * 2) * COLORS.length) % COLORS.length;
@@ -3,7 +3,9 @@ package unsw.graphics.world.particles;
 import com.jogamp.opengl.GL3;
 import unsw.graphics.CoordFrame3D;
 import unsw.graphics.world.Terrain;
-import unsw.graphics.world.camera.Camera;
+import unsw.graphics.world.render.RenderQueue;
+
+import java.util.Random;
 
 public class RainCloud {
 
@@ -22,7 +24,14 @@ public class RainCloud {
     private int time = 0;
     private boolean raining = false;
 
-    public RainCloud(Terrain terrain) {
+    private Random random;
+
+    /**
+     * @param terrain
+     * @param random where the rain's randomness comes from
+     */
+    public RainCloud(Terrain terrain, Random random) {
+        this.random = random;
         transX = terrain.getWidth()/2;
         transZ = terrain.getDepth()/2;
         transY = HEIGHT;
@@ -39,20 +48,36 @@ public class RainCloud {
     public void init(GL3 gl) {
         Particle[] particles = new Particle[MAX_PARTICLES];
         for (int i = 0; i < MAX_PARTICLES; i++) {
-            particles[i] = new RainParticle();
+            particles[i] = new RainParticle(random);
         }
         emitter = new Emitter(particles, DECAY, GRAVITY);
         emitter.init(gl);
     }
 
-    public void draw(GL3 gl, Camera camera, CoordFrame3D frame) {
+    /**
+     * Submit the rain to be drawn, a copy of the particles per layer, each
+     * a step further on than the one below so the layers don't fall in
+     * step.
+     * @param queue
+     * @param frame
+     */
+    public void submit(RenderQueue queue, CoordFrame3D frame) {
         CoordFrame3D localFrame = frame.translate(transX, transY, transZ);
-        emitter.draw(gl, camera, localFrame);
+        emitter.submit(queue, localFrame);
 
         for (int i = 0; i < HEIGHT; i++) {
             localFrame = localFrame.translate(0, i, 0);
-            emitter.draw(gl, camera, localFrame);
+            emitter.submit(queue, localFrame, i + 1);
         }
+    }
+
+    /**
+     * Move the rain on by one simulation step
+     */
+    public void tick() {
+        // Every layer of rain is the same emitter, which used to move on
+        // once for each layer drawn, so keep the same pace
+        emitter.tick(HEIGHT + 1);
 
         time = (++time % MAX_TIME);
         if (time == 0) emitter.reset();
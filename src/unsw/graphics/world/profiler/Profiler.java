@@ -0,0 +1,313 @@
+package unsw.graphics.world.profiler;
+
+import com.jogamp.common.util.VersionNumber;
+import com.jogamp.opengl.GL3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures where the time in a frame goes, on the CPU and on the GPU.
+ *
+ * Work is wrapped in named scopes, which may nest:
+ *
+ * <pre>
+ *     profiler.beginFrame(gl);
+ *     profiler.begin(gl, "terrain");
+ *     terrain.draw(gl, frame);
+ *     profiler.end(gl);
+ *     profiler.endFrame(gl);
+ * </pre>
+ *
+ * CPU time is taken with System.nanoTime(). GPU time comes from timestamp
+ * queries written at the start and end of each scope, which unlike
+ * GL_TIME_ELAPSED queries can be nested. Their results are read LATENCY
+ * frames later, by which time the GPU has long finished with them, so
+ * reading them never stalls the pipeline. Results that still are not ready
+ * are dropped.
+ */
+public class Profiler {
+
+    // Frames between issuing a query and reading it back
+    private static final int LATENCY = 4;
+
+    private static final int MAX_DEPTH = 16;
+
+    // Timer queries are core from OpenGL 3.3
+    private static final VersionNumber TIMER_QUERY_VERSION = new VersionNumber(3, 3, 0);
+
+    /**
+     * A named piece of work and its timings.
+     */
+    public static class Scope {
+        private final String name;
+        private final String path;
+        private final int depth;
+        private final Map<String, Scope> children = new LinkedHashMap<>();
+
+        private final RollingStats cpu = new RollingStats();
+        private final RollingStats gpu = new RollingStats();
+
+        private Scope(String name, Scope parent) {
+            this.name = name;
+            this.path = parent == null ? name : parent.path + "/" + name;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Names of the enclosing scopes and this one, separated by slashes
+         * @return
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * Milliseconds of CPU time per frame
+         * @return
+         */
+        public RollingStats getCpu() {
+            return cpu;
+        }
+
+        /**
+         * Milliseconds of GPU time per frame, empty if timer queries are
+         * not supported
+         * @return
+         */
+        public RollingStats getGpu() {
+            return gpu;
+        }
+    }
+
+    /**
+     * The queries issued in one frame
+     */
+    private static class Queries {
+        long frame = -1;
+        int[] names = new int[0];
+        Scope[] scopes = new Scope[0];
+        int count = 0;
+    }
+
+    private final Scope root = new Scope("frame", null);
+
+    private final Queries[] queries = new Queries[LATENCY];
+    private final long[] timestamps = new long[2];
+
+    // Open scopes, innermost last
+    private final Scope[] stack = new Scope[MAX_DEPTH];
+    private final long[] started = new long[MAX_DEPTH];
+    private final int[] queryIndex = new int[MAX_DEPTH];
+    private int depth = 0;
+
+    private long frame = -1;
+    private boolean gpuTiming;
+
+    public Profiler() {
+        for (int i = 0; i < LATENCY; i++) queries[i] = new Queries();
+    }
+
+    /**
+     * Check whether timer queries can be used.
+     *
+     * @param gl
+     */
+    public void init(GL3 gl) {
+        gpuTiming = gl.isExtensionAvailable("GL_ARB_timer_query")
+                || gl.getContext().getGLVersionNumber().compareTo(TIMER_QUERY_VERSION) >= 0;
+    }
+
+    public void destroy(GL3 gl) {
+        for (Queries q : queries) {
+            if (q.names.length > 0) gl.glDeleteQueries(q.names.length, q.names, 0);
+            q.names = new int[0];
+            q.count = 0;
+        }
+    }
+
+    /**
+     * Start a frame. Reads back the GPU times of an earlier frame and opens
+     * the frame's root scope.
+     *
+     * @param gl
+     */
+    public void beginFrame(GL3 gl) {
+        if (depth != 0) throw new IllegalStateException("Unclosed profiler scope " + stack[depth - 1].path);
+        frame++;
+
+        Queries q = queries[(int) (frame % LATENCY)];
+        if (gpuTiming) collect(gl, q);
+        q.frame = frame;
+        q.count = 0;
+
+        open(gl, root);
+    }
+
+    /**
+     * End the frame, closing its root scope.
+     *
+     * @param gl
+     */
+    public void endFrame(GL3 gl) {
+        end(gl);
+        if (depth != 0) throw new IllegalStateException("Unclosed profiler scope " + stack[depth - 1].path);
+    }
+
+    /**
+     * Open a scope inside the current one.
+     *
+     * @param gl
+     * @param name
+     */
+    public void begin(GL3 gl, String name) {
+        if (depth == 0) throw new IllegalStateException("Profiler scope " + name + " outside a frame");
+        if (depth == MAX_DEPTH) throw new IllegalStateException("Profiler scopes nested too deep");
+
+        Scope parent = stack[depth - 1];
+        Scope scope = parent.children.get(name);
+        if (scope == null) {
+            scope = new Scope(name, parent);
+            parent.children.put(name, scope);
+        }
+        open(gl, scope);
+    }
+
+    /**
+     * Close the innermost open scope.
+     *
+     * @param gl
+     */
+    public void end(GL3 gl) {
+        if (depth == 0) throw new IllegalStateException("No profiler scope to end");
+        depth--;
+
+        Scope scope = stack[depth];
+        scope.cpu.add(frame, (System.nanoTime() - started[depth]) / 1e6f);
+
+        if (gpuTiming) {
+            Queries q = queries[(int) (frame % LATENCY)];
+            gl.glQueryCounter(q.names[queryIndex[depth] * 2 + 1], GL3.GL_TIMESTAMP);
+        }
+    }
+
+    /**
+     * The number of the current frame, starting at 0
+     * @return
+     */
+    public long getFrame() {
+        return frame;
+    }
+
+    /**
+     * The root scope, covering the whole frame
+     * @return
+     */
+    public Scope getRoot() {
+        return root;
+    }
+
+    /**
+     * Every scope seen so far, each followed by the scopes nested in it
+     * @return
+     */
+    public List<Scope> getScopes() {
+        List<Scope> scopes = new ArrayList<>();
+        addScopes(root, scopes);
+        return scopes;
+    }
+
+    /**
+     * A one line summary of the frame and the scopes directly inside it.
+     * @return
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder(String.format(Locale.ROOT, "%.2f ms", root.cpu.getMean()));
+        for (Scope scope : root.children.values()) {
+            summary.append(String.format(Locale.ROOT, " | %s %.2f", scope.name, scope.cpu.getMean()));
+            float gpu = scope.gpu.getMean();
+            if (!Float.isNaN(gpu)) summary.append(String.format(Locale.ROOT, "/%.2f", gpu));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Write the timings of every scope for the frames still in the history,
+     * one row per scope and frame.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void exportCSV(File file) throws IOException {
+        List<Scope> scopes = getScopes();
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("frame,scope,depth,cpu_ms,gpu_ms");
+            for (long f = Math.max(frame - RollingStats.HISTORY + 1, 0); f <= frame; f++) {
+                for (Scope scope : scopes) {
+                    float cpu = scope.cpu.get(f), gpu = scope.gpu.get(f);
+                    if (Float.isNaN(cpu) && Float.isNaN(gpu)) continue;
+                    out.printf(Locale.ROOT, "%d,%s,%d,%s,%s%n", f, scope.path, scope.depth,
+                            Float.isNaN(cpu) ? "" : String.format(Locale.ROOT, "%.4f", cpu),
+                            Float.isNaN(gpu) ? "" : String.format(Locale.ROOT, "%.4f", gpu));
+                }
+            }
+        }
+    }
+
+    private void addScopes(Scope scope, List<Scope> scopes) {
+        scopes.add(scope);
+        for (Scope child : scope.children.values()) addScopes(child, scopes);
+    }
+
+    private void open(GL3 gl, Scope scope) {
+        stack[depth] = scope;
+        if (gpuTiming) {
+            Queries q = queries[(int) (frame % LATENCY)];
+            if (q.count * 2 == q.names.length) grow(gl, q);
+            q.scopes[q.count] = scope;
+            queryIndex[depth] = q.count++;
+            gl.glQueryCounter(q.names[queryIndex[depth] * 2], GL3.GL_TIMESTAMP);
+        }
+        started[depth] = System.nanoTime();
+        depth++;
+    }
+
+    private void grow(GL3 gl, Queries q) {
+        int old = q.names.length;
+        int size = Math.max(old * 2, 32);
+        q.names = Arrays.copyOf(q.names, size);
+        q.scopes = Arrays.copyOf(q.scopes, size / 2);
+        gl.glGenQueries(size - old, q.names, old);
+    }
+
+    /**
+     * Read back the GPU times of the queries issued LATENCY frames ago.
+     */
+    private void collect(GL3 gl, Queries q) {
+        int[] available = new int[1];
+        for (int i = 0; i < q.count; i++) {
+            int end = q.names[i * 2 + 1];
+            gl.glGetQueryObjectiv(end, GL3.GL_QUERY_RESULT_AVAILABLE, available, 0);
+            if (available[0] == 0) continue;
+
+            gl.glGetQueryObjectui64v(q.names[i * 2], GL3.GL_QUERY_RESULT, timestamps, 0);
+            gl.glGetQueryObjectui64v(end, GL3.GL_QUERY_RESULT, timestamps, 1);
+            q.scopes[i].gpu.add(q.frame, (timestamps[1] - timestamps[0]) / 1e6f);
+        }
+    }
+}
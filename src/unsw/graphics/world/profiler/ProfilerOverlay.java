@@ -0,0 +1,142 @@
+package unsw.graphics.world.profiler;
+
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+import unsw.graphics.Matrix3;
+import unsw.graphics.Shader;
+import unsw.graphics.world.render.GLState;
+
+import java.awt.*;
+import java.util.List;
+
+/**
+ * Draws the profiler's scopes as bars in the top left corner of the window.
+ *
+ * Each scope gets a row, indented by how deeply it is nested. The grey bar
+ * is the time budget of a 60 Hz frame, the green bar on top of it the mean
+ * CPU time and the orange bar below it the mean GPU time, so anything
+ * running past the grey is over budget.
+ */
+public class ProfilerOverlay {
+
+    private static final String VERTEX_SHADER   = "shaders/vertex_2d.glsl";
+    private static final String FRAGMENT_SHADER = "shaders/fragment_2d.glsl";
+
+    private static final float BUDGET_MS = 1000f / 60;
+
+    // Sizes in pixels
+    private static final float MARGIN = 10;
+    private static final float ROW = 12;
+    private static final float BAR = 4;
+    private static final float INDENT = 12;
+    private static final float BUDGET_WIDTH = 240;
+
+    private static final Color BUDGET_COLOR = new Color(0.3f, 0.3f, 0.3f);
+    private static final Color CPU_COLOR = new Color(0.3f, 0.9f, 0.3f);
+    private static final Color GPU_COLOR = new Color(1.0f, 0.6f, 0.1f);
+
+    private Shader shader;
+    private int bufferName;
+
+    // Two triangles of x, y per bar
+    private float[] vertices = new float[0];
+
+    private boolean visible = false;
+
+    public void init(GL3 gl) {
+        shader = new Shader(gl, VERTEX_SHADER, FRAGMENT_SHADER);
+
+        int[] names = new int[1];
+        gl.glGenBuffers(1, names, 0);
+        bufferName = names[0];
+    }
+
+    public void destroy(GL3 gl) {
+        gl.glDeleteBuffers(1, new int[] { bufferName }, 0);
+        shader.destroy(gl);
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public void toggle() {
+        visible = !visible;
+    }
+
+    /**
+     * Draw the bars. Leaves the overlay's shader in use.
+     *
+     * @param gl
+     * @param state
+     * @param profiler
+     * @param width  of the window in pixels
+     * @param height
+     */
+    public void draw(GL3 gl, GLState state, Profiler profiler, int width, int height) {
+        if (!visible) return;
+
+        List<Profiler.Scope> scopes = profiler.getScopes();
+        int bars = scopes.size();
+        if (vertices.length < bars * 3 * 12)
+            vertices = new float[bars * 3 * 12];
+
+        // All the budget bars first, then the CPU bars, then the GPU bars, so
+        // each colour is one draw
+        float scale = BUDGET_WIDTH / BUDGET_MS;
+        int budget = 0, cpu = bars, gpu = 2 * bars;
+        int cpuCount = 0, gpuCount = 0;
+        for (int i = 0; i < bars; i++) {
+            Profiler.Scope scope = scopes.get(i);
+            float x = MARGIN + scope.getDepth() * INDENT;
+            float y = MARGIN + i * ROW;
+
+            quad(budget + i, x, y, BUDGET_WIDTH, 2 * BAR, width, height);
+
+            float cpuMs = scope.getCpu().getMean();
+            if (!Float.isNaN(cpuMs))
+                quad(cpu + cpuCount++, x, y, cpuMs * scale, BAR, width, height);
+
+            float gpuMs = scope.getGpu().getMean();
+            if (!Float.isNaN(gpuMs))
+                quad(gpu + gpuCount++, x, y + BAR, gpuMs * scale, BAR, width, height);
+        }
+
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, bufferName);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, vertices.length * (long) Float.BYTES,
+                Buffers.newDirectFloatBuffer(vertices), GL3.GL_STREAM_DRAW);
+
+        state.useProgram(gl, shader.getId());
+        Shader.setModelMatrix(gl, Matrix3.identity());
+        Shader.setViewMatrix(gl, Matrix3.identity());
+        gl.glVertexAttribPointer(Shader.POSITION, 2, GL.GL_FLOAT, false, 0, 0);
+
+        state.disable(gl, GL.GL_DEPTH_TEST);
+        Shader.setPenColor(gl, BUDGET_COLOR);
+        gl.glDrawArrays(GL.GL_TRIANGLES, budget * 6, bars * 6);
+        Shader.setPenColor(gl, CPU_COLOR);
+        gl.glDrawArrays(GL.GL_TRIANGLES, cpu * 6, cpuCount * 6);
+        Shader.setPenColor(gl, GPU_COLOR);
+        gl.glDrawArrays(GL.GL_TRIANGLES, gpu * 6, gpuCount * 6);
+        state.enable(gl, GL.GL_DEPTH_TEST);
+    }
+
+    /**
+     * Write the nth bar, given in pixels from the top left, in normalised
+     * device coordinates.
+     */
+    private void quad(int n, float x, float y, float w, float h, int width, int height) {
+        float left = x / width * 2 - 1, right = (x + w) / width * 2 - 1;
+        float top = 1 - y / height * 2, bottom = 1 - (y + h) / height * 2;
+
+        int i = n * 12;
+        vertices[i++] = left;  vertices[i++] = bottom;
+        vertices[i++] = right; vertices[i++] = bottom;
+        vertices[i++] = right; vertices[i++] = top;
+
+        vertices[i++] = left;  vertices[i++] = bottom;
+        vertices[i++] = right; vertices[i++] = top;
+        vertices[i++] = left;  vertices[i++] = top;
+    }
+}
@@ -0,0 +1,86 @@
+package unsw.graphics.world.profiler;
+
+import java.util.Arrays;
+
+/**
+ * Timings of one scope over the last few hundred frames, indexed by frame
+ * number. A scope entered more than once in a frame gets the sum of its
+ * times for that frame.
+ */
+public class RollingStats {
+
+    public static final int HISTORY = 240;
+
+    private final float[] values = new float[HISTORY];
+    private final long[] frames = new long[HISTORY];
+    private long latest = -1;
+
+    public RollingStats() {
+        Arrays.fill(frames, -1);
+    }
+
+    /**
+     * Record a time for a frame.
+     *
+     * @param frame
+     * @param ms
+     */
+    public void add(long frame, float ms) {
+        int i = (int) (frame % HISTORY);
+        if (frames[i] == frame) {
+            values[i] += ms;
+        } else {
+            frames[i] = frame;
+            values[i] = ms;
+        }
+        latest = Math.max(latest, frame);
+    }
+
+    /**
+     * The time recorded for a frame, or NaN if there is none.
+     *
+     * @param frame
+     * @return
+     */
+    public float get(long frame) {
+        int i = (int) (frame % HISTORY);
+        return frame >= 0 && frames[i] == frame ? values[i] : Float.NaN;
+    }
+
+    /**
+     * The most recent time recorded, or NaN if there is none.
+     * @return
+     */
+    public float getLast() {
+        return latest < 0 ? Float.NaN : get(latest);
+    }
+
+    public float getMean() {
+        float sum = 0;
+        int count = 0;
+        for (int i = 0; i < HISTORY; i++) {
+            if (!recent(i)) continue;
+            sum += values[i];
+            count++;
+        }
+        return count == 0 ? Float.NaN : sum / count;
+    }
+
+    public float getMin() {
+        float min = Float.NaN;
+        for (int i = 0; i < HISTORY; i++)
+            if (recent(i) && (Float.isNaN(min) || values[i] < min)) min = values[i];
+        return min;
+    }
+
+    public float getMax() {
+        float max = Float.NaN;
+        for (int i = 0; i < HISTORY; i++)
+            if (recent(i) && (Float.isNaN(max) || values[i] > max)) max = values[i];
+        return max;
+    }
+
+    private boolean recent(int i) {
+        return frames[i] >= 0 && frames[i] > latest - HISTORY;
+    }
+}
@@ -0,0 +1,177 @@
+package unsw.graphics.world.render;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import unsw.graphics.Shader;
+import unsw.graphics.geometry.Point3D;
+import unsw.graphics.geometry.TriangleMesh;
+import unsw.graphics.world.camera.Camera;
+
+/**
+ * Where the opaque pass draws its surfaces instead of shading them, for
+ * deferred shading. Each pixel keeps only the nearest surface's colours
+ * under diffuse, ambient and specular light, its normal and shininess, and
+ * its depth, and is then lit once by a pass over the whole screen, so
+ * hidden surfaces cost no lighting.
+ *
+ * The lighting pass writes each pixel's depth into the framebuffer drawn
+ * to, so the sky and transparent passes can still be depth tested
+ * afterwards, and leaves pixels with nothing drawn untouched.
+ */
+public class GBuffer {
+
+    // Texture units the buffers are bound to for the lighting pass
+    public static final int DIFFUSE_UNIT = 8;
+    public static final int AMBIENT_UNIT = 9;
+    public static final int SPECULAR_UNIT = 10;
+    public static final int NORMAL_UNIT = 11;
+    public static final int DEPTH_UNIT = 12;
+
+    /**
+     * The outputs of the shader drawing into the buffers, in draw buffer
+     * order.
+     */
+    public static final String[] OUTPUTS = { "outDiffuse", "outAmbient", "outSpecular", "outNormal" };
+
+    private static final String[] SAMPLERS = { "gDiffuse", "gAmbient", "gSpecular", "gNormal", "gDepth" };
+    private static final int[] UNITS = { DIFFUSE_UNIT, AMBIENT_UNIT, SPECULAR_UNIT, NORMAL_UNIT, DEPTH_UNIT };
+
+    // Colours fit in 8 bits, the normal is two octahedral coordinates and
+    // the shininess needs more range
+    private static final int[] FORMATS = { GL.GL_RGBA8, GL.GL_RGBA8, GL.GL_RGBA8, GL.GL_RGBA16F,
+            GL.GL_DEPTH_COMPONENT24 };
+    private static final int[] BYTES = { 4, 4, 4, 8, 4 };
+
+    private static final int[] DRAW_BUFFERS = { GL.GL_COLOR_ATTACHMENT0, GL.GL_COLOR_ATTACHMENT0 + 1,
+            GL.GL_COLOR_ATTACHMENT0 + 2, GL.GL_COLOR_ATTACHMENT0 + 3 };
+
+    private static final float[] CLEAR_COLOR = { 0, 0, 0, 0 };
+    private static final float[] CLEAR_DEPTH = { 1 };
+
+    private final Shader lighting;
+    private TriangleMesh triangle;
+
+    private int framebuffer;
+    private final int[] textures = new int[UNITS.length];
+    private int width = 0, height = 0;
+    private final int[] previous = new int[1];
+
+    /**
+     * @param lighting lights the buffers, drawn over the whole screen
+     */
+    public GBuffer(Shader lighting) {
+        this.lighting = lighting;
+        List<Point3D> corners = new ArrayList<>();
+        corners.add(new Point3D(-1, -1, 0));
+        corners.add(new Point3D(3, -1, 0));
+        corners.add(new Point3D(-1, 3, 0));
+        triangle = new TriangleMesh(corners, false);
+    }
+
+    public void init(GL3 gl) {
+        triangle.init(gl);
+        int[] names = new int[1];
+        gl.glGenFramebuffers(1, names, 0);
+        framebuffer = names[0];
+        gl.glGenTextures(textures.length, textures, 0);
+    }
+
+    public Shader getLightingShader() {
+        return lighting;
+    }
+
+    /**
+     * Draw into the buffers, cleared, from now on, resizing them first if
+     * the window's size changed.
+     *
+     * @param gl
+     * @param state
+     * @param width  of the viewport
+     * @param height of the viewport
+     */
+    public void bind(GL3 gl, GLState state, int width, int height) {
+        gl.glGetIntegerv(GL.GL_FRAMEBUFFER_BINDING, previous, 0);
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebuffer);
+        if (width != this.width || height != this.height) resize(gl, state, width, height);
+
+        gl.glDrawBuffers(DRAW_BUFFERS.length, DRAW_BUFFERS, 0);
+        for (int i = 0; i < DRAW_BUFFERS.length; i++) gl.glClearBufferfv(GL3.GL_COLOR, i, CLEAR_COLOR, 0);
+        gl.glClearBufferfv(GL3.GL_DEPTH, 0, CLEAR_DEPTH, 0);
+    }
+
+    private void resize(GL3 gl, GLState state, int width, int height) {
+        this.width = width;
+        this.height = height;
+        for (int i = 0; i < textures.length; i++) {
+            boolean depth = i == textures.length - 1;
+            state.bindTexture(gl, UNITS[i], GL.GL_TEXTURE_2D, textures[i]);
+            gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, FORMATS[i], width, height, 0,
+                    depth ? GL3.GL_DEPTH_COMPONENT : GL.GL_RGBA, depth ? GL.GL_FLOAT : GL.GL_UNSIGNED_BYTE, null);
+            gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_NEAREST);
+            gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_NEAREST);
+            gl.glTexParameteri(GL.GL_TEXTURE_2D, GL3.GL_TEXTURE_MAX_LEVEL, 0);
+            gl.glFramebufferTexture2D(GL.GL_FRAMEBUFFER, depth ? GL.GL_DEPTH_ATTACHMENT : DRAW_BUFFERS[i],
+                    GL.GL_TEXTURE_2D, textures[i], 0);
+        }
+
+        int status = gl.glCheckFramebufferStatus(GL.GL_FRAMEBUFFER);
+        if (status != GL.GL_FRAMEBUFFER_COMPLETE)
+            throw new IllegalStateException("G-buffer incomplete: 0x" + Integer.toHexString(status));
+    }
+
+    /**
+     * Go back to the framebuffer drawn to before, with the buffers bound
+     * to be lit.
+     *
+     * @param gl
+     * @param state
+     */
+    public void resolve(GL3 gl, GLState state) {
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, previous[0]);
+        for (int i = 0; i < textures.length; i++) {
+            state.bindTexture(gl, UNITS[i], GL.GL_TEXTURE_2D, textures[i]);
+            state.bindSampler(gl, UNITS[i], 0);
+        }
+    }
+
+    /**
+     * Set the lighting shader's buffer units and the inverse projection it
+     * finds positions with.
+     *
+     * @param gl
+     * @param camera
+     */
+    public void setUniforms(GL3 gl, Camera camera) {
+        for (int i = 0; i < SAMPLERS.length; i++) Shader.setInt(gl, SAMPLERS[i], UNITS[i]);
+        Shader.setMatrix4(gl, "inverse_proj", camera.getProjMatrix().inverse());
+    }
+
+    /**
+     * Light every pixel, with the lighting shader in use.
+     *
+     * @param gl
+     */
+    public void drawLighting(GL3 gl) {
+        triangle.draw(gl);
+    }
+
+    /**
+     * Video memory the buffers take.
+     * @return
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (int b : BYTES) bytes += (long) b * width * height;
+        return bytes;
+    }
+
+    public void destroy(GL3 gl) {
+        triangle.destroy(gl);
+        gl.glDeleteTextures(textures.length, textures, 0);
+        gl.glDeleteFramebuffers(1, new int[] { framebuffer }, 0);
+    }
+}
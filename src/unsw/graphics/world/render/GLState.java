@@ -0,0 +1,334 @@
+package unsw.graphics.world.render;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import java.util.Arrays;
+
+/**
+ * Mirrors the OpenGL state the world changes while drawing, so that setting
+ * something to what it already is costs nothing: the bound program, the
+ * active texture unit and each unit's textures and sampler, the common capabilities,
+ * the blend function, the depth mask and function and the polygon offset.
+ *
+ * Anything that changes the same state behind the mirror's back, such as
+ * creating a texture, must call {@link #reset()} afterwards, which makes
+ * the next change of everything go to the driver. The render queue resets
+ * at the start of each frame.
+ *
+ * In debug mode every call first reads the real state back from the driver
+ * and throws if the mirror disagrees with it, which finds whatever changed
+ * the state without going through here. Reading state back stalls the
+ * pipeline, so it is only for tracking down such bugs.
+ */
+public class GLState {
+
+    private static final int UNITS = 16;
+
+    // Texture targets whose bindings are tracked, others are always bound
+    private static final int[] TARGETS = { GL.GL_TEXTURE_2D, GL.GL_TEXTURE_CUBE_MAP, GL3.GL_TEXTURE_2D_ARRAY,
+            GL3.GL_TEXTURE_BUFFER };
+    private static final int[] TARGET_BINDINGS = { GL.GL_TEXTURE_BINDING_2D, GL.GL_TEXTURE_BINDING_CUBE_MAP,
+            GL3.GL_TEXTURE_BINDING_2D_ARRAY, GL3.GL_TEXTURE_BINDING_BUFFER };
+
+    // Capabilities which are tracked, others are always set
+    private static final int[] CAPABILITIES = { GL.GL_BLEND, GL.GL_DEPTH_TEST, GL.GL_CULL_FACE,
+            GL.GL_POLYGON_OFFSET_FILL, GL.GL_SCISSOR_TEST, GL3.GL_PROGRAM_POINT_SIZE };
+
+    private static final int UNKNOWN = -1;
+
+    private int program;
+    private int activeUnit;
+    private final int[][] textures = new int[UNITS][TARGETS.length];
+    private final int[] samplers = new int[UNITS];
+    private final int[] capabilities = new int[CAPABILITIES.length];
+    private int depthMask;
+    private int depthFunc;
+    private int blendSrc;
+    private int blendDst;
+    private float offsetFactor;
+    private float offsetUnits;
+    private boolean offsetKnown;
+
+    private boolean debug = false;
+
+    private int calls = 0;
+    private int skipped = 0;
+    private int programBinds = 0;
+    private int textureBinds = 0;
+
+    private final int[] query = new int[2];
+    private final float[] queryFloat = new float[1];
+    private final byte[] queryByte = new byte[1];
+
+    public GLState() {
+        reset();
+    }
+
+    /**
+     * Check every call against the driver's state, see the class comment.
+     * @param debug
+     */
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    /**
+     * Forget everything, e.g. because code outside the mirror changed it.
+     */
+    public void reset() {
+        program = UNKNOWN;
+        activeUnit = UNKNOWN;
+        for (int[] unit : textures) Arrays.fill(unit, UNKNOWN);
+        Arrays.fill(samplers, UNKNOWN);
+        Arrays.fill(capabilities, UNKNOWN);
+        depthMask = UNKNOWN;
+        depthFunc = UNKNOWN;
+        blendSrc = blendDst = UNKNOWN;
+        offsetKnown = false;
+    }
+
+    public void useProgram(GL3 gl, int program) {
+        if (debug) check(gl, "program", this.program, GL3.GL_CURRENT_PROGRAM);
+        if (skip(this.program == program)) return;
+        gl.glUseProgram(program);
+        this.program = program;
+        programBinds++;
+    }
+
+    /**
+     * @param gl
+     * @param unit from 0
+     */
+    public void activeTexture(GL3 gl, int unit) {
+        if (debug && activeUnit != UNKNOWN) check(gl, "active texture", GL.GL_TEXTURE0 + activeUnit, GL.GL_ACTIVE_TEXTURE);
+        if (skip(activeUnit == unit)) return;
+        gl.glActiveTexture(GL.GL_TEXTURE0 + unit);
+        activeUnit = unit;
+    }
+
+    /**
+     * Bind a texture to a texture unit, leaving that unit active.
+     *
+     * @param gl
+     * @param unit   from 0
+     * @param target e.g. GL_TEXTURE_2D
+     * @param name
+     */
+    public void bindTexture(GL3 gl, int unit, int target, int name) {
+        int t = target(target);
+        boolean tracked = t >= 0 && unit < UNITS;
+        if (debug && tracked && textures[unit][t] != UNKNOWN) {
+            activeTexture(gl, unit);
+            check(gl, "texture unit " + unit, textures[unit][t], TARGET_BINDINGS[t]);
+        }
+        if (skip(tracked && textures[unit][t] == name)) return;
+        activeTexture(gl, unit);
+        gl.glBindTexture(target, name);
+        if (tracked) textures[unit][t] = name;
+        textureBinds++;
+    }
+
+    /**
+     * Bind a sampler object to a texture unit, overriding the parameters of
+     * whatever textures are bound there.
+     *
+     * @param gl
+     * @param unit    from 0
+     * @param sampler 0 to go back to the textures' own parameters
+     */
+    public void bindSampler(GL3 gl, int unit, int sampler) {
+        boolean tracked = unit < UNITS;
+        if (debug && tracked && samplers[unit] != UNKNOWN) {
+            activeTexture(gl, unit);
+            check(gl, "sampler unit " + unit, samplers[unit], GL3.GL_SAMPLER_BINDING);
+        }
+        if (skip(tracked && samplers[unit] == sampler)) return;
+        gl.glBindSampler(unit, sampler);
+        if (tracked) samplers[unit] = sampler;
+    }
+
+    public void enable(GL3 gl, int capability) {
+        set(gl, capability, true);
+    }
+
+    public void disable(GL3 gl, int capability) {
+        set(gl, capability, false);
+    }
+
+    /**
+     * Whether a tracked capability is known to be enabled.
+     *
+     * @param capability
+     * @return false if it is disabled, not tracked or not known
+     */
+    public boolean isEnabled(int capability) {
+        int c = capability(capability);
+        return c >= 0 && capabilities[c] == 1;
+    }
+
+    private void set(GL3 gl, int capability, boolean enabled) {
+        int c = capability(capability);
+        int value = enabled ? 1 : 0;
+        if (debug && c >= 0 && capabilities[c] != UNKNOWN) {
+            int actual = gl.glIsEnabled(capability) ? 1 : 0;
+            if (actual != capabilities[c])
+                throw outOfSync("capability 0x" + Integer.toHexString(capability), capabilities[c], actual);
+        }
+        if (skip(c >= 0 && capabilities[c] == value)) return;
+        if (enabled) gl.glEnable(capability);
+        else gl.glDisable(capability);
+        if (c >= 0) capabilities[c] = value;
+    }
+
+    public void depthMask(GL3 gl, boolean mask) {
+        int value = mask ? 1 : 0;
+        if (debug && depthMask != UNKNOWN) {
+            gl.glGetBooleanv(GL.GL_DEPTH_WRITEMASK, queryByte, 0);
+            if (queryByte[0] != depthMask) throw outOfSync("depth mask", depthMask, queryByte[0]);
+        }
+        if (skip(depthMask == value)) return;
+        gl.glDepthMask(mask);
+        depthMask = value;
+    }
+
+    public void depthFunc(GL3 gl, int func) {
+        if (debug) check(gl, "depth func", depthFunc, GL.GL_DEPTH_FUNC);
+        if (skip(depthFunc == func)) return;
+        gl.glDepthFunc(func);
+        depthFunc = func;
+    }
+
+    public void blendFunc(GL3 gl, int src, int dst) {
+        if (debug) {
+            check(gl, "blend source", blendSrc, GL.GL_BLEND_SRC_RGB);
+            check(gl, "blend destination", blendDst, GL.GL_BLEND_DST_RGB);
+        }
+        if (skip(blendSrc == src && blendDst == dst)) return;
+        gl.glBlendFunc(src, dst);
+        blendSrc = src;
+        blendDst = dst;
+    }
+
+    public void polygonOffset(GL3 gl, float factor, float units) {
+        if (debug && offsetKnown) {
+            gl.glGetFloatv(GL.GL_POLYGON_OFFSET_FACTOR, queryFloat, 0);
+            if (queryFloat[0] != offsetFactor) throw outOfSync("polygon offset factor", offsetFactor, queryFloat[0]);
+        }
+        if (skip(offsetKnown && offsetFactor == factor && offsetUnits == units)) return;
+        gl.glPolygonOffset(factor, units);
+        offsetFactor = factor;
+        offsetUnits = units;
+        offsetKnown = true;
+    }
+
+    /**
+     * Check everything mirrored against the driver, in debug mode or not.
+     *
+     * @param gl
+     * @throws IllegalStateException at the first difference
+     */
+    public void validate(GL3 gl) {
+        check(gl, "program", program, GL3.GL_CURRENT_PROGRAM);
+        check(gl, "depth func", depthFunc, GL.GL_DEPTH_FUNC);
+        check(gl, "blend source", blendSrc, GL.GL_BLEND_SRC_RGB);
+        check(gl, "blend destination", blendDst, GL.GL_BLEND_DST_RGB);
+        for (int c = 0; c < CAPABILITIES.length; c++) {
+            if (capabilities[c] == UNKNOWN) continue;
+            int actual = gl.glIsEnabled(CAPABILITIES[c]) ? 1 : 0;
+            if (actual != capabilities[c])
+                throw outOfSync("capability 0x" + Integer.toHexString(CAPABILITIES[c]), capabilities[c], actual);
+        }
+        if (depthMask != UNKNOWN) {
+            gl.glGetBooleanv(GL.GL_DEPTH_WRITEMASK, queryByte, 0);
+            if (queryByte[0] != depthMask) throw outOfSync("depth mask", depthMask, queryByte[0]);
+        }
+
+        // Checking the bindings means changing the active unit, put it back
+        gl.glGetIntegerv(GL.GL_ACTIVE_TEXTURE, query, 0);
+        int active = query[0];
+        if (activeUnit != UNKNOWN && active != GL.GL_TEXTURE0 + activeUnit)
+            throw outOfSync("active texture", GL.GL_TEXTURE0 + activeUnit, active);
+        for (int unit = 0; unit < UNITS; unit++) {
+            for (int t = 0; t < TARGETS.length; t++) {
+                if (textures[unit][t] == UNKNOWN) continue;
+                gl.glActiveTexture(GL.GL_TEXTURE0 + unit);
+                check(gl, "texture unit " + unit, textures[unit][t], TARGET_BINDINGS[t]);
+            }
+            if (samplers[unit] != UNKNOWN) {
+                gl.glActiveTexture(GL.GL_TEXTURE0 + unit);
+                check(gl, "sampler unit " + unit, samplers[unit], GL3.GL_SAMPLER_BINDING);
+            }
+        }
+        gl.glActiveTexture(active);
+    }
+
+    /**
+     * Number of state changes asked for since the counts were last reset.
+     * @return
+     */
+    public int getCalls() {
+        return calls;
+    }
+
+    /**
+     * Number of state changes skipped as the state was already set.
+     * @return
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Number of programs actually bound since the counts were last reset.
+     * @return
+     */
+    public int getProgramBinds() {
+        return programBinds;
+    }
+
+    /**
+     * Number of textures actually bound since the counts were last reset.
+     * @return
+     */
+    public int getTextureBinds() {
+        return textureBinds;
+    }
+
+    public void resetCounts() {
+        calls = skipped = programBinds = textureBinds = 0;
+    }
+
+    private boolean skip(boolean same) {
+        calls++;
+        if (same) skipped++;
+        return same;
+    }
+
+    private void check(GL3 gl, String what, int mirrored, int pname) {
+        if (mirrored == UNKNOWN) return;
+        gl.glGetIntegerv(pname, query, 0);
+        if (query[0] != mirrored) throw outOfSync(what, mirrored, query[0]);
+    }
+
+    private static IllegalStateException outOfSync(String what, Object mirrored, Object actual) {
+        return new IllegalStateException("GL state out of sync: " + what + " is " + actual
+                + " but mirrored as " + mirrored);
+    }
+
+    private static int target(int target) {
+        for (int i = 0; i < TARGETS.length; i++)
+            if (TARGETS[i] == target) return i;
+        return -1;
+    }
+
+    private static int capability(int capability) {
+        for (int i = 0; i < CAPABILITIES.length; i++)
+            if (CAPABILITIES[i] == capability) return i;
+        return -1;
+    }
+}
@@ -0,0 +1,83 @@
+package unsw.graphics.world.render;
+
+import com.jogamp.opengl.GL3;
+import unsw.graphics.Shader;
+
+import java.awt.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The lighting coefficients and colour of a surface drawn with the world's
+ * default shader. Materials are immutable so they can be shared and made
+ * once as constants.
+ */
+public class Material {
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
+
+    private final int id = NEXT_ID.getAndIncrement();
+
+    private final Color ambient;
+    private final Color diffuse;
+    private final Color specular;
+    private final float phongExp;
+    private final Color color;
+    private final boolean textured;
+    private final int layer;
+
+    /**
+     * @param ambient  ambient coefficients
+     * @param diffuse  diffuse coefficients
+     * @param specular specular coefficients
+     * @param phongExp
+     * @param color    pen colour, which the texture is multiplied by
+     * @param textured whether to sample the bound texture
+     */
+    public Material(Color ambient, Color diffuse, Color specular, float phongExp, Color color, boolean textured) {
+        this(ambient, diffuse, specular, phongExp, color, textured, -1);
+    }
+
+    private Material(Color ambient, Color diffuse, Color specular, float phongExp, Color color, boolean textured,
+                     int layer) {
+        this.ambient = ambient;
+        this.diffuse = diffuse;
+        this.specular = specular;
+        this.phongExp = phongExp;
+        this.color = color;
+        this.textured = textured;
+        this.layer = layer;
+    }
+
+    /**
+     * The same material textured from a layer of the world's texture array
+     * rather than the bound texture.
+     *
+     * @param layer
+     * @return
+     */
+    public Material inLayer(int layer) {
+        return new Material(ambient, diffuse, specular, phongExp, color, true, layer);
+    }
+
+    /**
+     * A number unique to this material, for sorting by.
+     * @return
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Set the shader's material uniforms.
+     * @param gl
+     */
+    public void apply(GL3 gl) {
+        Shader.setColor(gl, "ambientCoeff", ambient);
+        Shader.setColor(gl, "diffuseCoeff", diffuse);
+        Shader.setColor(gl, "specularCoeff", specular);
+        Shader.setFloat(gl, "phongExp", phongExp);
+        Shader.setPenColor(gl, color);
+        Shader.setBoolean(gl, "useTexture", textured);
+        Shader.setInt(gl, "layer", layer);
+    }
+}
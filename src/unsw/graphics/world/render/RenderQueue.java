@@ -0,0 +1,511 @@
+package unsw.graphics.world.render;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+import unsw.graphics.Shader;
+import unsw.graphics.geometry.Point3D;
+import unsw.graphics.world.camera.Camera;
+import unsw.graphics.world.profiler.Profiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Collects everything to draw in a frame and draws it in an order that
+ * changes as little state as possible.
+ *
+ * Each item is submitted with a pass, a shader, an optional texture with
+ * its sampler and material, and its distance from the camera, which are packed into a 64
+ * bit key:
+ *
+ * <pre>
+ *     opaque, sky:  pass:2 | program:8 | texture:12 | material:10 | depth:24
+ *     transparent:  pass:2 | far to near:24 | program:8 | texture:12 | material:10
+ * </pre>
+ *
+ * Sorting by the key draws the passes in order and, within the opaque
+ * passes, groups items by program, then texture, then material, nearest
+ * first to save on shading hidden pixels. Transparent items have to be
+ * drawn furthest first, so state grouping only breaks ties there.
+ *
+ * Whenever the program changes the camera's matrices are set, followed by
+ * whatever else that program was given in {@link #setProgramSetup}.
+ *
+ * With a {@link GBuffer} the opaque pass is drawn into it and lit in one
+ * pass over the screen before the sky and transparent passes, which are
+ * still shaded forward.
+ */
+public class RenderQueue {
+
+    /**
+     * Solid geometry, drawn first.
+     */
+    public static final int OPAQUE = 0;
+
+    /**
+     * The sky, behind everything opaque.
+     */
+    public static final int SKY = 1;
+
+    /**
+     * Blended additively without writing depth, drawn last.
+     */
+    public static final int TRANSPARENT = 2;
+
+    private static final String[] PASS_NAMES = { "opaque", "sky", "transparent" };
+
+    private static final int PROGRAM_BITS = 8;
+    private static final int TEXTURE_BITS = 12;
+    private static final int MATERIAL_BITS = 10;
+    private static final int DEPTH_BITS = 24;
+    private static final int STATE_BITS = PROGRAM_BITS + TEXTURE_BITS + MATERIAL_BITS;
+
+    // Distances are measured up to the camera's far plane
+    private static final float MAX_DISTANCE = 200;
+
+    // Video memory for streamed textures unless World is given a budget
+    private static final long DEFAULT_STREAMING_BUDGET = 64L << 20;
+
+    /**
+     * Draws an item. Called with its program, texture and material current.
+     */
+    public interface Draw {
+        void draw(GL3 gl);
+    }
+
+    /**
+     * Sets a program's uniforms for the frame.
+     */
+    public interface Setup {
+        void setup(GL3 gl);
+    }
+
+    /**
+     * Drawn after sorting and before the passes, e.g. to render shadow
+     * maps by drawing the opaque items again.
+     */
+    public interface PrePass {
+        void render(GL3 gl);
+    }
+
+    private static class Item {
+        long key;
+        int program;
+        int target;
+        int texture;
+        Sampler sampler;
+        Material material;
+        String category;
+        Draw draw;
+    }
+
+    private static class FrameBinding {
+        int unit;
+        int target;
+        int texture;
+        Sampler sampler;
+    }
+
+    // The pass is in the top bits, so keys compare unsigned
+    private static final Comparator<Item> BY_KEY = (a, b) -> Long.compareUnsigned(a.key, b.key);
+
+    private final GLState state;
+    private final SamplerCache samplers = new SamplerCache();
+    private final TextureStreamer streamer = new TextureStreamer(DEFAULT_STREAMING_BUDGET);
+    private final Map<Integer, Setup> setups = new HashMap<>();
+    private final List<FrameBinding> frameBindings = new ArrayList<>();
+    private final Map<String, PrePass> prePasses = new LinkedHashMap<>();
+
+    // Small numbers for programs and textures, in the order they were first
+    // seen, to fit the key
+    private final Map<Integer, Integer> programSlots = new HashMap<>();
+    private final Map<Integer, Integer> textureSlots = new HashMap<>();
+
+    private Item[] items = new Item[0];
+    private int count = 0;
+    private Camera camera;
+    private GBuffer gbuffer;
+    private String category;
+
+    // Changes in the order items were submitted and after sorting
+    private int submittedPrograms, submittedTextures, submittedMaterials;
+    private int programBinds, textureBinds, materialChanges;
+    private int stateCalls, stateSkipped;
+
+    public RenderQueue(GLState state) {
+        this.state = state;
+    }
+
+    public GLState getState() {
+        return state;
+    }
+
+    /**
+     * The streamer for textures drawn through the queue, which is updated
+     * by flush() before drawing.
+     *
+     * @return
+     */
+    public TextureStreamer getStreamer() {
+        return streamer;
+    }
+
+    /**
+     * Give a program uniforms to set whenever it is used, after the camera's.
+     * Replaces any setup it had before.
+     *
+     * @param shader
+     * @param setup
+     */
+    public void setProgramSetup(Shader shader, Setup setup) {
+        setups.put(shader.getId(), setup);
+    }
+
+    /**
+     * Keep a texture bound to a unit other than 0 for the whole of every
+     * frame, e.g. a texture array shared by everything one program draws.
+     *
+     * @param unit    from 1, as items' textures are bound to 0
+     * @param target
+     * @param texture
+     * @param sampler  or null for buffer textures, which aren't sampled
+     */
+    public void bindForFrame(int unit, int target, int texture, Sampler sampler) {
+        FrameBinding binding = new FrameBinding();
+        binding.unit = unit;
+        binding.target = target;
+        binding.texture = texture;
+        binding.sampler = sampler;
+        frameBindings.add(binding);
+    }
+
+    /**
+     * Add something to draw before the passes every frame, timed under the
+     * given name.
+     *
+     * @param name
+     * @param prePass
+     */
+    public void addPrePass(String name, PrePass prePass) {
+        prePasses.put(name, prePass);
+    }
+
+    /**
+     * Shade the opaque pass deferred through the given G-buffer, or forward
+     * if null. The opaque items must then be submitted with a shader
+     * writing into it.
+     *
+     * @param gbuffer
+     */
+    public void setGBuffer(GBuffer gbuffer) {
+        this.gbuffer = gbuffer;
+    }
+
+    public GBuffer getGBuffer() {
+        return gbuffer;
+    }
+
+    /**
+     * Draw the opaque items again with whatever program is in use, without
+     * their textures or materials, e.g. into a depth only shadow map. Only
+     * for use by pre-passes.
+     *
+     * @param gl
+     */
+    public void drawOpaque(GL3 gl) {
+        for (int i = 0; i < count && (int) (items[i].key >>> 62) == OPAQUE; i++)
+            items[i].draw.draw(gl);
+    }
+
+    /**
+     * The camera of the frame being drawn.
+     *
+     * @return
+     */
+    public Camera getCamera() {
+        return camera;
+    }
+
+    /**
+     * Start a frame seen through the given camera, dropping anything not
+     * drawn from the last one.
+     *
+     * @param camera
+     */
+    public void begin(Camera camera) {
+        this.camera = camera;
+        for (int i = 0; i < count; i++) items[i].draw = null;
+        count = 0;
+        category = null;
+    }
+
+    /**
+     * Name what the items submitted from now on draw, e.g. "terrain", so
+     * flush times each kind apart inside its pass.
+     *
+     * @param category or null to leave them untimed
+     */
+    public void setCategory(String category) {
+        this.category = category;
+    }
+
+    /**
+     * Distance from the camera to a point, for submitting.
+     *
+     * @param point
+     * @return
+     */
+    public float distance(Point3D point) {
+        Point3D eye = camera.getPosition();
+        float dx = point.getX() - eye.getX();
+        float dy = point.getY() - eye.getY();
+        float dz = point.getZ() - eye.getZ();
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /**
+     * How many pixels something appears across on screen, for requesting
+     * streamed textures.
+     *
+     * @param distance from the camera
+     * @param size     in world units
+     * @return
+     */
+    public float footprint(float distance, float size) {
+        return size * camera.getPixelScale() / Math.max(distance, 0.1f);
+    }
+
+    /**
+     * Add an item to draw.
+     *
+     * @param pass     OPAQUE, SKY or TRANSPARENT
+     * @param shader
+     * @param target   the texture's target, e.g. GL_TEXTURE_2D
+     * @param texture  bound to unit 0, or 0 for none
+     * @param sampler  how to sample the texture, ignored if there isn't one
+     * @param material may be null for shaders without materials
+     * @param distance from the camera
+     * @param draw
+     */
+    public void submit(int pass, Shader shader, int target, int texture, Sampler sampler,
+                       Material material, float distance, Draw draw) {
+        if (count == items.length) {
+            items = Arrays.copyOf(items, Math.max(64, count * 2));
+            for (int i = count; i < items.length; i++) items[i] = new Item();
+        }
+
+        Item item = items[count++];
+        item.program = shader.getId();
+        item.target = target;
+        item.texture = texture;
+        item.sampler = sampler;
+        item.material = material;
+        item.category = category;
+        item.draw = draw;
+
+        long state = (long) slot(programSlots, item.program, PROGRAM_BITS) << (TEXTURE_BITS + MATERIAL_BITS)
+                | (long) (texture == 0 ? 0 : slot(textureSlots, texture, TEXTURE_BITS)) << MATERIAL_BITS
+                | (material == null ? 0 : material.getId() & ((1 << MATERIAL_BITS) - 1));
+        long depth = (long) (Math.min(Math.max(distance / MAX_DISTANCE, 0), 1) * ((1 << DEPTH_BITS) - 1));
+
+        if (pass == TRANSPARENT)
+            item.key = (long) pass << 62 | (((1L << DEPTH_BITS) - 1) - depth) << STATE_BITS | state;
+        else
+            item.key = (long) pass << 62 | state << DEPTH_BITS | depth;
+    }
+
+    /**
+     * Sort and draw everything submitted since begin().
+     *
+     * @param gl
+     * @param profiler times each pass, and each run of items of one
+     *                 category inside it, may be null
+     */
+    public void flush(GL3 gl, Profiler profiler) {
+        countSubmitted();
+        Arrays.sort(items, 0, count, BY_KEY);
+
+        // Uploads bind textures behind the state mirror's back, so before
+        // it is reset
+        streamer.update(gl);
+
+        // Anything may have changed the state since the last frame
+        state.reset();
+        state.resetCounts();
+        materialChanges = 0;
+        for (FrameBinding binding : frameBindings) {
+            state.bindTexture(gl, binding.unit, binding.target, binding.texture);
+            if (binding.sampler != null) state.bindSampler(gl, binding.unit, samplers.get(gl, binding.sampler));
+        }
+
+        setPassState(gl, OPAQUE);
+        for (Map.Entry<String, PrePass> prePass : prePasses.entrySet()) {
+            if (profiler != null) profiler.begin(gl, prePass.getKey());
+            prePass.getValue().render(gl);
+            if (profiler != null) profiler.end(gl);
+        }
+
+        if (gbuffer != null) gbuffer.bind(gl, state, camera.getViewportWidth(), camera.getViewportHeight());
+        boolean lit = gbuffer == null;
+
+        int pass = -1;
+        int program = 0;
+        Material material = null;
+        String category = null;
+        for (int i = 0; i < count; i++) {
+            Item item = items[i];
+
+            int itemPass = (int) (item.key >>> 62);
+            if (itemPass != pass) {
+                if (category != null && profiler != null) profiler.end(gl);
+                category = null;
+                if (pass >= 0 && profiler != null) profiler.end(gl);
+                if (!lit && itemPass > OPAQUE) {
+                    light(gl, profiler);
+                    lit = true;
+                    program = 0;
+                }
+                pass = itemPass;
+                if (profiler != null) profiler.begin(gl, PASS_NAMES[pass]);
+                setPassState(gl, pass);
+            }
+
+            // Items are sorted by state rather than category, so a category
+            // may be timed in several runs, which the profiler adds up
+            if (profiler != null && !Objects.equals(item.category, category)) {
+                if (category != null) profiler.end(gl);
+                category = item.category;
+                if (category != null) profiler.begin(gl, category);
+            }
+
+            if (item.program != program) {
+                program = item.program;
+                state.useProgram(gl, program);
+                camera.setProjMatrix(gl);
+                camera.setViewMatrix(gl);
+                Setup setup = setups.get(program);
+                if (setup != null) setup.setup(gl);
+                material = null;
+            }
+
+            if (item.texture != 0) {
+                state.bindTexture(gl, 0, item.target, item.texture);
+                state.bindSampler(gl, 0, samplers.get(gl, item.sampler));
+            }
+
+            if (item.material != null && item.material != material) {
+                material = item.material;
+                material.apply(gl);
+                materialChanges++;
+            }
+
+            item.draw.draw(gl);
+        }
+        if (category != null && profiler != null) profiler.end(gl);
+        if (pass >= 0 && profiler != null) profiler.end(gl);
+        if (!lit) light(gl, profiler);
+
+        // Leave the state as everything outside the queue expects it
+        setPassState(gl, OPAQUE);
+        programBinds = state.getProgramBinds();
+        textureBinds = state.getTextureBinds();
+        stateCalls = state.getCalls();
+        stateSkipped = state.getSkipped();
+        if (state.isDebug()) state.validate(gl);
+    }
+
+    /**
+     * Light the G-buffer into the framebuffer it replaced.
+     */
+    private void light(GL3 gl, Profiler profiler) {
+        if (profiler != null) profiler.begin(gl, "lighting");
+        gbuffer.resolve(gl, state);
+        Shader shader = gbuffer.getLightingShader();
+        state.useProgram(gl, shader.getId());
+        camera.setProjMatrix(gl);
+        camera.setViewMatrix(gl);
+        Setup setup = setups.get(shader.getId());
+        if (setup != null) setup.setup(gl);
+        gbuffer.drawLighting(gl);
+        if (profiler != null) profiler.end(gl);
+    }
+
+    /**
+     * State changes in the last frame as the items were submitted and as
+     * they were drawn after sorting.
+     *
+     * @return
+     */
+    public String summary() {
+        return String.format("%d items, binds as submitted/sorted: programs %d/%d, textures %d/%d, "
+                        + "materials %d/%d, %d of %d state calls skipped",
+                count, submittedPrograms, programBinds, submittedTextures, textureBinds,
+                submittedMaterials, materialChanges, stateSkipped, stateCalls);
+    }
+
+    public void destroy(GL3 gl) {
+        samplers.destroy(gl);
+    }
+
+    public int getProgramBinds() {
+        return programBinds;
+    }
+
+    public int getTextureBinds() {
+        return textureBinds;
+    }
+
+    public int getMaterialChanges() {
+        return materialChanges;
+    }
+
+    private void setPassState(GL3 gl, int pass) {
+        if (pass == TRANSPARENT) {
+            state.depthMask(gl, false);
+            state.blendFunc(gl, GL.GL_SRC_ALPHA, GL.GL_ONE);
+        } else {
+            state.depthMask(gl, true);
+            state.blendFunc(gl, GL.GL_SRC_ALPHA, GL.GL_ONE_MINUS_SRC_ALPHA);
+        }
+    }
+
+    /**
+     * Count the changes drawing the items in the order submitted would take.
+     */
+    private void countSubmitted() {
+        submittedPrograms = submittedTextures = submittedMaterials = 0;
+        int program = 0, texture = 0;
+        Material material = null;
+        for (int i = 0; i < count; i++) {
+            Item item = items[i];
+            if (item.program != program) {
+                program = item.program;
+                material = null;
+                submittedPrograms++;
+            }
+            if (item.texture != 0 && item.texture != texture) {
+                texture = item.texture;
+                submittedTextures++;
+            }
+            if (item.material != null && item.material != material) {
+                material = item.material;
+                submittedMaterials++;
+            }
+        }
+    }
+
+    private static int slot(Map<Integer, Integer> slots, int name, int bits) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = Math.min(slots.size() + 1, (1 << bits) - 1);
+            slots.put(name, slot);
+        }
+        return slot;
+    }
+}
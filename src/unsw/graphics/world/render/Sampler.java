@@ -0,0 +1,106 @@
+package unsw.graphics.world.render;
+
+import com.jogamp.opengl.GL;
+
+/**
+ * How a texture is filtered and wrapped when sampled. Samplers are
+ * immutable parameter sets, turned into GL sampler objects by a
+ * {@link SamplerCache} so that the parameters are set once rather than on
+ * the texture every time it is drawn.
+ */
+public class Sampler {
+
+    /**
+     * Bilinear, repeating.
+     */
+    public static final Sampler LINEAR = new Sampler(GL.GL_LINEAR, GL.GL_LINEAR, GL.GL_REPEAT, false);
+
+    /**
+     * Bilinear, clamped to the edges, e.g. for cube maps.
+     */
+    public static final Sampler LINEAR_CLAMP = new Sampler(GL.GL_LINEAR, GL.GL_LINEAR, GL.GL_CLAMP_TO_EDGE,
+            false);
+
+    /**
+     * Trilinear and anisotropic, repeating.
+     */
+    public static final Sampler MIPMAP = new Sampler(GL.GL_LINEAR_MIPMAP_LINEAR, GL.GL_LINEAR, GL.GL_REPEAT, true);
+
+    /**
+     * Trilinear and anisotropic, mirrored, for ground textures.
+     */
+    public static final Sampler MIPMAP_MIRRORED = new Sampler(GL.GL_LINEAR_MIPMAP_LINEAR, GL.GL_LINEAR,
+            GL.GL_MIRRORED_REPEAT, true);
+
+    /**
+     * Comparing against the depth in a shadow map, bilinearly so each
+     * lookup is a 2x2 percentage closer filter.
+     */
+    public static final Sampler SHADOW = new Sampler(GL.GL_LINEAR, GL.GL_LINEAR, GL.GL_CLAMP_TO_EDGE, false, true);
+
+    private final int minFilter;
+    private final int magFilter;
+    private final int wrap;
+    private final boolean anisotropic;
+    private final boolean compare;
+
+    /**
+     * @param minFilter   e.g. GL_LINEAR_MIPMAP_LINEAR
+     * @param magFilter
+     * @param wrap        in every direction, e.g. GL_REPEAT
+     * @param anisotropic whether to use as much anisotropic filtering as the
+     *                    driver allows
+     */
+    public Sampler(int minFilter, int magFilter, int wrap, boolean anisotropic) {
+        this(minFilter, magFilter, wrap, anisotropic, false);
+    }
+
+    /**
+     * @param minFilter
+     * @param magFilter
+     * @param wrap
+     * @param anisotropic
+     * @param compare     whether lookups compare against a depth texture,
+     *                    for shadow samplers
+     */
+    public Sampler(int minFilter, int magFilter, int wrap, boolean anisotropic, boolean compare) {
+        this.minFilter = minFilter;
+        this.magFilter = magFilter;
+        this.wrap = wrap;
+        this.anisotropic = anisotropic;
+        this.compare = compare;
+    }
+
+    public int getMinFilter() {
+        return minFilter;
+    }
+
+    public int getMagFilter() {
+        return magFilter;
+    }
+
+    public int getWrap() {
+        return wrap;
+    }
+
+    public boolean isAnisotropic() {
+        return anisotropic;
+    }
+
+    public boolean isCompare() {
+        return compare;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Sampler)) return false;
+        Sampler s = (Sampler) o;
+        return minFilter == s.minFilter && magFilter == s.magFilter && wrap == s.wrap
+                && anisotropic == s.anisotropic && compare == s.compare;
+    }
+
+    @Override
+    public int hashCode() {
+        return (((minFilter * 31 + magFilter) * 31 + wrap) * 2 + (anisotropic ? 1 : 0)) * 2 + (compare ? 1 : 0);
+    }
+}
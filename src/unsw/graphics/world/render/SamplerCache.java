@@ -0,0 +1,79 @@
+package unsw.graphics.world.render;
+
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL3;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates one GL sampler object for each distinct {@link Sampler} on first
+ * use and keeps it until destroyed.
+ */
+public class SamplerCache {
+
+    private static final String ANISOTROPY_EXTENSION = "GL_EXT_texture_filter_anisotropic";
+
+    private final Map<Sampler, Integer> names = new HashMap<>();
+
+    // Queried with the first anisotropic sampler, 1 if not supported
+    private float maxAnisotropy = 0;
+
+    /**
+     * The GL sampler object for the given parameters.
+     *
+     * @param gl
+     * @param sampler
+     * @return
+     */
+    public int get(GL3 gl, Sampler sampler) {
+        Integer name = names.get(sampler);
+        if (name == null) {
+            name = create(gl, sampler);
+            names.put(sampler, name);
+        }
+        return name;
+    }
+
+    /**
+     * Number of sampler objects created.
+     * @return
+     */
+    public int size() {
+        return names.size();
+    }
+
+    public void destroy(GL3 gl) {
+        int[] all = names.values().stream().mapToInt(Integer::intValue).toArray();
+        if (all.length > 0) gl.glDeleteSamplers(all.length, all, 0);
+        names.clear();
+    }
+
+    private int create(GL3 gl, Sampler sampler) {
+        int[] name = new int[1];
+        gl.glGenSamplers(1, name, 0);
+        gl.glSamplerParameteri(name[0], GL.GL_TEXTURE_MIN_FILTER, sampler.getMinFilter());
+        gl.glSamplerParameteri(name[0], GL.GL_TEXTURE_MAG_FILTER, sampler.getMagFilter());
+        gl.glSamplerParameteri(name[0], GL.GL_TEXTURE_WRAP_S, sampler.getWrap());
+        gl.glSamplerParameteri(name[0], GL.GL_TEXTURE_WRAP_T, sampler.getWrap());
+        gl.glSamplerParameteri(name[0], GL3.GL_TEXTURE_WRAP_R, sampler.getWrap());
+        if (sampler.isCompare()) {
+            gl.glSamplerParameteri(name[0], GL3.GL_TEXTURE_COMPARE_MODE, GL3.GL_COMPARE_REF_TO_TEXTURE);
+            gl.glSamplerParameteri(name[0], GL3.GL_TEXTURE_COMPARE_FUNC, GL.GL_LEQUAL);
+        }
+
+        if (sampler.isAnisotropic()) {
+            if (maxAnisotropy == 0) {
+                maxAnisotropy = 1;
+                if (gl.isExtensionAvailable(ANISOTROPY_EXTENSION)) {
+                    float[] largest = new float[1];
+                    gl.glGetFloatv(GL.GL_MAX_TEXTURE_MAX_ANISOTROPY_EXT, largest, 0);
+                    maxAnisotropy = largest[0];
+                }
+            }
+            if (maxAnisotropy > 1)
+                gl.glSamplerParameterf(name[0], GL.GL_TEXTURE_MAX_ANISOTROPY_EXT, maxAnisotropy);
+        }
+        return name[0];
+    }
+}
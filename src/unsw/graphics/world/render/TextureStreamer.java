@@ -0,0 +1,245 @@
+package unsw.graphics.world.render;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.jogamp.opengl.GL3;
+
+import unsw.graphics.MipChain;
+import unsw.graphics.StreamedTexture;
+
+/**
+ * Decides which levels of each {@link StreamedTexture} are resident.
+ *
+ * Each frame textures are requested with their footprint on screen, which
+ * picks the level with about one texel a pixel. Textures wanting larger
+ * levels than they have are loaded on a worker thread and uploaded by a
+ * later update. Video memory is kept under a budget by evicting the least
+ * recently used textures back to their mip tails, and if that isn't
+ * enough a texture gets the largest level that fits instead, and isn't
+ * loaded again until it wants more or a larger level would fit.
+ */
+public class TextureStreamer {
+
+    // A texture not requested for this many frames doesn't want its load
+    private static final int FORGET_FRAMES = 60;
+
+    private static final ExecutorService WORKER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Texture streaming");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Entry {
+        StreamedTexture texture;
+        int wanted;
+        long lastUsed = -1;
+        Future<MipChain> pending;
+        boolean failed;
+
+        // The level the last load was cut down to to fit the budget, or -1,
+        // and the level it wanted then
+        int capped = -1;
+        int cappedWanted;
+    }
+
+    private final Map<StreamedTexture, Entry> entries = new HashMap<>();
+    private final List<Entry> order = new ArrayList<>();
+    private long budget;
+    private long frame = 0;
+
+    private int loads, evictions, downgrades;
+
+    /**
+     * @param budget bytes of video memory for every streamed texture
+     */
+    public TextureStreamer(long budget) {
+        this.budget = budget;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Change the budget, which is enforced by the next loads.
+     *
+     * @param budget in bytes
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Note a texture is drawn this frame.
+     *
+     * @param texture
+     * @param pixels  how many pixels wide the texture appears on screen
+     */
+    public void request(StreamedTexture texture, float pixels) {
+        Entry entry = entries.get(texture);
+        if (entry == null) {
+            entry = new Entry();
+            entry.texture = texture;
+            entries.put(texture, entry);
+            order.add(entry);
+        }
+        if (entry.lastUsed != frame) entry.wanted = texture.getTailLevel();
+
+        // The level with about one texel a pixel
+        float texels = texture.getWidth() / Math.max(pixels, 1);
+        int level = texels <= 1 ? 0 : (int) (Math.log(texels) / Math.log(2));
+        entry.wanted = Math.min(entry.wanted, Math.min(level, texture.getTailLevel()));
+        entry.lastUsed = frame;
+    }
+
+    /**
+     * Upload loads that have finished and start the ones wanted by this
+     * frame's requests. Must be called on the GL thread, and leaves a
+     * texture bound to the active unit.
+     *
+     * @param gl
+     */
+    public void update(GL3 gl) {
+        for (Entry entry : order) {
+            if (entry.pending != null) {
+                if (entry.pending.isDone()) finish(gl, entry);
+            } else if (!entry.failed && entry.lastUsed == frame
+                    && entry.wanted < entry.texture.getResidentLevel() && !isCapped(entry)) {
+                StreamedTexture texture = entry.texture;
+                entry.pending = WORKER.submit(texture::load);
+            }
+        }
+        frame++;
+    }
+
+    private void finish(GL3 gl, Entry entry) {
+        StreamedTexture texture = entry.texture;
+        MipChain chain;
+        try {
+            chain = entry.pending.get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Can't stream " + texture.getFileName() + ": " + e.getCause());
+            entry.failed = true;
+            return;
+        } finally {
+            entry.pending = null;
+        }
+        if (frame - entry.lastUsed > FORGET_FRAMES) return;
+
+        // What it wanted when last requested, which may have changed while
+        // it was loading
+        int level = entry.wanted;
+        if (level >= texture.getResidentLevel()) return;
+
+        long others = getResidentBytes() - texture.getResidentBytes();
+        while (others + texture.getBytes(level) > budget && evictLeastRecent(gl, entry))
+            others = getResidentBytes() - texture.getResidentBytes();
+
+        int fits = level;
+        while (fits < texture.getResidentLevel() && others + texture.getBytes(fits) > budget) fits++;
+        if (fits != level) {
+            downgrades++;
+            entry.capped = fits;
+            entry.cappedWanted = level;
+        } else {
+            entry.capped = -1;
+        }
+        if (fits < texture.getResidentLevel()) {
+            texture.upload(gl, chain, fits);
+            loads++;
+        }
+    }
+
+    /**
+     * Whether a texture has the level its last load was cut down to, so
+     * loading it again would only be cut down the same way: it wants no
+     * more than it did then and the next larger level still doesn't fit.
+     */
+    private boolean isCapped(Entry entry) {
+        StreamedTexture texture = entry.texture;
+        int level = texture.getResidentLevel();
+        if (entry.capped != level || entry.wanted < entry.cappedWanted) return false;
+        long others = getResidentBytes() - texture.getResidentBytes();
+        return others + texture.getBytes(level - 1) > budget;
+    }
+
+    /**
+     * Evict the least recently used texture with more than its tail
+     * resident, except for the given one and any used this frame that
+     * don't have more than they want.
+     *
+     * @return whether there was one
+     */
+    private boolean evictLeastRecent(GL3 gl, Entry except) {
+        Entry oldest = null;
+        for (Entry entry : order) {
+            if (entry == except) continue;
+            if (entry.lastUsed == frame && entry.texture.getResidentLevel() >= entry.wanted) continue;
+            if (entry.texture.getResidentLevel() >= entry.texture.getTailLevel()) continue;
+            if (oldest == null || entry.lastUsed < oldest.lastUsed) oldest = entry;
+        }
+        if (oldest == null) return false;
+        oldest.texture.evict(gl);
+        evictions++;
+        return true;
+    }
+
+    /**
+     * Bytes of video memory every streamed texture takes now.
+     * @return
+     */
+    public long getResidentBytes() {
+        long bytes = 0;
+        for (Entry entry : order) bytes += entry.texture.getResidentBytes();
+        return bytes;
+    }
+
+    public int getTextureCount() {
+        return order.size();
+    }
+
+    /**
+     * Textures with a load in progress.
+     * @return
+     */
+    public int getPending() {
+        int pending = 0;
+        for (Entry entry : order) if (entry.pending != null) pending++;
+        return pending;
+    }
+
+    public int getLoads() {
+        return loads;
+    }
+
+    public int getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Loads that got a smaller level than wanted to fit the budget.
+     * @return
+     */
+    public int getDowngrades() {
+        return downgrades;
+    }
+
+    /**
+     * Residency and eviction counts since the start.
+     *
+     * @return
+     */
+    public String summary() {
+        return String.format("%d streamed textures, %.1f of %.1f MB resident, "
+                        + "%d loads, %d evictions, %d downgrades, %d loading",
+                order.size(), getResidentBytes() / 1048576.0, budget / 1048576.0,
+                loads, evictions, downgrades, getPending());
+    }
+}
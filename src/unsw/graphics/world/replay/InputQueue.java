@@ -0,0 +1,78 @@
+package unsw.graphics.world.replay;
+
+import com.jogamp.newt.event.KeyEvent;
+import com.jogamp.newt.event.KeyListener;
+import com.jogamp.newt.event.MouseEvent;
+import com.jogamp.newt.event.MouseListener;
+import com.jogamp.newt.event.NEWTEvent;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Holds the window's key and mouse events until the next frame, so that
+ * input is handled between simulation steps in the order it arrived rather
+ * than whenever the window's thread gets it. Input handled this way can be
+ * recorded and replayed exactly.
+ */
+public class InputQueue implements KeyListener, MouseListener {
+
+    private final ConcurrentLinkedQueue<NEWTEvent> events = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Move all the waiting events into the given list, oldest first.
+     * @param into
+     */
+    public void drain(List<NEWTEvent> into) {
+        NEWTEvent event;
+        while ((event = events.poll()) != null) into.add(event);
+    }
+
+    @Override
+    public void keyPressed(KeyEvent e) {
+        events.add(e);
+    }
+
+    @Override
+    public void keyReleased(KeyEvent e) {
+        events.add(e);
+    }
+
+    @Override
+    public void mouseClicked(MouseEvent e) {
+        events.add(e);
+    }
+
+    @Override
+    public void mousePressed(MouseEvent e) {
+        events.add(e);
+    }
+
+    @Override
+    public void mouseReleased(MouseEvent e) {
+        events.add(e);
+    }
+
+    @Override
+    public void mouseMoved(MouseEvent e) {
+        events.add(e);
+    }
+
+    @Override
+    public void mouseDragged(MouseEvent e) {
+        events.add(e);
+    }
+
+    @Override
+    public void mouseWheelMoved(MouseEvent e) {
+        events.add(e);
+    }
+
+    @Override
+    public void mouseEntered(MouseEvent e) {
+    }
+
+    @Override
+    public void mouseExited(MouseEvent e) {
+    }
+}
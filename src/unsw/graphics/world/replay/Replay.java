@@ -0,0 +1,181 @@
+package unsw.graphics.world.replay;
+
+import com.jogamp.newt.event.KeyEvent;
+import com.jogamp.newt.event.MouseEvent;
+import com.jogamp.newt.event.NEWTEvent;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recorded run of the world: the random seed it started with and, for
+ * each frame, the input handled and the number of simulation steps taken.
+ * Playing the frames back in order repeats the run exactly, down to the
+ * frames drawn, however fast or slow they are drawn this time.
+ *
+ * The file is a header of magic number, version and seed, followed by a
+ * record per frame of the steps as a byte, the event count as a short and
+ * the events. A key event is its type, modifiers, key code, key symbol and
+ * character; a mouse event its type, modifiers, position, click count and
+ * button, plus the rotation for the wheel. An idle frame takes three bytes.
+ *
+ * @see ReplayRecorder
+ */
+public class Replay {
+
+    static final int MAGIC = 0x55475250; // "UGRP"
+    static final short VERSION = 1;
+
+    private final long seed;
+    private final List<Frame> frames;
+
+    private static class Frame {
+        final int steps;
+        final List<NEWTEvent> events;
+
+        Frame(int steps, List<NEWTEvent> events) {
+            this.steps = steps;
+            this.events = events;
+        }
+    }
+
+    private Replay(long seed, List<Frame> frames) {
+        this.seed = seed;
+        this.frames = frames;
+    }
+
+    /**
+     * Read a replay file. A final frame cut short, e.g. by the recording
+     * being killed, is dropped.
+     *
+     * @param file
+     * @return
+     * @throws IOException if the file isn't a replay
+     */
+    public static Replay load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) throw new IOException(file + " is not a replay");
+            short version = in.readShort();
+            if (version != VERSION) throw new IOException("Unsupported replay version " + version);
+
+            long seed = in.readLong();
+            Replay replay = new Replay(seed, new ArrayList<>());
+            while (true) {
+                try {
+                    int steps = in.readUnsignedByte();
+                    int count = in.readUnsignedShort();
+                    List<NEWTEvent> events = count == 0 ? Collections.emptyList() : new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) events.add(read(in, replay));
+                    replay.frames.add(new Frame(steps, events));
+                } catch (EOFException e) {
+                    return replay;
+                }
+            }
+        }
+    }
+
+    /**
+     * The seed for the world's random numbers.
+     * @return
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getFrameCount() {
+        return frames.size();
+    }
+
+    /**
+     * Number of simulation steps taken in the given frame.
+     * @param frame
+     * @return
+     */
+    public int getSteps(int frame) {
+        return frames.get(frame).steps;
+    }
+
+    /**
+     * Input handled at the start of the given frame, oldest first.
+     * @param frame
+     * @return
+     */
+    public List<NEWTEvent> getEvents(int frame) {
+        return frames.get(frame).events;
+    }
+
+    /**
+     * Total number of simulation steps in the replay.
+     * @return
+     */
+    public long getTicks() {
+        long ticks = 0;
+        for (Frame frame : frames) ticks += frame.steps;
+        return ticks;
+    }
+
+    /**
+     * Whether an event is one a replay keeps.
+     * @param event
+     * @return
+     */
+    static boolean isRecorded(NEWTEvent event) {
+        return event instanceof KeyEvent || event instanceof MouseEvent
+                && event.getEventType() != MouseEvent.EVENT_MOUSE_ENTERED
+                && event.getEventType() != MouseEvent.EVENT_MOUSE_EXITED;
+    }
+
+    static void write(DataOutputStream out, NEWTEvent event) throws IOException {
+        out.writeShort(event.getEventType());
+        if (event instanceof KeyEvent) {
+            KeyEvent e = (KeyEvent) event;
+            out.writeInt(e.getModifiers());
+            out.writeShort(e.getKeyCode());
+            out.writeShort(e.getKeySymbol());
+            out.writeChar(e.getKeyChar());
+        } else {
+            MouseEvent e = (MouseEvent) event;
+            out.writeInt(e.getModifiers());
+            out.writeShort(e.getX());
+            out.writeShort(e.getY());
+            out.writeShort(e.getClickCount());
+            out.writeShort(e.getButton());
+            if (e.getEventType() == MouseEvent.EVENT_MOUSE_WHEEL_MOVED) {
+                float[] rotation = e.getRotation();
+                for (int i = 0; i < 3; i++) out.writeFloat(rotation[i]);
+                out.writeFloat(e.getRotationScale());
+            }
+        }
+    }
+
+    private static NEWTEvent read(DataInputStream in, Object source) throws IOException {
+        short type = in.readShort();
+        int modifiers = in.readInt();
+        if (type == KeyEvent.EVENT_KEY_PRESSED || type == KeyEvent.EVENT_KEY_RELEASED) {
+            short keyCode = in.readShort();
+            short keySymbol = in.readShort();
+            char keyChar = in.readChar();
+            return KeyEvent.create(type, source, 0, modifiers, keyCode, keySymbol, keyChar);
+        }
+
+        int x = in.readShort();
+        int y = in.readShort();
+        short clickCount = in.readShort();
+        short button = in.readShort();
+        float[] rotation = new float[3];
+        float rotationScale = 1;
+        if (type == MouseEvent.EVENT_MOUSE_WHEEL_MOVED) {
+            for (int i = 0; i < 3; i++) rotation[i] = in.readFloat();
+            rotationScale = in.readFloat();
+        }
+        return new MouseEvent(type, source, 0, modifiers, x, y, clickCount, button, rotation, rotationScale);
+    }
+}
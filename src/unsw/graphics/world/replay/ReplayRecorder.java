@@ -0,0 +1,63 @@
+package unsw.graphics.world.replay;
+
+import com.jogamp.newt.event.NEWTEvent;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a {@link Replay} a frame at a time. Each frame is flushed as it is
+ * written, so the recording survives the window being closed without the
+ * world being destroyed.
+ */
+public class ReplayRecorder implements Closeable {
+
+    private final DataOutputStream out;
+    private final List<NEWTEvent> recorded = new ArrayList<>();
+
+    /**
+     * Start a recording, replacing the file if it exists.
+     *
+     * @param file
+     * @param seed the seed for the world's random numbers
+     * @throws IOException
+     */
+    public ReplayRecorder(File file, long seed) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(Replay.MAGIC);
+        out.writeShort(Replay.VERSION);
+        out.writeLong(seed);
+        out.flush();
+    }
+
+    /**
+     * Record a frame.
+     *
+     * @param steps simulation steps taken in the frame
+     * @param events input handled at its start, events replays don't need
+     *               are skipped
+     * @throws IOException
+     */
+    public void frame(int steps, List<NEWTEvent> events) throws IOException {
+        recorded.clear();
+        for (NEWTEvent event : events)
+            if (Replay.isRecorded(event)) recorded.add(event);
+        if (recorded.size() > 0xFFFF) throw new IOException("Too many events in a frame to record");
+
+        out.writeByte(steps);
+        out.writeShort(recorded.size());
+        for (NEWTEvent event : recorded) Replay.write(out, event);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}